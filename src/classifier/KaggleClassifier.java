@@ -9,6 +9,7 @@ import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.Vector;
 
+import trainer.FeatureMatrix;
 import trainer.FeatureValuePair;
 
 import weka.classifiers.Classifier;
@@ -35,6 +36,9 @@ public class KaggleClassifier {
 	 * [1] = Location of the best training data set.
 	 * [2] = The best seed used in classifying the training data.
 	 * [3] = Location for outputting the labelled test data to.
+	 * [4] = Optional comma separated names of the feature columns the
+	 *       training data set was made of, where a '*' matches any run
+	 *       of characters. All by default.
 	 */
 	public static void main(String[] args) {
 		
@@ -43,12 +47,16 @@ public class KaggleClassifier {
 		String bestTrainingSetLocation = null;
 		String outputLocation = null;
 		int bestSeed = 0;
+		String [] selection = null;
 
 		if(args.length > 0) {
 			testFeatureDirectory = args[0];
 			bestTrainingSetLocation = args[1];
 			bestSeed = Integer.parseInt(args[2]);
 			outputLocation = args[3];
+			if(args.length > 4) {
+				selection = FeatureMatrix.parseSelection(args[4]);
+			}
 		} else {
 			testFeatureDirectory = "./SubmissionData";
 			bestTrainingSetLocation = "./train_best.arff";
@@ -64,7 +72,9 @@ public class KaggleClassifier {
 		// the data to be submitted, and convert this data to an ARFF file
 		// to the output directory.
 		System.out.println("Creating submit data.");
-		Vector<FeatureValuePair> featurePairs = readInFeatures(testFeatureDirectory);
+		Vector<FeatureValuePair> featurePairs = selection == null ?
+			readInFeatures(testFeatureDirectory) :
+			FeatureMatrix.read(testFeatureDirectory, selection, false).toFeatureValuePairs();
 		writeFeaturesToFile(featurePairs, outputLocation + "submit");
 		
 		// Read the ARFF file from the output directory created above and
@@ -189,6 +199,13 @@ public class KaggleClassifier {
 		// The features to collect.
 		Vector<FeatureValuePair> featureValuePairs = new Vector<FeatureValuePair>();
 		
+		// Read the features from the feature stores in the directory
+		// if there are any, instead of a text file for each image.
+		Vector<FeatureValuePair> stored_pairs = FeatureValuePair.readFromStores(inputDirectory, false);
+		if(stored_pairs.size() > 0) {
+			return stored_pairs;
+		}
+
 		// Read each file in the directory provided.
 		int prev_size = -1;
 		File folder = new File(inputDirectory);
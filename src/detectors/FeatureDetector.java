@@ -1,17 +1,33 @@
 package detectors;
 
+import io.CheckpointStore;
+import io.PlaneCache;
 import io.ProcessedImage;
 
+import java.awt.image.BufferedImage;
 import java.util.Hashtable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import preprocessing.BackgroundSubtraction;
 import preprocessing.ColorReduction;
+import preprocessing.Resampling;
+import preprocessing.StreamingPreprocessor;
 import preprocessing.cannyedge.CannyOps;
 import preprocessing.patches.PatchHierarchy;
 
-import retinopathy.structures.Patch;
+import retinopathy.structures.IdContext;
+import retinopathy.structures.PatchStore;
 
 import tools.math.Kernels;
+import tools.metrics.ImageMetrics;
+import tools.metrics.StageTimer;
+import tools.pipeline.Stage;
+import tools.pipeline.StageData;
+import tools.pipeline.StageScheduler;
+import tools.structures.ImageRaster;
+import tools.structures.ScratchArena;
 
 /**
  * Runs a feature detector on an image specified by an input directory and
@@ -32,6 +48,97 @@ public class FeatureDetector {
 	 */
 	private ImageFeatures features = null;
 
+	/**
+	 * The time and workload of each stage of detecting the features.
+	 */
+	private ImageMetrics metrics = null;
+
+	/**
+	 * The channels of the input image used by the feature detector.
+	 * The red and green values locate the optic nerve, the green values
+	 * feed the rest of the pipeline, and the sum of all three values
+	 * locates the black background around the eye.
+	 */
+	public static final int [] SOURCE_CHANNELS = new int[]{
+		ImageRaster.RED, ImageRaster.GREEN, ImageRaster.SUM};
+
+	/**
+	 * A suggested eye radius for the resolution normalized mode, at which
+	 * the image holds about a quarter of the pixels of the largest images.
+	 */
+	public static final int DEFAULT_CANONICAL_EYE_RADIUS = 700;
+
+	/**
+	 * The radius of the eye, in pixels, to resample each image to before
+	 * detecting the features. Images with a smaller eye are processed at
+	 * their own resolution. A radius of zero turns resampling off.
+	 */
+	private int canonicalEyeRadius = 0;
+
+	/**
+	 * Whether to run the stages of the detector whose inputs are
+	 * ready at the same time, on separate threads.
+	 */
+	private boolean parallelStages = true;
+
+	/**
+	 * Whether the stack area of each child patch is weighted by the number
+	 * of levels the child itself lies below its parent, instead of the level
+	 * of the pixel it was first reached through.
+	 */
+	private boolean childLevelStackArea = false;
+
+	/**
+	 * The arena to take the working maps and planes of the detector from.
+	 * Each feature detector uses its own arena unless one is shared by the
+	 * detectors run one after another by the same worker.
+	 */
+	private ScratchArena scratchArena = new ScratchArena();
+
+	/**
+	 * The store of the checkpoints of the preprocessing stages,
+	 * or null if checkpoints are not used.
+	 */
+	private CheckpointStore checkpointStore = null;
+
+	/**
+	 * The version of the preprocessing stages, part of the key of every
+	 * checkpoint. Must be changed whenever a change to the preprocessing
+	 * stages changes their results, so older checkpoints are not reused.
+	 */
+	private static final String CHECKPOINT_VERSION = "1";
+
+	/**
+	 * The foreground strength used for finding the black background
+	 * around the eye. Part of the key of the background checkpoint.
+	 */
+	private static final int FOREGROUND_STRENGTH = 45;
+
+	/**
+	 * The boundary thickness used for finding the black background
+	 * around the eye. Part of the key of the background checkpoint.
+	 */
+	private static final int BOUNDARY_THICKNESS = 30;
+
+	/**
+	 * The medium value the background subtraction centres the image on.
+	 * Part of the key of the preprocessed checkpoint.
+	 */
+	private static final short MEDIUM_VALUE = 150;
+
+	/**
+	 * The size of the box the background is averaged over, for an eye of
+	 * the reference radius at full resolution. Part of the key of the
+	 * preprocessed checkpoint.
+	 */
+	private static final int BOX_SIZE = 70;
+
+	/**
+	 * The threads running the stages of the detector,
+	 * shared by all feature detectors.
+	 */
+	private static ExecutorService stageExecutor = null;
+
 
 	/**
 	 * Creates a new instance of the Feature Detector.
@@ -49,7 +156,92 @@ public class FeatureDetector {
 			String imageName
 			) {
 
-		this.init(inputDirectory + "/" + imageName);
+		this(inputDirectory, outputDirectory, imageName, 1, null, false);
+	}
+
+	/**
+	 * Creates a new instance of the Feature Detector with the given
+	 * options for loading the input image.
+	 * 
+	 * @param inputDirectory
+	 * The input directory containing the image.
+	 * @param outputDirectory
+	 * The output directory for writing the feature file to.
+	 * @param imageName
+	 * The name of the input image to detect and output the features for.
+	 * @param sourceSubsampling
+	 * The factor to subsample the input image by while decoding it.
+	 * @param planeCache
+	 * The cache of decoded image planes to read the input image from,
+	 * or null to always decode the input image.
+	 */
+	public FeatureDetector(
+			String inputDirectory,
+			String outputDirectory,
+			String imageName,
+			int sourceSubsampling,
+			PlaneCache planeCache
+			) {
+
+		this(inputDirectory, outputDirectory, imageName, sourceSubsampling, planeCache, false);
+	}
+
+	/**
+	 * Creates a new instance of the Feature Detector with the given
+	 * options for loading the input image.
+	 * 
+	 * @param inputDirectory
+	 * The input directory containing the image.
+	 * @param outputDirectory
+	 * The output directory for writing the feature file to.
+	 * @param imageName
+	 * The name of the input image to detect and output the features for.
+	 * @param sourceSubsampling
+	 * The factor to subsample the input image by while decoding it.
+	 * @param planeCache
+	 * The cache of decoded image planes to read the input image from,
+	 * or null to always decode the input image. Not used when streaming.
+	 * @param streaming
+	 * Whether to run the preprocessing steps on the decoded image a strip
+	 * of rows at a time, instead of copying it into the channel planes of
+	 * SOURCE_CHANNELS first. Lowers the peak memory for each image.
+	 */
+	public FeatureDetector(
+			String inputDirectory,
+			String outputDirectory,
+			String imageName,
+			int sourceSubsampling,
+			PlaneCache planeCache,
+			boolean streaming
+			) {
+
+		this.metrics = new ImageMetrics(imageName);
+		this.init(inputDirectory + "/" + imageName, sourceSubsampling, planeCache, streaming);
+		this.features = new ImageFeatures(outputDirectory + "/" + imageName);
+	}
+	
+	/**
+	 * Creates a new instance of the Feature Detector for an image that
+	 * has already been loaded, either with the channels of SOURCE_CHANNELS
+	 * or, for streaming the preprocessing steps, with loadImageBuffer. An
+	 * image with only its file name set is loaded when needed, unless
+	 * its preprocessed checkpoint is stored.
+	 * 
+	 * @param outputDirectory
+	 * The output directory for writing the feature file to.
+	 * @param imageName
+	 * The name of the input image to detect and output the features for.
+	 * @param processedImage
+	 * The loaded input image.
+	 */
+	public FeatureDetector(
+			String outputDirectory,
+			String imageName,
+			ProcessedImage processedImage
+			) {
+
+		this.metrics = new ImageMetrics(imageName);
+		this.processedImage = processedImage;
 		this.features = new ImageFeatures(outputDirectory + "/" + imageName);
 	}
 	
@@ -63,88 +255,828 @@ public class FeatureDetector {
 	 * the visualization into an image file.
 	 */
 	public ImageFeatures computeFeatures(String retinopathyRating, boolean writeImageToFile) {
-		this.features.addToFeatureLog("RATING#" + retinopathyRating);
-		this.features.addToFeatureLog("");
+		this.features.setFeature(FeatureSchema.RATING, Double.parseDouble(retinopathyRating));
 		
-		// Extract the eye radius and area of the eye and detect the
-		// unnecessary black background located around it.
-		boolean [][] non_eye_image =
-				new boolean[this.processedImage.getWidth()][this.processedImage.getHeight()];
-		int [] eye_data = BackgroundSubtraction.findBlackBackground(
-				this.processedImage.getImageSource(),
-				non_eye_image, 45, 30);
-		
-		float non_eye_pixel_size = Math.max(1, eye_data[0]);
-		int eye_radius = eye_data[1];
-		
-		this.features.setEyeRadius(eye_radius);
+		StageTimer total_timer = this.metrics.startStage("total");
+		long allocated_bytes = this.scratchArena.getAllocatedBytes();
+		StageData data = new StageData(this.scratchArena);
+		StageScheduler scheduler = new StageScheduler();
 
+		// Find the keys of the checkpoints of the image, made up of the
+		// contents of the image and the parameters of the stages upstream.
+		String background_key = null;
+		String preprocessed_key = null;
+		if(this.checkpointStore != null && this.processedImage.getContentHash() != null) {
+			background_key = getBackgroundCheckpointKey(
+				this.processedImage.getContentHash(), this.processedImage.getSourceSubsampling());
+			preprocessed_key = getPreprocessedCheckpointKey(
+				this.processedImage.getContentHash(), this.processedImage.getSourceSubsampling(),
+				this.canonicalEyeRadius);
+		}
 
-		// Find the optic nerve within the eye.
-		OpticNerveDetection.findNerve(
-			this.processedImage.getImageSource(), eye_radius, non_eye_image);
+		// Start from the deepest checkpoint stored. With the preprocessed
+		// image restored, the input image is not needed at all.
+		int checkpoint_level = 0;
+		if(preprocessed_key != null && this.restorePreprocessed(preprocessed_key, data)) {
+			checkpoint_level = 2;
+			this.processedImage.flush();
+			this.processedImage.setImageBuffered(null);
+			EyeGeometry geometry = (EyeGeometry) data.get("geometry");
+			this.metrics.addCounter("PIXELS", (long) geometry.sourceWidth * geometry.sourceHeight);
+		} else {
+			if(!this.processedImage.isLoaded()) {
+				StageTimer timer = this.metrics.startStage("loadImage");
+				this.processedImage.loadImageData(this.processedImage.getImageFileName(), SOURCE_CHANNELS);
+				timer.stop();
+			}
+			this.metrics.addCounter("PIXELS",
+				(long) this.processedImage.getWidth() * this.processedImage.getHeight());
 
+			boolean background_restored =
+				background_key != null && this.restoreBackground(background_key, data);
+			if(background_restored) {
+				checkpoint_level = 1;
+				background_key = null;
+			}
 
-		// Blur the image a bit as preprocessing step one.
-		this.processedImage.setImageSource(
-			CannyOps.convolve(this.processedImage.getImageSource(), Kernels.blur5, CannyOps.G));
-
-
-		float scaling_fac = eye_radius / 1400.0f;
-		short [][][] filtered_image = null;
-		for(int flip = 0; flip <= 1; flip++) {
-
-			// Subtract the uneven background from
-			// the image as preprocessing step two.
-			filtered_image = new short[this.processedImage.getWidth()][this.processedImage.getHeight()][3];
-			BackgroundSubtraction.substract(
-				filtered_image, processedImage.getImageSource(),
-				(short)150, (int)( 70 * scaling_fac )
-			);
-			
-			// Reduce the number of colors in the
-			// image as preprocessing step three.
-			ColorReduction.reduceColourMonotone(filtered_image, flip == 1);
-			
-			// Run the patch construction algorithm
-			// and produce a foreground of the eye.
-			Hashtable<String, Patch> patches = PatchHierarchy.constructPatches(filtered_image, flip == 1);
-
-			// Create a shape skeleton of the produced
-			// foreground.
-			ShapeSkeletonization.produceSkeleton(filtered_image, non_eye_image);
-
-			// Analyze the shape skeleton for veins
-			// and log the features.
-			if(flip == 0) {
-				VeinAnalyzer.Analyze(features, filtered_image, 2, 30, non_eye_pixel_size, scaling_fac);
-			}
-
-			// Analyze the shape skeleton for microaneurisms
-			// and log the features.
-			PatchAnalysis.findMicroaneurisms(features, filtered_image, non_eye_image, patches, scaling_fac);
+			// Hand the input image over to the pipeline of stages, which
+			// releases each intermediate image as soon as the last stage
+			// reading it is done, giving its scratch planes back to the arena.
+			// Images loaded without their channel planes are preprocessed a
+			// strip of rows at a time.
+			if(this.processedImage.getImageSource() == null) {
+				data.put("source", this.processedImage.getImageBuffered());
+				this.processedImage.setImageBuffered(null);
+				this.addStreamingStages(scheduler, background_restored, background_key);
+			} else {
+				data.put("source", this.processedImage.getImageSource());
+				this.processedImage.setImageSource(null);
+				this.addPlaneStages(scheduler, background_restored, background_key);
+			}
+			if(preprocessed_key != null) {
+				this.addCheckpointStage(scheduler, preprocessed_key);
+			}
 		}
+		this.metrics.addCounter("CHECKPOINT_LEVEL", checkpoint_level);
+
+		// Only the flipped polarity is visualized, so the
+		// regular polarity never draws its features.
+		this.addPolarityStages(scheduler, false, false);
+		this.addPolarityStages(scheduler, true, writeImageToFile);
+
+		scheduler.retain("geometry");
+		scheduler.retain("features_flip0");
+		scheduler.retain("features_flip1");
 		if(writeImageToFile) {
-			this.processedImage.setImageSource(filtered_image);
-			this.processedImage.updateBufferedImageWithSoure();	
+			scheduler.retain("result_flip1");
+		}
+		// Whatever is left once the pipeline is done, or has failed, goes
+		// back to the arena, the rendered planes included.
+		try {
+			scheduler.run(data, this.parallelStages ? getStageExecutor() : null, this.metrics);
+			this.metrics.addCounter("SCRATCH_ALLOCATED_BYTES",
+				this.scratchArena.getAllocatedBytes() - allocated_bytes);
+
+			// Each polarity sets features of its own.
+			this.features.merge((ImageFeatures) data.get("features_flip0"));
+			this.features.merge((ImageFeatures) data.get("features_flip1"));
+
+			EyeGeometry geometry = (EyeGeometry) data.get("geometry");
+			this.processedImage.setWidth(geometry.width);
+			this.processedImage.setHeight(geometry.height);
+
+			if(writeImageToFile) {
+				StageTimer timer = this.metrics.startStage("render");
+				this.processedImage.setImageSource((ImageRaster) data.get("result_flip1"));
+				this.processedImage.updateBufferedImageWithSoure();
+				this.processedImage.setImageSource(null);
+				timer.stop();
+			}
+		} finally {
+			data.clear();
 		}
+		total_timer.stop();
 		
 		return features;
 	}
-	
+
+	/**
+	 * Helper function for adding the stages preprocessing an image
+	 * loaded into the channel planes of SOURCE_CHANNELS.
+	 * 
+	 * Finding the optic nerve runs at the same time as blurring the
+	 * image and subtracting its background, and the source planes are
+	 * released once all three are done.
+	 * 
+	 * @param scheduler
+	 * The scheduler to add the stages to.
+	 * @param backgroundRestored
+	 * Whether the background of the image has been restored from its checkpoint.
+	 * @param backgroundKey
+	 * The key to store the checkpoint of the background under, or null if none.
+	 */
+	private void addPlaneStages(
+			StageScheduler scheduler,
+			boolean backgroundRestored,
+			final String backgroundKey) {
+
+		// Extract the eye radius and area of the eye and detect the
+		// unnecessary black background located around it.
+		if(!backgroundRestored) {
+			scheduler.addStage(new Stage(
+					"findBlackBackground",
+					new String[]{"source"},
+					new String[]{"eyeMask", "eyeData"}) {
+				public void run(StageData data) {
+					ImageRaster source = (ImageRaster) data.get("source");
+					boolean [][] non_eye_image = scratchArena.acquireBooleanMap(source.getWidth(), source.getHeight());
+					int [] eye_data = BackgroundSubtraction.findBlackBackground(
+						source, non_eye_image, FOREGROUND_STRENGTH, BOUNDARY_THICKNESS, scratchArena);
+					features.setEyeRadius(eye_data[1]);
+					saveBackground(backgroundKey, non_eye_image, eye_data);
+					data.put("eyeMask", non_eye_image);
+					data.put("eyeData", eye_data);
+				}
+			});
+		}
+
+		this.addResampleStage(scheduler, "source");
+		this.addNerveStage(scheduler, new String[]{"scaledSource", "scaledEyeMask", "geometry"});
+
+		// Blur the image a bit as preprocessing step one.
+		scheduler.addStage(new Stage(
+				"convolve",
+				new String[]{"scaledSource"},
+				new String[]{"blurred"}) {
+			public void run(StageData data) {
+				data.put("blurred", CannyOps.convolve(
+					(ImageRaster) data.get("scaledSource"), Kernels.blur5, CannyOps.G, scratchArena));
+			}
+		});
+
+		// Subtract the uneven background from the image as preprocessing
+		// step two. The subtracted image is the same for both colour
+		// polarities, so it is only computed once.
+		scheduler.addStage(new Stage(
+				"substract",
+				new String[]{"blurred", "geometry"},
+				new String[]{"subtracted"}) {
+			public void run(StageData data) {
+				ImageRaster blurred_image = (ImageRaster) data.get("blurred");
+				EyeGeometry geometry = (EyeGeometry) data.get("geometry");
+				data.put("subtracted", substract(blurred_image, geometry.boxSize, scratchArena));
+			}
+		});
+	}
+
+	/**
+	 * Helper function for adding the stages preprocessing an image loaded
+	 * with loadImageBuffer, a strip of rows at a time.
+	 * 
+	 * Finding the optic nerve runs at the same time as the pass blurring
+	 * the image and subtracting its background, and the decoded image is
+	 * released once both are done. Resampling works on the channel planes,
+	 * so an image to resample is copied into its planes first.
+	 * 
+	 * @param scheduler
+	 * The scheduler to add the stages to.
+	 * @param backgroundRestored
+	 * Whether the background of the image has been restored from its checkpoint.
+	 * @param backgroundKey
+	 * The key to store the checkpoint of the background under, or null if none.
+	 */
+	private void addStreamingStages(
+			StageScheduler scheduler,
+			boolean backgroundRestored,
+			final String backgroundKey) {
+
+		// Find the pixels above the foreground threshold and
+		// sample the mini-image for finding the optic nerve.
+		scheduler.addStage(new Stage(
+				"scanSource",
+				new String[]{"source"},
+				new String[]{"stream", "foreground", "miniImage"}) {
+			public void run(StageData data) {
+				StreamingPreprocessor stream = new StreamingPreprocessor((BufferedImage) data.get("source"));
+				stream.scanSource(45, OpticNerveDetection.getMiniImageFactor());
+				data.put("stream", stream);
+				data.put("foreground", stream.getForeground());
+				data.put("miniImage", stream.getMiniImage());
+			}
+		});
+
+		// Extract the eye radius and area of the eye and detect the
+		// unnecessary black background located around it.
+		if(!backgroundRestored) {
+			scheduler.addStage(new Stage(
+					"findBlackBackground",
+					new String[]{"foreground"},
+					new String[]{"eyeMask", "eyeData"}) {
+				public void run(StageData data) {
+					boolean [][] foreground = (boolean[][]) data.get("foreground");
+					boolean [][] non_eye_image = scratchArena.acquireBooleanMap(foreground.length, foreground[0].length);
+					int [] eye_data = BackgroundSubtraction.findBlackBackground(foreground, non_eye_image, 30, scratchArena);
+					features.setEyeRadius(eye_data[1]);
+					saveBackground(backgroundKey, non_eye_image, eye_data);
+					data.put("eyeMask", non_eye_image);
+					data.put("eyeData", eye_data);
+				}
+			});
+		}
+
+		this.addResampleStage(scheduler, "stream");
+		this.addNerveStage(scheduler, new String[]{"scaledSource", "scaledEyeMask", "geometry", "miniImage"});
+
+		// Blur the image a bit as preprocessing step one, and subtract the
+		// uneven background from the image as preprocessing step two, in
+		// the same pass over the image unless it has been resampled.
+		scheduler.addStage(new Stage(
+				"convolveAndSubstract",
+				new String[]{"scaledSource", "geometry"},
+				new String[]{"subtracted"}) {
+			public void run(StageData data) {
+				Object source = data.get("scaledSource");
+				EyeGeometry geometry = (EyeGeometry) data.get("geometry");
+				if(source instanceof StreamingPreprocessor) {
+					data.put("subtracted", ((StreamingPreprocessor) source).subtractBackground(
+						Kernels.blur5, MEDIUM_VALUE, geometry.boxSize, scratchArena));
+				} else {
+					ImageRaster blurred_image =
+						CannyOps.convolve((ImageRaster) source, Kernels.blur5, CannyOps.G, scratchArena);
+					data.put("subtracted", substract(blurred_image, geometry.boxSize, scratchArena));
+					scratchArena.release(blurred_image);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Helper function for adding the stage resampling the image so the eye
+	 * has the canonical radius. The thresholds stay in pixels of the original
+	 * image, and the detectors convert what they measure using the pixel scale.
+	 * Images not resampled are passed on as they are.
+	 * 
+	 * @param scheduler
+	 * The scheduler to add the stage to.
+	 * @param source
+	 * The name of the value holding the image, either as channel planes
+	 * or as a streaming preprocessor.
+	 */
+	private void addResampleStage(StageScheduler scheduler, final String source) {
+
+		scheduler.addStage(new Stage(
+				"resample",
+				new String[]{source, "eyeMask", "eyeData"},
+				new String[]{"scaledSource", "scaledEyeMask", "geometry"}) {
+			public void run(StageData data) {
+				Object image = data.get(source);
+				boolean [][] non_eye_image = (boolean[][]) data.get("eyeMask");
+				int [] eye_data = (int[]) data.get("eyeData");
+
+				EyeGeometry geometry = new EyeGeometry();
+				geometry.eyeRadius = eye_data[1];
+				geometry.analyzedEyeRadius = eye_data[1];
+				geometry.nonEyePixelSize = Math.max(1, eye_data[0]);
+				geometry.width = non_eye_image.length;
+				geometry.height = non_eye_image[0].length;
+				geometry.sourceWidth = geometry.width;
+				geometry.sourceHeight = geometry.height;
+
+				if(canonicalEyeRadius > 0 && geometry.eyeRadius > canonicalEyeRadius) {
+					geometry.pixelScale = geometry.eyeRadius / (float) canonicalEyeRadius;
+					geometry.analyzedEyeRadius = canonicalEyeRadius;
+
+					if(image instanceof StreamingPreprocessor) {
+						image = ProcessedImage.decodeImage(
+							((StreamingPreprocessor) image).getImage(), SOURCE_CHANNELS);
+					}
+					ImageRaster resampled_image = Resampling.downsample((ImageRaster) image, geometry.pixelScale);
+					geometry.width = resampled_image.getWidth();
+					geometry.height = resampled_image.getHeight();
+					non_eye_image = Resampling.downsample(non_eye_image, geometry.width, geometry.height);
+					geometry.nonEyePixelSize = Math.max(1, countMarked(non_eye_image));
+					image = resampled_image;
+				}
+
+				geometry.scalingFac = geometry.eyeRadius / 1400.0f;
+				geometry.boxSize = (int)( BOX_SIZE * geometry.scalingFac / geometry.pixelScale );
+				geometry.minimalVeinLength = Math.max(1, Math.round(30 / geometry.pixelScale));
+
+				data.put("scaledSource", image);
+				data.put("scaledEyeMask", non_eye_image);
+				data.put("geometry", geometry);
+			}
+		});
+	}
+
+	/**
+	 * Helper function for adding the stage finding the optic nerve within
+	 * the eye, and marking it as not belonging to the eye. The nerve is
+	 * found in the mini-image sampled while streaming, unless the image
+	 * has been resampled into channel planes.
+	 * 
+	 * @param scheduler
+	 * The scheduler to add the stage to.
+	 * @param inputs
+	 * The names of the values read by the stage.
+	 */
+	private void addNerveStage(StageScheduler scheduler, String [] inputs) {
+
+		scheduler.addStage(new Stage(
+				"findNerve",
+				inputs,
+				new String[]{"nonEyeMap"}) {
+			public void run(StageData data) {
+				Object source = data.get("scaledSource");
+				boolean [][] non_eye_image = (boolean[][]) data.get("scaledEyeMask");
+				EyeGeometry geometry = (EyeGeometry) data.get("geometry");
+				if(source instanceof StreamingPreprocessor) {
+					OpticNerveDetection.findNerve(
+						(ImageRaster) data.get("miniImage"),
+						geometry.width, geometry.height,
+						geometry.analyzedEyeRadius, non_eye_image);
+				} else {
+					OpticNerveDetection.findNerve(
+						(ImageRaster) source, geometry.analyzedEyeRadius, non_eye_image);
+				}
+				data.put("nonEyeMap", non_eye_image);
+			}
+		});
+	}
+
+	/**
+	 * Helper function for adding the stages analyzing one colour polarity
+	 * of the background subtracted image. The stages of both polarities run
+	 * at the same time, each logging to its own branch of the features.
+	 * Veins are only analyzed for the regular polarity.
+	 * 
+	 * The stages pass the foreground of the patches between them as a map,
+	 * and the skeleton as a single plane, leaving the visualization of the
+	 * features to a polarity that is rendered. Each polarity takes the IDs
+	 * of its veins from its own context, so the features do
+	 * not depend on how the stages of the image, or the images of a batch,
+	 * are spread over threads.
+	 * 
+	 * @param scheduler
+	 * The scheduler to add the stages to.
+	 * @param flipped
+	 * Whether to analyze the image with its colour values flipped.
+	 * @param render
+	 * Whether to draw the features detected into an image,
+	 * stored as the result of the polarity.
+	 */
+	private void addPolarityStages(StageScheduler scheduler, final boolean flipped, final boolean render) {
+
+		final String suffix = flipped ? "_flip1" : "_flip0";
+		final ImageMetrics image_metrics = this.metrics;
+
+		// Reduce the number of colors in a copy of the
+		// image as preprocessing step three.
+		scheduler.addStage(new Stage(
+				"reduceColourMonotone" + suffix,
+				new String[]{"subtracted", "geometry"},
+				new String[]{"levels" + suffix, "features" + suffix, "ids" + suffix}) {
+			public void run(StageData data) {
+				short [] subtracted_plane = (short[]) data.get("subtracted");
+				EyeGeometry geometry = (EyeGeometry) data.get("geometry");
+				int size = geometry.width * geometry.height;
+				ImageRaster filtered_image = new ImageRaster(geometry.width, geometry.height, new short[][]{
+					scratchArena.acquirePlane(size), scratchArena.acquirePlane(size), null});
+				System.arraycopy(subtracted_plane, 0, filtered_image.getPlane(1), 0, subtracted_plane.length);
+				ColorReduction.reduceColourMonotone(filtered_image, flipped);
+				data.put("levels" + suffix, filtered_image);
+				data.put("features" + suffix, features.createBranch(flipped ? 1 : 0));
+				data.put("ids" + suffix, new IdContext());
+			}
+		});
+
+		// Run the patch construction algorithm
+		// and produce a foreground of the eye.
+		scheduler.addStage(new Stage(
+				"constructPatches" + suffix,
+				new String[]{"levels" + suffix},
+				new String[]{"foreground" + suffix, "patches" + suffix}) {
+			public void run(StageData data) {
+				ImageRaster filtered_image = (ImageRaster) data.get("levels" + suffix);
+				boolean [][] foreground = scratchArena.acquireBooleanMap(
+					filtered_image.getWidth(), filtered_image.getHeight());
+				PatchStore patches = PatchHierarchy.constructPatches(
+					filtered_image, flipped, scratchArena, foreground, childLevelStackArea);
+
+				long boundary_points = 0;
+				for(int i = 0; i < patches.size(); i++) {
+					if(patches.isKept(i)) {
+						boundary_points += patches.getBoundarySize(i);
+					}
+				}
+				image_metrics.addCounter("PATCHES" + suffix, patches.getKeptCount());
+				image_metrics.addCounter("BOUNDARY_POINTS" + suffix, boundary_points);
+
+				data.put("foreground" + suffix, foreground);
+				data.put("patches" + suffix, patches);
+			}
+		});
+
+		// Create a shape skeleton of the produced foreground. Only a
+		// rendered polarity keeps the labelled boundaries for display.
+		scheduler.addStage(new Stage(
+				"produceSkeleton" + suffix,
+				new String[]{"foreground" + suffix, "nonEyeMap", "geometry"},
+				new String[]{"skeleton" + suffix}) {
+			public void run(StageData data) {
+				EyeGeometry geometry = (EyeGeometry) data.get("geometry");
+				ImageRaster filtered_image;
+				if(render) {
+					filtered_image = scratchArena.acquireImage(geometry.width, geometry.height, 3);
+				} else {
+					filtered_image = new ImageRaster(geometry.width, geometry.height, new short[][]{
+						scratchArena.acquirePlane(geometry.width * geometry.height), null, null});
+				}
+				ShapeSkeletonization.produceSkeleton(
+					(boolean[][]) data.get("foreground" + suffix),
+					(boolean[][]) data.get("nonEyeMap"), filtered_image, scratchArena);
+
+				long skeleton_pixels = 0;
+				short [] skeleton = filtered_image.getPlane(0);
+				for(int i = 0; i < skeleton.length; i++) {
+					if(skeleton[i] != 0) skeleton_pixels++;
+				}
+				image_metrics.addCounter("SKELETON_PIXELS" + suffix, skeleton_pixels);
+
+				data.put("skeleton" + suffix, filtered_image);
+			}
+		});
+
+		// Analyze the shape skeleton for veins
+		// and log the features.
+		String analyzed = "skeleton" + suffix;
+		if(!flipped) {
+			analyzed = "veins" + suffix;
+			scheduler.addStage(new Stage(
+					"VeinAnalyzer.Analyze",
+					new String[]{"skeleton" + suffix, "features" + suffix, "geometry", "ids" + suffix},
+					new String[]{"veins" + suffix}) {
+				public void run(StageData data) {
+					ImageRaster filtered_image = (ImageRaster) data.get("skeleton" + suffix);
+					EyeGeometry geometry = (EyeGeometry) data.get("geometry");
+					VeinAnalyzer.Analyze((ImageFeatures) data.get("features" + suffix), filtered_image, 2,
+						geometry.minimalVeinLength, geometry.nonEyePixelSize,
+						geometry.scalingFac, geometry.pixelScale, image_metrics, scratchArena, render,
+						(IdContext) data.get("ids" + suffix));
+					data.put("veins" + suffix, filtered_image);
+				}
+			});
+		}
+
+		// Analyze the shape skeleton for microaneurisms
+		// and log the features.
+		final String skeleton_name = analyzed;
+		scheduler.addStage(new Stage(
+				"findMicroaneurisms" + suffix,
+				new String[]{skeleton_name, "patches" + suffix, "nonEyeMap", "features" + suffix, "geometry"},
+				new String[]{"result" + suffix}) {
+			public void run(StageData data) {
+				ImageRaster filtered_image = (ImageRaster) data.get(skeleton_name);
+				EyeGeometry geometry = (EyeGeometry) data.get("geometry");
+				PatchAnalysis.findMicroaneurisms(
+					(ImageFeatures) data.get("features" + suffix), render ? filtered_image : null,
+					(boolean[][]) data.get("nonEyeMap"),
+					(PatchStore) data.get("patches" + suffix),
+					geometry.scalingFac, geometry.pixelScale);
+				data.put("result" + suffix, filtered_image);
+			}
+		});
+	}
+
+	/**
+	 * Helper function for adding the stage storing the checkpoint of the
+	 * preprocessed image, running next to the analysis of the image.
+	 * 
+	 * @param scheduler
+	 * The scheduler to add the stage to.
+	 * @param key
+	 * The key to store the checkpoint under.
+	 */
+	private void addCheckpointStage(StageScheduler scheduler, final String key) {
+
+		scheduler.addStage(new Stage(
+				"saveCheckpoint",
+				new String[]{"subtracted", "nonEyeMap", "geometry"},
+				new String[]{}) {
+			public void run(StageData data) {
+				EyeGeometry geometry = (EyeGeometry) data.get("geometry");
+				Hashtable<String, Object> values = new Hashtable<String, Object>();
+				values.put("subtracted", data.get("subtracted"));
+				values.put("nonEyeMap", data.get("nonEyeMap"));
+				values.put("geometryInts", new int[]{
+					geometry.eyeRadius, geometry.analyzedEyeRadius,
+					geometry.width, geometry.height,
+					geometry.sourceWidth, geometry.sourceHeight,
+					geometry.boxSize, geometry.minimalVeinLength});
+				values.put("geometryFloats", new float[]{
+					geometry.pixelScale, geometry.nonEyePixelSize, geometry.scalingFac});
+				checkpointStore.write(key, values);
+			}
+		});
+	}
+
+	/**
+	 * Helper function for storing the checkpoint of the background
+	 * of the image, if a key is given.
+	 */
+	private void saveBackground(String key, boolean [][] nonEyeImage, int [] eyeData) {
+		if(key == null) {
+			return;
+		}
+		Hashtable<String, Object> values = new Hashtable<String, Object>();
+		values.put("eyeMask", nonEyeImage);
+		values.put("eyeData", eyeData);
+		this.checkpointStore.write(key, values);
+	}
+
+	/**
+	 * Helper function for restoring the background of the image from its
+	 * checkpoint into the values of the pipeline.
+	 * 
+	 * @return
+	 * Whether the checkpoint was stored and restored.
+	 */
+	private boolean restoreBackground(String key, StageData data) {
+		StageTimer timer = this.metrics.startStage("restoreCheckpoint");
+		Hashtable<String, Object> values = this.checkpointStore.read(key);
+		timer.stop();
+		if(values == null || !values.containsKey("eyeMask") || !values.containsKey("eyeData")) {
+			return false;
+		}
+
+		int [] eye_data = (int[]) values.get("eyeData");
+		this.features.setEyeRadius(eye_data[1]);
+		data.put("eyeMask", values.get("eyeMask"));
+		data.put("eyeData", eye_data);
+		return true;
+	}
+
+	/**
+	 * Helper function for restoring the preprocessed image from its
+	 * checkpoint into the values of the pipeline.
+	 * 
+	 * @return
+	 * Whether the checkpoint was stored and restored.
+	 */
+	private boolean restorePreprocessed(String key, StageData data) {
+		StageTimer timer = this.metrics.startStage("restoreCheckpoint");
+		Hashtable<String, Object> values = this.checkpointStore.read(key);
+		timer.stop();
+		if(values == null || !values.containsKey("subtracted") || !values.containsKey("nonEyeMap") ||
+				!values.containsKey("geometryInts") || !values.containsKey("geometryFloats")) {
+			return false;
+		}
+
+		int [] ints = (int[]) values.get("geometryInts");
+		float [] floats = (float[]) values.get("geometryFloats");
+		EyeGeometry geometry = new EyeGeometry();
+		geometry.eyeRadius = ints[0];
+		geometry.analyzedEyeRadius = ints[1];
+		geometry.width = ints[2];
+		geometry.height = ints[3];
+		geometry.sourceWidth = ints[4];
+		geometry.sourceHeight = ints[5];
+		geometry.boxSize = ints[6];
+		geometry.minimalVeinLength = ints[7];
+		geometry.pixelScale = floats[0];
+		geometry.nonEyePixelSize = floats[1];
+		geometry.scalingFac = floats[2];
+
+		this.features.setEyeRadius(geometry.eyeRadius);
+		data.put("subtracted", values.get("subtracted"));
+		data.put("nonEyeMap", values.get("nonEyeMap"));
+		data.put("geometry", geometry);
+		return true;
+	}
+
+	/**
+	 * Get the key of the checkpoint of the background of an image, holding
+	 * the results of findBlackBackground.
+	 * 
+	 * @param contentHash
+	 * The hash of the contents of the image file.
+	 * @param sourceSubsampling
+	 * The factor the image is subsampled by while decoding it.
+	 */
+	public static String getBackgroundCheckpointKey(String contentHash, int sourceSubsampling) {
+		return CheckpointStore.createKey(contentHash, CHECKPOINT_VERSION,
+			"background", "subsampling=" + sourceSubsampling,
+			"foreGroundStrength=" + FOREGROUND_STRENGTH, "boundaryThickness=" + BOUNDARY_THICKNESS);
+	}
+
+	/**
+	 * Get the key of the checkpoint of the preprocessed image, holding the
+	 * results of every stage up to and including findNerve and the
+	 * background subtraction, shared by both colour polarities.
+	 * 
+	 * @param contentHash
+	 * The hash of the contents of the image file.
+	 * @param sourceSubsampling
+	 * The factor the image is subsampled by while decoding it.
+	 * @param canonicalEyeRadius
+	 * The radius of the eye the image is resampled to, or zero for none.
+	 */
+	public static String getPreprocessedCheckpointKey(
+			String contentHash,
+			int sourceSubsampling,
+			int canonicalEyeRadius) {
+
+		return CheckpointStore.createKey(getBackgroundCheckpointKey(contentHash, sourceSubsampling),
+			"preprocessed", "canonicalEyeRadius=" + canonicalEyeRadius,
+			"blur=blur5", "mediumValue=" + MEDIUM_VALUE, "boxSize=" + BOX_SIZE);
+	}
+
+	/**
+	 * Helper function for subtracting the uneven background from the
+	 * green values of a blurred image.
+	 * 
+	 * @return
+	 * The green values of the background subtracted image, taken
+	 * from the scratch arena.
+	 */
+	private static short [] substract(ImageRaster blurredImage, int boxSize, ScratchArena arena) {
+		int width = blurredImage.getWidth();
+		int height = blurredImage.getHeight();
+		ImageRaster subtracted_image = new ImageRaster(width, height, new short[][]{
+			null, arena.acquirePlane(width * height), null});
+		BackgroundSubtraction.substract(subtracted_image, blurredImage, MEDIUM_VALUE, boxSize);
+		return subtracted_image.getPlane(1);
+	}
+
+	/**
+	 * Helper function for getting the threads running the stages of
+	 * the feature detectors, creating them on first use.
+	 */
+	private static synchronized ExecutorService getStageExecutor() {
+		if(stageExecutor == null) {
+			stageExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "feature-stage");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return stageExecutor;
+	}
+
+	/**
+	 * Set the arena to take the working maps and planes of the detector
+	 * from. A worker detecting the features of one image after another can
+	 * share a single arena between its detectors, so the scratch memory of
+	 * each image is reused for the next instead of being allocated again.
+	 */
+	public void setScratchArena(ScratchArena scratchArena) {
+		this.scratchArena = scratchArena;
+	}
+
+	/**
+	 * Get the arena the working maps and planes of the detector are taken from.
+	 */
+	public ScratchArena getScratchArena() {
+		return this.scratchArena;
+	}
+
+	/**
+	 * Set the store to keep the checkpoints of the preprocessing stages in,
+	 * or null to not use checkpoints. Images already checkpointed start
+	 * from the deepest checkpoint stored, which lets a sweep over the
+	 * parameters of the later stages skip the preprocessing. The image
+	 * must have been loaded from a file for its checkpoints to be used.
+	 */
+	public void setCheckpointStore(CheckpointStore checkpointStore) {
+		this.checkpointStore = checkpointStore;
+	}
+
+	/**
+	 * Get the store the checkpoints of the preprocessing stages are
+	 * kept in, or null if checkpoints are not used.
+	 */
+	public CheckpointStore getCheckpointStore() {
+		return this.checkpointStore;
+	}
+
+	/**
+	 * Get the time and workload of each stage of detecting the features.
+	 */
+	public ImageMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * Set whether to run the stages of the detector whose inputs are ready
+	 * at the same time, on separate threads, such as the two colour
+	 * polarities of the image. The features detected are the same either way.
+	 */
+	public void setParallelStages(boolean parallelStages) {
+		this.parallelStages = parallelStages;
+	}
+
+	/**
+	 * Get whether the stages of the detector whose inputs
+	 * are ready run at the same time.
+	 */
+	public boolean getParallelStages() {
+		return this.parallelStages;
+	}
+
+	/**
+	 * Set whether the stack area of each child patch is weighted by the
+	 * number of levels the child itself lies below its parent, instead of
+	 * the level of the pixel it was first reached through. This gives
+	 * different features, of the version given by getFeatureVersion.
+	 */
+	public void setChildLevelStackArea(boolean childLevelStackArea) {
+		this.childLevelStackArea = childLevelStackArea;
+	}
+
+	/**
+	 * Get whether the stack area of each child patch is
+	 * weighted by the level of the child itself.
+	 */
+	public boolean getChildLevelStackArea() {
+		return this.childLevelStackArea;
+	}
+
+	/**
+	 * Get the version of the features detected with the settings of the detector.
+	 */
+	public int getFeatureVersion() {
+		return FeatureSchema.getVersion(this.childLevelStackArea);
+	}
+
+	/**
+	 * Set the radius of the eye, in pixels, to resample each image to
+	 * before detecting the features. Processing a large image at a
+	 * reduced resolution is much faster, at the cost of some drift in the
+	 * features detected. A radius of zero processes images at their own
+	 * resolution.
+	 */
+	public void setCanonicalEyeRadius(int canonicalEyeRadius) {
+		this.canonicalEyeRadius = canonicalEyeRadius;
+	}
+
+	/**
+	 * Get the radius of the eye to resample each image to.
+	 */
+	public int getCanonicalEyeRadius() {
+		return this.canonicalEyeRadius;
+	}
+
+	/**
+	 * Helper function for counting the marked locations of a map.
+	 */
+	private static int countMarked(boolean [][] map) {
+		int count = 0;
+		for(int i = 0; i < map.length; i++) {
+			for(int j = 0; j < map[0].length; j++) {
+				if(map[i][j]) count++;
+			}
+		}
+		return count;
+	}
+
 	/**
 	 * Set up the feature detector for reading the image.
 	 * 
 	 * @param imageFileName
 	 * The name of the image file used in initializing the feature detector.
+	 * @param sourceSubsampling
+	 * The factor to subsample the input image by while decoding it.
+	 * @param planeCache
+	 * The cache of decoded image planes, or null if not used.
+	 * @param streaming
+	 * Whether to load only the decoded image, for streaming
+	 * the preprocessing steps.
 	 */
-	private void init(String imageFileName) {
+	private void init(String imageFileName, int sourceSubsampling, PlaneCache planeCache, boolean streaming) {
 		
 		// Read and store the input image for processing and reading.
+		StageTimer timer = this.metrics.startStage("loadImage");
 		this.processedImage = new ProcessedImage();
-		this.processedImage.loadImageData(imageFileName);
+		this.processedImage.setSourceSubsampling(sourceSubsampling);
+		this.processedImage.setPlaneCache(planeCache);
+		if(streaming) {
+			this.processedImage.loadImageBuffer(imageFileName);
+		} else {
+			this.processedImage.loadImageData(imageFileName, SOURCE_CHANNELS);
+		}
+		timer.stop();
 	}
 	
+	/**
+	 * Set the factor to scale the visualized features down by when
+	 * writing them to an image, for producing smaller preview images.
+	 */
+	public void setPreviewScale(int previewScale) {
+		this.processedImage.setPreviewScale(previewScale);
+	}
+
 	/**
 	 * Write the visualized features to an output image file.
 	 * 
@@ -154,4 +1086,56 @@ public class FeatureDetector {
 	public void writeToImageFile(String outputFileName) {
 		this.processedImage.writeToFile(outputFileName);
 	}
+
+	/**
+	 * The measurements of the eye passed between the stages of the detector.
+	 */
+	private static class EyeGeometry {
+
+		/**
+		 * The radius of the eye in the original image.
+		 */
+		int eyeRadius;
+
+		/**
+		 * The radius of the eye in the image analyzed.
+		 */
+		int analyzedEyeRadius;
+
+		/**
+		 * The width and height of the image analyzed.
+		 */
+		int width, height;
+
+		/**
+		 * The width and height of the original image.
+		 */
+		int sourceWidth, sourceHeight;
+
+		/**
+		 * The width of one pixel of the image analyzed, measured
+		 * in pixels of the original image.
+		 */
+		float pixelScale = 1;
+
+		/**
+		 * The number of pixels not belonging to the eye.
+		 */
+		float nonEyePixelSize;
+
+		/**
+		 * The scaling factor of the eye radius.
+		 */
+		float scalingFac;
+
+		/**
+		 * The size of the box for subtracting the background.
+		 */
+		int boxSize;
+
+		/**
+		 * The minimal length of the veins to analyze.
+		 */
+		int minimalVeinLength;
+	}
 }
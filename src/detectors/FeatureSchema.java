@@ -0,0 +1,290 @@
+package detectors;
+
+import java.util.Hashtable;
+
+/**
+ * The registry of the features detected for every image, giving each
+ * feature a fixed index into the values of an ImageFeatures and a unique
+ * name.
+ *
+ * The features are, in order: the rating of the image, the ratios and
+ * curvatures of the veins and the statistics of the forks of the strong
+ * veins, and the microaneurysm histogram of the regular polarity followed
+ * by that of the flipped polarity.
+ *
+ * Each feature also keeps the label, value type and grouping it has in
+ * the text export of the features, so the exported text reads the same
+ * as the feature logs written before the registry existed. Labels repeat
+ * where a statistic is logged in more than one way, while names do not.
+ *
+ * The features also have a version, changed whenever the same image would
+ * give different values, so that outputs of different versions are never
+ * mixed.
+ *
+ * @author Peter Bugaj
+ */
+public class FeatureSchema {
+
+	/**
+	 * The value types, deciding how a value is written in the text export.
+	 */
+	public static final int TYPE_INT = 0;
+	public static final int TYPE_FLOAT = 1;
+	public static final int TYPE_DOUBLE = 2;
+
+	/**
+	 * The version of the features with the stack area of each child patch
+	 * weighted by the level of the pixel it was first reached through.
+	 */
+	public static final int VERSION_REACHED_LEVEL = 1;
+
+	/**
+	 * The version of the features with the stack area of each child patch
+	 * weighted by the level of the child itself.
+	 */
+	public static final int VERSION_CHILD_LEVEL = 2;
+
+	/**
+	 * The vein strengths, in the order of their features.
+	 */
+	private static final String [] VEIN_STRENGTHS = new String[]{"STRONG", "MEDIUM", "WEAK"};
+
+	/**
+	 * The vein lengths, in the order of their curvature features.
+	 */
+	private static final String [] VEIN_LENGTHS = new String[]{"LONG", "MEDIUM", "SHORT"};
+
+	/**
+	 * The curvature ranges, in the order of the curvature features of each length.
+	 */
+	private static final String [] CURVATURES = new String[]{
+		"UP_TO_3", "3_TO_6", "6_TO_9", "9_TO_12", "OVER_12"};
+
+	/**
+	 * The polarities of the image, in the order of their microaneurysm features.
+	 */
+	private static final String [] POLARITIES = new String[]{"REGULAR", "FLIPPED"};
+
+	/**
+	 * The average intensities of the patches, in the order
+	 * of the microaneurysm features of each polarity.
+	 */
+	private static final String [] INTENSITIES = new String[]{"INTENSITY_WEAK", "INTENSITY_STRONG"};
+
+	/**
+	 * The patch sizes, in the order of the microaneurysm features of each intensity.
+	 */
+	public static final String [] PATCH_SIZES = new String[]{
+		"SMALL", "MEDIUM", "LARGE", "XLARGE", "XXLARGE", "XXXLARGE", "XXXXLARGE", "XXXXXLARGE"};
+
+	/**
+	 * The patch strengths, in the order of the microaneurysm features of each size.
+	 */
+	public static final String [] PATCH_STRENGTHS = new String[]{
+		"WEAK", "MEDIUM", "STRONG", "XSTRONG", "XXSTRONG"};
+
+	/**
+	 * The index of the rating of the image.
+	 */
+	public static final int RATING = 0;
+
+	/**
+	 * The index of the first vein ratio. Each vein strength has its share
+	 * of the eye area followed by its share of the veins.
+	 */
+	public static final int VEIN_RATIOS = 1;
+
+	/**
+	 * The index of the first vein curvature. Each vein length has
+	 * one feature per curvature range.
+	 */
+	public static final int VEIN_CURVATURES = VEIN_RATIOS + VEIN_STRENGTHS.length * 2;
+
+	/**
+	 * The index of the first statistic of the forks of the strong veins:
+	 * the fork count, the standard deviations of the fork coordinates,
+	 * and the average distance of the forks from the eye centre.
+	 */
+	public static final int STRONG_FORKS = VEIN_CURVATURES + VEIN_LENGTHS.length * CURVATURES.length;
+
+	/**
+	 * The index of the first microaneurysm feature. Each polarity, then each
+	 * intensity, then each size, then each strength has the share of the
+	 * patches followed by the share of the eye area.
+	 */
+	public static final int MICROANEURISMS = STRONG_FORKS + 4;
+
+	/**
+	 * The number of microaneurysm features of each polarity.
+	 */
+	public static final int MICROANEURISMS_PER_POLARITY =
+		INTENSITIES.length * PATCH_SIZES.length * PATCH_STRENGTHS.length * 2;
+
+	/**
+	 * The number of features.
+	 */
+	public static final int COUNT = MICROANEURISMS + POLARITIES.length * MICROANEURISMS_PER_POLARITY;
+
+	/**
+	 * The unique name of each feature.
+	 */
+	private static final String [] names = new String[COUNT];
+
+	/**
+	 * The label of each feature in the text export.
+	 */
+	private static final String [] labels = new String[COUNT];
+
+	/**
+	 * The value type of each feature.
+	 */
+	private static final int [] types = new int[COUNT];
+
+	/**
+	 * Whether each feature ends a group of features in the text export.
+	 */
+	private static final boolean [] groupEnds = new boolean[COUNT];
+
+	/**
+	 * The index of each feature, by name.
+	 */
+	private static final Hashtable<String, Integer> indexes = new Hashtable<String, Integer>();
+
+	static {
+		int index = 0;
+		index = register(index, "RATING", "RATING", TYPE_INT, true);
+
+		for(int i = 0; i < VEIN_STRENGTHS.length; i++) {
+			String label = VEIN_STRENGTHS[i] + "_VEIN_RATIO";
+			index = register(index, label + "|AREA", label, TYPE_FLOAT, false);
+			index = register(index, label + "|COUNT", label, TYPE_FLOAT, i == VEIN_STRENGTHS.length - 1);
+		}
+
+		for(int i = 0; i < VEIN_LENGTHS.length; i++) {
+			for(int k = 0; k < CURVATURES.length; k++) {
+				index = register(index, "VEIN_CURVATURE|" + VEIN_LENGTHS[i] + "|" + CURVATURES[k], "VEIN_CURVATURE|",
+					TYPE_FLOAT, i == VEIN_LENGTHS.length - 1 && k == CURVATURES.length - 1);
+			}
+		}
+
+		index = register(index, "FORK_COUNT|STRONG", "FORK_COUNT|STRONG", TYPE_INT, false);
+		index = register(index, "STANDARD_DEVIATION_FORK_X|STRONG", "STANDARD_DEVIATION_FORK_X|STRONG", TYPE_DOUBLE, false);
+		index = register(index, "STANDARD_DEVIATION_FORK_Y|STRONG", "STANDARD_DEVIATION_FORK_Y|STRONG", TYPE_DOUBLE, false);
+		index = register(index, "FROM_CENTER_FORK|STRONG", "FROM_CENTER_FORK|STRONG", TYPE_FLOAT, true);
+
+		for(int p = 0; p < POLARITIES.length; p++) {
+			for(int i = 0; i < INTENSITIES.length; i++) {
+				for(int s = 0; s < PATCH_SIZES.length; s++) {
+					for(int k = 0; k < PATCH_STRENGTHS.length; k++) {
+						String bin = PATCH_SIZES[s] + "_" + PATCH_STRENGTHS[k];
+						String name = "MICROANEURISM|" + POLARITIES[p] + "|" + INTENSITIES[i] + "|" + bin;
+						String label = "MICROANEURISM|CURVATURE_STRONG|" + bin;
+						index = register(index, name + "|PATCHES", label, TYPE_DOUBLE, false);
+						index = register(index, name + "|EYE_AREA", label, TYPE_FLOAT, k == PATCH_STRENGTHS.length - 1);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the version of the features detected.
+	 *
+	 * @param childLevelStackArea
+	 * Whether the stack area of each child patch is weighted
+	 * by the level of the child itself.
+	 */
+	public static int getVersion(boolean childLevelStackArea) {
+		return childLevelStackArea ? VERSION_CHILD_LEVEL : VERSION_REACHED_LEVEL;
+	}
+
+	/**
+	 * Get the unique name of a feature.
+	 */
+	public static String getName(int index) {
+		return names[index];
+	}
+
+	/**
+	 * Get the unique names of all features, in the order of their indexes.
+	 */
+	public static String [] getNames() {
+		return names.clone();
+	}
+
+	/**
+	 * Get the index of a feature, or -1 if no feature has the name.
+	 */
+	public static int indexOf(String name) {
+		Integer index = indexes.get(name);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Get the label of a feature in the text export.
+	 */
+	public static String getLabel(int index) {
+		return labels[index];
+	}
+
+	/**
+	 * Get whether a feature ends a group of features in the text export.
+	 */
+	public static boolean endsGroup(int index) {
+		return groupEnds[index];
+	}
+
+	/**
+	 * Write the value of a feature the way the text export does.
+	 */
+	public static String format(int index, double value) {
+		switch(types[index]) {
+			case TYPE_INT: return Integer.toString((int) value);
+			case TYPE_FLOAT: return Float.toString((float) value);
+			default: return Double.toString(value);
+		}
+	}
+
+	/**
+	 * Get the index of the share of the eye area, or of the
+	 * veins, taken up by the veins of a strength.
+	 *
+	 * @param strength
+	 * The index of the vein strength, from strong to weak.
+	 * @param count
+	 * Whether to get the share of the veins instead of the eye area.
+	 */
+	public static int getVeinRatio(int strength, boolean count) {
+		return VEIN_RATIOS + strength * 2 + (count ? 1 : 0);
+	}
+
+	/**
+	 * Get the index of a microaneurysm feature.
+	 *
+	 * @param polarity
+	 * Zero for the regular polarity, one for the flipped polarity.
+	 * @param intensity
+	 * Zero for patches of weak average intensity, one otherwise.
+	 * @param bin
+	 * The index of the patch size times the number of patch
+	 * strengths, plus the index of the patch strength.
+	 * @param eyeArea
+	 * Whether to get the share of the eye area instead of the patches.
+	 */
+	public static int getMicroaneurism(int polarity, int intensity, int bin, boolean eyeArea) {
+		return MICROANEURISMS + polarity * MICROANEURISMS_PER_POLARITY +
+			(intensity * PATCH_SIZES.length * PATCH_STRENGTHS.length + bin) * 2 + (eyeArea ? 1 : 0);
+	}
+
+	/**
+	 * Helper function for registering a feature at the next index.
+	 */
+	private static int register(int index, String name, String label, int type, boolean groupEnd) {
+		names[index] = name;
+		labels[index] = label;
+		types[index] = type;
+		groupEnds[index] = groupEnd;
+		indexes.put(name, index);
+		return index + 1;
+	}
+}
@@ -1,8 +1,13 @@
 package detectors;
 
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import io.FeatureStore;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.Vector;
 
 import retinopathy.structures.Constants;
@@ -35,9 +40,20 @@ public class ImageFeatures {
 	private Vector<PatchAnalysis> analyzedPatches = new Vector<PatchAnalysis>();
 	
 	/**
-	 * The logged feature statistics.
+	 * The value of each feature, at its index within the FeatureSchema.
+	 */
+	private double [] values = new double[FeatureSchema.COUNT];
+
+	/**
+	 * Whether each feature has been set.
+	 */
+	private boolean [] present = new boolean[FeatureSchema.COUNT];
+
+	/**
+	 * The polarity of the image the features are detected for, zero for
+	 * the regular polarity and one for the flipped polarity.
 	 */
-	private Vector<String> log= new Vector<String>();
+	private int polarity = 0;
 
 	
 	/**
@@ -62,15 +78,96 @@ public class ImageFeatures {
 	}
 
 	/**
-	 * Add a feature statistic to a log file.
+	 * Create an empty set of features for the same image, sharing the
+	 * eye measurements of this set. Used for detecting features on a
+	 * separate thread, before merging them back into this set.
 	 * 
-	 * @param stat
-	 * The statistic to log.
+	 * @param polarity
+	 * The polarity of the image the branch detects features for,
+	 * zero for the regular polarity and one for the flipped polarity.
+	 */
+	public ImageFeatures createBranch(int polarity) {
+		ImageFeatures branch = new ImageFeatures(this.outputFile);
+		branch.eyeRadius = this.eyeRadius;
+		branch.eyeArea = this.eyeArea;
+		branch.polarity = polarity;
+		return branch;
+	}
+
+	/**
+	 * Merge a set of features created by createBranch into this set.
+	 * The features set within the branch are set within this set,
+	 * and its analyzed patches replace the current ones.
+	 * 
+	 * @param branch
+	 * The set of features to merge.
+	 */
+	public void merge(ImageFeatures branch) {
+		for(int i = 0; i < FeatureSchema.COUNT; i++) {
+			if(branch.present[i]) {
+				this.values[i] = branch.values[i];
+				this.present[i] = true;
+			}
+		}
+		this.analyzedPatches = branch.analyzedPatches;
+	}
+
+	/**
+	 * Set the value of a feature.
+	 * 
+	 * @param index
+	 * The index of the feature within the FeatureSchema.
+	 * @param value
+	 * The value of the feature.
+	 */
+	public void setFeature(int index, double value) {
+		this.values[index] = value;
+		this.present[index] = true;
+	}
+
+	/**
+	 * Get the value of a feature, or zero if not set.
+	 * 
+	 * @param index
+	 * The index of the feature within the FeatureSchema.
+	 */
+	public double getFeature(int index) {
+		return this.values[index];
+	}
+
+	/**
+	 * Get the values of all features, at their indexes within the
+	 * FeatureSchema. Features not set are zero.
+	 */
+	public double [] getValues() {
+		return this.values;
+	}
+
+	/**
+	 * Get the polarity of the image the features are detected for.
 	 */
-	public void addToFeatureLog(String stat) {
-		log.add(stat);
+	public int getPolarity() {
+		return this.polarity;
 	}
 	
+	/**
+	 * Get the features set as the lines of the text export, in the
+	 * NAME#value form with a blank line after each group of features.
+	 */
+	public Vector<String> getFeatureLog() {
+		Vector<String> log = new Vector<String>();
+		for(int i = 0; i < FeatureSchema.COUNT; i++) {
+			if(!this.present[i]) {
+				continue;
+			}
+			log.add(FeatureSchema.getLabel(i) + "#" + FeatureSchema.format(i, this.values[i]));
+			if(FeatureSchema.endsGroup(i)) {
+				log.add("");
+			}
+		}
+		return log;
+	}
+
 	/**
 	 * Set the list of analyzed patches.
 	 */
@@ -79,35 +176,57 @@ public class ImageFeatures {
 	}
 	
 	/**
-	 * Write the logs to file.
+	 * Write the features to file as text, returning once the file is on
+	 * disk. A file that could not be fully written throws an exception, so
+	 * the image is never taken as done.
 	 */
 	public void writeLogToFile() {
 
-		PrintWriter writer = null;
+		Vector<String> log = this.getFeatureLog();
+		String file_name = outputFile.replace(".jpeg", ".txt");
+		String line_separator = System.getProperty("line.separator");
 
+		FileOutputStream output = null;
 		try {
-			writer = new PrintWriter(outputFile.replace(".jpeg", ".txt"), "UTF-8");
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-			System.exit(0);
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
-			System.exit(0);
-		}
-
-		for(int i = 0; i < log.size(); i++) {
-			writer.println(log.get(i));
+			output = new FileOutputStream(file_name);
+			Writer writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+			for(int i = 0; i < log.size(); i++) {
+				writer.write(log.get(i));
+				writer.write(line_separator);
+			}
+			writer.flush();
+			output.getFD().sync();
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to write features to " + file_name, e);
+		} finally {
+			if(output != null) {
+				try {
+					output.close();
+				} catch (IOException e) {
+					// The file is already on disk.
+				}
+			}
 		}
-
-		writer.close();
 	}
 	
 	/**
-	 * Write the analyzed patches to a log file.
+	 * Write the features as a row of a feature store, named after the
+	 * output file without its extension. Each feature is a column named
+	 * after the feature, in the order of the FeatureSchema.
+	 * 
+	 * @param store
+	 * The store to append the row to.
+	 */
+	public void writeToStore(FeatureStore store) {
+		String image_name = new File(outputFile).getName().replace(".jpeg", "");
+		store.append(image_name, FeatureSchema.getNames(), this.values);
+	}
+	
+	/**
+	 * Set the microaneurysm features from the analyzed patches.
 	 */
-	public void writePatchesLogToFile() {
+	public void addPatchFeatures() {
 		
-		String curvature_string = "CURVATURE_STRONG";
 		int[][] logs = new int[2][40];
 
 		double patch_count = 0;
@@ -168,96 +287,14 @@ public class ImageFeatures {
 
 		patch_count = Math.max(patch_count, 1);
 		
-		// Write the data to logs with prepended labels.
+		// Set the share of the patches and of the eye area of each bin.
 		for(int i = 0; i < logs.length; i++) {
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|SMALL_WEAK#" + ((logs[i][0]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|SMALL_WEAK#" + ((logs[i][0]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|SMALL_MEDIUM#" + ((logs[i][1]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|SMALL_MEDIUM#" + ((logs[i][1]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|SMALL_STRONG#" + ((logs[i][2]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|SMALL_STRONG#" + ((logs[i][2]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|SMALL_XSTRONG#" + ((logs[i][3]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|SMALL_XSTRONG#" + ((logs[i][3]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|SMALL_XXSTRONG#" + ((logs[i][4]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|SMALL_XXSTRONG#" + ((logs[i][4]/this.eyeArea)*100) );
-			this.addToFeatureLog("");
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|MEDIUM_WEAK#" + ((logs[i][5]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|MEDIUM_WEAK#" + ((logs[i][5]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|MEDIUM_MEDIUM#" + ((logs[i][6]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|MEDIUM_MEDIUM#" + ((logs[i][6]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|MEDIUM_STRONG#" + ((logs[i][7]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|MEDIUM_STRONG#" + ((logs[i][7]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|MEDIUM_XSTRONG#" + ((logs[i][8]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|MEDIUM_XSTRONG#" + ((logs[i][8]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|MEDIUM_XXSTRONG#" + ((logs[i][9]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|MEDIUM_XXSTRONG#" + ((logs[i][9]/this.eyeArea)*100) );
-			this.addToFeatureLog("");		
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|LARGE_WEAK#" + ((logs[i][10]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|LARGE_WEAK#" + ((logs[i][10]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|LARGE_MEDIUM#" + ((logs[i][11]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|LARGE_MEDIUM#" + ((logs[i][11]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|LARGE_STRONG#" + ((logs[i][12]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|LARGE_STRONG#" + ((logs[i][12]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|LARGE_XSTRONG#" + ((logs[i][13]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|LARGE_XSTRONG#" + ((logs[i][13]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|LARGE_XXSTRONG#" + ((logs[i][14]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|LARGE_XXSTRONG#" + ((logs[i][14]/this.eyeArea)*100) );
-			this.addToFeatureLog("");	
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XLARGE_WEAK#" + ((logs[i][15]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XLARGE_WEAK#" + ((logs[i][15]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XLARGE_MEDIUM#" + ((logs[i][16]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XLARGE_MEDIUM#" + ((logs[i][16]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XLARGE_STRONG#" + ((logs[i][17]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XLARGE_STRONG#" + ((logs[i][17]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XLARGE_XSTRONG#" + ((logs[i][18]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XLARGE_XSTRONG#" + ((logs[i][18]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XLARGE_XXSTRONG#" + ((logs[i][19]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XLARGE_XXSTRONG#" + ((logs[i][19]/this.eyeArea)*100) );
-			this.addToFeatureLog("");	
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXLARGE_WEAK#" + ((logs[i][20]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXLARGE_WEAK#" + ((logs[i][20]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXLARGE_MEDIUM#" + ((logs[i][21]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXLARGE_MEDIUM#" + ((logs[i][21]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXLARGE_STRONG#" + ((logs[i][22]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXLARGE_STRONG#" + ((logs[i][22]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXLARGE_XSTRONG#" + ((logs[i][23]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXLARGE_XSTRONG#" + ((logs[i][23]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXLARGE_XXSTRONG#" + ((logs[i][24]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXLARGE_XXSTRONG#" + ((logs[i][24]/this.eyeArea)*100) );
-			this.addToFeatureLog("");			
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXLARGE_WEAK#" + ((logs[i][25]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXLARGE_WEAK#" + ((logs[i][25]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXLARGE_MEDIUM#" + ((logs[i][26]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXLARGE_MEDIUM#" + ((logs[i][26]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXLARGE_STRONG#" + ((logs[i][27]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXLARGE_STRONG#" + ((logs[i][27]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXLARGE_XSTRONG#" + ((logs[i][28]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXLARGE_XSTRONG#" + ((logs[i][28]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXLARGE_XXSTRONG#" + ((logs[i][29]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXLARGE_XXSTRONG#" + ((logs[i][29]/this.eyeArea)*100) );
-			this.addToFeatureLog("");
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXLARGE_WEAK#" + ((logs[i][30]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXLARGE_WEAK#" + ((logs[i][30]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXLARGE_MEDIUM#" + ((logs[i][31]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXLARGE_MEDIUM#" + ((logs[i][31]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXLARGE_STRONG#" + ((logs[i][32]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXLARGE_STRONG#" + ((logs[i][32]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXLARGE_XSTRONG#" + ((logs[i][33]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXLARGE_XSTRONG#" + ((logs[i][33]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXLARGE_XXSTRONG#" + ((logs[i][34]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXLARGE_XXSTRONG#" + ((logs[i][34]/this.eyeArea)*100) );
-			this.addToFeatureLog("");
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXXLARGE_WEAK#" + ((logs[i][35]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXXLARGE_WEAK#" + ((logs[i][35]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXXLARGE_MEDIUM#" + ((logs[i][36]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXXLARGE_MEDIUM#" + ((logs[i][36]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXXLARGE_STRONG#" + ((logs[i][37]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXXLARGE_STRONG#" + ((logs[i][37]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXXLARGE_XSTRONG#" + ((logs[i][38]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXXLARGE_XSTRONG#" + ((logs[i][38]/this.eyeArea)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXXLARGE_XXSTRONG#" + ((logs[i][39]/patch_count)*100) );
-			this.addToFeatureLog("MICROANEURISM|" + curvature_string + "|XXXXXLARGE_XXSTRONG#" + ((logs[i][39]/this.eyeArea)*100) );
-			this.addToFeatureLog("");
+			for(int k = 0; k < logs[i].length; k++) {
+				this.setFeature(FeatureSchema.getMicroaneurism(this.polarity, i, k, false),
+					(logs[i][k]/patch_count)*100);
+				this.setFeature(FeatureSchema.getMicroaneurism(this.polarity, i, k, true),
+					(logs[i][k]/this.eyeArea)*100);
+			}
 		}
 	}
 }
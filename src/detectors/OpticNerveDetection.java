@@ -1,6 +1,7 @@
 package detectors;
 
 import tools.math.VectorTools;
+import tools.structures.ImageRaster;
 
 /**
  *Class for processing image data of an eye for detecting the optic nerve.
@@ -14,6 +15,14 @@ public class OpticNerveDetection {
 	 * the detection is only performed on a small version of the image.
 	 */
 	private static final int divFac = 10;
+
+	/**
+	 * Get the number of times the complete image is divided by
+	 * for creating the mini-image.
+	 */
+	public static int getMiniImageFactor() {
+		return divFac;
+	}
 	
 	/**
 	 * The chosen eye radius to optic nerve radius ratio.
@@ -32,17 +41,52 @@ public class OpticNerveDetection {
 	 * The map containing the part of the image not belonging to the eye.
 	 */
 	public static void findNerve(
-			short[][][]imageMatrix,
+			ImageRaster imageMatrix,
 			int eyeRadius,
 			boolean [][] nonEyeImage) {
 
 		// Create the mini-image.
-		short[][][]mini_image = new short[imageMatrix.length/divFac][imageMatrix[0].length/divFac][3];
-		boolean[][]mini_map = new boolean[imageMatrix.length/divFac][imageMatrix[0].length/divFac];
+		ImageRaster mini_image = new ImageRaster(imageMatrix.getWidth()/divFac, imageMatrix.getHeight()/divFac, 2);
+
+		for(int i = 0; i < imageMatrix.getWidth() - divFac; i += divFac) { 
+			for(int j = 0; j < imageMatrix.getHeight() - divFac; j+= divFac) { 
+				mini_image.set(i/divFac, j/divFac, 0, imageMatrix.get(i, j, 0));
+				mini_image.set(i/divFac, j/divFac, 1, imageMatrix.get(i, j, 1));
+			}			
+		}
+
+		findNerve(mini_image, imageMatrix.getWidth(), imageMatrix.getHeight(), eyeRadius, nonEyeImage);
+	}
+
+	/**
+	 * Find the optic nerve, given the mini-image already sampled from the
+	 * source image. The mini-image holds the red and green values of every
+	 * pixel of the source image at a multiple of the mini-image factor
+	 * along both axes, excluding the last column and row of samples.
+	 * 
+	 * @param miniImage
+	 * The mini-image, holding the red values in the first channel
+	 * and the green values in the second channel.
+	 * @param width
+	 * The width of the source image.
+	 * @param height
+	 * The height of the source image.
+	 * @param eyeRadius
+	 * The input radius of the eye.
+	 * @param nonEyeImage
+	 * The map containing the part of the image not belonging to the eye.
+	 */
+	public static void findNerve(
+			ImageRaster miniImage,
+			int width,
+			int height,
+			int eyeRadius,
+			boolean [][] nonEyeImage) {
 
-		for(int i = 0; i < imageMatrix.length - divFac; i += divFac) { 
-			for(int j = 0; j < imageMatrix[0].length - divFac; j+= divFac) { 
-				mini_image[i/divFac][j/divFac] = imageMatrix[i][j];
+		boolean[][]mini_map = new boolean[width/divFac][height/divFac];
+
+		for(int i = 0; i < width - divFac; i += divFac) { 
+			for(int j = 0; j < height - divFac; j+= divFac) { 
 				mini_map[i/divFac][j/divFac] = nonEyeImage[i][j];
 			}			
 		}
@@ -53,9 +97,9 @@ public class OpticNerveDetection {
 		int [] best_center = new int[]{0, 0};
 		
 		int mini_radius = (int) (eyeRadius / (eyeToNerveRatio * divFac));
-		for(int i = (int) (mini_radius*1.1); i < mini_image.length - mini_radius*1.1; i+=2) {
-			for(int j = (int) (mini_radius*2.1); j < mini_image[0].length - mini_radius*2.1; j+=2) {
-				float ratio = evaluateCircle(i , j, mini_radius, mini_image, mini_map);
+		for(int i = (int) (mini_radius*1.1); i < miniImage.getWidth() - mini_radius*1.1; i+=2) {
+			for(int j = (int) (mini_radius*2.1); j < miniImage.getHeight() - mini_radius*2.1; j+=2) {
+				float ratio = evaluateCircle(i , j, mini_radius, miniImage, mini_map);
 				if(ratio > best_ratio) {
 					best_ratio = ratio;
 					best_center = new int[]{i, j};
@@ -67,14 +111,16 @@ public class OpticNerveDetection {
 		best_center[0] *= divFac;
 		best_center[1] *= divFac;
 		int radius = (int) (eyeRadius / eyeToNerveRatio);
-		markBestCircle(imageMatrix, nonEyeImage, radius, best_center);
+		markBestCircle(width, height, nonEyeImage, radius, best_center);
 	}
 	
 	/**
 	 * Mark the location of optic nerve wihin the image source matrix.
 	 * 
-	 * @param img
-	 * The image source matrix.
+	 * @param width
+	 * The width of the image source matrix.
+	 * @param height
+	 * The height of the image source matrix.
 	 * @param nonEyeMap
 	 * The map indicating the part of the image not
 	 * belonging to the eye.
@@ -84,7 +130,8 @@ public class OpticNerveDetection {
 	 * The location of the optic nerve to mark.
 	 */
 	private static void markBestCircle(
-			short[][][]img,
+			int width,
+			int height,
 			boolean [][] nonEyeMap,
 			int radius,
 			int [] center) {
@@ -97,7 +144,7 @@ public class OpticNerveDetection {
 		for(int i = bx; i < bx + (2*ext_radius); i++) {
 			for(int j = by; j < by + (2*ext_radius); j++) {
 				
-				if (i < 0 || j < 0 || i >= img.length || j >= img[0].length) continue;
+				if (i < 0 || j < 0 || i >= width || j >= height) continue;
 
 				float dist = VectorTools.distance(center, new int[]{i, j});
 				if(dist <= ext_radius) {
@@ -129,7 +176,7 @@ public class OpticNerveDetection {
 			int x,
 			int y,
 			float radius,
-			short[][][]img,
+			ImageRaster img,
 			boolean[][]nonEyeMap) {
 
 		float int_radius = radius;
@@ -149,17 +196,17 @@ public class OpticNerveDetection {
 		for(int i = bx; i < bx + (2*ext_radius); i++) {
 			for(int j = by; j < by + (2*ext_radius); j++) {
 				
-				if (i < 0 || j < 0 || i >= img.length || j >= img[0].length) continue;
+				if (i < 0 || j < 0 || i >= img.getWidth() || j >= img.getHeight()) continue;
 
 				float dist = VectorTools.distance(cent, new int[]{i, j});
 				if(dist <= int_radius) {
 					if(nonEyeMap[i][j]) return 0;
-					int_sum += combineCones(img[i][j]);
+					int_sum += combineCones(img, i, j);
 					int_count++;
 				}
 				else if(dist <= ext_radius) {
 					if(nonEyeMap[i][j]) continue;
-					ext_sum += combineCones(img[i][j]);
+					ext_sum += combineCones(img, i, j);
 					ext_count++;					
 				}
 			}			
@@ -174,12 +221,16 @@ public class OpticNerveDetection {
 	/**
 	 * Combine the RGB values into one gray scale value.
 	 *
-	 * @param cones
-	 * The RGB values.
+	 * @param img
+	 * The image holding the RGB values.
+	 * @param x
+	 * The x location of the pixel.
+	 * @param y
+	 * The y location of the pixel.
 	 * @return
 	 * The gray scale value.
 	 */
-	private static short combineCones(short [] cones) {
-		return (short)(cones[0]*0.5 + cones[1]*0.5 + cones[2]*0);
+	private static short combineCones(ImageRaster img, int x, int y) {
+		return (short)(img.get(x, y, 0)*0.5 + img.get(x, y, 1)*0.5);
 	}
 }
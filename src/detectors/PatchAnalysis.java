@@ -1,16 +1,13 @@
 package detectors;
 
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.Vector;
 
 import preprocessing.ColorReduction;
 
 import retinopathy.structures.Constants;
-import retinopathy.structures.Patch;
+import retinopathy.structures.PatchStore;
+
+import tools.structures.ImageRaster;
 
 /**
  * Class for running feature analysis algorithms on an image patch.
@@ -21,9 +18,14 @@ import retinopathy.structures.Patch;
 public class PatchAnalysis {
 	
 	/**
-	 * The patch to be analyzed.
+	 * The patches found within the image.
 	 */
-	private Patch patch = null;
+	private PatchStore patches = null;
+
+	/**
+	 * The index of the patch to be analyzed.
+	 */
+	private int patch = -1;
 	
 	/**
 	 * The curvature threshold of the patch to analyze against to help
@@ -55,8 +57,10 @@ public class PatchAnalysis {
 	/**
 	 * Create a new instance of the PatchAnalysis class.
 	 * 
+	 * @param patches
+	 * The patches found within the image.
 	 * @param patch
-	 * The patch to analyze.
+	 * The index of the patch to analyze.
 	 * @param averageIntensity
 	 * The average colour intensity of the patch.
 	 * @param curvatureThreshold
@@ -68,12 +72,14 @@ public class PatchAnalysis {
 	 * The strength value of this patch.
 	 */
 	public PatchAnalysis(
-			Patch patch,
+			PatchStore patches,
+			int patch,
 			double averageIntensity,
 			double curvatureThreshold,
 			int patchSize,
 			float patchStrength) {
 
+		this.patches = patches;
 		this.patch = patch;
 		this.averageIntensity = averageIntensity;
 		this.curvatureThreshold = curvatureThreshold;
@@ -82,9 +88,16 @@ public class PatchAnalysis {
 	}
 
 	/**
-	 * Return the patch being analyzed.
+	 * Return the patches found within the image.
+	 */
+	public PatchStore getPatches() {
+		return this.patches;
+	}
+
+	/**
+	 * Return the index of the patch being analyzed.
 	 */
-	public Patch getPatch() {
+	public int getPatch() {
 		return this.patch;
 	}
 	
@@ -126,33 +139,64 @@ public class PatchAnalysis {
 	 * The image source matrix containing the RGB value for the image patches.
 	 * @param nonEyeImage
 	 * The map marking parts of the source image not belonging to the eye.
-	 * @param idToPatch
-	 * Structure for storing the patches found that have been marked
-	 * as microaneurism eye features.
+	 * @param patches
+	 * The patches found within the image.
 	 * @param scalingFac
 	 * The scaling factor used when drawing the detected microaneurisms
 	 * to an image for visualization.
 	 */
 	public static void findMicroaneurisms(
 			ImageFeatures features,
-			short[][][]filteredImage,
+			ImageRaster filteredImage,
 			boolean[][]nonEyeImage,
-			Hashtable<String, Patch> idToPatch,
+			PatchStore patches,
 			float scaling_fac) {
 
+		findMicroaneurisms(features, filteredImage, nonEyeImage, patches, scaling_fac, 1);
+	}
+
+	/**
+	 * Helper function for finding and drawing microaneurisms within an
+	 * image resampled from the resolution of the original image.
+	 *
+	 * @param features
+	 * The data structure for recording the microaneurism features.
+	 * @param filteredImage
+	 * The image source matrix containing the RGB value for the image
+	 * patches, or null to only record the microaneurisms found.
+	 * @param nonEyeImage
+	 * The map marking parts of the source image not belonging to the eye.
+	 * @param patches
+	 * The patches found within the image.
+	 * @param scalingFac
+	 * The scaling factor used when drawing the detected microaneurisms
+	 * to an image for visualization.
+	 * @param pixelScale
+	 * The width of one pixel of the image analyzed, measured
+	 * in pixels of the original image.
+	 */
+	public static void findMicroaneurisms(
+			ImageFeatures features,
+			ImageRaster filteredImage,
+			boolean[][]nonEyeImage,
+			PatchStore patches,
+			float scaling_fac,
+			float pixelScale) {
+
 		// Find all the patches with a high curvature value
 		Vector<PatchAnalysis> analyzed_patches = analyzePatches(
 				Constants.PATCH_HIGH_CURVATURE,
-				idToPatch,
+				patches,
 				nonEyeImage,
-				scaling_fac);
+				scaling_fac,
+				pixelScale);
 
 		// Draw the patches and log their statistics.
 		drawAndReportAnalyzedPatches(
 				features,
 				filteredImage,
 				analyzed_patches);	
-		features.writePatchesLogToFile();
+		features.addPatchFeatures();
 	}
 	
 	/**
@@ -179,9 +223,8 @@ public class PatchAnalysis {
 	 * @param curvatureThreshold
 	 * The curvature threshold of the patch used to analyze against to help
 	 * consider if this is a valid patch for an image feature of the eye.
-	 * @param idToPatch
-	 * Structure for storing the patches found that have been marked
-	 * as microaneurism eye features.
+	 * @param patches
+	 * The patches found within the image.
 	 * @param nonEyeImage
 	 * The map marking parts of the source image not belonging to the eye.
 	 * @param scalingFac
@@ -192,117 +235,144 @@ public class PatchAnalysis {
 	 */
 	public static Vector<PatchAnalysis> analyzePatches(
 			double curvatureThreshold,
-			Hashtable<String, Patch> idToPatch,
+			PatchStore patches,
 			boolean[][]nonEyeImage,
 			float scalingFac) {
 
-		Vector<PatchAnalysis> analyzed_patches = new Vector<PatchAnalysis>();
-		Enumeration<Patch> patches = idToPatch.elements();
-		Patch [] patches_array = new Patch[idToPatch.size()];
-		int counter = 0;
-		while(patches.hasMoreElements()) {
-			Patch next_patch = patches.nextElement();	
-			patches_array[counter++] = next_patch;
-		}
-		
-		Arrays.sort(patches_array, new Comparator<Patch>(){
-			public int compare(Patch a, Patch b) {
-				return a.getLevel() > b.getLevel() ? -1 : a.getLevel() < b.getLevel() ? 1 : 0;
-			}});
+		return analyzePatches(curvatureThreshold, patches, nonEyeImage, scalingFac, 1);
+	}
 
-		for(int i = 0; i < patches_array.length; i++) {
-			Patch next_patch = patches_array[i];
-			if(isParentAnalyzed(next_patch)) {
-				continue;
-			} 
-			//next_patch.isAnalyzed = true;
+	/**
+	 * Analyze a set of patches found within an image resampled from the
+	 * resolution of the original image. The areas of the patches are
+	 * converted to pixels of the original image before being classified.
+	 * The patches are visited level by level from the top down, so whether
+	 * a patch or any of its parents has been analyzed is carried down from
+	 * each parent to its children instead of walking up to the top.
+	 *
+	 * @param curvatureThreshold
+	 * The curvature threshold of the patch used to analyze against to help
+	 * consider if this is a valid patch for an image feature of the eye.
+	 * @param patches
+	 * The patches found within the image.
+	 * @param nonEyeImage
+	 * The map marking parts of the source image not belonging to the eye.
+	 * @param scalingFac
+	 * The scaling factor used when drawing the detected microaneurisms
+	 * to an image for visualization.
+	 * @param pixelScale
+	 * The width of one pixel of the image analyzed, measured
+	 * in pixels of the original image.
+	 * @return
+	 * The set of return patches that are classified as microaneurisms.
+	 */
+	public static Vector<PatchAnalysis> analyzePatches(
+			double curvatureThreshold,
+			PatchStore patches,
+			boolean[][]nonEyeImage,
+			float scalingFac,
+			float pixelScale) {
+
+		Vector<PatchAnalysis> analyzed_patches = new Vector<PatchAnalysis>();
+		boolean [] lineage_analyzed = new boolean[patches.size()];
+		for(int level = patches.getLevelCount() - 1; level >= 0; level--) {
+			for(int next_patch = patches.getLevelStart(level); next_patch < patches.getLevelEnd(level); next_patch++) {
+				int parent = patches.getParent(next_patch);
+				lineage_analyzed[next_patch] = patches.isAnalyzed(next_patch) ||
+					(parent != -1 && lineage_analyzed[parent]);
+				if(!patches.isKept(next_patch) || lineage_analyzed[next_patch]) {
+					continue;
+				} 
+				//patches.setAnalyzed(next_patch, true);
 			
-			float[]cent = next_patch.getCentroid();
-			if(nonEyeImage[(int) cent[0]][(int) cent[1]]) continue;
+				float[]cent = patches.getCentroid(next_patch);
+				if(nonEyeImage[(int) cent[0]][(int) cent[1]]) continue;
 	
-			if(next_patch.getCurvature() < curvatureThreshold) continue;
+				if(patches.getCurvature(next_patch) < curvatureThreshold) continue;
 			
-			float fac = next_patch.getStackArea() / (next_patch.getArea());
+				float fac = patches.getStackArea(next_patch) / (patches.getArea(next_patch));
+				float stack_area = patches.getStackArea(next_patch) * pixelScale * pixelScale;
 			
-			fac *= next_patch.getParentPatch() == null ?
-				1 : next_patch.getParentPatch().getLevel() - next_patch.getLevel();
+				fac *= parent == -1 ?
+					1 : patches.getLevel(parent) - patches.getLevel(next_patch);
 
-			// Get the intensity level to record.
-			float average_intensity = next_patch.getAverageIntensity();
-			int intensity_level = average_intensity <= ColorReduction.NUM_COLORS * 0.5 ?
-				Constants.PATCH_intensity_strong : Constants.PATCH_intensity_weak;
+				// Get the intensity level to record.
+				float average_intensity = patches.getAverageIntensity(next_patch);
+				int intensity_level = average_intensity <= ColorReduction.NUM_COLORS * 0.5 ?
+					Constants.PATCH_intensity_strong : Constants.PATCH_intensity_weak;
 
-			// Get the sharpness level to record.
-			int sharpness_level = 
-				1.2 < fac && fac <= 1.4 ? Constants.PATCH_strength_weak :
-				1.4 < fac && fac <= 1.6 ? Constants.PATCH_strength_medium :
-				1.6 < fac && fac <= 1.8 ? Constants.PATCH_strength_strong :
-				1.8 < fac && fac <= 2.0 ? Constants.PATCH_strength_xstrong :
-				2.0 < fac ? Constants.PATCH_strength_xxstrong : -1;
+				// Get the sharpness level to record.
+				int sharpness_level = 
+					1.2 < fac && fac <= 1.4 ? Constants.PATCH_strength_weak :
+					1.4 < fac && fac <= 1.6 ? Constants.PATCH_strength_medium :
+					1.6 < fac && fac <= 1.8 ? Constants.PATCH_strength_strong :
+					1.8 < fac && fac <= 2.0 ? Constants.PATCH_strength_xstrong :
+					2.0 < fac ? Constants.PATCH_strength_xxstrong : -1;
 				
-			if (sharpness_level == -1) continue;
+				if (sharpness_level == -1) continue;
 			
-			// Record the microaneurisms for different sizes, sharpness
-			// and curvature values.
+				// Record the microaneurisms for different sizes, sharpness
+				// and curvature values.
 			
-			// XXXXX-Large
-			if(next_patch.getStackArea() * scalingFac > 6000 && next_patch.getStackArea() <= 12000 * scalingFac) {
-				analyzed_patches.add(
-					new PatchAnalysis(
-						next_patch, intensity_level, curvatureThreshold, Constants.PATCH_size_xxxxxlarge, sharpness_level));
-			}			
+				// XXXXX-Large
+				if(stack_area * scalingFac > 6000 && stack_area <= 12000 * scalingFac) {
+					analyzed_patches.add(
+						new PatchAnalysis(
+							patches, next_patch, intensity_level, curvatureThreshold, Constants.PATCH_size_xxxxxlarge, sharpness_level));
+				}			
 			
-			// XXXX-Large
-			if(next_patch.getStackArea() > 2500 * scalingFac && next_patch.getStackArea() <= 6000 * scalingFac) {
-				analyzed_patches.add(
-					new PatchAnalysis(
-						next_patch, intensity_level, curvatureThreshold, Constants.PATCH_size_xxxxlarge, sharpness_level));
-			}
+				// XXXX-Large
+				if(stack_area > 2500 * scalingFac && stack_area <= 6000 * scalingFac) {
+					analyzed_patches.add(
+						new PatchAnalysis(
+							patches, next_patch, intensity_level, curvatureThreshold, Constants.PATCH_size_xxxxlarge, sharpness_level));
+				}
 			
-			// XXX-Large
-			if(next_patch.getStackArea() > 1200 * scalingFac && next_patch.getStackArea() <= 2500 * scalingFac) {
-				analyzed_patches.add(
-					new PatchAnalysis(
-						next_patch, intensity_level, curvatureThreshold, Constants.PATCH_size_xxxlarge, sharpness_level));			
-			}
+				// XXX-Large
+				if(stack_area > 1200 * scalingFac && stack_area <= 2500 * scalingFac) {
+					analyzed_patches.add(
+						new PatchAnalysis(
+							patches, next_patch, intensity_level, curvatureThreshold, Constants.PATCH_size_xxxlarge, sharpness_level));			
+				}
 			
-			// XX-Large
-			if(next_patch.getStackArea() > 500 * scalingFac && next_patch.getStackArea() <= 1200 * scalingFac) {
-				analyzed_patches.add(
-					new PatchAnalysis(
-						next_patch, intensity_level, curvatureThreshold, Constants.PATCH_size_xxlarge, sharpness_level));
-			}
+				// XX-Large
+				if(stack_area > 500 * scalingFac && stack_area <= 1200 * scalingFac) {
+					analyzed_patches.add(
+						new PatchAnalysis(
+							patches, next_patch, intensity_level, curvatureThreshold, Constants.PATCH_size_xxlarge, sharpness_level));
+				}
 			
-			// X-Large
-			if(next_patch.getStackArea() > 240 * scalingFac && next_patch.getStackArea() <= 500 * scalingFac) {
-				analyzed_patches.add(
-					new PatchAnalysis(
-						next_patch, intensity_level, curvatureThreshold, Constants.PATCH_size_xlarge, sharpness_level));
-			}
+				// X-Large
+				if(stack_area > 240 * scalingFac && stack_area <= 500 * scalingFac) {
+					analyzed_patches.add(
+						new PatchAnalysis(
+							patches, next_patch, intensity_level, curvatureThreshold, Constants.PATCH_size_xlarge, sharpness_level));
+				}
 		
-			// Large
-			if(next_patch.getStackArea() > 120 * scalingFac && next_patch.getStackArea() <= 240 * scalingFac) {
-				analyzed_patches.add(
-					new PatchAnalysis(
-						next_patch, intensity_level, curvatureThreshold, Constants.PATCH_size_large, sharpness_level));
-			}
+				// Large
+				if(stack_area > 120 * scalingFac && stack_area <= 240 * scalingFac) {
+					analyzed_patches.add(
+						new PatchAnalysis(
+							patches, next_patch, intensity_level, curvatureThreshold, Constants.PATCH_size_large, sharpness_level));
+				}
 			
-			// MEDIUM
-			if(next_patch.getStackArea() > 50 * scalingFac && next_patch.getStackArea() <= 120 * scalingFac) {
-				analyzed_patches.add(
-					new PatchAnalysis(
-						next_patch, intensity_level, curvatureThreshold, Constants.PATCH_size_medium, sharpness_level));
-			}
+				// MEDIUM
+				if(stack_area > 50 * scalingFac && stack_area <= 120 * scalingFac) {
+					analyzed_patches.add(
+						new PatchAnalysis(
+							patches, next_patch, intensity_level, curvatureThreshold, Constants.PATCH_size_medium, sharpness_level));
+				}
 			
-			// SMALL
-			if(next_patch.getStackArea() > 10 * scalingFac && next_patch.getStackArea() <= 50 * scalingFac) {
-				analyzed_patches.add(
-					new PatchAnalysis(
-						next_patch, intensity_level, curvatureThreshold, Constants.PATCH_size_small, sharpness_level));
-			}
+				// SMALL
+				if(stack_area > 10 * scalingFac && stack_area <= 50 * scalingFac) {
+					analyzed_patches.add(
+						new PatchAnalysis(
+							patches, next_patch, intensity_level, curvatureThreshold, Constants.PATCH_size_small, sharpness_level));
+				}
 
-			else {
-				continue;
+				else {
+					continue;
+				}
 			}
 		}
 		
@@ -316,13 +386,14 @@ public class PatchAnalysis {
 	 * @param features
 	 * The feature data structure.
 	 * @param filteredImage
-	 * The image source matrix for the patches.
+	 * The image source matrix for the patches,
+	 * or null to only log the patches.
 	 * @param analyzed_patches
 	 * The set of patches analyzed.
 	 */
 	public static void drawAndReportAnalyzedPatches(
 			ImageFeatures features,
-			short[][][]filtered_image,
+			ImageRaster filtered_image,
 			Vector<PatchAnalysis> analyzed_patches) {
 
 		short[] color = null;
@@ -468,45 +539,35 @@ public class PatchAnalysis {
 			}
 
 			// Draw the patch.
+			if(filtered_image == null) {
+				continue;
+			}
 			drawPatch(
 					filtered_image,
-					next_analyzed_patch.getPatch().getBoundary().iterator(),
+					next_analyzed_patch.getPatches(),
+					next_analyzed_patch.getPatch(),
 					next_analyzed_patch.getPatchStrength(),
 					color);
 		}
 	}
 	
-	/**
-	 * Helper function to determine whether the parents of the patch
-	 * specified have been analyzed by previous algorithms.
-	 * 
-	 * @param patch
-	 * The patch to check for.
-	 */
-	private static boolean isParentAnalyzed(Patch patch) {
-		if (patch == null) {
-			return false;
-		}
-		if(patch.getAnalysisStatus()) {
-			return true;
-		}
-		return isParentAnalyzed(patch.getParentPatch());
-	}
-	
 	/**Helper function for drawing a patch.
 	 * 
 	 * @param filteredImage
 	 * The image matrix to draw the patch inside of.
-	 * @param boundary
-	 * The boundary of the patch to draw.
+	 * @param patches
+	 * The patches found within the image.
+	 * @param patch
+	 * The index of the patch to draw.
 	 * @param patchStrength
 	 * The strength used for drawing the patch.
 	 * @param color
 	 * The color to draw the patch with.
 	 */
 	private static void drawPatch(
-			short[][][]filteredImage,
-			Iterator<short[]> boundary,
+			ImageRaster filteredImage,
+			PatchStore patches,
+			int patch,
 			float patchStrength,
 			short[]color) {
 
@@ -519,21 +580,19 @@ public class PatchAnalysis {
 			b_m = 7; b_h = 3;
 		}
 
-		while(boundary.hasNext()) {
-			short[]next_point = boundary.next();
-			short cx = next_point[0];
-			short cy = next_point[1];
+		int start = patches.getBoundaryStart(patch);
+		int end = start + patches.getBoundarySize(patch);
+		for(int point = start; point < end; point++) {
+			short cx = patches.getBoundaryX(point);
+			short cy = patches.getBoundaryY(point);
 
 			for(int m = 0; m < b_m; m++) {
 				for(int n = 0; n < b_m; n++) {
 
 					if(n==b_h && m==b_h) continue;
-					if(cx-b_h+m < 0 || cy-b_h+n < 0 || cx-b_h+m >= filteredImage.length || cy-b_h+n >= filteredImage[0].length) continue;
-
+					if(cx-b_h+m < 0 || cy-b_h+n < 0 || cx-b_h+m >= filteredImage.getWidth() || cy-b_h+n >= filteredImage.getHeight()) continue;
 
-					if(cx-b_h+m < 0 || cx-b_h+m >= filteredImage.length) continue;
-					if(cy-b_h+n < 0 || cy-b_h+n >= filteredImage[0].length) continue;
-					filteredImage[cx-b_h+m][cy-b_h+n] = color;
+					filteredImage.setPixel(cx-b_h+m, cy-b_h+n, color);
 				}
 			}
 		}
@@ -1,11 +1,13 @@
 package detectors;
 
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Vector;
 
 import tools.math.Kernels;
 import tools.structures.CoordinateList;
+import tools.structures.FloodFill;
+import tools.structures.ImageRaster;
+import tools.structures.ScratchArena;
 
 /**
  * A class for running the skeletonization algorithm
@@ -14,6 +16,11 @@ import tools.structures.CoordinateList;
  * @author Peter Bugaj
  */
 public class ShapeSkeletonization {
+
+	/**
+	 * The colour of a truncated pixel.
+	 */
+	private static final short [] TRUNCATED = new short[]{0, 0, 0};
 	
 	/**
 	 * Run the skeletonization algorithm on foregrounds in the image.
@@ -24,19 +31,68 @@ public class ShapeSkeletonization {
 	 * @param nonEyeImage
 	 * The matrix marking parts of the image not belonging to the eye.
 	 */
-	public static void produceSkeleton(short [][][] filteredImage, boolean [][] nonEyeImage) {
+	public static void produceSkeleton(ImageRaster filteredImage, boolean [][] nonEyeImage) {
+		produceSkeleton(filteredImage, nonEyeImage, new ScratchArena());
+	}
+
+	/**
+	 * Run the skeletonization algorithm on foregrounds in the image,
+	 * taking the working map of the algorithm from a scratch arena.
+	 *
+	 * @param filteredImage
+	 * The imag source matrix containing the foreground objects to
+	 * be skeletonized.
+	 * @param nonEyeImage
+	 * The matrix marking parts of the image not belonging to the eye.
+	 * @param arena
+	 * The arena to take the working map from and give it back to.
+	 */
+	public static void produceSkeleton(ImageRaster filteredImage, boolean [][] nonEyeImage, ScratchArena arena) {
 
-		short [][] map = new short[filteredImage.length][filteredImage[0].length];		
+		boolean [][] foreground = arena.acquireBooleanMap(filteredImage.getWidth(), filteredImage.getHeight());
+		for(short i = 0; i < filteredImage.getWidth(); i++) {
+			for(short j = 0; j < filteredImage.getHeight(); j++) {
+				foreground[i][j] = filteredImage.get(i, j, 0) != 0;
+			}
+		}
+		produceSkeleton(foreground, nonEyeImage, filteredImage, arena);
+		arena.release(foreground);
+	}
+
+	/**
+	 * Run the skeletonization algorithm on the foreground marked in a map,
+	 * writing the skeleton into an image. Only the channels stored by the
+	 * image are written, so an image storing only its first channel is
+	 * enough for analyzing the skeleton, while the other two channels
+	 * hold the labelled boundaries for visual inspection.
+	 *
+	 * @param foreground
+	 * The map marking the foreground objects to be skeletonized.
+	 * @param nonEyeImage
+	 * The matrix marking parts of the image not belonging to the eye.
+	 * @param skeleton
+	 * The image to write the skeleton into, of the same size as the map.
+	 * @param arena
+	 * The arena to take the working map from and give it back to.
+	 */
+	public static void produceSkeleton(
+			boolean [][] foreground,
+			boolean [][] nonEyeImage,
+			ImageRaster skeleton,
+			ScratchArena arena) {
+
+		short [][] map = arena.acquireShortMap(skeleton.getWidth(), skeleton.getHeight());		
+		FloodFill fill = new FloodFill(skeleton.getWidth(), skeleton.getHeight(), arena);
 		short boundaryCountIncrementor = 1;
 		
 		// Find the initial set of boundary points for the foreground
 		Vector<CoordinateList> boundaries = new Vector<CoordinateList>();
 		
 		CoordinateList boundaryPoints = new CoordinateList();
-		for(short i = 0; i < filteredImage.length; i++) {
-			for(short j = 0; j < filteredImage[0].length; j++) {
-				if(map[i][j] != 0 || filteredImage[i][j][0] != 0) continue;
-				findBoundary(filteredImage, map, i, j, boundaryPoints, boundaryCountIncrementor, nonEyeImage);
+		for(short i = 0; i < skeleton.getWidth(); i++) {
+			for(short j = 0; j < skeleton.getHeight(); j++) {
+				if(map[i][j] != 0 || foreground[i][j]) continue;
+				findBoundary(fill, foreground, map, i, j, boundaryPoints, boundaryCountIncrementor, nonEyeImage);
 			}
 		}	
 		
@@ -51,7 +107,7 @@ public class ShapeSkeletonization {
 
 			while(boundaryIterator.hasNext()) {
 				expandBoundary(
-						filteredImage,
+						foreground,
 						map,
 						boundaryIterator.next(),
 						nextBoundaryPoints,
@@ -64,17 +120,18 @@ public class ShapeSkeletonization {
 			boundaryCountIncrementor++;
 		}
 		
-		// Label the boundaries created above for visual inspection.
-		for(short i = 0; i < filteredImage.length; i++) {
-			for(short j = 0; j < filteredImage[0].length; j++) {
+		// Label the boundaries created above, with the first channel
+		// feeding the truncation and the others for visual inspection.
+		short [] label = new short[3];
+		for(short i = 0; i < skeleton.getWidth(); i++) {
+			for(short j = 0; j < skeleton.getHeight(); j++) {
 				short val = (short) (map[i][j] - 1);
 				if(nonEyeImage[i][j]) val = 0;
 
-				filteredImage[i][j] = new short[]{
-					(short) (Math.min(val*50, 250)),
-					(short) (Math.min(val*25, 250)),
-					(short) (Math.min(val*15, 255))
-				};
+				label[0] = (short) (Math.min(val*50, 250));
+				label[1] = (short) (Math.min(val*25, 250));
+				label[2] = (short) (Math.min(val*15, 255));
+				skeleton.setPixel(i, j, label);
 			}
 		}
 		
@@ -86,19 +143,21 @@ public class ShapeSkeletonization {
 			Iterator<short[]> points = nextBoundary.getCoords();
 			while(points.hasNext()) {
 				short[]next_point = points.next();
-				truncateBoundary(filteredImage, map, next_point);
+				truncateBoundary(fill, skeleton, map, next_point);
 			}
 		}
 		
-		map =  null;
+		fill.release();
+		arena.release(map);
 	}
 	
 	/**
 	 * Helper function for finding the original boundary.
 	 * 
-	 * @param filteredImage
-	 * The image source matrix containing the foreground objects to
-	 * be skeletonized.
+	 * @param fill
+	 * The flood fill to mark the boundary with.
+	 * @param foreground
+	 * The map marking the foreground objects to be skeletonized.
 	 * @param map
 	 * Matrix keeping track of the boundaries created within the image.
 	 * @param i
@@ -115,49 +174,48 @@ public class ShapeSkeletonization {
 	 * The matrix marking parts of the image not belonging to the eye.
 	 */
 	private static void findBoundary(
-			short [][][] filteredImage,
-			short [][] map,
+			FloodFill fill,
+			final boolean [][] foreground,
+			final short [][] map,
 			short i, short j,
-			CoordinateList boundaryPoints,
-			short boundaryCountIncrementor,
-			boolean [][] nonEyeImage) {
+			final CoordinateList boundaryPoints,
+			final short boundaryCountIncrementor,
+			final boolean [][] nonEyeImage) {
 
-		LinkedList<short[]> stack = new LinkedList<short[]>();
-		stack.push(new short[]{i, j});
-		
-		while(stack.size() > 0) {
-			
-			short [] next_coord = stack.removeLast();
-			short nx = next_coord[0];
-			short ny = next_coord[1];
-			
-			if (map[nx][ny] > 0) continue;
-			if(nonEyeImage[nx][ny]) continue;
-			map[nx][ny] = boundaryCountIncrementor;
-					
-			boolean boundary_hit = false;
-			for(byte d = 0; d < Kernels.neighMap.length; d++) {
-				byte m = Kernels.neighMap[d][0];
-				byte n = Kernels.neighMap[d][1];
+		// The boundary points are expanded and truncated in the order
+		// found, which the skeleton depends on, so the fill keeps to
+		// breadth first order.
+		fill.fillBreadthFirst(i, j, Kernels.neighMap, new FloodFill.Region() {
+			public boolean contains(int x, int y) {
+				return map[x][y] == 0 && !nonEyeImage[x][y] && !foreground[x][y];
+			}
+
+			public void take(int x, int y) {
+				map[x][y] = boundaryCountIncrementor;
+			}
 
-				if(nx-1+m < 0 || nx-1+m >= filteredImage.length) continue;
-				if(ny-1+n < 0 || ny-1+n >= filteredImage[0].length) continue;
+			public void visit(int nx, int ny) {
+				boolean boundary_hit = false;
+				for(byte d = 0; d < Kernels.neighMap.length; d++) {
+					byte m = Kernels.neighMap[d][0];
+					byte n = Kernels.neighMap[d][1];
 
-				if (map[nx-1+m][ny-1+n] > 0) continue;
-				if(nonEyeImage[nx-1+m][ny-1+n]) continue;
-				
-				if (filteredImage[nx-1+m][ny-1+n][0] != 0) {
-					boundary_hit = true;
-					continue;
+					if(nx-1+m < 0 || nx-1+m >= foreground.length) continue;
+					if(ny-1+n < 0 || ny-1+n >= foreground[0].length) continue;
+
+					if (map[nx-1+m][ny-1+n] > 0) continue;
+					if(nonEyeImage[nx-1+m][ny-1+n]) continue;
+
+					if (foreground[nx-1+m][ny-1+n]) {
+						boundary_hit = true;
+					}
 				}
 
-				stack.push(new short []{(short) (nx-1+m), (short) (ny-1+n)});
-			}
-			
-			if (boundary_hit) {
-				boundaryPoints.addCoord(new short[]{next_coord[0], next_coord[1]});
+				if (boundary_hit) {
+					boundaryPoints.addCoord(new short[]{(short) nx, (short) ny});
+				}
 			}
-		}
+		});
 	}
 
 	/**
@@ -165,9 +223,8 @@ public class ShapeSkeletonization {
 	 * point to expand from. Only expands the boundary from the
 	 * neighbourhood of the starting point provided.
 	 * 
-	 * @param filteredImage
-	 * The image source matrix containing the foreground objects to
-	 * be skeletonized.
+	 * @param foreground
+	 * The map marking the foreground objects to be skeletonized.
 	 * @param map:
 	 * Matrix keeping track of the boundaries created within the image.
 	 * @param startCoord
@@ -183,7 +240,7 @@ public class ShapeSkeletonization {
 	 * The matrix marking parts of the image not belonging to the eye.
 	 */
 	private static void expandBoundary(
-			short [][][] filteredImage,
+			boolean [][] foreground,
 			short [][] map,
 			short [] startCoord,
 			CoordinateList boundaryPoints,
@@ -197,8 +254,8 @@ public class ShapeSkeletonization {
 			byte m = Kernels.neighMap[i][0];
 			byte n = Kernels.neighMap[i][1];
 
-			if(nx-1+m < 0 || nx-1+m >= filteredImage.length) continue;
-			if(ny-1+n < 0 || ny-1+n >= filteredImage[0].length) continue;
+			if(nx-1+m < 0 || nx-1+m >= foreground.length) continue;
+			if(ny-1+n < 0 || ny-1+n >= foreground[0].length) continue;
 
 			if(nonEyeImage[nx-1+m][ny-1+n]) continue;
 			if (map[nx-1+m][ny-1+n] != 0) {
@@ -206,7 +263,7 @@ public class ShapeSkeletonization {
 			}
 			map[nx-1+m][ny-1+n] = boundaryCountIncrementor;
 
-			if (filteredImage[nx-1+m][ny-1+n][0] != 0) {
+			if (foreground[nx-1+m][ny-1+n]) {
 				boundaryPoints.addCoord(new short []{(short) (nx-1+m), (short) (ny-1+n)});
 			}
 		}
@@ -215,6 +272,8 @@ public class ShapeSkeletonization {
 	/**
 	 * Truncate the boundary as part of the skeletonization process.
 	 * 
+	 * @param fill
+	 * The flood fill to walk across the boundary with.
 	 * @param filteredImage
 	 * The image source matrix containing the foreground objects to
 	 * be skeletonized.
@@ -226,37 +285,28 @@ public class ShapeSkeletonization {
 	 * pixel by pixel.
 	 */
 	private static void truncateBoundary(
-			short [][][] filtered_image,
-			short [][] map,
+			FloodFill fill,
+			final ImageRaster filtered_image,
+			final short [][] map,
 			short [] startPoint) {
 		
-		int start_color = map[startPoint[0]][startPoint[1]];
-		
-		LinkedList<short[]> stack = new LinkedList<short[]>();
-		stack.push(new short[]{startPoint[0], startPoint[1]});
+		final int start_color = map[startPoint[0]][startPoint[1]];
 		
-		while(stack.size() > 0) {
-			
-			short [] next_coord = stack.removeLast();
-			short nx = next_coord[0];
-			short ny = next_coord[1];
-			
-			if(map[nx][ny] != start_color || map[nx][ny] == 0) {
-				continue;
+		// Each truncation depends on the ones before it,
+		// so the walk keeps to breadth first order.
+		fill.fillBreadthFirst(startPoint[0], startPoint[1], Kernels.neighourhoodSmall, new FloodFill.Region() {
+			public boolean contains(int x, int y) {
+				return map[x][y] == start_color && map[x][y] != 0;
 			}
-			map[nx][ny] = 0;
-			checkTruncation(filtered_image, nx, ny);
 
-			for(byte d = 0; d < Kernels.neighourhoodSmall.length; d++) {
-				byte m = Kernels.neighourhoodSmall[d][0];
-				byte n = Kernels.neighourhoodSmall[d][1];
-
-				if(nx-1+m < 0 || nx-1+m >= filtered_image.length) continue;
-				if(ny-1+n < 0 || ny-1+n >= filtered_image[0].length) continue;
+			public void take(int x, int y) {
+				map[x][y] = 0;
+			}
 
-				stack.push(new short []{(short) (nx-1+m), (short) (ny-1+n)});
+			public void visit(int x, int y) {
+				checkTruncation(filtered_image, (short) x, (short) y);
 			}
-		}
+		});
 	}
 	
 	/**
@@ -271,7 +321,7 @@ public class ShapeSkeletonization {
 	 * @param ny
 	 * The y location of the boundary point to truncate.
 	 */
-	private static void checkTruncation(short[][][]filteredImage, short nx, short ny) {
+	private static void checkTruncation(ImageRaster filteredImage, short nx, short ny) {
 		
 		// Check if this boundary point can be truncated.
 		short prev_val = -1;
@@ -291,10 +341,10 @@ public class ShapeSkeletonization {
 				n = Kernels.neighMap[i][1];
 			}
 			
-			if(nx-1+m < 0 || nx-1+m >= filteredImage.length) continue;
-			if(ny-1+n < 0 || ny-1+n >= filteredImage[0].length) continue;
+			if(nx-1+m < 0 || nx-1+m >= filteredImage.getWidth()) continue;
+			if(ny-1+n < 0 || ny-1+n >= filteredImage.getHeight()) continue;
 			
-			short val = filteredImage[nx-1+m][ny-1+n][0];
+			short val = filteredImage.get(nx-1+m, ny-1+n, 0);
 			if (prev_val == -1) {
 				prev_val = val;
 				first_valid_index = i;
@@ -325,16 +375,17 @@ public class ShapeSkeletonization {
 					m = Kernels.neighMap[i][0];
 					n = Kernels.neighMap[i][1];
 				}
-				if(nx-1+m < 0 || nx-1+m >= filteredImage.length) continue;
-				if(ny-1+n < 0 || ny-1+n >= filteredImage[0].length) continue;
+				if(nx-1+m < 0 || nx-1+m >= filteredImage.getWidth()) continue;
+				if(ny-1+n < 0 || ny-1+n >= filteredImage.getHeight()) continue;
 				
-				if(filteredImage[nx-1+m][ny-1+n][0] != 0 && filteredImage[nx-1+m][ny-1+n][0] < filteredImage[nx][ny][0]) {
-					filteredImage[nx-1+m][ny-1+n] = filteredImage[nx][ny];
+				short neighbour = filteredImage.get(nx-1+m, ny-1+n, 0);
+				if(neighbour != 0 && neighbour < filteredImage.get(nx, ny, 0)) {
+					filteredImage.copyPixel(nx, ny, nx-1+m, ny-1+n);
 				}
 			}
 			
 			// Truncate the current pixels
-			filteredImage[nx][ny] = new short[]{0,0,0};
+			filteredImage.setPixel(nx, ny, TRUNCATED);
 		}
 	}
 }
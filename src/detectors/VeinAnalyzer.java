@@ -5,12 +5,16 @@ import java.util.Comparator;
 import java.util.Vector;
 
 import retinopathy.structures.Constants;
+import retinopathy.structures.IdContext;
 import retinopathy.structures.Vein;
 import retinopathy.structures.VeinFork;
 
 import tools.math.Kernels;
 import tools.math.PCATools;
 import tools.math.VectorTools;
+import tools.metrics.ImageMetrics;
+import tools.structures.ScratchArena;
+import tools.structures.ImageRaster;
 
 /**
  * Class for analyzing an image of an eye for a network of veins.
@@ -43,26 +47,122 @@ public class VeinAnalyzer {
 	 */
 	public static boolean [][] Analyze(
 			ImageFeatures features,
-			short [][][] filteredImage,
+			ImageRaster filteredImage,
 			int noiseRemovalIterations,
 			int minimalVeinLength,
 			float nonEyeImageSize,
 			float scalingFac) {
 
+		return Analyze(features, filteredImage, noiseRemovalIterations,
+			minimalVeinLength, nonEyeImageSize, scalingFac, 1);
+	}
+
+	/**
+	 * Analyze an image of an eye for a network of veins, where the image
+	 * has been resampled from the resolution of the original image.
+	 * Lengths and areas measured within the image are converted back to
+	 * pixels of the original image before being compared against the
+	 * scaled thresholds or logged.
+	 *
+	 * @param features
+	 * The features structure to output the information about
+	 * the detected set of veins.
+	 * @param filtered_image
+	 * The filtered image source matrix to run the vein detector on.
+	 * @param noiseRemovalIterations
+	 * Number o iterations to clean the detected veins for noise.
+	 * @param minimal_vein_length
+	 * The minimal vein length to accept for detection, in pixels
+	 * of the image analyzed.
+	 * @param nonEyeImageSize
+	 * The size of the image not displaying the eye, in pixels
+	 * of the image analyzed.
+	 * @param scalingFac
+	 * Scaling factor used for drawing the veins for a visual representation.
+	 * @param pixelScale
+	 * The width of one pixel of the image analyzed, measured
+	 * in pixels of the original image.
+	 * @return
+	 * A map of the image containing the visual
+	 * representation of the veins detected.
+	 */
+	public static boolean [][] Analyze(
+			ImageFeatures features,
+			ImageRaster filteredImage,
+			int noiseRemovalIterations,
+			int minimalVeinLength,
+			float nonEyeImageSize,
+			float scalingFac,
+			float pixelScale) {
+
+		return Analyze(features, filteredImage, noiseRemovalIterations,
+			minimalVeinLength, nonEyeImageSize, scalingFac, pixelScale, null, new ScratchArena(), true,
+			new IdContext());
+	}
+
+	/**
+	 * Analyze an image of an eye for a network of veins, recording the
+	 * number of vein forks and veins found into the metrics of the image.
+	 *
+	 * @param features
+	 * The features structure to output the information about
+	 * the detected set of veins.
+	 * @param filtered_image
+	 * The filtered image source matrix to run the vein detector on.
+	 * @param noiseRemovalIterations
+	 * Number o iterations to clean the detected veins for noise.
+	 * @param minimal_vein_length
+	 * The minimal vein length to accept for detection, in pixels
+	 * of the image analyzed.
+	 * @param nonEyeImageSize
+	 * The size of the image not displaying the eye, in pixels
+	 * of the image analyzed.
+	 * @param scalingFac
+	 * Scaling factor used for drawing the veins for a visual representation.
+	 * @param pixelScale
+	 * The width of one pixel of the image analyzed, measured
+	 * in pixels of the original image.
+	 * @param metrics
+	 * The metrics of the image, or null if not recorded.
+	 * @param arena
+	 * The arena to take the working map of the detector from.
+	 * @param drawVeins
+	 * Whether to clear the image and draw the veins detected into it.
+	 * Otherwise the image is left unchanged.
+	 * @param ids
+	 * The context to take the IDs of the veins and vein forks from.
+	 * @return
+	 * A map of the image containing the visual
+	 * representation of the veins detected.
+	 */
+	public static boolean [][] Analyze(
+			ImageFeatures features,
+			ImageRaster filteredImage,
+			int noiseRemovalIterations,
+			int minimalVeinLength,
+			float nonEyeImageSize,
+			float scalingFac,
+			float pixelScale,
+			ImageMetrics metrics,
+			ScratchArena arena,
+			boolean drawVeins,
+			IdContext ids) {
+
 		// Prepare the data structures.
 		Vector<VeinFork> vein_forks = new Vector<VeinFork>();
 		int MARKER = 1;
-		int [][] vein_map = new int[filteredImage.length][filteredImage[0].length];
-		float eye_pixel_size = Math.max((filteredImage.length * filteredImage[0].length) - nonEyeImageSize, 1);
+		int [][] vein_map = arena.acquireIntMap(filteredImage.getWidth(), filteredImage.getHeight());
+		float eye_pixel_size = Math.max(
+			((filteredImage.getWidth() * filteredImage.getHeight()) - nonEyeImageSize) * pixelScale * pixelScale, 1);
 		
 		// Find the vein forks.
-		for(short i = 0; i < filteredImage.length; i++) {
-			for(short j = 0; j < filteredImage[0].length; j++) {
-				if(filteredImage[i][j][0] == 0) continue;
+		for(short i = 0; i < filteredImage.getWidth(); i++) {
+			for(short j = 0; j < filteredImage.getHeight(); j++) {
+				if(filteredImage.get(i, j, 0) == 0) continue;
 
 				byte num_connections = forkCount(filteredImage, i, j);
 				if(num_connections > 2 || num_connections == 1) {
-					VeinFork new_fork = new VeinFork(i, j, num_connections);
+					VeinFork new_fork = new VeinFork(ids, i, j, num_connections);
 					vein_forks.add(new_fork);
 					vein_map[i][j] = MARKER++;
 				}
@@ -75,7 +175,7 @@ public class VeinAnalyzer {
 		for(int i = 0; i < vein_forks.size(); i++) {
 			VeinFork next_fork = vein_forks.get(i);
 			MARKER = markConnectingVeins(
-					filteredImage, vein_map, 
+					ids, filteredImage, vein_map, 
 					retina_veins, vein_forks, next_fork,
 					FORK_OFFSET, MARKER);
 		}
@@ -90,16 +190,20 @@ public class VeinAnalyzer {
 
 		// Remove any small veins from the vein network as noise.
 		removeShortVeins(retina_veins, noiseRemovalIterations, minimalVeinLength);
+		arena.release(vein_map);
+
+		if(metrics != null) {
+			metrics.addCounter("VEIN_FORKS", vein_forks.size());
+			metrics.addCounter("VEINS", retina_veins.size());
+		}
 
 		// Clear the image.
-		for(short i = 0; i < filteredImage.length; i++) {
-			for(short j = 0; j < filteredImage[0].length; j++) {
-				filteredImage[i][j] = new short[]{0,0,0};
-			}
+		if(drawVeins) {
+			filteredImage.clear();
 		}
 
 		// Draw the veins for visualization.
-		return analyzeVein(features, filteredImage, retina_veins, eye_pixel_size, scalingFac);
+		return analyzeVein(features, filteredImage, retina_veins, eye_pixel_size, scalingFac, pixelScale, drawVeins, ids);
 	}
 
 	/**
@@ -183,14 +287,14 @@ public class VeinAnalyzer {
 	 * @param y
 	 * The y location to check the vein at.
 	 */
-	private static byte forkCount(short[][][]filtered_image, int x, int y) {
+	private static byte forkCount(ImageRaster filtered_image, int x, int y) {
 		byte num_connections = 0;
 		for(byte i = 0; i < Kernels.neighourhoodSmall.length; i++) {
 			byte m = Kernels.neighourhoodSmall[i][0];
 			byte n = Kernels.neighourhoodSmall[i][1];
 
-			if(x-1+m < 0 || y-1+n < 0 || x-1+m >= filtered_image.length || y-1+n >= filtered_image[0].length) continue;
-			if(filtered_image[x-1+m][y-1+n][0] != 0) {
+			if(x-1+m < 0 || y-1+n < 0 || x-1+m >= filtered_image.getWidth() || y-1+n >= filtered_image.getHeight()) continue;
+			if(filtered_image.get(x-1+m, y-1+n, 0) != 0) {
 				num_connections++;
 			}
 		}
@@ -201,6 +305,8 @@ public class VeinAnalyzer {
 	/**
 	 * Mark the connecting veins expanding from the vein fork.
 	 * 
+	 * @param ids
+	 * The context to take the IDs of the veins from.
 	 * @param filtered_image
 	 * The image matrix containing the source data.
 	 * @param veinMap
@@ -219,7 +325,8 @@ public class VeinAnalyzer {
 	 * The newly incremented vein marker.
 	 */
 	private static int markConnectingVeins(
-			short[][][] filtered_image,
+			IdContext ids,
+			ImageRaster filtered_image,
 			int[][] veinMap,
 			Vector<Vein> retinaVeins,
 			Vector<VeinFork> veinForks,
@@ -246,17 +353,17 @@ public class VeinAnalyzer {
 
 				if (fork_B.isMarked() || fork_B.getVeins().length > 0) continue;
 
-				Vein connecting_vein = new Vein();
+				Vein connecting_vein = new Vein(ids);
 
 				fork_A.addVein(connecting_vein);
 				connecting_vein.setConnectionA(fork_A);
 				connecting_vein.setPointA(new short[]{x, y});
-				connecting_vein.appendIntensity(filtered_image[x][y][0]);
+				connecting_vein.appendIntensity(filtered_image.get(x, y, 0));
 
 				fork_B.addVein(connecting_vein);
 				connecting_vein.setConnectionB(fork_B);
 				connecting_vein.setPointB(new short[]{(short) (x-1+m), (short) (y-1+n)});
-				connecting_vein.appendIntensity(filtered_image[x-1+m][y-1+n][0]);
+				connecting_vein.appendIntensity(filtered_image.get(x-1+m, y-1+n, 0));
 
 				connecting_vein.setSize(2);
 
@@ -275,18 +382,18 @@ public class VeinAnalyzer {
 
 			// Case were a vein does not ven exist.
 			// In this case ignore the point.
-			if(filtered_image[x-1+m][y-1+n][0] == 0) {
+			if(filtered_image.get(x-1+m, y-1+n, 0) == 0) {
 				continue;
 			}
 
 			// Otherwise we have a valid vein to track. Track the vein.
-			Vein connecting_vein = new Vein();
+			Vein connecting_vein = new Vein(ids);
 			retinaVeins.add(connecting_vein);
 
 			fork_A.addVein(connecting_vein);
 			connecting_vein.setConnectionA(fork_A);	
 			connecting_vein.setPointA(new short[]{x, y});
-			connecting_vein.appendIntensity(filtered_image[x][y][0]);
+			connecting_vein.appendIntensity(filtered_image.get(x, y, 0));
 			traceVein(
 					filtered_image, veinMap,
 					veinForks, fork_A_label, connecting_vein,
@@ -324,7 +431,7 @@ public class VeinAnalyzer {
 	 * The current vein marker used for labelling in the vein map.
 	 */
 	private static void traceVein(
-			short[][][] filteredImage,
+			ImageRaster filteredImage,
 			int[][] veinMap,
 			Vector<VeinFork> veinForks,
 			int forkAlabel,
@@ -338,7 +445,7 @@ public class VeinAnalyzer {
 		short ny = s_y;
 		veinMap[nx][ny] = VEIN_MARKER;
 		connectingVein.addPoint(new short[]{nx, ny});
-		connectingVein.appendIntensity(filteredImage[nx][ny][0]);
+		connectingVein.appendIntensity(filteredImage.get(nx, ny, 0));
 
 		int size_counter = 1;
 
@@ -363,7 +470,7 @@ public class VeinAnalyzer {
 					fork_B.addVein(connectingVein);
 					connectingVein.setConnectionB(fork_B);
 					connectingVein.setPointB(new short[]{(short) (nx-1+m), (short) (ny-1+n)});
-					connectingVein.appendIntensity(filteredImage[nx-1+m][ny-1+n][0]);
+					connectingVein.appendIntensity(filteredImage.get(nx-1+m, ny-1+n, 0));
 
 					break top;
 				}
@@ -374,14 +481,14 @@ public class VeinAnalyzer {
 				}
 
 				// Case where no vein exists on the point.
-				if(filteredImage[nx-1+m][ny-1+n][0] == 0) {
+				if(filteredImage.get(nx-1+m, ny-1+n, 0) == 0) {
 					continue;
 				}
 
-				if(filteredImage[nx-1+m][ny-1+n][0] != 0) {
+				if(filteredImage.get(nx-1+m, ny-1+n, 0) != 0) {
 					veinMap[nx-1+m][ny-1+n] = VEIN_MARKER;
 					connectingVein.addPoint(new short[]{(short) (nx-1+m), (short) (ny-1+n)});
-					connectingVein.appendIntensity(filteredImage[nx-1+m][ny-1+n][0]);
+					connectingVein.appendIntensity(filteredImage.get(nx-1+m, ny-1+n, 0));
 					nx = (short) (nx-1+m);
 					ny = (short) (ny-1+n);
 					extension_found = true;
@@ -392,7 +499,7 @@ public class VeinAnalyzer {
 			if(!extension_found) {
 				veinMap[nx][ny] = VEIN_MARKER;
 				connectingVein.setPointB(new short[]{nx, ny});
-				connectingVein.appendIntensity(filteredImage[nx][ny][0]);
+				connectingVein.appendIntensity(filteredImage.get(nx, ny, 0));
 				break;
 			}
 		}
@@ -410,8 +517,8 @@ public class VeinAnalyzer {
 	 * @param y
 	 * The y location to check.
 	 */
-	private static boolean isInBounds(short [][][] image, short x, short y) {
-		return x >= 0 && y >= 0 && x < image.length && y  < image[0].length;
+	private static boolean isInBounds(ImageRaster image, short x, short y) {
+		return x >= 0 && y >= 0 && x < image.getWidth() && y  < image.getHeight();
 	}
 
 	/**
@@ -444,17 +551,27 @@ public class VeinAnalyzer {
 	 * in number of pixels.
 	 * @param scalingFac
 	 * Scaling factor used for drawing the veins for a visual representation.
+	 * @param pixelScale
+	 * The width of one pixel of the image analyzed, measured
+	 * in pixels of the original image.
+	 * @param drawVeins
+	 * Whether to draw the veins into the image.
+	 * @param ids
+	 * The context to take the marker for visiting the vein forks from.
 	 */
 	private static boolean[][] analyzeVein(
 			ImageFeatures features,
-			short[][][]filteredImage,
+			ImageRaster filteredImage,
 			Vector<Vein> retina_veins,
 			float eyePixelSize,
-			float scalingFac) {
+			float scalingFac,
+			float pixelScale,
+			boolean drawVeins,
+			IdContext ids) {
 		
 		boolean [][] vein_map = new boolean
-				[(filteredImage.length/VEIN_MAP_FACTOR) + VEIN_MAP_FACTOR]
-				[(filteredImage[0].length/VEIN_MAP_FACTOR) + VEIN_MAP_FACTOR];
+				[(filteredImage.getWidth()/VEIN_MAP_FACTOR) + VEIN_MAP_FACTOR]
+				[(filteredImage.getHeight()/VEIN_MAP_FACTOR) + VEIN_MAP_FACTOR];
 		
 		// Compute the average and standard deviation of vein values.
 		int valid_vein_count = 0;
@@ -505,24 +622,22 @@ public class VeinAnalyzer {
 		}
 		
 		float total_vein_count = Math.max(1, strong_veins.size() + medium_veins.size() + weak_veins.size());
-		features.addToFeatureLog("STRONG_VEIN_RATIO#" +
-				(strong_vein_pixel_count / eyePixelSize) );
-		features.addToFeatureLog("STRONG_VEIN_RATIO#" +
+		features.setFeature(FeatureSchema.getVeinRatio(0, false),
+				(strong_vein_pixel_count * pixelScale / eyePixelSize) );
+		features.setFeature(FeatureSchema.getVeinRatio(0, true),
 				(strong_veins.size() / total_vein_count) );
 		
-		features.addToFeatureLog("MEDIUM_VEIN_RATIO#" +
-				(medium_vein_pixel_count / eyePixelSize) );
-		features.addToFeatureLog("MEDIUM_VEIN_RATIO#" +
+		features.setFeature(FeatureSchema.getVeinRatio(1, false),
+				(medium_vein_pixel_count * pixelScale / eyePixelSize) );
+		features.setFeature(FeatureSchema.getVeinRatio(1, true),
 				(medium_veins.size() / total_vein_count) );
 		
-		features.addToFeatureLog("WEAK_VEIN_RATIO#" +
-				(weak_vein_pixel_count / eyePixelSize) );
-		features.addToFeatureLog("WEAK_VEIN_RATIO#" +
+		features.setFeature(FeatureSchema.getVeinRatio(2, false),
+				(weak_vein_pixel_count * pixelScale / eyePixelSize) );
+		features.setFeature(FeatureSchema.getVeinRatio(2, true),
 				(weak_veins.size() / total_vein_count) );
-		
-		features.addToFeatureLog("");
 
-		analyzeSubsetVeins(features, filteredImage, strong_veins, null, Constants.VEIN_STRENGTH_STRONG, scalingFac, eyePixelSize);
+		analyzeSubsetVeins(features, filteredImage, strong_veins, null, Constants.VEIN_STRENGTH_STRONG, scalingFac, eyePixelSize, pixelScale, drawVeins, ids);
 		return vein_map;
 	}
 
@@ -544,17 +659,27 @@ public class VeinAnalyzer {
 	 * @param eyePixelSize
 	 * The size of the eye being analyzed within the image,
 	 * in number of pixels.
+	 * @param pixelScale
+	 * The width of one pixel of the image analyzed, measured
+	 * in pixels of the original image.
+	 * @param drawVeins
+	 * Whether to draw the veins into the image.
+	 * @param ids
+	 * The context to take the marker for visiting the vein forks from.
 	 */
 	private static void analyzeSubsetVeins(
 			ImageFeatures features,
-			short[][][]filteredImage,
+			ImageRaster filteredImage,
 			Vector<Vein> subsetVeins,
 			boolean[][]veinMap,
 			int veinStrength,
 			float scalingFac,
-			float eyePixelSize) {
+			float eyePixelSize,
+			float pixelScale,
+			boolean drawVeins,
+			IdContext ids) {
 
-		int fork_marker = VeinFork.getNextMarkerValue();
+		int fork_marker = ids.nextMarker();
 		int fork_count = 0;
 		
 		// Combines the veins together.
@@ -568,7 +693,7 @@ public class VeinAnalyzer {
 		int [] vein_curve_sums = new int [15];
 		Vector<short[]>fork_points = new Vector<short[]>();
 		float fork_distance_from_center_sum = 0;
-		short[]eye_center = new short[]{(short) (filteredImage.length/2), (short) (filteredImage[0].length/2)};
+		short[]eye_center = new short[]{(short) (filteredImage.getWidth()/2), (short) (filteredImage.getHeight()/2)};
 		
 		for(int i = 0; i < subsetVeins.size(); i++) {
 			
@@ -596,23 +721,22 @@ public class VeinAnalyzer {
 			if (9 < curvature && curvature <= 12) curve_index_offset = 3;
 			if (12 < curvature) curve_index_offset = 4;
 			
-			if(temp.getSize() > 75 * scalingFac) {
+			if(temp.getSize() * pixelScale > 75 * scalingFac) {
 				vein_curve_sums[0 + curve_index_offset] += temp.getSize();
-			} else if(temp.getSize() > 50 * scalingFac) {
+			} else if(temp.getSize() * pixelScale > 50 * scalingFac) {
 				vein_curve_sums[5 + curve_index_offset] += temp.getSize();
 			} else {
 				vein_curve_sums[10 + curve_index_offset] += temp.getSize();
 			}
 			
-			drawVein(temp, filteredImage, new short[]{255, 0, 0},
+			drawVein(temp, drawVeins ? filteredImage : null, new short[]{255, 0, 0},
 				new short[]{(short) (i*11), (short) (i*33), (short) (i*22)}, veinMap);	
 		}
 		
 		// Compute the vein statistics
 		for(int i = 0; i < vein_curve_sums.length; i++) {
-			features.addToFeatureLog("VEIN_CURVATURE|" +  "#" + (vein_curve_sums[i] / eyePixelSize));
+			features.setFeature(FeatureSchema.VEIN_CURVATURES + i, (vein_curve_sums[i] * pixelScale / eyePixelSize));
 		}
-		features.addToFeatureLog("");
 
 		// Compute the fork statistics
 		double std_x = 0;
@@ -621,21 +745,20 @@ public class VeinAnalyzer {
 			short[][]fork_points_array = new short[fork_points.size()][2];
 			fork_points.toArray(fork_points_array);
 			fork_points_array = VectorTools.getTranspose(fork_points_array);
-			std_x = PCATools.getStdDev(fork_points_array[0]);
-			std_y = PCATools.getStdDev(fork_points_array[1]);	
+			std_x = PCATools.getStdDev(fork_points_array[0]) * pixelScale;
+			std_y = PCATools.getStdDev(fork_points_array[1]) * pixelScale;	
 		}
 		
-		String strength = veinStrength == Constants.VEIN_STRENGTH_STRONG ?
-			"STRONG" : veinStrength == Constants.VEIN_STRENGTH_MEDIUM ?
-			"MEDIUM" : "WEAK";
-		features.addToFeatureLog("FORK_COUNT|" + strength+ "#" + fork_count);
-		features.addToFeatureLog("STANDARD_DEVIATION_FORK_X|" + strength+ "#" + std_x);
-		features.addToFeatureLog("STANDARD_DEVIATION_FORK_Y|" + strength+ "#" + std_y);
-
-		features.addToFeatureLog("FROM_CENTER_FORK|" + strength + "#" +
-			((fork_distance_from_center_sum * scalingFac)/Math.max(1, fork_count)));
+		// The schema only holds the fork statistics of the strong veins.
+		if(veinStrength != Constants.VEIN_STRENGTH_STRONG) {
+			throw new IllegalArgumentException("No fork features for vein strength " + veinStrength);
+		}
+		features.setFeature(FeatureSchema.STRONG_FORKS, fork_count);
+		features.setFeature(FeatureSchema.STRONG_FORKS + 1, std_x);
+		features.setFeature(FeatureSchema.STRONG_FORKS + 2, std_y);
 
-		features.addToFeatureLog("");
+		features.setFeature(FeatureSchema.STRONG_FORKS + 3,
+			((fork_distance_from_center_sum * pixelScale * scalingFac)/Math.max(1, fork_count)));
 	}
 	
 	/**
@@ -715,7 +838,8 @@ public class VeinAnalyzer {
 	 * @param vein
 	 * The vein to draw.
 	 * @param image
-	 * The image source matrix to draw the vein on.
+	 * The image source matrix to draw the vein on, or null
+	 * to only mark the vein in the map.
 	 * @param forkColor
 	 * The color to use for draw the vein forks of the vein.
 	 * @param veinColor
@@ -726,21 +850,25 @@ public class VeinAnalyzer {
 	 */
 	private static void drawVein(
 			Vein vein,
-			short[][][]image,
+			ImageRaster image,
 			short[]forkColor,
 			short[]veinColor,
 			boolean[][]veinMap) {
 
 		for(int i = 0; i < vein.getPoints().size(); i++) {
 			short[]next_point = vein.getPoints().get(i);
-			image[next_point[0]][next_point[1]] = veinColor;
+			if(image != null) {
+				image.setPixel(next_point[0], next_point[1], veinColor);
+			}
 			if(veinMap != null) {
 				veinMap[next_point[0]/VEIN_MAP_FACTOR][next_point[1]/VEIN_MAP_FACTOR] = true;
 			}
 		}
 
-		image[vein.getPointA()[0]][vein.getPointA()[1]] = forkColor;
-		image[vein.getPointB()[0]][vein.getPointB()[1]] = forkColor;
+		if(image != null) {
+			image.setPixel(vein.getPointA()[0], vein.getPointA()[1], forkColor);
+			image.setPixel(vein.getPointB()[0], vein.getPointB()[1], forkColor);
+		}
 		if(veinMap != null) {
 			veinMap[vein.getPointA()[0]/VEIN_MAP_FACTOR]
 					[vein.getPointA()[1]/VEIN_MAP_FACTOR] = true;
@@ -0,0 +1,278 @@
+package experimentation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Vector;
+
+import detectors.FeatureDetector;
+import detectors.ImageFeatures;
+
+/**
+ * Measures how much the features detected for a set of images drift when
+ * the images are resampled to a canonical eye radius, compared to the
+ * features detected at the native resolution of the images.
+ *
+ * The features of each image are written for both modes into separate
+ * directories, and a report is written comparing every feature value
+ * across the two modes.
+ *
+ * @author Peter Bugaj
+ */
+public class FeatureDrift {
+
+	/**
+	 * The name of the directory for the features detected at native resolution.
+	 */
+	private static final String NATIVE_DIR = "native";
+
+	/**
+	 * The name of the directory for the features detected at the canonical eye radius.
+	 */
+	private static final String NORMALIZED_DIR = "normalized";
+
+	/**
+	 * The name of the report file.
+	 */
+	private static final String REPORT_FILE = "drift_report.txt";
+
+	/**
+	 * Run the drift measurement.
+	 *
+	 * @param args
+	 * [0] = Directory containing the input images.
+	 * [1] = Directory to output the features and the report to.
+	 * [2] = Optional canonical eye radius to resample the images to.
+	 * [3] = Optional maximum number of images to process.
+	 */
+	public static void main(String[] args) {
+
+		String inputDir = args[0];
+		String outputDir = args[1];
+		int canonicalEyeRadius = args.length > 2 ?
+			Integer.parseInt(args[2]) : FeatureDetector.DEFAULT_CANONICAL_EYE_RADIUS;
+		int limit = args.length > 3 ? Integer.parseInt(args[3]) : -1;
+
+		String nativeDir = outputDir + "/" + NATIVE_DIR;
+		String normalizedDir = outputDir + "/" + NORMALIZED_DIR;
+		new File(nativeDir).mkdirs();
+		new File(normalizedDir).mkdirs();
+
+		// Find the images to process.
+		File[] listOfFiles = new File(inputDir).listFiles();
+		Vector<String> imageNames = new Vector<String>();
+		for (File file : listOfFiles) {
+			if (file.isFile() && file.getName().contains(".jpeg")) {
+				imageNames.add(file.getName());
+			}
+		}
+		String [] images = imageNames.toArray(new String[imageNames.size()]);
+		Arrays.sort(images);
+		if (limit != -1 && limit < images.length) {
+			images = Arrays.copyOf(images, limit);
+		}
+
+		// Detect the features in both modes.
+		long nativeTime = 0;
+		long normalizedTime = 0;
+		for (int i = 0; i < images.length; i++) {
+			System.out.println("File: " + images[i]);
+			nativeTime += detectFeatures(inputDir, nativeDir, images[i], 0);
+			normalizedTime += detectFeatures(inputDir, normalizedDir, images[i], canonicalEyeRadius);
+		}
+
+		// Compare the features of both modes.
+		Vector<String> report = compareFeatures(nativeDir, normalizedDir, images);
+		report.insertElementAt("CANONICAL_EYE_RADIUS#" + canonicalEyeRadius, 0);
+		report.insertElementAt("IMAGES#" + images.length, 1);
+		report.insertElementAt("NATIVE_TIME_MS#" + nativeTime, 2);
+		report.insertElementAt("NORMALIZED_TIME_MS#" + normalizedTime, 3);
+		report.insertElementAt("", 4);
+
+		PrintWriter writer = null;
+		try {
+			writer = new PrintWriter(outputDir + "/" + REPORT_FILE, "UTF-8");
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+			System.exit(1);
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		for (int i = 0; i < report.size(); i++) {
+			writer.println(report.get(i));
+			System.out.println(report.get(i));
+		}
+		writer.close();
+	}
+
+	/**
+	 * Detect the features of one image, unless they have
+	 * already been detected in a previous run.
+	 *
+	 * @param inputDirectory
+	 * The directory containing the image.
+	 * @param outputDirectory
+	 * The directory to write the features to.
+	 * @param imageName
+	 * The name of the image.
+	 * @param canonicalEyeRadius
+	 * The eye radius to resample the image to, or zero for none.
+	 * @return
+	 * The time taken in milliseconds.
+	 */
+	private static long detectFeatures(
+			String inputDirectory,
+			String outputDirectory,
+			String imageName,
+			int canonicalEyeRadius) {
+
+		if(new File(outputDirectory + "/" + imageName.replace(".jpeg", ".txt")).isFile()) {
+			return 0;
+		}
+
+		long time = System.currentTimeMillis();
+		FeatureDetector featureDetector = new FeatureDetector(
+				inputDirectory,
+				outputDirectory,
+				imageName);
+		featureDetector.setCanonicalEyeRadius(canonicalEyeRadius);
+		ImageFeatures features = featureDetector.computeFeatures("-1", false);
+		features.writeLogToFile();
+		System.gc();
+
+		return System.currentTimeMillis() - time;
+	}
+
+	/**
+	 * Compare the features detected in both modes. Features are matched up
+	 * by their position within the feature files, as names repeat.
+	 *
+	 * @param nativeDirectory
+	 * The directory containing the features detected at native resolution.
+	 * @param normalizedDirectory
+	 * The directory containing the features detected at the canonical radius.
+	 * @param images
+	 * The names of the images to compare the features for.
+	 * @return
+	 * The lines of the report.
+	 */
+	private static Vector<String> compareFeatures(
+			String nativeDirectory,
+			String normalizedDirectory,
+			String [] images) {
+
+		Vector<String> names = null;
+		double [] native_sum = null;
+		double [] absolute_sum = null;
+		double [] relative_sum = null;
+		double [] absolute_max = null;
+
+		Vector<String> imageLines = new Vector<String>();
+		int compared = 0;
+
+		for (int i = 0; i < images.length; i++) {
+			String featureFile = images[i].replace(".jpeg", ".txt");
+			Vector<String> nativeNames = new Vector<String>();
+			Vector<String> normalizedNames = new Vector<String>();
+			double [] nativeValues = readFeatures(nativeDirectory + "/" + featureFile, nativeNames);
+			double [] normalizedValues = readFeatures(normalizedDirectory + "/" + featureFile, normalizedNames);
+
+			if (nativeValues == null || normalizedValues == null || !nativeNames.equals(normalizedNames)) {
+				imageLines.add("SKIPPED|" + images[i] + "#1");
+				continue;
+			}
+
+			if (names == null) {
+				names = nativeNames;
+				native_sum = new double[names.size()];
+				absolute_sum = new double[names.size()];
+				relative_sum = new double[names.size()];
+				absolute_max = new double[names.size()];
+			} else if (!names.equals(nativeNames)) {
+				imageLines.add("SKIPPED|" + images[i] + "#1");
+				continue;
+			}
+
+			double difference_norm = 0;
+			double native_norm = 0;
+			for (int k = 0; k < nativeValues.length; k++) {
+				double difference = Math.abs(normalizedValues[k] - nativeValues[k]);
+				native_sum[k] += nativeValues[k];
+				absolute_sum[k] += difference;
+				relative_sum[k] += difference / Math.max(Math.abs(nativeValues[k]), 1e-6);
+				absolute_max[k] = Math.max(absolute_max[k], difference);
+
+				difference_norm += difference * difference;
+				native_norm += nativeValues[k] * nativeValues[k];
+			}
+			imageLines.add("IMAGE_DRIFT|" + images[i] + "#" +
+				(Math.sqrt(difference_norm) / Math.max(Math.sqrt(native_norm), 1e-6)));
+			compared++;
+		}
+
+		Vector<String> report = new Vector<String>();
+		report.add("COMPARED_IMAGES#" + compared);
+		report.add("");
+		report.addAll(imageLines);
+		report.add("");
+
+		if (names != null) {
+			report.add("FEATURE|INDEX|NAME|NATIVE_MEAN|MEAN_ABSOLUTE_DRIFT|MEAN_RELATIVE_DRIFT|MAX_ABSOLUTE_DRIFT");
+			for (int k = 0; k < names.size(); k++) {
+				report.add("FEATURE|" + k + "|" + names.get(k) +
+					"|" + (native_sum[k] / compared) +
+					"|" + (absolute_sum[k] / compared) +
+					"|" + (relative_sum[k] / compared) +
+					"|" + absolute_max[k]);
+			}
+		}
+
+		return report;
+	}
+
+	/**
+	 * Read the feature values from a feature file.
+	 *
+	 * @param fileName
+	 * The feature file to read.
+	 * @param names
+	 * The vector to store the name of each feature value read into.
+	 * @return
+	 * The feature values, or null if the file could not be read.
+	 */
+	private static double [] readFeatures(String fileName, Vector<String> names) {
+
+		Vector<Double> values = new Vector<Double>();
+		try {
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(fileName)));
+			String line;
+			while ((line = br.readLine()) != null) {
+				int split = line.lastIndexOf('#');
+				if (split == -1) continue;
+
+				// The rating is a label, not a detected feature.
+				String name = line.substring(0, split);
+				if (name.equals("RATING")) continue;
+
+				names.add(name);
+				values.add(Double.parseDouble(line.substring(split + 1)));
+			}
+			br.close();
+		} catch(Exception e) {
+			System.out.println("Failed to read feature file: " + fileName);
+			return null;
+		}
+
+		double [] result = new double[values.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = values.get(i);
+		}
+		return result;
+	}
+}
@@ -1,17 +1,32 @@
 package experimentation;
 
+import io.CheckpointStore;
+import io.FeatureStore;
 import io.FilePair;
+import io.ImagePrefetcher;
+import io.OutputQueue;
+import io.PlaneCache;
+import io.ProcessedImage;
+import io.ProgressJournal;
+import io.WorkClaims;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
 
 import detectors.*;
 
+import tools.metrics.BatchMetrics;
+import tools.metrics.ImageMetrics;
+import tools.metrics.ProgressMonitor;
+import tools.metrics.StageTimer;
+import tools.structures.ScratchArena;
+
 /**
  * Runs an experimental feature detector on a set of training images
  * and outputs a tet file for each image containing the feature data.
@@ -35,18 +50,278 @@ public class FeatureExperimentation extends Thread{
 	 */
 	private static final boolean logFeatures = true;
 	
+	/**
+	 * Whether to write the features of each image to a text file of its own.
+	 */
+	private static boolean writeFeatureFiles = true;
+
+	/**
+	 * The store to append the features of each image to as a row,
+	 * or null if the features are only written to text files.
+	 */
+	private static FeatureStore featureStore = null;
+
+	/**
+	 * The name of the feature stores within the output directory,
+	 * before the name of the process writing each and the extension.
+	 */
+	private static final String FEATURE_STORE_NAME = "features";
+
 	/**
 	 * Whether or not test images are to be read.
 	 */
 	private static boolean testMode = false;
 
-	
+	/**
+	 * The cache of decoded image planes, or null if images
+	 * are to be decoded on every run.
+	 */
+	private static PlaneCache planeCache = null;
+
+	/**
+	 * The number of images to decode ahead of the image being analyzed.
+	 */
+	private static int prefetchImages = 4;
+
+	/**
+	 * The number of threads decoding images ahead.
+	 */
+	private static final int PREFETCH_THREADS = 2;
+
+	/**
+	 * The maximum memory, in megabytes, to hold in images decoded ahead.
+	 */
+	private static int prefetchMemoryMB = 512;
+
+	/**
+	 * Whether to run the preprocessing steps on each decoded image a strip
+	 * of rows at a time, lowering the peak memory for each image.
+	 */
+	private static boolean streaming = false;
+
+	/**
+	 * Whether the stack area of each child patch is weighted by the
+	 * level of the child itself. Changes the feature version.
+	 */
+	private static boolean childLevelStackArea = false;
+
+	/**
+	 * The store of the checkpoints of the preprocessing stages, or null
+	 * if every image is preprocessed on every run.
+	 */
+	private static CheckpointStore checkpointStore = null;
+
+	/**
+	 * The scratch maps and planes shared by the feature detectors of the
+	 * batch, reused from one image to the next.
+	 */
+	private static ScratchArena scratchArena = new ScratchArena();
+
+	/**
+	 * The number of worker threads detecting the features of
+	 * different images of the batch at the same time.
+	 */
+	private static int workerThreads = 1;
+
+	/**
+	 * The number of threads writing the output of the images.
+	 * Writing waits on the storage rather than the processor,
+	 * so these come on top of the worker threads.
+	 */
+	private static final int OUTPUT_THREADS = 4;
+
+	/**
+	 * The number of images whose output may wait to be written
+	 * before the worker threads wait for the output threads.
+	 */
+	private static final int OUTPUT_CAPACITY = 4;
+
+	/**
+	 * The queue writing the output of the images.
+	 */
+	private static OutputQueue outputQueue = new OutputQueue(OUTPUT_THREADS, OUTPUT_CAPACITY);
+
+	/**
+	 * The journal of the images the batch is done with, shared
+	 * by every run and process working on the batch.
+	 */
+	private static ProgressJournal progressJournal = null;
+
+	/**
+	 * The name of the directory within the output directory
+	 * holding the progress journal.
+	 */
+	private static final String JOURNAL_DIRECTORY = "journal";
+
+	/**
+	 * The name of the directory within the output directory holding the
+	 * metrics of the batch, kept apart from the feature files so that the
+	 * trainers reading every file of the output directory skip it.
+	 */
+	private static final String METRICS_DIRECTORY = "metrics";
+
+	/**
+	 * The name of the file the metrics of the batch are written to.
+	 */
+	private static final String METRICS_FILE = "pipeline_metrics.txt";
+
+	/**
+	 * The progress of this run, printed regularly while it runs.
+	 */
+	private static ProgressMonitor progressMonitor = null;
+
+	/**
+	 * The time between the summaries of the progress, in milliseconds.
+	 */
+	private static final long PROGRESS_INTERVAL_MS = 30000;
+
+	/**
+	 * The claims of the image pairs shared with other processes through
+	 * the output directory, or null if this process works through its
+	 * range of image pairs on its own.
+	 */
+	private static WorkClaims workClaims = null;
+
+	/**
+	 * The name of the directory within the output directory
+	 * holding the claims of the image pairs.
+	 */
+	private static final String CLAIMS_DIRECTORY = "claims";
+
+	/**
+	 * The image pairs not yet claimed, when sharing the batch with other
+	 * processes. Guarded by the lock on the tasks.
+	 */
+	private static Vector<FilePair> unclaimedPairs = new Vector<FilePair>();
+
+	/**
+	 * The image pairs claimed by other processes but not yet done, to be
+	 * tried again once their claims may have expired. Guarded by the lock
+	 * on the tasks.
+	 */
+	private static Vector<FilePair> deferredPairs = new Vector<FilePair>();
+
+	/**
+	 * The number of image pairs being claimed by the worker threads,
+	 * whose images are not yet queued. Guarded by the lock on the tasks.
+	 */
+	private static int claimingPairs = 0;
+
+	/**
+	 * The tasks taken by the worker threads whose images are not yet
+	 * handed out, by the file name of the image. Guarded by the lock on
+	 * the tasks.
+	 */
+	private static Hashtable<String, String[]> takenTasks = new Hashtable<String, String[]>();
+
+	/**
+	 * The number of images of each claimed image pair not yet processed,
+	 * by the name of the claim. Guarded by its own lock, apart from the
+	 * lock on the tasks.
+	 */
+	private static Hashtable<String, Integer> claimedImages = new Hashtable<String, Integer>();
+
+	/**
+	 * The claimed image pairs with an image that failed, by the name of
+	 * the claim. Guarded by the lock on the claimed images.
+	 */
+	private static Hashtable<String, Boolean> failedClaims = new Hashtable<String, Boolean>();
+
+	/**
+	 * Called once the output of an image is written or the image failed.
+	 */
+	public static abstract class ImageOutcome {
+
+		/**
+		 * Handle the outcome of an image.
+		 *
+		 * @param succeeded
+		 * Whether the output of the image was written.
+		 */
+		public abstract void finished(boolean succeeded);
+	}
+
+	/**
+	 * The directory containing the input images.
+	 */
+	private String inputDirectory;
+
+	/**
+	 * The prefetcher decoding the images for the worker thread.
+	 */
+	private ImagePrefetcher prefetcher;
+
+	/**
+	 * The names and ratings of the images left to process, shared by the
+	 * worker threads, in the order they were added to the prefetcher.
+	 * When sharing the batch with other processes, the name of the claim
+	 * of the image pair follows.
+	 */
+	private Vector<String[]> tasks;
+
+	/**
+	 * The metrics of the batch to add the metrics of each image to.
+	 */
+	private BatchMetrics batchMetrics;
+
+	/**
+	 * The directory to write the processed features to.
+	 */
+	private String outputDirectory;
+
+	/**
+	 * Create a worker thread detecting the features of the images of a
+	 * batch, next to the other worker threads sharing the same tasks.
+	 * 
+	 * @param inputDirectory
+	 * The directory containing the input images.
+	 * @param prefetcher
+	 * The prefetcher decoding the images, in the order of the tasks.
+	 * @param tasks
+	 * The names and ratings of the images left to process.
+	 * @param batchMetrics
+	 * The metrics of the batch to add the metrics of each image to.
+	 * @param outputDirectory
+	 * The directory to write the processed features to.
+	 */
+	public FeatureExperimentation(
+			String inputDirectory,
+			ImagePrefetcher prefetcher,
+			Vector<String[]> tasks,
+			BatchMetrics batchMetrics,
+			String outputDirectory) {
+
+		super("feature-worker");
+		this.inputDirectory = inputDirectory;
+		this.prefetcher = prefetcher;
+		this.tasks = tasks;
+		this.batchMetrics = batchMetrics;
+		this.outputDirectory = outputDirectory;
+	}
+
 	/**
 	 * Run test cases.
 	 * 
 	 * @param args
 	 * [0] = Directory containing the input images.
 	 * [1] = Directory to output the features and visualized data to.
+	 * [2] = Index of the first image pair to process.
+	 * [3] = Index of the image pair to stop at, or -1 for all pairs.
+	 * [4] = Test mode flag, in the form name_true or name_false.
+	 * [5] = Optional directory for caching the decoded image planes.
+	 * [6] = Optional number of images to decode ahead.
+	 * [7] = Optional memory cap in megabytes for the images decoded ahead.
+	 * [8] = Optional flag for streaming the preprocessing steps, true or false.
+	 * [9] = Optional directory for the checkpoints of the preprocessing stages.
+	 * [10] = Optional number of worker threads detecting features at once,
+	 *        or 0 for one per processor.
+	 * [11] = Optional lease timeout in seconds for sharing the image pairs
+	 *        with other processes through claims in the output directory.
+	 * [12] = Optional output of the features: text for a text file per
+	 *        image, store for a single feature store, or both.
+	 * [13] = Optional flag for weighting the stack area of each child patch
+	 *        by its own level instead of the level it was first reached at,
+	 *        true or false. Gives features of another version.
 	 */
 	public static void main(String[] args) {
 
@@ -62,6 +337,32 @@ public class FeatureExperimentation extends Thread{
 			st = Integer.parseInt(args[2]);
 			end = Integer.parseInt(args[3]);
 			testMode = Boolean.parseBoolean(args[4].split("_")[1]);
+			if(args.length > 5 && !args[5].equals("-")) {
+				planeCache = new PlaneCache(args[5]);
+			}
+			if(args.length > 6) {
+				prefetchImages = Integer.parseInt(args[6]);
+			}
+			if(args.length > 7) {
+				prefetchMemoryMB = Integer.parseInt(args[7]);
+			}
+			if(args.length > 8) {
+				streaming = Boolean.parseBoolean(args[8]);
+			}
+			if(args.length > 9 && !args[9].equals("-")) {
+				checkpointStore = new CheckpointStore(args[9]);
+			}
+			if(args.length > 10) {
+				workerThreads = Integer.parseInt(args[10]) > 0 ?
+					Integer.parseInt(args[10]) : Runtime.getRuntime().availableProcessors();
+			}
+			if(args.length > 11 && Integer.parseInt(args[11]) > 0) {
+				workClaims = new WorkClaims(
+					outputDir + "/" + CLAIMS_DIRECTORY, Integer.parseInt(args[11]) * 1000L);
+			}
+			if(args.length > 13) {
+				childLevelStackArea = Boolean.parseBoolean(args[13]);
+			}
 		} else {
 			inputDir = "./TestImages/retinopathy";
 			outputDir = "./TestImages";
@@ -71,78 +372,529 @@ public class FeatureExperimentation extends Thread{
 		// that need to be processed for features.
 		Vector<FilePair> filePairs = readImagesDataFile(inputDir);
 
-		// Analyze the images in left/right eye pairs and print out
-		// the detected features for each image out to a log files.			
+		// Read back the images done by earlier runs, and by the other
+		// processes sharing the batch, and count the images left.
 		int lim = end == -1 ? filePairs.size() : end;
+		progressJournal = new ProgressJournal(
+			outputDir + "/" + JOURNAL_DIRECTORY,
+			workClaims == null ? null : workClaims.getOwner(),
+			FeatureSchema.getVersion(childLevelStackArea));
+		if(args.length > 12 && !args[12].equals("text")) {
+
+			// Every process appends to a store of its own, as processes
+			// may share the output directory through claims or by each
+			// taking its own range of image pairs. The readers of the
+			// features merge the stores of the directory. The store is
+			// opened once the journal has checked the feature version.
+			String owner = workClaims == null ?
+				ManagementFactory.getRuntimeMXBean().getName() : workClaims.getOwner();
+			featureStore = new FeatureStore(outputDir + "/" + FEATURE_STORE_NAME + "_" +
+				owner.replaceAll("[^A-Za-z0-9]", "_") + FeatureStore.EXTENSION, true, FeatureSchema.getVersion(childLevelStackArea));
+			writeFeatureFiles = args[12].equals("both");
+		}
+		int images_left = 0;
 		for (int i = st; i < lim && i < filePairs.size(); i++) {
-
-			System.out.println("Percent complete: " + (int)((i-st) /(lim-st+0.0) * 100) + " %");
 			FilePair next = filePairs.get(i);
-			
-			// Process the left image
-			ImageFeatures left_features = getFeaturesForImage(inputDir, outputDir, next.getLeftName(), next.getLeftRating());			
-
-			// Write the features of the left image to a log file.
-			if(left_features != null && logFeatures) {
-				left_features.writeLogToFile();
+			images_left += progressJournal.isDone(next.getLeftName()) ? 0 : 1;
+			images_left += progressJournal.isDone(next.getRightName()) ? 0 : 1;
+		}
+		System.out.println("Journal: " + progressJournal.getDoneCount() + " images done, " +
+			progressJournal.getFailedCount() + " failed and retried, " + images_left + " left");
+		progressMonitor = new ProgressMonitor(images_left);
+		progressMonitor.startReporting(PROGRESS_INTERVAL_MS);
+
+		// Queue up the images still missing their features so that
+		// they are decoded ahead while earlier images are analyzed.
+		// Every worker thread holds one image of its own.
+		ImagePrefetcher prefetcher = new ImagePrefetcher(
+				Math.max(prefetchImages, workerThreads),
+				PREFETCH_THREADS,
+				prefetchMemoryMB * 1024L * 1024L,
+				FeatureDetector.SOURCE_CHANNELS,
+				1,
+				planeCache);
+		prefetcher.setStreaming(streaming);
+		if(checkpointStore != null) {
+
+			// Images whose preprocessed checkpoint at native resolution
+			// is stored are handed out without being decoded.
+			prefetcher.setLoadFilter(new ImagePrefetcher.LoadFilter() {
+				public boolean needsImage(ProcessedImage image) {
+					return image.getContentHash() == null || !checkpointStore.contains(
+						FeatureDetector.getPreprocessedCheckpointKey(
+							image.getContentHash(), image.getSourceSubsampling(), 0));
+				}
+			});
+		}
+		Hashtable<String, Boolean> queued = new Hashtable<String, Boolean>();
+		BatchMetrics batchMetrics = new BatchMetrics();
+		for (int i = st; i < lim && i < filePairs.size() && workClaims == null; i++) {
+			FilePair next = filePairs.get(i);
+			if(!progressJournal.isDone(next.getLeftName())) {
+				prefetcher.add(inputDir + "/" + next.getLeftName());
+				queued.put(next.getLeftName(), true);
 			}
+			if(!progressJournal.isDone(next.getRightName())) {
+				prefetcher.add(inputDir + "/" + next.getRightName());
+				queued.put(next.getRightName(), true);
+			}
+		}
+
+		// Analyze the images on several worker threads if specified,
+		// or otherwise one after another on this thread. Image pairs
+		// shared with other processes are claimed by the workers as
+		// they go, instead of being queued up front.
+		if(workerThreads > 1 || workClaims != null) {
+			runWorkers(inputDir, prefetcher, filePairs, st, lim, queued, batchMetrics, outputDir);
+		} else {
+
+			// Analyze the images in left/right eye pairs and print out
+			// the detected features for each image out to a log files.			
+			for (int i = st; i < lim && i < filePairs.size(); i++) {
+
+				FilePair next = filePairs.get(i);
 			
-			// Process the right image
-			ImageFeatures right_features = getFeaturesForImage(inputDir, outputDir, next.getRightName(), next.getRightRating());
+				// Process the left image
+				getFeaturesForImage(prefetcher, queued, batchMetrics, outputDir, next.getLeftName(), next.getLeftRating());			
 			
-			// Write the features of the right image to a log file.
-			if(right_features != null && logFeatures) {
-				right_features.writeLogToFile();
+				// Process the right image
+				getFeaturesForImage(prefetcher, queued, batchMetrics, outputDir, next.getRightName(), next.getRightRating());
 			}
 		}
+		outputQueue.shutdown();
+		prefetcher.shutdown();
+		if(workClaims != null) {
+			workClaims.shutdown();
+		}
+		progressJournal.close();
+		if(featureStore != null) {
+			featureStore.close();
+		}
+		progressMonitor.stopReporting();
+
+		// Write the time and workload of each stage across the batch.
+		if(batchMetrics.getImageCount() > 0) {
+			new File(outputDir + "/" + METRICS_DIRECTORY).mkdirs();
+			batchMetrics.writeToFile(outputDir + "/" + METRICS_DIRECTORY + "/" + METRICS_FILE);
+		}
 	}
 
 	/**
-	 * Get features for the image given the image name.
+	 * Get features for the image given the image name,
+	 * and queue up writing them to a log file.
 	 * 
-	 * @param inputDirectory
-	 * The directory containing the image to be processed.
+	 * @param prefetcher
+	 * The prefetcher decoding the images to be processed, in order.
+	 * @param queued
+	 * The names of the images queued within the prefetcher.
+	 * @param batchMetrics
+	 * The metrics of the batch to add the metrics of the image to.
 	 * @param outputDirectory
 	 * The directory to write the processed features to.
 	 * @param imageName
 	 * The name of the image to read.
 	 * @param imageRating
 	 * The rating associated to the image.
-	 * @return
-	 * The detected features for the image.
 	 */
-	private static ImageFeatures getFeaturesForImage(
-			String inputDirectory,
+	private static void getFeaturesForImage(
+			ImagePrefetcher prefetcher,
+			Hashtable<String, Boolean> queued,
+			BatchMetrics batchMetrics,
 			String outputDirectory,
 			String imageName,
 			String imageRating) {
 
-		long timeRight = System.currentTimeMillis();
-		System.out.print("File: " + imageName + "\t");
-		
-		if(new File(outputDirectory + "/" + imageName.replace(".jpeg", ".txt")).isFile()) {
-			System.out.println(outputDirectory + "/" + imageName + " already exists!");
-			return null;
+		if(!queued.containsKey(imageName)) {
+			System.out.println("File: " + imageName + "\trecorded as done in the progress journal, skipped");
+			return;
 		}
 		
 		// Detect the features within the image.
-		FeatureDetector featureDetector = new FeatureDetector(
-				inputDirectory,
-				outputDirectory,
-				imageName);
-		ImageFeatures features = featureDetector.computeFeatures(imageRating, writeImageToFile);
-		
-		// Write the visualized features to an image if specified.
-		if(writeImageToFile) {
-			featureDetector.writeToImageFile(outputDirectory + "/" + imageName);
+		long wait_time = System.nanoTime();
+		ProcessedImage processedImage = prefetcher.next();
+		wait_time = System.nanoTime() - wait_time;
+
+		processImage(
+				processedImage, wait_time, scratchArena,
+				batchMetrics, outputDirectory, imageName, imageRating, null);
+		prefetcher.release(processedImage);
+	}
+
+	/**
+	 * Detect the features of a loaded image, and queue up writing them to
+	 * a log file. The image is recorded in the progress journal once they
+	 * are written. An image failing is recorded as such, and the batch
+	 * goes on.
+	 * 
+	 * @param processedImage
+	 * The loaded image.
+	 * @param waitTime
+	 * The time spent waiting for the image to be loaded, in nanoseconds.
+	 * @param arena
+	 * The arena of the thread, to take the working maps and planes from.
+	 * @param batchMetrics
+	 * The metrics of the batch to add the metrics of the image to.
+	 * @param outputDirectory
+	 * The directory to write the processed features to.
+	 * @param imageName
+	 * The name of the image.
+	 * @param imageRating
+	 * The rating associated to the image.
+	 * @param afterOutput
+	 * Told once the output of the image is written or the image
+	 * failed, or null if nobody is to be told.
+	 */
+	private static void processImage(
+			ProcessedImage processedImage,
+			long waitTime,
+			ScratchArena arena,
+			final BatchMetrics batchMetrics,
+			final String outputDirectory,
+			final String imageName,
+			String imageRating,
+			final ImageOutcome afterOutput) {
+
+		final long startTime = System.currentTimeMillis();
+		final FeatureDetector featureDetector;
+		final ImageFeatures features;
+		try {
+			featureDetector = new FeatureDetector(
+					outputDirectory,
+					imageName,
+					processedImage);
+			featureDetector.setScratchArena(arena);
+			featureDetector.setCheckpointStore(checkpointStore);
+			featureDetector.setChildLevelStackArea(childLevelStackArea);
+			featureDetector.getMetrics().recordStage("waitForImage", waitTime, -1);
+			features = featureDetector.computeFeatures(imageRating, writeImageToFile);
+		} catch (RuntimeException e) {
+			recordFailure(imageName, startTime, e);
+			if(afterOutput != null) {
+				afterOutput.finished(false);
+			}
+			return;
+		}
+
+		System.out.println("File: " + imageName + "\tFinished in: " +
+			(System.currentTimeMillis() - startTime) + " ms\n");
+
+		// Write the output on the output threads while this
+		// thread goes on with the next image.
+		outputQueue.submit(new Runnable() {
+			public void run() {
+				boolean written = writeOutput(
+					featureDetector, features, batchMetrics, outputDirectory, imageName, startTime);
+				if(afterOutput != null) {
+					afterOutput.finished(written);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Helper function for writing the features of an image to a log file,
+	 * and the visualized features to an image if specified, recording the
+	 * image in the progress journal once they are written.
+	 *
+	 * @return
+	 * Whether the output was written, or the image failed instead.
+	 */
+	private static boolean writeOutput(
+			FeatureDetector featureDetector,
+			ImageFeatures features,
+			BatchMetrics batchMetrics,
+			String outputDirectory,
+			String imageName,
+			long startTime) {
+
+		ImageMetrics metrics = featureDetector.getMetrics();
+		try {
+			if(writeImageToFile) {
+				StageTimer timer = metrics.startStage("writeImage");
+				featureDetector.writeToImageFile(outputDirectory + "/" + imageName);
+				timer.stop();
+			}
+			if(logFeatures) {
+				StageTimer timer = metrics.startStage("writeFeatures");
+				if(writeFeatureFiles) {
+					features.writeLogToFile();
+				}
+				if(featureStore != null) {
+					features.writeToStore(featureStore);
+				}
+				timer.stop();
+			}
+		} catch (RuntimeException e) {
+			recordFailure(imageName, startTime, e);
+			return false;
+		}
+		batchMetrics.add(metrics);
+
+		long time = System.currentTimeMillis() - startTime;
+		progressJournal.recordDone(imageName, time);
+		progressMonitor.recordDone(time);
+		return true;
+	}
+
+	/**
+	 * Helper function for recording an image that failed.
+	 */
+	private static void recordFailure(String imageName, long startTime, RuntimeException error) {
+		long time = System.currentTimeMillis() - startTime;
+		System.out.print("File: " + imageName + "\tFailed after: " + time + " ms\n");
+		error.printStackTrace();
+		progressJournal.recordFailure(imageName, time, error);
+		progressMonitor.recordFailure();
+	}
+
+	/**
+	 * Detect the features of the queued images on several worker
+	 * threads at once, waiting for all of them to finish. Each worker
+	 * takes the next image in the order the images were queued. When
+	 * sharing the batch with other processes, the image pairs of the range
+	 * are claimed by the workers as they go instead.
+	 * 
+	 * @param inputDirectory
+	 * The directory containing the input images.
+	 * @param prefetcher
+	 * The prefetcher decoding the queued images.
+	 * @param filePairs
+	 * The image pairs of the batch.
+	 * @param st
+	 * The index of the first image pair to process.
+	 * @param lim
+	 * The index of the image pair to stop at.
+	 * @param queued
+	 * The names of the images queued within the prefetcher.
+	 * @param batchMetrics
+	 * The metrics of the batch to add the metrics of each image to.
+	 * @param outputDirectory
+	 * The directory to write the processed features to.
+	 */
+	private static void runWorkers(
+			String inputDirectory,
+			ImagePrefetcher prefetcher,
+			Vector<FilePair> filePairs,
+			int st,
+			int lim,
+			Hashtable<String, Boolean> queued,
+			BatchMetrics batchMetrics,
+			String outputDirectory) {
+
+		Vector<String[]> tasks = new Vector<String[]>();
+		for (int i = st; i < lim && i < filePairs.size(); i++) {
+			FilePair next = filePairs.get(i);
+			if(workClaims != null) {
+				unclaimedPairs.add(next);
+				continue;
+			}
+			if(queued.containsKey(next.getLeftName())) {
+				tasks.add(new String[]{next.getLeftName(), next.getLeftRating()});
+			}
+			if(queued.containsKey(next.getRightName())) {
+				tasks.add(new String[]{next.getRightName(), next.getRightRating()});
+			}
+		}
+
+		FeatureExperimentation [] workers = new FeatureExperimentation[workerThreads];
+		for(int i = 0; i < workers.length; i++) {
+			workers[i] = new FeatureExperimentation(
+				inputDirectory, prefetcher, tasks, batchMetrics, outputDirectory);
+			workers[i].start();
+		}
+		for(int i = 0; i < workers.length; i++) {
+			try {
+				workers[i].join();
+			} catch (InterruptedException e) {
+				System.out.print("Interrupted while waiting for worker\n");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+	}
+
+	/**
+	 * Run the worker thread, detecting the features of the next image left
+	 * until none are left. Each worker uses its own scratch arena, and each
+	 * image its own feature detector, so the features detected are the
+	 * same as when the images are processed one after another.
+	 */
+	public void run() {
+
+		ScratchArena arena = new ScratchArena();
+		while(true) {
+
+			// Take the next image along with its name, so
+			// both are handed out in the same order.
+			long wait_time = System.nanoTime();
+			Object [] next = this.takeTask();
+			if(next == null) {
+				return;
+			}
+			String [] task = (String[]) next[0];
+			ProcessedImage processed_image = (ProcessedImage) next[1];
+			wait_time = System.nanoTime() - wait_time;
+
+			// The image of a claimed image pair counts as processed
+			// only once its output is written or it failed.
+			final String claim = task.length > 2 ? task[2] : null;
+			processImage(
+					processed_image, wait_time, arena,
+					this.batchMetrics, this.outputDirectory, task[0], task[1],
+					claim == null ? null : new ImageOutcome() {
+						public void finished(boolean succeeded) {
+							completeClaimedImage(claim, succeeded);
+						}
+					});
+			this.prefetcher.release(processed_image);
+		}
+	}
+
+	/**
+	 * Helper function for taking the next image to process, claiming more
+	 * image pairs first when sharing the batch with other processes. Image
+	 * pairs claimed by other processes are tried again until they are done,
+	 * so the pairs of a crashed process are taken over once its claims
+	 * expire.
+	 *
+	 * Neither the wait for the image nor the claim files hold the lock on
+	 * the tasks. Each worker takes a task for one image queued, and then
+	 * the task of the image it is handed, which may be the task taken by
+	 * another worker waiting at the same time.
+	 * 
+	 * @return
+	 * The task of the image followed by the loaded image,
+	 * or null if no images are left.
+	 */
+	private Object [] takeTask() {
+		while(true) {
+			this.claimTasks();
+
+			boolean retry_deferred = false;
+			synchronized(this.tasks) {
+				while(this.tasks.isEmpty() && claimingPairs > 0) {
+					try {
+						this.tasks.wait();
+					} catch (InterruptedException e) {
+						return null;
+					}
+				}
+
+				if(!this.tasks.isEmpty()) {
+					String [] task = this.tasks.remove(0);
+					takenTasks.put(this.inputDirectory + "/" + task[0], task);
+				} else if(!unclaimedPairs.isEmpty()) {
+					continue;
+				} else if(deferredPairs.isEmpty()) {
+					return null;
+				} else {
+					unclaimedPairs.addAll(deferredPairs);
+					deferredPairs.clear();
+					retry_deferred = true;
+				}
+			}
+
+			if(retry_deferred) {
+				try {
+					Thread.sleep(Math.max(1000, workClaims.getLeaseMillis() / 3));
+				} catch (InterruptedException e) {
+					return null;
+				}
+				continue;
+			}
+
+			ProcessedImage image = this.prefetcher.next();
+			synchronized(this.tasks) {
+				return new Object[]{takenTasks.remove(image.getImageFileName()), image};
+			}
+		}
+	}
+
+	/**
+	 * Helper function for claiming image pairs not yet claimed, queuing
+	 * their images, until enough images are queued to decode ahead. The
+	 * claim files are read and written without holding the lock on the
+	 * tasks.
+	 */
+	private void claimTasks() {
+		if(workClaims == null) {
+			return;
+		}
+
+		while(true) {
+			FilePair next;
+			synchronized(this.tasks) {
+				if(this.tasks.size() >= Math.max(prefetchImages, workerThreads) || unclaimedPairs.isEmpty()) {
+					return;
+				}
+				next = unclaimedPairs.remove(0);
+				claimingPairs++;
+			}
+
+			String claim = next.getLeftName().replace(".jpeg", "");
+			Vector<String[]> claimed_tasks = new Vector<String[]>();
+			boolean deferred = false;
+			if(workClaims.claim(claim)) {
+				String [][] images = new String[][]{
+					{next.getLeftName(), next.getLeftRating()},
+					{next.getRightName(), next.getRightRating()}};
+				for(int i = 0; i < images.length; i++) {
+					if(!progressJournal.isDone(images[i][0])) {
+						claimed_tasks.add(new String[]{images[i][0], images[i][1], claim});
+					}
+				}
+				if(claimed_tasks.isEmpty()) {
+					workClaims.complete(claim);
+				} else {
+					synchronized(claimedImages) {
+						claimedImages.put(claim, claimed_tasks.size());
+					}
+				}
+			} else {
+				deferred = !workClaims.isDone(claim);
+			}
+
+			// The images are added to the prefetcher in the same order
+			// as their tasks, so every image handed out has its task taken.
+			synchronized(this.tasks) {
+				for(int i = 0; i < claimed_tasks.size(); i++) {
+					this.prefetcher.add(this.inputDirectory + "/" + claimed_tasks.get(i)[0]);
+					this.tasks.add(claimed_tasks.get(i));
+				}
+				if(deferred) {
+					deferredPairs.add(next);
+				}
+				claimingPairs--;
+				this.tasks.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Helper function for counting an image of a claimed image pair as
+	 * processed, marking the pair as done once both images are. A pair
+	 * with an image that failed is released without being marked as done
+	 * instead, so that another process, or a later run, can claim it again.
+	 */
+	private void completeClaimedImage(String claim, boolean succeeded) {
+		boolean failed;
+		synchronized(claimedImages) {
+			if(!succeeded) {
+				failedClaims.put(claim, true);
+			}
+			int left = claimedImages.get(claim) - 1;
+			if(left > 0) {
+				claimedImages.put(claim, left);
+				return;
+			}
+			claimedImages.remove(claim);
+			failed = failedClaims.remove(claim) != null;
+		}
+		if(failed) {
+			workClaims.release(claim);
+		} else {
+			workClaims.complete(claim);
 		}
-		
-		// Clean up some data.
-		System.gc();
-		System.out.println("Finished in: " + (System.currentTimeMillis() - timeRight) + " ms\n");
-		
-		// Return the detected features for the image.
-		return features;
 	}
 
 	/**
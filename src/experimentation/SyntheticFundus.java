@@ -0,0 +1,385 @@
+package experimentation;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.MultipleGradientPaint;
+import java.awt.RadialGradientPaint;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+import java.util.Vector;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Generates synthetic fundus images, for profiling the feature detectors
+ * without the patient images of the training set.
+ *
+ * Each image has a circular eye on a black background, a bright optic disc
+ * next to its centre, trees of vessels branching out from the optic disc,
+ * and small dark blobs standing in for microaneurysms. Everything is drawn
+ * from a seed, so the same seed always gives the same image. The ground
+ * truth of what was drawn is kept next to the image.
+ *
+ * @author Peter Bugaj
+ */
+public class SyntheticFundus {
+
+	/**
+	 * The name of the directory within the output directory
+	 * holding the ground truth of the images.
+	 */
+	private static final String TRUTH_DIR = "truth";
+
+	/**
+	 * The colour of the eye at its centre and at its rim.
+	 */
+	private static final Color EYE_CENTER_COLOUR = new Color(196, 92, 44);
+	private static final Color EYE_RIM_COLOUR = new Color(120, 46, 18);
+
+	/**
+	 * The colour of the optic disc at its centre and at its rim.
+	 */
+	private static final Color DISC_CENTER_COLOUR = new Color(252, 236, 170);
+	private static final Color DISC_RIM_COLOUR = new Color(232, 164, 90);
+
+	/**
+	 * The colour of the vessels.
+	 */
+	private static final Color VESSEL_COLOUR = new Color(128, 30, 16);
+
+	/**
+	 * The colour of the microaneurysms.
+	 */
+	private static final Color MICROANEURYSM_COLOUR = new Color(96, 14, 8);
+
+	/**
+	 * The number of vessel trees leaving the optic disc.
+	 */
+	private static final int VESSEL_TREES = 4;
+
+	/**
+	 * The largest depth of branching within a vessel tree.
+	 */
+	private static final int MAX_BRANCH_DEPTH = 5;
+
+	/**
+	 * The generated image.
+	 */
+	private BufferedImage image;
+
+	/**
+	 * The centre and radius of the eye.
+	 */
+	private int eyeX, eyeY, eyeRadius;
+
+	/**
+	 * The centre and radius of the optic disc.
+	 */
+	private int discX, discY, discRadius;
+
+	/**
+	 * The number of vessel segments drawn, each running between
+	 * two branching points or ending at the last one.
+	 */
+	private int vesselSegments = 0;
+
+	/**
+	 * The number of points where a vessel branches in two.
+	 */
+	private int vesselForks = 0;
+
+	/**
+	 * The total length of the vessels drawn, in pixels.
+	 */
+	private double vesselLength = 0;
+
+	/**
+	 * The centre and radius of each microaneurysm drawn.
+	 */
+	private Vector<int[]> microaneurysms = new Vector<int[]>();
+
+	/**
+	 * The random numbers drawing the image.
+	 */
+	private Random random;
+
+	/**
+	 * Generate a new synthetic fundus image.
+	 *
+	 * @param width
+	 * The width of the image.
+	 * @param height
+	 * The height of the image.
+	 * @param seed
+	 * The seed to draw the image from.
+	 * @param leftEye
+	 * Whether to draw a left eye, with the optic disc on the
+	 * left of the centre, or a right eye.
+	 * @param microaneurysmCount
+	 * The number of microaneurysms to seed within the eye.
+	 */
+	public SyntheticFundus(int width, int height, long seed, boolean leftEye, int microaneurysmCount) {
+		this.random = new Random(seed);
+		this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+		this.eyeX = width / 2;
+		this.eyeY = height / 2;
+		this.eyeRadius = (int) (Math.min(width, height) * (0.44 + this.random.nextDouble() * 0.04));
+		this.discRadius = Math.max(3, (int) (this.eyeRadius * 0.11));
+		this.discX = this.eyeX + (int) ((leftEye ? -1 : 1) * this.eyeRadius * 0.38);
+		this.discY = this.eyeY + (int) ((this.random.nextDouble() - 0.5) * this.eyeRadius * 0.1);
+
+		Graphics2D graphics = this.image.createGraphics();
+		graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		graphics.setColor(Color.BLACK);
+		graphics.fillRect(0, 0, width, height);
+
+		// Draw the eye, darker towards its rim.
+		graphics.setPaint(new RadialGradientPaint(
+			this.eyeX, this.eyeY, this.eyeRadius,
+			new float[]{0f, 1f},
+			new Color[]{EYE_CENTER_COLOUR, EYE_RIM_COLOUR},
+			MultipleGradientPaint.CycleMethod.NO_CYCLE));
+		graphics.fill(new Ellipse2D.Double(
+			this.eyeX - this.eyeRadius, this.eyeY - this.eyeRadius,
+			this.eyeRadius * 2, this.eyeRadius * 2));
+
+		// Keep the vessels and blobs within the eye.
+		graphics.setClip(new Ellipse2D.Double(
+			this.eyeX - this.eyeRadius, this.eyeY - this.eyeRadius,
+			this.eyeRadius * 2, this.eyeRadius * 2));
+
+		// Draw the vessel trees leaving the optic disc.
+		graphics.setColor(VESSEL_COLOUR);
+		double start_angle = this.random.nextDouble() * Math.PI * 2;
+		for(int i = 0; i < VESSEL_TREES; i++) {
+			double angle = start_angle + i * Math.PI * 2 / VESSEL_TREES + (this.random.nextDouble() - 0.5) * 0.6;
+			this.drawVessel(graphics, this.discX, this.discY, angle, this.eyeRadius * 0.018 + 1, 0);
+		}
+
+		// Draw the optic disc over the roots of the vessels.
+		graphics.setPaint(new RadialGradientPaint(
+			this.discX, this.discY, this.discRadius,
+			new float[]{0f, 1f},
+			new Color[]{DISC_CENTER_COLOUR, DISC_RIM_COLOUR},
+			MultipleGradientPaint.CycleMethod.NO_CYCLE));
+		graphics.fill(new Ellipse2D.Double(
+			this.discX - this.discRadius, this.discY - this.discRadius,
+			this.discRadius * 2, this.discRadius * 2));
+
+		// Seed the microaneurysms away from the optic disc.
+		graphics.setColor(MICROANEURYSM_COLOUR);
+		while(this.microaneurysms.size() < microaneurysmCount) {
+			double angle = this.random.nextDouble() * Math.PI * 2;
+			double distance = Math.sqrt(this.random.nextDouble()) * this.eyeRadius * 0.85;
+			int x = this.eyeX + (int) (Math.cos(angle) * distance);
+			int y = this.eyeY + (int) (Math.sin(angle) * distance);
+			if(Math.hypot(x - this.discX, y - this.discY) < this.discRadius * 2) {
+				continue;
+			}
+			int radius = Math.max(1, (int) Math.round(this.eyeRadius * (0.004 + this.random.nextDouble() * 0.006)));
+			graphics.fill(new Ellipse2D.Double(x - radius, y - radius, radius * 2, radius * 2));
+			this.microaneurysms.add(new int[]{x, y, radius});
+		}
+		graphics.dispose();
+
+		this.addNoise(3);
+	}
+
+	/**
+	 * Get the generated image.
+	 */
+	public BufferedImage getImage() {
+		return this.image;
+	}
+
+	/**
+	 * Get the radius of the eye.
+	 */
+	public int getEyeRadius() {
+		return this.eyeRadius;
+	}
+
+	/**
+	 * Get the number of vessel segments drawn.
+	 */
+	public int getVesselSegments() {
+		return this.vesselSegments;
+	}
+
+	/**
+	 * Get the number of points where a vessel branches in two.
+	 */
+	public int getVesselForks() {
+		return this.vesselForks;
+	}
+
+	/**
+	 * Get the number of microaneurysms drawn.
+	 */
+	public int getMicroaneurysmCount() {
+		return this.microaneurysms.size();
+	}
+
+	/**
+	 * Get the ground truth of the image, one value per line
+	 * in the NAME#value form of the feature logs.
+	 */
+	public Vector<String> getGroundTruth() {
+		Vector<String> truth = new Vector<String>();
+		truth.add("EYE_CENTER#" + this.eyeX + "," + this.eyeY);
+		truth.add("EYE_RADIUS#" + this.eyeRadius);
+		truth.add("DISC_CENTER#" + this.discX + "," + this.discY);
+		truth.add("DISC_RADIUS#" + this.discRadius);
+		truth.add("VESSEL_SEGMENTS#" + this.vesselSegments);
+		truth.add("VESSEL_FORKS#" + this.vesselForks);
+		truth.add("VESSEL_LENGTH#" + (long) this.vesselLength);
+		truth.add("MICROANEURYSMS#" + this.microaneurysms.size());
+		for(int i = 0; i < this.microaneurysms.size(); i++) {
+			int [] next = this.microaneurysms.get(i);
+			truth.add("MICROANEURYSM#" + next[0] + "," + next[1] + "," + next[2]);
+		}
+		return truth;
+	}
+
+	/**
+	 * Write the image and its ground truth to files.
+	 *
+	 * @param imageFileName
+	 * The name of the JPEG file to write the image to.
+	 * @param truthFileName
+	 * The name of the file to write the ground truth to.
+	 */
+	public void writeToFiles(String imageFileName, String truthFileName) {
+		try {
+			ImageIO.write(this.image, "jpeg", new File(imageFileName));
+		} catch (IOException e) {
+			System.out.print("Failed to write " + imageFileName + "\n");
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		PrintWriter writer = null;
+		try {
+			writer = new PrintWriter(truthFileName, "UTF-8");
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+			System.exit(1);
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		Vector<String> truth = this.getGroundTruth();
+		for(int i = 0; i < truth.size(); i++) {
+			writer.println(truth.get(i));
+		}
+		writer.close();
+	}
+
+	/**
+	 * Helper function for drawing a vessel from a point, branching
+	 * in two at its end until the vessel gets too thin or deep.
+	 */
+	private void drawVessel(Graphics2D graphics, double x, double y, double angle, double width, int depth) {
+		this.vesselSegments++;
+
+		double length = this.eyeRadius * (0.18 + this.random.nextDouble() * 0.14) * Math.pow(0.82, depth);
+		int steps = Math.max(2, (int) (length / 4));
+		graphics.setStroke(new BasicStroke((float) width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+		for(int i = 0; i < steps; i++) {
+
+			// Bend the vessel slightly at every step.
+			angle += (this.random.nextDouble() - 0.5) * 0.25;
+			double next_x = x + Math.cos(angle) * length / steps;
+			double next_y = y + Math.sin(angle) * length / steps;
+			graphics.draw(new Line2D.Double(x, y, next_x, next_y));
+			this.vesselLength += length / steps;
+			x = next_x;
+			y = next_y;
+
+			// Stop at the rim of the eye.
+			if(Math.hypot(x - this.eyeX, y - this.eyeY) > this.eyeRadius * 0.97) {
+				return;
+			}
+		}
+
+		if(depth + 1 >= MAX_BRANCH_DEPTH || width < 1.2) {
+			return;
+		}
+		this.vesselForks++;
+		double spread = 0.35 + this.random.nextDouble() * 0.3;
+		this.drawVessel(graphics, x, y, angle - spread, width * 0.78, depth + 1);
+		this.drawVessel(graphics, x, y, angle + spread, width * 0.78, depth + 1);
+	}
+
+	/**
+	 * Helper function for adding noise to the pixels of the eye.
+	 */
+	private void addNoise(int amplitude) {
+		for(int x = 0; x < this.image.getWidth(); x++) {
+			for(int y = 0; y < this.image.getHeight(); y++) {
+				int rgb = this.image.getRGB(x, y);
+				if((rgb & 0xFFFFFF) == 0) {
+					continue;
+				}
+				int noise = this.random.nextInt(amplitude * 2 + 1) - amplitude;
+				int r = clamp(((rgb >> 16) & 0xFF) + noise);
+				int g = clamp(((rgb >> 8) & 0xFF) + noise);
+				int b = clamp((rgb & 0xFF) + noise);
+				this.image.setRGB(x, y, (r << 16) | (g << 8) | b);
+			}
+		}
+	}
+
+	/**
+	 * Helper function for clamping a colour value to a byte.
+	 */
+	private static int clamp(int value) {
+		return Math.max(0, Math.min(255, value));
+	}
+
+	/**
+	 * Generate a set of synthetic image pairs, named the way the test
+	 * images are so FeatureExperimentation can run on them in test mode,
+	 * with the ground truth of each image in a directory next to them.
+	 *
+	 * @param args
+	 * [0] = Directory to write the images to.
+	 * [1] = Number of image pairs to generate.
+	 * [2] = Optional width of the images.
+	 * [3] = Optional height of the images.
+	 * [4] = Optional seed of the first image.
+	 * [5] = Optional number of microaneurysms to seed in each image.
+	 */
+	public static void main(String[] args) {
+
+		String outputDir = args[0];
+		int pairs = Integer.parseInt(args[1]);
+		int width = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+		int height = args.length > 3 ? Integer.parseInt(args[3]) : 768;
+		long seed = args.length > 4 ? Long.parseLong(args[4]) : 1;
+		int microaneurysms = args.length > 5 ? Integer.parseInt(args[5]) : 20;
+
+		new File(outputDir + "/" + TRUTH_DIR).mkdirs();
+		for(int i = 0; i < pairs; i++) {
+			for(int side = 0; side < 2; side++) {
+				String name = (i + 1) + (side == 0 ? "_left" : "_right");
+				SyntheticFundus fundus = new SyntheticFundus(
+					width, height, seed + i * 2 + side, side == 0, microaneurysms);
+				fundus.writeToFiles(
+					outputDir + "/" + name + ".jpeg",
+					outputDir + "/" + TRUTH_DIR + "/" + name + ".txt");
+			}
+		}
+		System.out.println("Generated " + pairs * 2 + " images in " + outputDir);
+	}
+}
@@ -0,0 +1,390 @@
+package experimentation;
+
+import io.ProcessedImage;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import detectors.FeatureDetector;
+import detectors.ImageFeatures;
+import tools.metrics.BatchMetrics;
+import tools.metrics.ImageMetrics;
+import tools.structures.ScratchArena;
+
+/**
+ * Measures the throughput of the feature detector end to end, on synthetic
+ * fundus images generated in memory so every run sees the same images.
+ *
+ * The images are run through the detector once for each number of threads,
+ * doubling from one thread up to the maximum. Each run reports the images
+ * detected per second, the percentiles of the time per image and the peak
+ * heap used. The features detected by each run are compared with those of
+ * the run on one thread, and optionally with those of an earlier benchmark,
+ * so a faster path that changes the features detected shows up in the
+ * report. The features detected on one thread are also compared with the
+ * ground truth of the images.
+ *
+ * @author Peter Bugaj
+ */
+public class ThroughputBenchmark {
+
+	/**
+	 * The name of the report file.
+	 */
+	private static final String REPORT_FILE = "benchmark_report.txt";
+
+	/**
+	 * The name of the directory for the features detected on one thread.
+	 */
+	private static final String FEATURES_DIR = "features";
+
+	/**
+	 * The number of microaneurysms seeded within each image.
+	 */
+	private static final int MICROANEURYSMS = 20;
+
+	/**
+	 * The generated images.
+	 */
+	private SyntheticFundus [] images;
+
+	/**
+	 * The directory the features detected are written to.
+	 */
+	private String featureDirectory;
+
+	/**
+	 * The index of the next image to detect the features of within
+	 * the current run. Guarded by the lock on the benchmark.
+	 */
+	private int nextImage;
+
+	/**
+	 * The time taken by each image of the current run, in milliseconds.
+	 */
+	private double [] imageTimes;
+
+	/**
+	 * The features detected for each image of the current run.
+	 */
+	private ImageFeatures [] imageFeatures;
+
+	/**
+	 * The metrics of each image of the current run.
+	 */
+	private ImageMetrics [] imageMetrics;
+
+	/**
+	 * Create a new instance of the ThroughputBenchmark class.
+	 *
+	 * @param images
+	 * The generated images to detect the features of.
+	 * @param featureDirectory
+	 * The directory the features detected are written to.
+	 */
+	public ThroughputBenchmark(SyntheticFundus [] images, String featureDirectory) {
+		this.images = images;
+		this.featureDirectory = featureDirectory;
+	}
+
+	/**
+	 * Run the benchmark.
+	 *
+	 * @param args
+	 * [0] = Directory to output the report and features to.
+	 * [1] = Optional number of images to generate.
+	 * [2] = Optional width of the images.
+	 * [3] = Optional height of the images.
+	 * [4] = Optional maximum number of threads, or 0 for one per processor.
+	 * [5] = Optional seed of the first image.
+	 * [6] = Optional directory of the features of an earlier benchmark
+	 *       to compare the features detected with.
+	 */
+	public static void main(String[] args) {
+
+		String outputDir = args[0];
+		int imageCount = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int width = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+		int height = args.length > 3 ? Integer.parseInt(args[3]) : 768;
+		int maxThreads = args.length > 4 && Integer.parseInt(args[4]) > 0 ?
+			Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+		long seed = args.length > 5 ? Long.parseLong(args[5]) : 1;
+		String baselineDir = args.length > 6 ? args[6] : null;
+
+		String featureDir = outputDir + "/" + FEATURES_DIR;
+		new File(featureDir).mkdirs();
+
+		// Generate the images up front, so generating
+		// them is not part of any run.
+		SyntheticFundus [] images = new SyntheticFundus[imageCount];
+		for(int i = 0; i < images.length; i++) {
+			images[i] = new SyntheticFundus(width, height, seed + i, i % 2 == 0, MICROANEURYSMS);
+		}
+		ThroughputBenchmark benchmark = new ThroughputBenchmark(images, featureDir);
+
+		Vector<String> report = new Vector<String>();
+		report.add("RUN|THREADS|IMAGES|WALL_MS|IMAGES_PER_SEC|P50_MS|P90_MS|P99_MS|PEAK_HEAP_MB|CHANGED_IMAGES");
+
+		ImageFeatures [] reference = null;
+		ImageMetrics [] reference_metrics = null;
+		for(int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+
+			long wall_time = benchmark.run(threads);
+			double [] sorted_times = BatchMetrics.toSortedArray(toVector(benchmark.imageTimes));
+
+			// Compare the features with those detected on one thread.
+			int changed = 0;
+			if(reference == null) {
+				reference = benchmark.imageFeatures;
+				reference_metrics = benchmark.imageMetrics;
+			} else {
+				for(int i = 0; i < images.length; i++) {
+					if(!Arrays.equals(reference[i].getValues(), benchmark.imageFeatures[i].getValues())) {
+						changed++;
+					}
+				}
+			}
+
+			String line = "RUN|" + threads +
+				"|" + images.length +
+				"|" + wall_time +
+				"|" + String.format("%.3f", images.length / (wall_time / 1000.0)) +
+				"|" + (long) BatchMetrics.percentile(sorted_times, 50) +
+				"|" + (long) BatchMetrics.percentile(sorted_times, 90) +
+				"|" + (long) BatchMetrics.percentile(sorted_times, 99) +
+				"|" + getPeakHeap() / (1024 * 1024) +
+				"|" + changed;
+			report.add(line);
+			System.out.println(line);
+
+			if(threads >= maxThreads) {
+				break;
+			}
+		}
+
+		// Compare what was detected on one thread with the ground truth.
+		report.add("");
+		report.add("TRUTH|IMAGE|EYE_RADIUS|VESSEL_SEGMENTS|VESSEL_FORKS|MICROANEURYSMS|VEINS|VEIN_FORKS|PATCHES");
+		for(int i = 0; i < images.length; i++) {
+			ImageMetrics metrics = reference_metrics[i];
+			report.add("TRUTH|" + getImageName(i) +
+				"|" + images[i].getEyeRadius() +
+				"|" + images[i].getVesselSegments() +
+				"|" + images[i].getVesselForks() +
+				"|" + images[i].getMicroaneurysmCount() +
+				"|" + getCounter(metrics, "VEINS") +
+				"|" + getCounter(metrics, "VEIN_FORKS") +
+				"|" + (getCounter(metrics, "PATCHES_flip0") + getCounter(metrics, "PATCHES_flip1")));
+		}
+
+		// Write the features detected on one thread, and compare
+		// them with those of an earlier benchmark if given.
+		int baseline_changed = 0;
+		for(int i = 0; i < images.length; i++) {
+			reference[i].writeLogToFile();
+			if(baselineDir != null) {
+				Vector<String> baseline = readLines(baselineDir + "/" + getImageName(i).replace(".jpeg", ".txt"));
+				if(!reference[i].getFeatureLog().equals(baseline)) {
+					System.out.println("Features changed from the baseline: " + getImageName(i));
+					baseline_changed++;
+				}
+			}
+		}
+		if(baselineDir != null) {
+			report.add("");
+			report.add("BASELINE|DIRECTORY|CHANGED_IMAGES");
+			report.add("BASELINE|" + baselineDir + "|" + baseline_changed);
+			System.out.println("Images with features changed from the baseline: " + baseline_changed);
+		}
+
+		writeReport(report, outputDir + "/" + REPORT_FILE);
+	}
+
+	/**
+	 * Detect the features of every image on a number of threads,
+	 * each taking the next image left.
+	 *
+	 * @param threads
+	 * The number of threads to detect the features on.
+	 * @return
+	 * The wall time of the run, in milliseconds.
+	 */
+	public long run(int threads) {
+		this.nextImage = 0;
+		this.imageTimes = new double[this.images.length];
+		this.imageFeatures = new ImageFeatures[this.images.length];
+		this.imageMetrics = new ImageMetrics[this.images.length];
+
+		System.gc();
+		resetPeakHeap();
+
+		long wall_time = System.currentTimeMillis();
+		Thread [] workers = new Thread[threads];
+		for(int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread("benchmark-worker") {
+				public void run() {
+					ScratchArena arena = new ScratchArena();
+					int next;
+					while((next = takeImage()) != -1) {
+						detectFeatures(next, arena);
+					}
+				}
+			};
+			workers[i].start();
+		}
+		for(int i = 0; i < workers.length; i++) {
+			try {
+				workers[i].join();
+			} catch (InterruptedException e) {
+				System.out.print("Interrupted while waiting for worker\n");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+		return System.currentTimeMillis() - wall_time;
+	}
+
+	/**
+	 * Helper function for taking the index of the next image
+	 * left within the run, or -1 if none are left.
+	 */
+	private synchronized int takeImage() {
+		return this.nextImage < this.images.length ? this.nextImage++ : -1;
+	}
+
+	/**
+	 * Helper function for detecting the features of an image, copying its
+	 * channels into planes the way the image loader does first. Only the
+	 * detection is timed.
+	 */
+	private void detectFeatures(int index, ScratchArena arena) {
+		BufferedImage image = this.images[index].getImage();
+		ProcessedImage processed_image = new ProcessedImage();
+		processed_image.setImageSource(ProcessedImage.decodeImage(image, FeatureDetector.SOURCE_CHANNELS));
+		processed_image.setWidth(image.getWidth());
+		processed_image.setHeight(image.getHeight());
+
+		long time = System.nanoTime();
+		FeatureDetector featureDetector = new FeatureDetector(
+				this.featureDirectory,
+				getImageName(index),
+				processed_image);
+		featureDetector.setScratchArena(arena);
+		this.imageFeatures[index] = featureDetector.computeFeatures("-1", false);
+		this.imageTimes[index] = (System.nanoTime() - time) / 1e6;
+		this.imageMetrics[index] = featureDetector.getMetrics();
+	}
+
+	/**
+	 * Helper function for getting the name of a generated image.
+	 */
+	private static String getImageName(int index) {
+		return (index / 2 + 1) + (index % 2 == 0 ? "_left" : "_right") + ".jpeg";
+	}
+
+	/**
+	 * Helper function for getting a counter of an image,
+	 * or zero if the counter was not recorded.
+	 */
+	private static long getCounter(ImageMetrics metrics, String counter) {
+		return metrics.hasCounter(counter) ? metrics.getCounter(counter) : 0;
+	}
+
+	/**
+	 * Helper function for resetting the peak usage of the heap.
+	 */
+	private static void resetPeakHeap() {
+		List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+		for(int i = 0; i < pools.size(); i++) {
+			if(pools.get(i).getType() == MemoryType.HEAP) {
+				pools.get(i).resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * Helper function for getting the peak usage of the heap since it was
+	 * last reset, in bytes, as the sum of the peaks of each heap pool.
+	 */
+	private static long getPeakHeap() {
+		long peak = 0;
+		List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+		for(int i = 0; i < pools.size(); i++) {
+			if(pools.get(i).getType() == MemoryType.HEAP) {
+				peak += pools.get(i).getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	/**
+	 * Helper function for copying values into a vector.
+	 */
+	private static Vector<Double> toVector(double [] values) {
+		Vector<Double> vector = new Vector<Double>();
+		for(int i = 0; i < values.length; i++) {
+			vector.add(values[i]);
+		}
+		return vector;
+	}
+
+	/**
+	 * Helper function for reading the lines of a file,
+	 * or an empty vector if the file cannot be read.
+	 */
+	private static Vector<String> readLines(String fileName) {
+		Vector<String> lines = new Vector<String>();
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new InputStreamReader(new FileInputStream(fileName), "UTF-8"));
+			String line;
+			while((line = br.readLine()) != null) {
+				lines.add(line);
+			}
+		} catch (IOException e) {
+			System.out.println("Failed to read " + fileName);
+		} finally {
+			if(br != null) {
+				try {
+					br.close();
+				} catch (IOException e) {
+					// Nothing left to release.
+				}
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Helper function for writing the report to a file.
+	 */
+	private static void writeReport(Vector<String> report, String fileName) {
+		PrintWriter writer = null;
+		try {
+			writer = new PrintWriter(fileName, "UTF-8");
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+			System.exit(0);
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+			System.exit(0);
+		}
+		for(int i = 0; i < report.size(); i++) {
+			writer.println(report.get(i));
+		}
+		writer.close();
+	}
+}
@@ -0,0 +1,394 @@
+package io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * An on disk store of the intermediate results of a pipeline, for starting
+ * later runs from the results already computed instead of from the image.
+ *
+ * Each checkpoint holds a set of named arrays and is stored in its own file
+ * within the store directory, named after its key. Keys are content
+ * addressed: a key is the hash of the image file contents together with
+ * every parameter that went into the results, so changing an image or a
+ * parameter upstream of a checkpoint leads to a different key, and the
+ * checkpoint is computed again instead of being reused.
+ *
+ * The values stored can be arrays of short, int and float values, and
+ * maps of boolean values. Checkpoint files are memory mapped when read.
+ *
+ * @author Peter Bugaj
+ */
+public class CheckpointStore {
+
+	/**
+	 * Value marking the start of a checkpoint file.
+	 */
+	private static final int MAGIC = 0x434B5031;
+
+	/**
+	 * The extension given to the checkpoint files.
+	 */
+	private static final String EXTENSION = ".ckpt";
+
+	/**
+	 * The type tag of an array of short values.
+	 */
+	private static final byte SHORTS = 1;
+
+	/**
+	 * The type tag of an array of int values.
+	 */
+	private static final byte INTS = 2;
+
+	/**
+	 * The type tag of an array of float values.
+	 */
+	private static final byte FLOATS = 3;
+
+	/**
+	 * The type tag of a map of boolean values.
+	 */
+	private static final byte BOOLEAN_MAP = 4;
+
+	/**
+	 * The directory containing the checkpoint files.
+	 */
+	private File storeDirectory = null;
+
+	/**
+	 * Create a new instance of the CheckpointStore class.
+	 *
+	 * @param storeDirectory
+	 * The directory to store the checkpoint files in. Created if missing.
+	 */
+	public CheckpointStore(String storeDirectory) {
+		this.storeDirectory = new File(storeDirectory);
+		this.storeDirectory.mkdirs();
+	}
+
+	/**
+	 * Get the directory containing the checkpoint files.
+	 */
+	public File getStoreDirectory() {
+		return this.storeDirectory;
+	}
+
+	/**
+	 * Get whether a checkpoint is stored.
+	 *
+	 * @param key
+	 * The key of the checkpoint.
+	 */
+	public boolean contains(String key) {
+		return getCheckpointFile(key).isFile();
+	}
+
+	/**
+	 * Read a checkpoint.
+	 *
+	 * @param key
+	 * The key of the checkpoint.
+	 * @return
+	 * The values of the checkpoint by name, or null if the checkpoint
+	 * is not stored or its file cannot be read.
+	 */
+	public Hashtable<String, Object> read(String key) {
+
+		File checkpoint_file = getCheckpointFile(key);
+		if(!checkpoint_file.isFile()) {
+			return null;
+		}
+
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(checkpoint_file, "r");
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			if(buffer.remaining() < 8 || buffer.getInt() != MAGIC) return null;
+			int count = buffer.getInt();
+
+			Hashtable<String, Object> values = new Hashtable<String, Object>();
+			for(int v = 0; v < count; v++) {
+				byte [] name = new byte[buffer.getInt()];
+				buffer.get(name);
+				byte type = buffer.get();
+
+				if(type == SHORTS) {
+					short [] array = new short[buffer.getInt()];
+					buffer.asShortBuffer().get(array);
+					buffer.position(buffer.position() + array.length * 2);
+					values.put(new String(name, "UTF-8"), array);
+				} else if(type == INTS) {
+					int [] array = new int[buffer.getInt()];
+					buffer.asIntBuffer().get(array);
+					buffer.position(buffer.position() + array.length * 4);
+					values.put(new String(name, "UTF-8"), array);
+				} else if(type == FLOATS) {
+					float [] array = new float[buffer.getInt()];
+					buffer.asFloatBuffer().get(array);
+					buffer.position(buffer.position() + array.length * 4);
+					values.put(new String(name, "UTF-8"), array);
+				} else if(type == BOOLEAN_MAP) {
+					boolean [][] map = new boolean[buffer.getInt()][buffer.getInt()];
+					for(int i = 0; i < map.length; i++) {
+						for(int j = 0; j < map[i].length; j++) {
+							map[i][j] = buffer.get() != 0;
+						}
+					}
+					values.put(new String(name, "UTF-8"), map);
+				} else {
+					return null;
+				}
+			}
+			return values;
+		} catch (IOException e) {
+			System.out.print("Failed to read checkpoint file\n");
+			e.printStackTrace();
+			return null;
+		} catch (RuntimeException e) {
+			System.out.print("Corrupt checkpoint file " + checkpoint_file + "\n");
+			return null;
+		} finally {
+			closeQuietly(file);
+		}
+	}
+
+	/**
+	 * Write a checkpoint. The checkpoint file is written under a temporary
+	 * name first, so other processes never read a partially written file.
+	 * The temporary file is created anew in the checkpoint directory, so no
+	 * two writers of any process share one.
+	 *
+	 * @param key
+	 * The key of the checkpoint.
+	 * @param values
+	 * The values of the checkpoint by name. Each value must be an array
+	 * of short, int or float values, or a map of boolean values.
+	 */
+	public void write(String key, Hashtable<String, Object> values) {
+
+		File checkpoint_file = getCheckpointFile(key);
+		File temp_file = null;
+
+		RandomAccessFile file = null;
+		try {
+			temp_file = File.createTempFile(checkpoint_file.getName() + ".", ".tmp", checkpoint_file.getParentFile());
+			file = new RandomAccessFile(temp_file, "rw");
+			FileChannel channel = file.getChannel();
+
+			ByteBuffer header = ByteBuffer.allocate(8);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(values.size());
+			header.flip();
+			writeFully(channel, header);
+
+			Enumeration<String> names = values.keys();
+			while(names.hasMoreElements()) {
+				String name = names.nextElement();
+				writeFully(channel, encode(name, values.get(name)));
+			}
+		} catch (IOException e) {
+			System.out.print("Failed to write checkpoint file\n");
+			e.printStackTrace();
+			closeQuietly(file);
+			if(temp_file != null) {
+				temp_file.delete();
+			}
+			return;
+		} finally {
+			closeQuietly(file);
+		}
+
+		if(!temp_file.renameTo(checkpoint_file)) {
+			checkpoint_file.delete();
+			if(!temp_file.renameTo(checkpoint_file)) {
+				System.out.print("Failed to store checkpoint file\n");
+				temp_file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Get the hash of the contents of a file, as a hexadecimal string.
+	 *
+	 * @param file
+	 * The file to hash.
+	 * @return
+	 * The hash of the file, or null if the file cannot be read.
+	 */
+	public static String hashFile(File file) {
+
+		MessageDigest digest = createDigest();
+		InputStream input = null;
+		try {
+			input = new FileInputStream(file);
+			byte [] buffer = new byte[64 * 1024];
+			int read;
+			while((read = input.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		} catch (IOException e) {
+			System.out.print("Failed to hash file " + file + "\n");
+			e.printStackTrace();
+			return null;
+		} finally {
+			if(input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					// Nothing left to release.
+				}
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Create the key of a checkpoint from the key or hash it builds
+	 * upon and the parameters that went into it.
+	 *
+	 * @param parts
+	 * The key or hash built upon, followed by the name of the
+	 * checkpoint and its parameters.
+	 * @return
+	 * The key, as a hexadecimal string.
+	 */
+	public static String createKey(String ... parts) {
+
+		MessageDigest digest = createDigest();
+		try {
+			for(int i = 0; i < parts.length; i++) {
+				digest.update(parts[i].getBytes("UTF-8"));
+				digest.update((byte) '\n');
+			}
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Helper function for getting the checkpoint file of a key.
+	 */
+	private File getCheckpointFile(String key) {
+		return new File(this.storeDirectory, key + EXTENSION);
+	}
+
+	/**
+	 * Helper function for encoding a named value of a checkpoint.
+	 */
+	private static ByteBuffer encode(String name, Object value) throws UnsupportedEncodingException {
+
+		byte [] name_bytes = name.getBytes("UTF-8");
+		ByteBuffer buffer;
+
+		if(value instanceof short[]) {
+			short [] array = (short[]) value;
+			buffer = allocate(name_bytes, SHORTS, 4 + array.length * 2);
+			buffer.putInt(array.length);
+			buffer.asShortBuffer().put(array);
+		} else if(value instanceof int[]) {
+			int [] array = (int[]) value;
+			buffer = allocate(name_bytes, INTS, 4 + array.length * 4);
+			buffer.putInt(array.length);
+			buffer.asIntBuffer().put(array);
+		} else if(value instanceof float[]) {
+			float [] array = (float[]) value;
+			buffer = allocate(name_bytes, FLOATS, 4 + array.length * 4);
+			buffer.putInt(array.length);
+			buffer.asFloatBuffer().put(array);
+		} else if(value instanceof boolean[][]) {
+			boolean [][] map = (boolean[][]) value;
+			int height = map.length == 0 ? 0 : map[0].length;
+			buffer = allocate(name_bytes, BOOLEAN_MAP, 8 + map.length * height);
+			buffer.putInt(map.length);
+			buffer.putInt(height);
+			for(int i = 0; i < map.length; i++) {
+				for(int j = 0; j < height; j++) {
+					buffer.put((byte) (map[i][j] ? 1 : 0));
+				}
+			}
+		} else {
+			throw new IllegalArgumentException("Cannot store checkpoint value " + name);
+		}
+
+		buffer.rewind();
+		return buffer;
+	}
+
+	/**
+	 * Helper function for allocating the buffer of a named value,
+	 * with its name and type already written.
+	 */
+	private static ByteBuffer allocate(byte [] name, byte type, int size) {
+		ByteBuffer buffer = ByteBuffer.allocate(4 + name.length + 1 + size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(name.length);
+		buffer.put(name);
+		buffer.put(type);
+		return buffer;
+	}
+
+	/**
+	 * Helper function for creating the digest used for hashing.
+	 */
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			System.exit(1);
+			return null;
+		}
+	}
+
+	/**
+	 * Helper function for writing bytes as a hexadecimal string.
+	 */
+	private static String toHex(byte [] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for(int i = 0; i < bytes.length; i++) {
+			hex.append(Integer.toHexString((bytes[i] >> 4) & 0xF));
+			hex.append(Integer.toHexString(bytes[i] & 0xF));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Helper function for writing the entire content of a buffer.
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Helper function for closing a file, ignoring any errors.
+	 */
+	private static void closeQuietly(RandomAccessFile file) {
+		if(file == null) return;
+		try {
+			file.close();
+		} catch (IOException e) {
+			// Nothing left to release.
+		}
+	}
+}
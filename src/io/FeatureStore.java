@@ -0,0 +1,520 @@
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * A single append-only binary file holding the features of every image of
+ * a batch, as an alternative to a text file of features for each image.
+ *
+ * The file starts with a header naming the columns of the features, which
+ * every image shares. After it comes one fixed-width row per image: the
+ * name of the image in NAME_BYTES bytes of zero padded UTF-8, followed by
+ * the value of each column as an 8 byte double. All numbers are big endian.
+ *
+ *   int     MAGIC
+ *   int     VERSION
+ *   int     version of the features
+ *   int     number of columns
+ *   column names, each as an int byte length followed by UTF-8 bytes
+ *   rows
+ *
+ * Rows are appended by any number of threads at once. Appending returns
+ * once the row is on disk, and the rows appended while one thread writes
+ * are written and forced to disk together by the next thread, so parallel
+ * workers share the cost of each force. A row cut short by a crash is
+ * dropped when the store is opened again.
+ *
+ * The index from image names to rows is built when the store is opened.
+ * An image appended more than once, such as an image processed again after
+ * a crash, is found at its last row. The rows are read through a read-only
+ * memory map of the file.
+ *
+ * Stores of the first version of the layout have no version of the
+ * features, and hold features of the first version.
+ *
+ * @author Peter Bugaj
+ */
+public class FeatureStore {
+
+	/**
+	 * The extension given to feature store files.
+	 */
+	public static final String EXTENSION = ".store";
+
+	/**
+	 * The number identifying a feature store file.
+	 */
+	private static final int MAGIC = 0x44524653;
+
+	/**
+	 * The version of the layout of the file.
+	 */
+	private static final int VERSION = 2;
+
+	/**
+	 * The number of bytes holding the name of the image of each row.
+	 */
+	public static final int NAME_BYTES = 48;
+
+	/**
+	 * The file of the store.
+	 */
+	private File file;
+
+	/**
+	 * The channel reading and writing the file.
+	 */
+	private FileChannel channel;
+
+	/**
+	 * The version of the features held by the store.
+	 */
+	private int featureVersion;
+
+	/**
+	 * The names of the columns, or null until the header is written.
+	 */
+	private String [] columnNames = null;
+
+	/**
+	 * The number of bytes of the header.
+	 */
+	private long headerBytes = 0;
+
+	/**
+	 * The number of bytes of each row.
+	 */
+	private int rowBytes = 0;
+
+	/**
+	 * The number of rows on disk.
+	 */
+	private int committedRows = 0;
+
+	/**
+	 * The number of rows appended, including those not yet on disk.
+	 */
+	private int appendedRows = 0;
+
+	/**
+	 * The rows appended and waiting to be written.
+	 */
+	private Vector<ByteBuffer> pending = new Vector<ByteBuffer>();
+
+	/**
+	 * The names of the images of the rows waiting to be written.
+	 */
+	private Vector<String> pendingNames = new Vector<String>();
+
+	/**
+	 * Whether a thread is writing rows.
+	 */
+	private boolean committing = false;
+
+	/**
+	 * The last row of each image on disk, by name.
+	 */
+	private Hashtable<String, Integer> index = new Hashtable<String, Integer>();
+
+	/**
+	 * The memory map of the rows on disk, or null if not yet mapped.
+	 */
+	private MappedByteBuffer rows = null;
+
+	/**
+	 * The number of rows covered by the memory map.
+	 */
+	private int mappedRows = 0;
+
+	/**
+	 * Open a feature store for reading, taking the version of the
+	 * features from the store.
+	 *
+	 * @param fileName
+	 * The name of the file of the store.
+	 * @param writable
+	 * Whether rows are to be appended to the store.
+	 */
+	public FeatureStore(String fileName, boolean writable) {
+		this(fileName, writable, -1);
+	}
+
+	/**
+	 * Open a feature store, creating its file if missing.
+	 *
+	 * @param fileName
+	 * The name of the file of the store.
+	 * @param writable
+	 * Whether rows are to be appended to the store.
+	 * @param featureVersion
+	 * The version of the features, which an existing store must hold,
+	 * or -1 to take the version of an existing store.
+	 */
+	public FeatureStore(String fileName, boolean writable, int featureVersion) {
+		this.file = new File(fileName);
+		this.featureVersion = featureVersion == -1 ? 1 : featureVersion;
+		try {
+			this.channel = new RandomAccessFile(this.file, writable ? "rw" : "r").getChannel();
+			if(this.channel.size() > 0) {
+				this.readHeader();
+				if(featureVersion != -1 && this.featureVersion != featureVersion) {
+					throw new IOException("Feature store " + fileName + " holds features of version " +
+						this.featureVersion + ", not " + featureVersion);
+				}
+				this.readIndex(writable);
+			}
+		} catch (IOException e) {
+			System.out.print("Failed to open feature store " + fileName + "\n");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Get the version of the features held by the store.
+	 */
+	public synchronized int getFeatureVersion() {
+		return this.featureVersion;
+	}
+
+	/**
+	 * Get the names of the columns, or null if no row was ever appended.
+	 */
+	public synchronized String [] getColumnNames() {
+		return this.columnNames;
+	}
+
+	/**
+	 * Get the number of rows on disk, including the rows of images
+	 * appended again later.
+	 */
+	public synchronized int getRowCount() {
+		return this.committedRows;
+	}
+
+	/**
+	 * Get the last row of an image, or -1 if the image has no row.
+	 *
+	 * @param imageName
+	 * The name of the image.
+	 */
+	public synchronized int findRow(String imageName) {
+		Integer row = this.index.get(imageName);
+		return row == null ? -1 : row;
+	}
+
+	/**
+	 * Get the name of the image of a row.
+	 *
+	 * @param row
+	 * The row, below the number of rows.
+	 */
+	public synchronized String getImageName(int row) {
+		ByteBuffer rows = this.mapRows();
+		int start = row * this.rowBytes;
+		int length = 0;
+		while(length < NAME_BYTES && rows.get(start + length) != 0) {
+			length++;
+		}
+		byte [] name = new byte[length];
+		for(int i = 0; i < length; i++) {
+			name[i] = rows.get(start + i);
+		}
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read the values of the columns of a row.
+	 *
+	 * @param row
+	 * The row, below the number of rows.
+	 * @param values
+	 * The array to read the values into, one per column.
+	 */
+	public synchronized void readRow(int row, double [] values) {
+		ByteBuffer rows = this.mapRows();
+		int start = row * this.rowBytes + NAME_BYTES;
+		for(int i = 0; i < this.columnNames.length; i++) {
+			values[i] = rows.getDouble(start + i * 8);
+		}
+	}
+
+	/**
+	 * Read the values of some of the columns of a row, leaving
+	 * the values of the other columns unread.
+	 *
+	 * @param row
+	 * The row, below the number of rows.
+	 * @param columns
+	 * The indexes of the columns to read.
+	 * @param values
+	 * The array to read the values into, in the order of the columns.
+	 * @param offset
+	 * The position in the array of the value of the first column.
+	 */
+	public synchronized void readColumns(int row, int [] columns, double [] values, int offset) {
+		ByteBuffer rows = this.mapRows();
+		int start = row * this.rowBytes + NAME_BYTES;
+		for(int i = 0; i < columns.length; i++) {
+			values[offset + i] = rows.getDouble(start + columns[i] * 8);
+		}
+	}
+
+	/**
+	 * Read the value of a column of a row.
+	 *
+	 * @param row
+	 * The row, below the number of rows.
+	 * @param column
+	 * The index of the column.
+	 */
+	public synchronized double getValue(int row, int column) {
+		return this.mapRows().getDouble(row * this.rowBytes + NAME_BYTES + column * 8);
+	}
+
+	/**
+	 * Append the features of an image as a row, returning once the row is
+	 * on disk. The header is written with the first row appended to a new
+	 * store, and every later row must have the same columns.
+	 *
+	 * @param imageName
+	 * The name of the image.
+	 * @param columnNames
+	 * The names of the columns.
+	 * @param values
+	 * The value of each column.
+	 */
+	public void append(String imageName, String [] columnNames, double [] values) {
+
+		byte [] name = imageName.getBytes(StandardCharsets.UTF_8);
+		if(name.length > NAME_BYTES) {
+			throw new IllegalArgumentException("Image name too long for the feature store: " + imageName);
+		}
+		if(columnNames.length != values.length) {
+			throw new IllegalArgumentException("Expected " + columnNames.length + " values but got " + values.length);
+		}
+
+		int sequence;
+		synchronized(this) {
+			if(this.columnNames == null) {
+				this.writeHeader(columnNames);
+			} else if(!Arrays.equals(this.columnNames, columnNames)) {
+				throw new IllegalArgumentException("Features of " + imageName + " do not match the columns of the store");
+			}
+
+			ByteBuffer row = ByteBuffer.allocate(this.rowBytes);
+			row.put(name);
+			row.position(NAME_BYTES);
+			for(int i = 0; i < values.length; i++) {
+				row.putDouble(values[i]);
+			}
+			row.flip();
+
+			this.pending.add(row);
+			this.pendingNames.add(imageName);
+			sequence = ++this.appendedRows;
+		}
+		this.commit(sequence);
+	}
+
+	/**
+	 * Close the file of the store.
+	 */
+	public synchronized void close() {
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			System.out.print("Failed to close feature store " + this.file + "\n");
+			e.printStackTrace();
+		}
+		this.rows = null;
+	}
+
+	/**
+	 * Helper function for waiting until the rows up to a sequence number are
+	 * on disk, writing them along with every other row waiting if no other
+	 * thread is writing.
+	 */
+	private void commit(int sequence) {
+
+		ByteBuffer [] batch;
+		Vector<String> batch_names;
+		int batch_end;
+		long position;
+		synchronized(this) {
+			while(this.committing && this.committedRows < sequence) {
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					System.out.print("Interrupted while waiting for the feature store\n");
+					e.printStackTrace();
+					System.exit(1);
+				}
+			}
+			if(this.committedRows >= sequence) {
+				return;
+			}
+
+			this.committing = true;
+			batch = this.pending.toArray(new ByteBuffer[this.pending.size()]);
+			batch_names = this.pendingNames;
+			batch_end = this.appendedRows;
+			position = this.headerBytes + (long) this.committedRows * this.rowBytes;
+			this.pending = new Vector<ByteBuffer>();
+			this.pendingNames = new Vector<String>();
+		}
+
+		// Write the batch without holding the lock, so more rows
+		// can be appended for the next batch meanwhile.
+		try {
+			this.channel.position(position);
+			long left = 0;
+			for(int i = 0; i < batch.length; i++) {
+				left += batch[i].remaining();
+			}
+			while(left > 0) {
+				left -= this.channel.write(batch);
+			}
+			this.channel.force(false);
+		} catch (IOException e) {
+			System.out.print("Failed to write to feature store " + this.file + "\n");
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		synchronized(this) {
+			for(int i = 0; i < batch_names.size(); i++) {
+				this.index.put(batch_names.get(i), this.committedRows + i);
+			}
+			this.committedRows = batch_end;
+			this.committing = false;
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Helper function for writing the header of a new store.
+	 */
+	private void writeHeader(String [] columnNames) {
+		int size = 16;
+		byte [][] names = new byte[columnNames.length][];
+		for(int i = 0; i < names.length; i++) {
+			names[i] = columnNames[i].getBytes(StandardCharsets.UTF_8);
+			size += 4 + names[i].length;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(size);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(this.featureVersion);
+		header.putInt(names.length);
+		for(int i = 0; i < names.length; i++) {
+			header.putInt(names[i].length);
+			header.put(names[i]);
+		}
+		header.flip();
+
+		try {
+			this.channel.position(0);
+			while(header.hasRemaining()) {
+				this.channel.write(header);
+			}
+			this.channel.force(true);
+		} catch (IOException e) {
+			System.out.print("Failed to write feature store header " + this.file + "\n");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		this.setColumns(columnNames.clone(), size);
+	}
+
+	/**
+	 * Helper function for reading the header of an existing store.
+	 */
+	private void readHeader() throws IOException {
+		ByteBuffer start = ByteBuffer.allocate(16);
+		this.channel.read(start, 0);
+		start.flip();
+		if(start.remaining() < 12 || start.getInt() != MAGIC) {
+			throw new IOException("Not a feature store: " + this.file);
+		}
+		int version = start.getInt();
+		if(version != 1 && version != VERSION) {
+			throw new IOException("Unknown feature store version: " + this.file);
+		}
+		if(version != 1 && start.remaining() < 8) {
+			throw new IOException("Not a feature store: " + this.file);
+		}
+		this.featureVersion = version == 1 ? 1 : start.getInt();
+		int count = start.getInt();
+		long position = version == 1 ? 12 : 16;
+
+		String [] column_names = new String[count];
+		ByteBuffer length = ByteBuffer.allocate(4);
+		for(int i = 0; i < count; i++) {
+			length.clear();
+			this.channel.read(length, position);
+			length.flip();
+			ByteBuffer name = ByteBuffer.allocate(length.getInt());
+			this.channel.read(name, position + 4);
+			column_names[i] = new String(name.array(), StandardCharsets.UTF_8);
+			position += 4 + name.capacity();
+		}
+		this.setColumns(column_names, position);
+	}
+
+	/**
+	 * Helper function for setting the columns and the layout they give.
+	 */
+	private void setColumns(String [] columnNames, long headerBytes) {
+		this.columnNames = columnNames;
+		this.headerBytes = headerBytes;
+		this.rowBytes = NAME_BYTES + columnNames.length * 8;
+	}
+
+	/**
+	 * Helper function for indexing the rows of an existing store,
+	 * dropping a last row cut short by a crash.
+	 */
+	private void readIndex(boolean writable) throws IOException {
+		long size = this.channel.size();
+		this.committedRows = (int) ((size - this.headerBytes) / this.rowBytes);
+		this.appendedRows = this.committedRows;
+		if(writable && size > this.headerBytes + (long) this.committedRows * this.rowBytes) {
+			this.channel.truncate(this.headerBytes + (long) this.committedRows * this.rowBytes);
+		}
+		for(int i = 0; i < this.committedRows; i++) {
+			this.index.put(this.getImageName(i), i);
+		}
+	}
+
+	/**
+	 * Helper function for getting the memory map of the rows on
+	 * disk, mapping the file again once more rows are written.
+	 */
+	private ByteBuffer mapRows() {
+		if(this.rows == null || this.mappedRows != this.committedRows) {
+			try {
+				this.rows = this.channel.map(
+					FileChannel.MapMode.READ_ONLY,
+					this.headerBytes,
+					(long) this.committedRows * this.rowBytes);
+			} catch (IOException e) {
+				System.out.print("Failed to map feature store " + this.file + "\n");
+				e.printStackTrace();
+				System.exit(1);
+			}
+			this.mappedRows = this.committedRows;
+		}
+		return this.rows;
+	}
+}
@@ -0,0 +1,329 @@
+package io;
+
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads upcoming images on background threads while the current image is
+ * being processed, handing the loaded images out in the order they were
+ * added.
+ *
+ * The number of images loaded ahead is bounded, and so is the memory they
+ * take up. The memory of each image is estimated from its header before it
+ * is loaded, and an image is only scheduled once the estimate fits within
+ * the memory cap next to the images already loaded ahead and the images
+ * handed out and not yet released. Every image handed out is held until
+ * it is released, so several threads may each process an image of their
+ * own while staying within the cap. A single image larger than the cap is
+ * still loaded once nothing else is held, so the batch always makes
+ * progress. The methods may be called from several threads.
+ *
+ * @author Peter Bugaj
+ */
+public class ImagePrefetcher {
+
+	/**
+	 * The number of images to load ahead of the image being processed.
+	 */
+	private int lookahead;
+
+	/**
+	 * The maximum number of bytes to hold in loaded images at once.
+	 */
+	private long memoryCap;
+
+	/**
+	 * The channels to decode for each image.
+	 */
+	private int [] channels;
+
+	/**
+	 * The factor to subsample each image by while decoding it.
+	 */
+	private int sourceSubsampling;
+
+	/**
+	 * The cache of decoded image planes, or null if not used.
+	 */
+	private PlaneCache planeCache;
+
+	/**
+	 * Whether to load only the decoded images, for streaming the
+	 * preprocessing steps, instead of copying them into channel planes.
+	 */
+	private boolean streaming = false;
+
+	/**
+	 * The filter deciding which images need to be loaded,
+	 * or null if every image is loaded.
+	 */
+	private LoadFilter loadFilter = null;
+
+	/**
+	 * The threads loading the images.
+	 */
+	private ExecutorService executor;
+
+	/**
+	 * The file names of the images added but not yet scheduled for loading.
+	 */
+	private LinkedList<String> pending = new LinkedList<String>();
+
+	/**
+	 * The estimated memory of the first pending image, or -1 if
+	 * not yet estimated.
+	 */
+	private long pendingMemory = -1;
+
+	/**
+	 * The images scheduled for loading, in the order they were added.
+	 */
+	private LinkedList<Future<ProcessedImage>> scheduled = new LinkedList<Future<ProcessedImage>>();
+
+	/**
+	 * The estimated memory of each image scheduled for loading.
+	 */
+	private LinkedList<Long> scheduledMemory = new LinkedList<Long>();
+
+	/**
+	 * The estimated memory of each image handed out and not yet released.
+	 */
+	private Hashtable<ProcessedImage, Long> handedOut = new Hashtable<ProcessedImage, Long>();
+
+	/**
+	 * The estimated memory of all images scheduled and handed out.
+	 */
+	private long heldMemory = 0;
+
+	/**
+	 * Create a new instance of the ImagePrefetcher class.
+	 *
+	 * @param lookahead
+	 * The number of images to load ahead of the image being processed.
+	 * @param threads
+	 * The number of threads to load the images with.
+	 * @param memoryCap
+	 * The maximum number of bytes to hold in loaded images at once.
+	 * @param channels
+	 * The channels to decode for each image.
+	 * @param sourceSubsampling
+	 * The factor to subsample each image by while decoding it.
+	 * @param planeCache
+	 * The cache of decoded image planes, or null if not used.
+	 */
+	public ImagePrefetcher(
+			int lookahead,
+			int threads,
+			long memoryCap,
+			int [] channels,
+			int sourceSubsampling,
+			PlaneCache planeCache) {
+
+		this.lookahead = Math.max(1, lookahead);
+		this.memoryCap = memoryCap;
+		this.channels = channels;
+		this.sourceSubsampling = sourceSubsampling;
+		this.planeCache = planeCache;
+
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "image-prefetch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Set whether to load only the decoded images, for streaming the
+	 * preprocessing steps. Must be set before adding any images.
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Get whether only the decoded images are loaded.
+	 */
+	public boolean getStreaming() {
+		return this.streaming;
+	}
+
+	/**
+	 * Set the filter deciding which images need to be loaded. Images not
+	 * needing to be loaded are handed out with only their file name set.
+	 * Must be set before adding any images.
+	 */
+	public void setLoadFilter(LoadFilter loadFilter) {
+		this.loadFilter = loadFilter;
+	}
+
+	/**
+	 * Get the filter deciding which images need to be loaded,
+	 * or null if every image is loaded.
+	 */
+	public LoadFilter getLoadFilter() {
+		return this.loadFilter;
+	}
+
+	/**
+	 * Add an image to be loaded.
+	 *
+	 * @param imageFileName
+	 * The file name of the image.
+	 */
+	public synchronized void add(String imageFileName) {
+		this.pending.add(imageFileName);
+		schedule();
+	}
+
+	/**
+	 * Get the next loaded image, in the order the images were added,
+	 * waiting for it to finish loading if needed. The memory of the image
+	 * stays held until the image is released. When the memory cap keeps
+	 * the next image from being loaded, waits for images handed out before
+	 * to be released.
+	 *
+	 * The wait for an image to finish loading does not hold the lock on
+	 * the prefetcher, so threads asking at once each wait for their own
+	 * image, and may get them back in any order.
+	 *
+	 * @return
+	 * The loaded image, or null if no more images were added.
+	 */
+	public ProcessedImage next() {
+
+		Future<ProcessedImage> future;
+		long memory;
+		synchronized(this) {
+			schedule();
+			while(this.scheduled.isEmpty() && !this.pending.isEmpty()) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					System.out.print("Interrupted while waiting for image\n");
+					e.printStackTrace();
+					System.exit(1);
+				}
+				schedule();
+			}
+
+			if(this.scheduled.isEmpty()) {
+				return null;
+			}
+
+			future = this.scheduled.removeFirst();
+			memory = this.scheduledMemory.removeFirst();
+		}
+
+		ProcessedImage image = null;
+		try {
+			image = future.get();
+		} catch (InterruptedException e) {
+			System.out.print("Interrupted while waiting for image\n");
+			e.printStackTrace();
+			System.exit(1);
+		} catch (ExecutionException e) {
+			System.out.print("Failed to load image\n");
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		synchronized(this) {
+			this.handedOut.put(image, memory);
+		}
+		return image;
+	}
+
+	/**
+	 * Release the memory of an image handed out, once it is no longer
+	 * being processed, letting further images be loaded in its place.
+	 *
+	 * @param image
+	 * The image handed out, or null.
+	 */
+	public synchronized void release(ProcessedImage image) {
+		if(image == null) {
+			return;
+		}
+		Long memory = this.handedOut.remove(image);
+		if(memory == null) {
+			return;
+		}
+		this.heldMemory -= memory;
+		schedule();
+		notifyAll();
+	}
+
+	/**
+	 * Stop the threads loading the images.
+	 */
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * Helper function for scheduling pending images for loading, as long
+	 * as the lookahead and the memory cap allow. Must be called while
+	 * holding the lock on the prefetcher.
+	 */
+	private void schedule() {
+
+		while(!this.pending.isEmpty() && this.scheduled.size() < this.lookahead) {
+
+			final String image_file_name = this.pending.getFirst();
+			if(this.pendingMemory < 0) {
+				this.pendingMemory = Math.max(0, ProcessedImage.estimateMemory(
+					image_file_name, this.streaming ? 0 : this.channels.length, this.sourceSubsampling));
+			}
+			long memory = this.pendingMemory;
+
+			if(this.heldMemory > 0 && this.heldMemory + memory > this.memoryCap) {
+				break;
+			}
+
+			this.pending.removeFirst();
+			this.pendingMemory = -1;
+			this.heldMemory += memory;
+			this.scheduledMemory.add(memory);
+			this.scheduled.add(this.executor.submit(new Callable<ProcessedImage>() {
+				public ProcessedImage call() {
+					ProcessedImage image = new ProcessedImage();
+					image.setSourceSubsampling(sourceSubsampling);
+					image.setPlaneCache(planeCache);
+					image.setImageFileName(image_file_name);
+					if(loadFilter != null && !loadFilter.needsImage(image)) {
+						return image;
+					}
+					if(streaming) {
+						image.loadImageBuffer(image_file_name);
+					} else {
+						image.loadImageData(image_file_name, channels);
+					}
+					return image;
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Decides, on the threads loading the images, whether an image needs
+	 * to be loaded at all, such as when its results are already stored.
+	 */
+	public static abstract class LoadFilter {
+
+		/**
+		 * Get whether an image needs to be loaded.
+		 *
+		 * @param image
+		 * The image, not yet loaded, with its file name set.
+		 */
+		public abstract boolean needsImage(ProcessedImage image);
+	}
+}
@@ -0,0 +1,147 @@
+package io;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+
+/**
+ * Reads the red, green and blue values of the centered region of a decoded
+ * image, a strip of rows at a time.
+ *
+ * The values are read straight from the bands of the raster when it holds
+ * plain sRGB values in red, green, blue order. Otherwise the image converts
+ * its pixels to RGB values first.
+ *
+ * @author Peter Bugaj
+ */
+public class ImageStripReader {
+
+	/**
+	 * The decoded image.
+	 */
+	private BufferedImage image;
+
+	/**
+	 * The raster of the image, or null if its bands cannot be read directly.
+	 */
+	private Raster raster;
+
+	/**
+	 * The x location of the region within the image.
+	 */
+	private int xOffset;
+
+	/**
+	 * The y location of the region within the image.
+	 */
+	private int yOffset;
+
+	/**
+	 * The width of the region.
+	 */
+	private int width;
+
+	/**
+	 * The height of the region.
+	 */
+	private int height;
+
+	/**
+	 * Buffer for the converted RGB values, when the bands
+	 * of the raster cannot be read directly.
+	 */
+	private int [] rgb = null;
+
+	/**
+	 * Create a new instance of the ImageStripReader class.
+	 *
+	 * @param image
+	 * The decoded image.
+	 * @param width
+	 * The width of the region to read, centered within the image.
+	 * @param height
+	 * The height of the region to read, centered within the image.
+	 */
+	public ImageStripReader(BufferedImage image, int width, int height) {
+		this.image = image;
+		this.width = width;
+		this.height = height;
+		this.xOffset = width < image.getWidth() ? (image.getWidth() - width) / 2 : 0;
+		this.yOffset = height < image.getHeight() ? (image.getHeight() - height) / 2 : 0;
+		this.raster = hasDirectRGBSamples(image) ? image.getRaster() : null;
+	}
+
+	/**
+	 * Get the width of the region.
+	 */
+	public int getWidth() {
+		return this.width;
+	}
+
+	/**
+	 * Get the height of the region.
+	 */
+	public int getHeight() {
+		return this.height;
+	}
+
+	/**
+	 * Read a strip of rows of the region. The values are stored row by
+	 * row, so the value at (x, row + n) lands at index n * width + x.
+	 *
+	 * @param row
+	 * The first row of the strip within the region.
+	 * @param rows
+	 * The number of rows of the strip.
+	 * @param red
+	 * The array to store the red values in, or null if not needed.
+	 * @param green
+	 * The array to store the green values in, or null if not needed.
+	 * @param blue
+	 * The array to store the blue values in, or null if not needed.
+	 */
+	public void readRows(int row, int rows, int [] red, int [] green, int [] blue) {
+
+		if(this.raster != null) {
+			if(red != null) {
+				this.raster.getSamples(this.xOffset, this.yOffset + row, this.width, rows, 0, red);
+			}
+			if(green != null) {
+				this.raster.getSamples(this.xOffset, this.yOffset + row, this.width, rows, 1, green);
+			}
+			if(blue != null) {
+				this.raster.getSamples(this.xOffset, this.yOffset + row, this.width, rows, 2, blue);
+			}
+			return;
+		}
+
+		int size = this.width * rows;
+		if(this.rgb == null || this.rgb.length < size) {
+			this.rgb = new int[size];
+		}
+		this.image.getRGB(this.xOffset, this.yOffset + row, this.width, rows, this.rgb, 0, this.width);
+
+		for(int k = 0; k < size; k++) {
+			if(red != null) red[k] = (this.rgb[k] >> 16) & 0xFF;
+			if(green != null) green[k] = (this.rgb[k] >> 8) & 0xFF;
+			if(blue != null) blue[k] = this.rgb[k] & 0xFF;
+		}
+	}
+
+	/**
+	 * Helper function for determining whether the raster of an image
+	 * stores sRGB values with the red, green and blue values in the
+	 * first three bands.
+	 */
+	private static boolean hasDirectRGBSamples(BufferedImage image) {
+		switch(image.getType()) {
+			case BufferedImage.TYPE_3BYTE_BGR:
+			case BufferedImage.TYPE_4BYTE_ABGR:
+			case BufferedImage.TYPE_INT_RGB:
+			case BufferedImage.TYPE_INT_BGR:
+			case BufferedImage.TYPE_INT_ARGB:
+				return true;
+			default:
+				return false;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package io;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the output of the images processed on background threads, so the
+ * threads processing the images go on with the next image instead of
+ * waiting on the storage the output is written to.
+ *
+ * The number of writes waiting is bounded. Once the bound is reached,
+ * submitting a write blocks until an earlier write is done, so output
+ * piling up behind slow storage slows the processing down instead of
+ * taking up more and more memory.
+ *
+ * @author Peter Bugaj
+ */
+public class OutputQueue {
+
+	/**
+	 * The threads writing the output.
+	 */
+	private ExecutorService executor;
+
+	/**
+	 * The permits for the writes submitted and not yet done, one for
+	 * each write being written or waiting.
+	 */
+	private Semaphore permits;
+
+	/**
+	 * Create a new instance of the OutputQueue class.
+	 *
+	 * @param threads
+	 * The number of threads to write the output with.
+	 * @param capacity
+	 * The number of writes waiting for a thread, beyond those being
+	 * written, before submitting more writes blocks.
+	 */
+	public OutputQueue(int threads, int capacity) {
+		threads = Math.max(1, threads);
+		this.permits = new Semaphore(threads + Math.max(0, capacity));
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "output-writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Submit a write, blocking while the queue is full.
+	 *
+	 * @param write
+	 * The write to run on one of the threads of the queue.
+	 */
+	public void submit(final Runnable write) {
+		try {
+			this.permits.acquire();
+		} catch (InterruptedException e) {
+			System.out.print("Interrupted while waiting to queue output\n");
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		this.executor.execute(new Runnable() {
+			public void run() {
+				try {
+					write.run();
+				} finally {
+					OutputQueue.this.permits.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait for every write submitted to be done, and stop the threads.
+	 */
+	public void shutdown() {
+		this.executor.shutdown();
+		try {
+			while(!this.executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				System.out.print("Waiting for the output to be written\n");
+			}
+		} catch (InterruptedException e) {
+			System.out.print("Interrupted while waiting for the output to be written\n");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
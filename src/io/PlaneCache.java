@@ -0,0 +1,254 @@
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+import tools.structures.ImageRaster;
+
+/**
+ * An on disk cache of the decoded and cropped channel planes of images.
+ *
+ * Each image is stored in its own file within the cache directory, named
+ * after the image file. The file starts with a header recording the size
+ * and modification time of the image file it was decoded from, the channels
+ * stored and the subsampling used, followed by the raw planes of the image
+ * in the same column by column layout as ImageRaster. A cache file is only
+ * used when its header matches the image file being loaded, so changing an
+ * image on disk causes it to be decoded again.
+ *
+ * Cache files are memory mapped when read, so loading an image costs one
+ * bulk copy per plane instead of a full JPEG decode.
+ *
+ * @author Peter Bugaj
+ */
+public class PlaneCache {
+
+	/**
+	 * Value marking the start of a cache file.
+	 */
+	private static final int MAGIC = 0x504C4E31;
+
+	/**
+	 * The size of the header of a cache file, in bytes.
+	 */
+	private static final int HEADER_SIZE = 4 + 8 + 8 + 4 + 4 + 4 + 4;
+
+	/**
+	 * The extension given to the cache files.
+	 */
+	private static final String EXTENSION = ".planes";
+
+	/**
+	 * The size of the buffer the planes are written through, in bytes.
+	 * The planes are written a part at a time on the heap, so writing
+	 * a large image holds no direct memory of the size of a plane.
+	 */
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The directory containing the cache files.
+	 */
+	private File cacheDirectory = null;
+
+	/**
+	 * Create a new instance of the PlaneCache class.
+	 *
+	 * @param cacheDirectory
+	 * The directory to store the cache files in. Created if missing.
+	 */
+	public PlaneCache(String cacheDirectory) {
+		this.cacheDirectory = new File(cacheDirectory);
+		this.cacheDirectory.mkdirs();
+	}
+
+	/**
+	 * Get the directory containing the cache files.
+	 */
+	public File getCacheDirectory() {
+		return this.cacheDirectory;
+	}
+
+	/**
+	 * Read the cached planes of an image.
+	 *
+	 * @param imageFile
+	 * The image file the planes were decoded from.
+	 * @param channels
+	 * The channels required, from the channel constants of ImageRaster.
+	 * @param subsampling
+	 * The subsampling factor the planes must have been decoded with.
+	 * @return
+	 * The cached image, or null if the image is not cached or the
+	 * cache file does not match the image file anymore.
+	 */
+	public ImageRaster read(File imageFile, int [] channels, int subsampling) {
+
+		File cache_file = getCacheFile(imageFile);
+		if(!cache_file.isFile()) {
+			return null;
+		}
+
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(cache_file, "r");
+			FileChannel channel = file.getChannel();
+			if(channel.size() < HEADER_SIZE) {
+				return null;
+			}
+
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			if(buffer.getInt() != MAGIC) return null;
+			if(buffer.getLong() != imageFile.length()) return null;
+			if(buffer.getLong() != imageFile.lastModified()) return null;
+			if(buffer.getInt() != subsampling) return null;
+			int channel_mask = buffer.getInt();
+			if(channel_mask != getChannelMask(channels)) return null;
+			int width = buffer.getInt();
+			int height = buffer.getInt();
+
+			int plane_size = width * height;
+			if(channel.size() != HEADER_SIZE + (long) Integer.bitCount(channel_mask) * plane_size * 2) {
+				return null;
+			}
+
+			short [][] planes = new short[ImageRaster.SUM + 1][];
+			ShortBuffer values = buffer.asShortBuffer();
+			for(int c = 0; c < planes.length; c++) {
+				if((channel_mask & (1 << c)) == 0) continue;
+				planes[c] = new short[plane_size];
+				values.get(planes[c]);
+			}
+
+			return new ImageRaster(width, height, planes);
+		} catch (IOException e) {
+			System.out.print("Failed to read plane cache file\n");
+			e.printStackTrace();
+			return null;
+		} finally {
+			closeQuietly(file);
+		}
+	}
+
+	/**
+	 * Write the planes of an image to the cache. The cache file is written
+	 * under a temporary name first, so other processes never read a
+	 * partially written file. The temporary file is created anew in the
+	 * cache directory, so no two writers of any process share one.
+	 *
+	 * @param imageFile
+	 * The image file the planes were decoded from.
+	 * @param image
+	 * The decoded image to cache.
+	 * @param channels
+	 * The channels of the image to store.
+	 * @param subsampling
+	 * The subsampling factor the planes were decoded with.
+	 */
+	public void write(File imageFile, ImageRaster image, int [] channels, int subsampling) {
+
+		File cache_file = getCacheFile(imageFile);
+		File temp_file = null;
+
+		int channel_mask = getChannelMask(channels);
+		int plane_size = image.getWidth() * image.getHeight();
+
+		RandomAccessFile file = null;
+		try {
+			temp_file = File.createTempFile(cache_file.getName() + ".", ".tmp", cache_file.getParentFile());
+			file = new RandomAccessFile(temp_file, "rw");
+			FileChannel channel = file.getChannel();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putLong(imageFile.length());
+			header.putLong(imageFile.lastModified());
+			header.putInt(subsampling);
+			header.putInt(channel_mask);
+			header.putInt(image.getWidth());
+			header.putInt(image.getHeight());
+			header.flip();
+			writeFully(channel, header);
+
+			ByteBuffer data = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+			data.order(ByteOrder.LITTLE_ENDIAN);
+			int part_size = WRITE_BUFFER_SIZE / 2;
+			for(int c = 0; c <= ImageRaster.SUM; c++) {
+				if((channel_mask & (1 << c)) == 0) continue;
+				short [] plane = image.getPlane(c);
+				for(int start = 0; start < plane_size; start += part_size) {
+					int count = Math.min(part_size, plane_size - start);
+					data.clear();
+					data.asShortBuffer().put(plane, start, count);
+					data.limit(count * 2);
+					writeFully(channel, data);
+				}
+			}
+		} catch (IOException e) {
+			System.out.print("Failed to write plane cache file\n");
+			e.printStackTrace();
+			closeQuietly(file);
+			if(temp_file != null) {
+				temp_file.delete();
+			}
+			return;
+		} finally {
+			closeQuietly(file);
+		}
+
+		if(!temp_file.renameTo(cache_file)) {
+			cache_file.delete();
+			if(!temp_file.renameTo(cache_file)) {
+				System.out.print("Failed to store plane cache file\n");
+				temp_file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Helper function for getting the cache file of an image file.
+	 */
+	private File getCacheFile(File imageFile) {
+		return new File(this.cacheDirectory, imageFile.getName() + EXTENSION);
+	}
+
+	/**
+	 * Helper function for getting a bit mask of the channels specified.
+	 */
+	private static int getChannelMask(int [] channels) {
+		int mask = 0;
+		for(int i = 0; i < channels.length; i++) {
+			mask |= 1 << channels[i];
+		}
+		return mask;
+	}
+
+	/**
+	 * Helper function for writing the entire content of a buffer.
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Helper function for closing a file, ignoring any errors.
+	 */
+	private static void closeQuietly(RandomAccessFile file) {
+		if(file == null) return;
+		try {
+			file.close();
+		} catch (IOException e) {
+			// Nothing left to release.
+		}
+	}
+}
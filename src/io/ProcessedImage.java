@@ -1,12 +1,18 @@
 package io;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.PixelGrabber;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import tools.structures.ImageRaster;
 
 /**
  * Data structure containing information about the image being processed.
@@ -27,26 +33,56 @@ public class ProcessedImage {
 	 */
 	private static final int MAX_HEIGHT = 2500;
 
+	/**
+	 * The number of image rows decoded at once when
+	 * copying the image into the image source planes.
+	 */
+	private static final int DECODE_STRIP_ROWS = 64;
+
+	/**
+	 * The channels decoded when no channels are specified.
+	 */
+	private static final int [] RGB_CHANNELS = new int[]{
+		ImageRaster.RED, ImageRaster.GREEN, ImageRaster.BLUE};
+
 	/**
 	 * The image source matrix.
 	 */
-	private short[][][] imageSource = null;
+	private ImageRaster imageSource = null;
 	
 	/**
 	 * The data object for processing the image.
 	 */
 	private BufferedImage imageBuffered;
 
-	
 	/**
-	 * Tool for getting pixel information from the image.
+	 * The factor to scale the image down by when writing the image
+	 * source to the buffer, for producing smaller preview images.
+	 */
+	private int previewScale = 1;
+
+	/**
+	 * The factor to subsample the image by while decoding it. A factor
+	 * of one decodes every pixel, a factor of two every second pixel
+	 * along each axis, and so on.
+	 */
+	private int sourceSubsampling = 1;
+
+	/**
+	 * The cache of decoded image planes to read the image from,
+	 * or null if images are always decoded.
+	 */
+	private PlaneCache planeCache = null;
+
+	/**
+	 * The file name the image is loaded from, or null if not known.
 	 */
-	private PixelGrabber pixelGrabber;
+	private String imageFileName = null;
 
 	/**
-	 * Tool for getting pixel information from the image using the colorModel.
+	 * The hash of the contents of the image file, or null if not yet computed.
 	 */
-	private ColorModel colorModel;
+	private String contentHash = null;
 
 	/**
 	 * The width of the image.
@@ -66,49 +102,148 @@ public class ProcessedImage {
 	 * The file name to load the source image from.
 	 */
 	public void loadImageData(String imageFileName) {
+		loadImageData(imageFileName, RGB_CHANNELS);
+	}
+
+	/**
+	 * Load image data from an image file, decoding only the channels
+	 * specified into the image source. Channels not listed are left
+	 * unallocated within the image source.
+	 * 
+	 * @param imageFileName
+	 * The file name to load the source image from.
+	 * @param channels
+	 * The channels to decode, from the channel constants of ImageRaster.
+	 */
+	public void loadImageData(String imageFileName, int [] channels) {
 		
 		File imageFile = new File(imageFileName);
+		this.imageFileName = imageFileName;
+
+		// Use the decoded planes stored in the cache if available.
+		if(this.planeCache != null) {
+			ImageRaster cached_image = this.planeCache.read(imageFile, channels, this.sourceSubsampling);
+			if(cached_image != null) {
+				this.imageSource = cached_image;
+				this.width = cached_image.getWidth();
+				this.height = cached_image.getHeight();
+				this.imageBuffered = null;
+				return;
+			}
+		}
+
 		try {
-			this.imageBuffered = ImageIO.read(imageFile);
+			this.imageBuffered = readCroppedImage(imageFile, this.sourceSubsampling);
 		} catch (IOException e) {
 			System.out.print("Failed to read image file\n");
 			e.printStackTrace();
 			System.exit(1);
 		}
-		this.width = getCroppedImageWidth(this.imageBuffered);
-		this.height = getCroppedImageHeigth(this.imageBuffered);
+		this.width = this.imageBuffered.getWidth();
+		this.height = this.imageBuffered.getHeight();
+
 
-		
 		/**--------------------------------------------------------------**/
-		/**Initialize the useful tools for processing the image**/
-		this.pixelGrabber = new PixelGrabber(
-				this.imageBuffered, 0, 0, 1, 1, false);
+		/**Initialize the cropped image.**/
+		this.imageSource = getCroppedImage(this.imageBuffered, this.width, this.height, channels);
+
+		// The decoded image is not needed anymore once its planes are
+		// copied. A new buffer is created when writing the results.
+		this.imageBuffered.flush();
+		this.imageBuffered = null;
+
+		if(this.planeCache != null) {
+			this.planeCache.write(imageFile, this.imageSource, channels, this.sourceSubsampling);
+		}
+	}
+	
+	/**
+	 * Load only the decoded image from an image file, without copying it
+	 * into the planes of an image source. The decoded image is kept as the
+	 * buffered image, for processing it a strip of rows at a time. The
+	 * cache of decoded image planes is not used.
+	 * 
+	 * @param imageFileName
+	 * The file name to load the image from.
+	 */
+	public void loadImageBuffer(String imageFileName) {
+
+		this.imageFileName = imageFileName;
 		try {
-			this.pixelGrabber.grabPixels();
-		} catch (InterruptedException e) {
-			System.out.print("Failed to grab image pixels\n");
+			this.imageBuffered = readCroppedImage(new File(imageFileName), this.sourceSubsampling);
+		} catch (IOException e) {
+			System.out.print("Failed to read image file\n");
 			e.printStackTrace();
 			System.exit(1);
 		}
-		this.colorModel = this.pixelGrabber.getColorModel();
+		this.width = this.imageBuffered.getWidth();
+		this.height = this.imageBuffered.getHeight();
+		this.imageSource = null;
+	}
 
+	/**
+	 * Copy an image loaded by loadImageBuffer into channel planes.
+	 * 
+	 * @param image
+	 * The decoded image, already cropped to the region to process.
+	 * @param channels
+	 * The channels to decode, from the channel constants of ImageRaster.
+	 * @return
+	 * The image with the channel planes requested.
+	 */
+	public static ImageRaster decodeImage(BufferedImage image, int [] channels) {
+		return getCroppedImage(image, image.getWidth(), image.getHeight(), channels);
+	}
 
-		/**--------------------------------------------------------------**/
-		/**Initialize the cropped image.**/
-		this.imageSource = getCroppedImage(this.imageBuffered, this.width, this.height, this.colorModel);
+	/**
+	 * Set the file name the image is loaded from, for an image whose
+	 * loading is left to the code processing it.
+	 */
+	public void setImageFileName(String imageFileName) {
+		this.imageFileName = imageFileName;
+		this.contentHash = null;
 	}
-	
+
+	/**
+	 * Get the file name the image is loaded from, or null if not known.
+	 */
+	public String getImageFileName() {
+		return this.imageFileName;
+	}
+
+	/**
+	 * Get the hash of the contents of the image file, computing it on first
+	 * use. The hash identifies the image for the checkpoints of a CheckpointStore.
+	 * 
+	 * @return
+	 * The hash, or null if the file of the image is not known or cannot be read.
+	 */
+	public synchronized String getContentHash() {
+		if(this.contentHash == null && this.imageFileName != null) {
+			this.contentHash = CheckpointStore.hashFile(new File(this.imageFileName));
+		}
+		return this.contentHash;
+	}
+
+	/**
+	 * Get whether the image has been loaded, either into the planes
+	 * of the image source or as the decoded image only.
+	 */
+	public boolean isLoaded() {
+		return this.imageSource != null || this.imageBuffered != null;
+	}
+
 	/**
 	 * Set the image source.
 	 */
-	public void setImageSource(short[][][] imageSource) {
+	public void setImageSource(ImageRaster imageSource) {
 		this.imageSource = imageSource;
 	}
 
 	/**
 	 * Get the image source.
 	 */
-	public short[][][] getImageSource() {
+	public ImageRaster getImageSource() {
 		return this.imageSource;
 	}
 	
@@ -127,31 +262,47 @@ public class ProcessedImage {
 	}
 	
 	/**
-	 * Set the pixel grabber.
+	 * Set the factor to scale the image down by when writing
+	 * the image source to the buffer.
 	 */
-	public void setPixelGrabber(PixelGrabber pixelGrabber) {
-		this.pixelGrabber = pixelGrabber;
+	public void setPreviewScale(int previewScale) {
+		this.previewScale = previewScale;
 	}
 
 	/**
-	 * Get the pixel grabber.
+	 * Get the factor to scale the image down by when writing
+	 * the image source to the buffer.
 	 */
-	public PixelGrabber getPixelGrabber() {
-		return this.pixelGrabber;
+	public int getPreviewScale() {
+		return this.previewScale;
 	}
-	
+
 	/**
-	 * Set the color model.
+	 * Set the factor to subsample the image by while decoding it.
 	 */
-	public void setColorModel(ColorModel colorModel) {
-		this.colorModel = colorModel;
+	public void setSourceSubsampling(int sourceSubsampling) {
+		this.sourceSubsampling = sourceSubsampling;
 	}
 
 	/**
-	 * Get the color model.
+	 * Get the factor to subsample the image by while decoding it.
 	 */
-	public ColorModel getColorModel() {
-		return this.colorModel;
+	public int getSourceSubsampling() {
+		return this.sourceSubsampling;
+	}
+
+	/**
+	 * Set the cache of decoded image planes.
+	 */
+	public void setPlaneCache(PlaneCache planeCache) {
+		this.planeCache = planeCache;
+	}
+
+	/**
+	 * Get the cache of decoded image planes.
+	 */
+	public PlaneCache getPlaneCache() {
+		return this.planeCache;
 	}
 
 	/**
@@ -186,35 +337,71 @@ public class ProcessedImage {
 	 * Flush any stored data.
 	 */
 	public void flush() {
-		this.imageBuffered.flush();
+		if(this.imageBuffered != null) {
+			this.imageBuffered.flush();
+		}
 		this.imageSource = null;
 	}
 	
 	/**
-	 * Write the image source to the buffer.
+	 * Write the image source to the buffer. The colours of the image source
+	 * are inverted, and if a preview scale is set, each block of pixels of
+	 * the preview scale in size is averaged into one pixel of the buffer.
 	 */
 	public void updateBufferedImageWithSoure() {
-		try {
-			this.imageBuffered = this.imageBuffered.getSubimage(0, 0,
-					getCroppedImageWidth(this.imageBuffered),
-					getCroppedImageHeigth(this.imageBuffered));
-		} catch (Exception e) {
-			e.printStackTrace();
-			System.exit(1);
-		}
 
-		for(int i = 0; i < this.width; i++) {
-			for(int j = 0; j < this.height; j++) {
-
-				int r = (int) this.imageSource[i][j][0];
-				int g = (int) this.imageSource[i][j][1];
-				int b = (int) this.imageSource[i][j][2];
+		int scale = Math.max(1, Math.min(this.previewScale, Math.min(this.width, this.height)));
+		int buffer_width = this.width / scale;
+		int buffer_height = this.height / scale;
+
+		this.imageBuffered = new BufferedImage(buffer_width, buffer_height, BufferedImage.TYPE_INT_RGB);
+		int [] pixels = ((DataBufferInt) this.imageBuffered.getRaster().getDataBuffer()).getData();
+
+		short [] red = this.imageSource.getPlane(0);
+		short [] green = this.imageSource.getPlane(1);
+		short [] blue = this.imageSource.getPlane(2);
+
+		if(scale == 1) {
+			for(int i = 0; i < this.width; i++) {
+				int index = i * this.height;
+				for(int j = 0; j < this.height; j++) {
+					pixels[j * buffer_width + i] =
+						(invertColour(red[index + j]) << 16) |
+						(invertColour(green[index + j]) << 8) |
+						invertColour(blue[index + j]);
+				}
+			}
+			return;
+		}
 
-				float new_colour [] = {256-r,256-g,256-b,1};
-				this.imageBuffered.setRGB(i,j,
-						colorModel.getDataElement(new_colour, 0));
+		int block_size = scale * scale;
+		int [] sums = new int[buffer_width * buffer_height * 3];
+		for(int i = 0; i < buffer_width * scale; i++) {
+			int index = i * this.height;
+			int x = i / scale;
+			for(int j = 0; j < buffer_height * scale; j++) {
+				int sum_index = ((j / scale) * buffer_width + x) * 3;
+				sums[sum_index] += invertColour(red[index + j]);
+				sums[sum_index + 1] += invertColour(green[index + j]);
+				sums[sum_index + 2] += invertColour(blue[index + j]);
 			}
 		}
+		for(int k = 0; k < pixels.length; k++) {
+			pixels[k] =
+				((sums[k * 3] / block_size) << 16) |
+				((sums[k * 3 + 1] / block_size) << 8) |
+				(sums[k * 3 + 2] / block_size);
+		}
+	}
+
+	/**
+	 * Helper function for inverting a colour value of the image source
+	 * for output. Matches the conversion of the inverted value into an
+	 * eight bit colour component by the default RGB colour model,
+	 * including how values outside of the colour range wrap around.
+	 */
+	private static int invertColour(short value) {
+		return ((int) ((256 - value) * 255.0f + 0.5f)) & 0xFF;
 	}
 	
 	/**
@@ -239,54 +426,160 @@ public class ProcessedImage {
 	}
 	
 	/**
-	 * Helper function for getting the width of a cropped image.
+	 * Estimate the memory needed for loading an image, from the size of
+	 * the image recorded in the header of the image file. Covers both the
+	 * decoded image and the planes of the image source.
+	 *
+	 * @param imageFileName
+	 * The file name of the image.
+	 * @param channelCount
+	 * The number of channels to be decoded into the image source.
+	 * @param subsampling
+	 * The factor the image is to be subsampled by while decoding it.
+	 * @return
+	 * The estimated number of bytes, or -1 if the header could not be read.
 	 */
-	private static int getCroppedImageWidth(BufferedImage image) {
-		return image.getWidth() < MAX_WIDTH ? image.getWidth() : MAX_WIDTH;
+	public static long estimateMemory(String imageFileName, int channelCount, int subsampling) {
+
+		ImageInputStream input = null;
+		try {
+			input = ImageIO.createImageInputStream(new File(imageFileName));
+			if(input == null) return -1;
+
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if(!readers.hasNext()) return -1;
+
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				long width = Math.min(reader.getWidth(0), MAX_WIDTH);
+				long height = Math.min(reader.getHeight(0), MAX_HEIGHT);
+				long pixels = ((width + subsampling - 1) / subsampling) * ((height + subsampling - 1) / subsampling);
+
+				// Three bytes per decoded pixel, two per pixel of each plane.
+				return pixels * (3 + 2 * channelCount);
+			} finally {
+				reader.dispose();
+			}
+		} catch (IOException e) {
+			return -1;
+		} finally {
+			if(input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					// Nothing left to release.
+				}
+			}
+		}
 	}
-	
+
 	/**
-	 * Helper function for getting the height of a cropped image.
+	 * Helper function for reading the image file. Only the region of the
+	 * image left after cropping it at the center is decoded, so the pixels
+	 * cut away by the crop are never stored in memory.
+	 *
+	 * @param imageFile
+	 * The image file to read.
+	 * @param subsampling
+	 * The factor to subsample the cropped region by while decoding it.
+	 * @return
+	 * The decoded region of the image.
 	 */
-	private static int getCroppedImageHeigth(BufferedImage image) {
-		return image.getHeight() < MAX_HEIGHT ? image.getHeight() : MAX_HEIGHT;
+	private static BufferedImage readCroppedImage(File imageFile, int subsampling) throws IOException {
+
+		ImageInputStream input = ImageIO.createImageInputStream(imageFile);
+		if(input == null) {
+			throw new IOException("Cannot open " + imageFile);
+		}
+
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if(!readers.hasNext()) {
+				throw new IOException("No image reader found for " + imageFile);
+			}
+
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				int full_width = reader.getWidth(0);
+				int full_height = reader.getHeight(0);
+
+				int cropped_width = full_width < MAX_WIDTH ? full_width : MAX_WIDTH;
+				int cropped_height = full_height < MAX_HEIGHT ? full_height : MAX_HEIGHT;
+
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceRegion(new Rectangle(
+						(full_width - cropped_width) / 2,
+						(full_height - cropped_height) / 2,
+						cropped_width,
+						cropped_height));
+				if(subsampling > 1) {
+					param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				}
+
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			input.close();
+		}
 	}
 
 	/**
-	 * Helper function for cropping an image.
+	 * Helper function for cropping an image. The image is read in strips
+	 * of rows at a time, and only the channels requested are copied into
+	 * the planes of the cropped image.
 	 */
-	private static short[][][] getCroppedImage(
+	private static ImageRaster getCroppedImage(
 			BufferedImage image,
 			int imageWidth,
 			int imageHeight,
-			ColorModel colorModel) {
+			int [] channels) {
 
-		short[][][]cropped_image = new short[imageWidth][imageHeight][3];
-
-		int i = 0; int i_done = imageWidth; int i_offset = 0;
-		if(imageWidth < image.getWidth()) {
-			i = (image.getWidth() - imageWidth) / 2;
-			i_offset = i;
-			i_done = i + imageWidth;
+		short[][] planes = new short[ImageRaster.SUM + 1][];
+		for(int c = 0; c < channels.length; c++) {
+			planes[channels[c]] = new short[imageWidth * imageHeight];
 		}
-
-		for(; i < i_done; i++) {
-			int j = 0; int j_done = imageHeight; int j_offset = 0;
-			if(imageHeight < image.getHeight()) {
-				j = (image.getHeight() - imageHeight) / 2;
-				j_offset = j;
-				j_done = j + imageHeight;
-			}
-
-			for(; j < j_done; j++) {
-				int rgb = image.getRGB(i,j);
-
-				cropped_image[i - i_offset][j-j_offset][0] = (short)colorModel.getRed(rgb);;
-				cropped_image[i - i_offset][j-j_offset][1] = (short)colorModel.getGreen(rgb);
-				cropped_image[i - i_offset][j-j_offset][2] = (short)colorModel.getBlue(rgb);
+		ImageRaster cropped_image = new ImageRaster(imageWidth, imageHeight, planes);
+
+		short[] red = planes[ImageRaster.RED];
+		short[] green = planes[ImageRaster.GREEN];
+		short[] blue = planes[ImageRaster.BLUE];
+		short[] sum = planes[ImageRaster.SUM];
+
+		ImageStripReader reader = new ImageStripReader(image, imageWidth, imageHeight);
+
+		int strip_rows = Math.min(DECODE_STRIP_ROWS, imageHeight);
+		int [] red_samples = null;
+		int [] green_samples = null;
+		int [] blue_samples = null;
+		if(red != null || sum != null) red_samples = new int[imageWidth * strip_rows];
+		if(green != null || sum != null) green_samples = new int[imageWidth * strip_rows];
+		if(blue != null || sum != null) blue_samples = new int[imageWidth * strip_rows];
+
+		for(int j = 0; j < imageHeight; j += strip_rows) {
+			int rows = Math.min(strip_rows, imageHeight - j);
+			reader.readRows(j, rows, red_samples, green_samples, blue_samples);
+
+			for(int n = 0; n < rows; n++) {
+				for(int m = 0; m < imageWidth; m++) {
+					int sample = n * imageWidth + m;
+					int index = m * imageHeight + j + n;
+
+					int r = red_samples == null ? 0 : red_samples[sample];
+					int g = green_samples == null ? 0 : green_samples[sample];
+					int b = blue_samples == null ? 0 : blue_samples[sample];
+
+					if(red != null) red[index] = (short) r;
+					if(green != null) green[index] = (short) g;
+					if(blue != null) blue[index] = (short) b;
+					if(sum != null) sum[index] = (short) (r + g + b);
+				}
 			}
 		}
-		
+
 		return cropped_image;
 	}
 }
@@ -0,0 +1,293 @@
+package io;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.Hashtable;
+
+/**
+ * An append-only journal of the images a batch is done with, kept in a
+ * directory next to the output of the batch.
+ *
+ * An image is recorded once its output is fully written, with a DONE line
+ * giving its name, the time taken in milliseconds and the time it was
+ * finished at. An image whose features could not be detected is recorded
+ * with a FAIL line giving the same fields followed by the error. Each line
+ * is flushed to disk before the next image is recorded, so an image whose
+ * output was cut short by a crash is never recorded as done, and a line cut
+ * short by a crash is ignored when the journal is read back.
+ *
+ * Every process sharing a batch appends to a journal file of its own, and
+ * reads back the journal files of all processes when created. Images that
+ * failed are tried again on the next run.
+ *
+ * The directory also records the version of the features of the batch, and
+ * a run detecting features of another version is stopped, so that features
+ * of different versions never end up in the same output. A directory from
+ * before the version was recorded holds features of the first version.
+ *
+ * @author Peter Bugaj
+ */
+public class ProgressJournal {
+
+	/**
+	 * The prefix of the names of the journal files.
+	 */
+	private static final String JOURNAL_PREFIX = "progress";
+
+	/**
+	 * The extension given to the journal files.
+	 */
+	private static final String JOURNAL_EXTENSION = ".log";
+
+	/**
+	 * The name of the file recording the version of the features.
+	 */
+	private static final String VERSION_FILE = "feature_version";
+
+	/**
+	 * The stream appending to the journal file of this process.
+	 */
+	private FileOutputStream output;
+
+	/**
+	 * The images recorded as done by any run, by name.
+	 */
+	private Hashtable<String, Boolean> done = new Hashtable<String, Boolean>();
+
+	/**
+	 * The images recorded as failed by any run and not done since,
+	 * along with their last error, by name.
+	 */
+	private Hashtable<String, String> failed = new Hashtable<String, String>();
+
+	/**
+	 * Create a new instance of the ProgressJournal class, reading back
+	 * the journal files found in the journal directory.
+	 *
+	 * @param journalDirectory
+	 * The directory holding the journal files. Created if missing.
+	 * @param owner
+	 * The name of the process appending to the journal, for giving it a
+	 * journal file of its own, or null if no other process shares the batch.
+	 * @param featureVersion
+	 * The version of the features detected, which must match the version
+	 * of the batch if the batch was started before.
+	 */
+	public ProgressJournal(String journalDirectory, String owner, int featureVersion) {
+		File directory = new File(journalDirectory);
+		directory.mkdirs();
+
+		boolean started = false;
+		File [] files = directory.listFiles();
+		for(int i = 0; files != null && i < files.length; i++) {
+			String name = files[i].getName();
+			if(files[i].isFile() && name.startsWith(JOURNAL_PREFIX) && name.endsWith(JOURNAL_EXTENSION)) {
+				this.read(files[i]);
+				started = true;
+			}
+		}
+		this.checkFeatureVersion(new File(directory, VERSION_FILE), started, featureVersion);
+
+		String file_name = owner == null ?
+			JOURNAL_PREFIX + JOURNAL_EXTENSION :
+			JOURNAL_PREFIX + "_" + owner.replaceAll("[^A-Za-z0-9]", "_") + JOURNAL_EXTENSION;
+		File file = new File(directory, file_name);
+		try {
+			this.output = new FileOutputStream(file, true);
+
+			// End a last line cut short by a crash, so it is
+			// not joined with the next line appended.
+			if(!this.endsWithNewLine(file)) {
+				this.output.write('\n');
+			}
+		} catch (IOException e) {
+			System.out.print("Failed to open progress journal in " + journalDirectory + "\n");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Get whether an image has been recorded as done by any run.
+	 *
+	 * @param imageName
+	 * The name of the image.
+	 */
+	public synchronized boolean isDone(String imageName) {
+		return this.done.containsKey(imageName);
+	}
+
+	/**
+	 * Get the number of images recorded as done by any run.
+	 */
+	public synchronized int getDoneCount() {
+		return this.done.size();
+	}
+
+	/**
+	 * Get the number of images recorded as failed by any
+	 * run and not done since.
+	 */
+	public synchronized int getFailedCount() {
+		return this.failed.size();
+	}
+
+	/**
+	 * Record an image whose output is fully written.
+	 *
+	 * @param imageName
+	 * The name of the image.
+	 * @param timeMillis
+	 * The time taken for the image, in milliseconds.
+	 */
+	public synchronized void recordDone(String imageName, long timeMillis) {
+		this.append("DONE|" + imageName + "|" + timeMillis + "|" + System.currentTimeMillis());
+		this.done.put(imageName, true);
+		this.failed.remove(imageName);
+	}
+
+	/**
+	 * Record an image whose features could not be detected.
+	 *
+	 * @param imageName
+	 * The name of the image.
+	 * @param timeMillis
+	 * The time taken for the image until it failed, in milliseconds.
+	 * @param error
+	 * The error the image failed with.
+	 */
+	public synchronized void recordFailure(String imageName, long timeMillis, Throwable error) {
+		String message = String.valueOf(error).replaceAll("[|\r\n]", " ");
+		this.append("FAIL|" + imageName + "|" + timeMillis + "|" + System.currentTimeMillis() + "|" + message);
+		this.failed.put(imageName, message);
+	}
+
+	/**
+	 * Close the journal file of this process.
+	 */
+	public synchronized void close() {
+		try {
+			this.output.close();
+		} catch (IOException e) {
+			System.out.print("Failed to close progress journal\n");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper function for appending a line to the journal file,
+	 * making sure it is on disk before returning.
+	 */
+	private void append(String line) {
+		try {
+			this.output.write((line + "\n").getBytes("UTF-8"));
+			this.output.getFD().sync();
+		} catch (IOException e) {
+			System.out.print("Failed to append to progress journal: " + line + "\n");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Helper function for checking that the batch holds features of the
+	 * version detected, recording the version for a new batch.
+	 */
+	private void checkFeatureVersion(File file, boolean started, int featureVersion) {
+		try {
+			String line = null;
+			if(file.isFile()) {
+				BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+				try {
+					line = br.readLine();
+				} finally {
+					br.close();
+				}
+			}
+
+			int batch_version = started ? 1 : featureVersion;
+			if(line != null && line.trim().length() > 0) {
+				batch_version = Integer.parseInt(line.trim());
+			} else {
+				FileOutputStream output = new FileOutputStream(file);
+				try {
+					output.write((batch_version + "\n").getBytes("UTF-8"));
+				} finally {
+					output.close();
+				}
+			}
+
+			if(batch_version != featureVersion) {
+				System.out.print("The output of the batch holds features of version " + batch_version +
+					", not " + featureVersion + ". Use another output directory.\n");
+				System.exit(1);
+			}
+		} catch (IOException e) {
+			System.out.print("Failed to check the feature version in " + file + "\n");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Helper function for checking whether a journal file is empty
+	 * or ends with a line ending.
+	 */
+	private boolean endsWithNewLine(File file) throws IOException {
+		if(file.length() == 0) {
+			return true;
+		}
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			input.seek(file.length() - 1);
+			return input.read() == '\n';
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Helper function for reading back the images recorded in a journal file.
+	 * A last line cut short by a crash has no line ending, and is skipped.
+	 */
+	private void read(File file) {
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+			StringBuilder line = new StringBuilder();
+			int next;
+			while((next = br.read()) != -1) {
+				if(next != '\n') {
+					line.append((char) next);
+					continue;
+				}
+
+				String [] fields = line.toString().split("\\|");
+				line.setLength(0);
+				if(fields.length >= 4 && fields[0].equals("DONE")) {
+					this.done.put(fields[1], true);
+					this.failed.remove(fields[1]);
+				} else if(fields.length >= 5 && fields[0].equals("FAIL") && !this.done.containsKey(fields[1])) {
+					this.failed.put(fields[1], fields[4]);
+				}
+			}
+		} catch (IOException e) {
+			System.out.print("Failed to read progress journal " + file + "\n");
+			e.printStackTrace();
+		} finally {
+			if(br != null) {
+				try {
+					br.close();
+				} catch (IOException e) {
+					// Nothing left to release.
+				}
+			}
+		}
+	}
+}
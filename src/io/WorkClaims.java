@@ -0,0 +1,354 @@
+package io;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * Shares the units of work of a batch between several processes, possibly
+ * on different hosts, through claim files in a directory they all see.
+ *
+ * A process claims a unit by creating its claim file, which only one
+ * process can do. While the process works on the unit, the claim file is
+ * touched regularly to renew its lease. A unit is marked done with a done
+ * file once its work is finished. A claim whose lease has run out, such as
+ * one left behind by a crashed process, is taken over by the next process
+ * trying to claim the unit.
+ *
+ * Taking over a claim is not fully atomic, so in rare cases a unit may be
+ * worked on twice. The work of a unit must therefore give the same result
+ * when repeated. A claim moved aside by a process trying to take it over
+ * is put back if it turns out to be fresh, and a process whose claim file
+ * has vanished or been taken over stops renewing it and leaves the file
+ * alone. The lease timeout must be well above both the time between
+ * renewals and any clock difference between the hosts.
+ *
+ * @author Peter Bugaj
+ */
+public class WorkClaims {
+
+	/**
+	 * The extension given to the claim files.
+	 */
+	private static final String CLAIM_EXTENSION = ".claim";
+
+	/**
+	 * The extension given to the done files.
+	 */
+	private static final String DONE_EXTENSION = ".done";
+
+	/**
+	 * The directory containing the claim and done files.
+	 */
+	private File claimDirectory;
+
+	/**
+	 * The time, in milliseconds, after which a claim not renewed
+	 * can be taken over by another process.
+	 */
+	private long leaseMillis;
+
+	/**
+	 * The name of this process, written into its claim files.
+	 */
+	private String owner;
+
+	/**
+	 * The claim files held by this process, by unit.
+	 */
+	private Hashtable<String, File> held = new Hashtable<String, File>();
+
+	/**
+	 * The claims held whose file was missing at the last renewal, by unit.
+	 */
+	private Hashtable<String, Boolean> missing = new Hashtable<String, Boolean>();
+
+	/**
+	 * The thread renewing the leases of the claims held.
+	 */
+	private Thread renewer;
+
+	/**
+	 * Create a new instance of the WorkClaims class, and start
+	 * renewing the leases of the claims it makes.
+	 *
+	 * @param claimDirectory
+	 * The directory shared by the processes for the claim and done
+	 * files. Created if missing.
+	 * @param leaseMillis
+	 * The time, in milliseconds, after which a claim not renewed
+	 * can be taken over by another process.
+	 */
+	public WorkClaims(String claimDirectory, long leaseMillis) {
+		this.claimDirectory = new File(claimDirectory);
+		this.claimDirectory.mkdirs();
+		this.leaseMillis = leaseMillis;
+		this.owner = ManagementFactory.getRuntimeMXBean().getName();
+
+		this.renewer = new Thread("claim-renewer") {
+			public void run() {
+				while(!isInterrupted()) {
+					try {
+						Thread.sleep(Math.max(1, WorkClaims.this.leaseMillis / 3));
+					} catch (InterruptedException e) {
+						return;
+					}
+					renew();
+				}
+			}
+		};
+		this.renewer.setDaemon(true);
+		this.renewer.start();
+	}
+
+	/**
+	 * Get the directory containing the claim and done files.
+	 */
+	public File getClaimDirectory() {
+		return this.claimDirectory;
+	}
+
+	/**
+	 * Get the name of this process, written into its claim files.
+	 */
+	public String getOwner() {
+		return this.owner;
+	}
+
+	/**
+	 * Get the time, in milliseconds, after which a claim not
+	 * renewed can be taken over by another process.
+	 */
+	public long getLeaseMillis() {
+		return this.leaseMillis;
+	}
+
+	/**
+	 * Try to claim a unit of work for this process.
+	 *
+	 * @param unit
+	 * The name of the unit, usable as part of a file name.
+	 * @return
+	 * Whether the unit was claimed. False if the unit is done, or
+	 * claimed by another process whose lease has not run out.
+	 */
+	public boolean claim(String unit) {
+
+		if(isDone(unit)) {
+			return false;
+		}
+
+		File claim_file = getClaimFile(unit);
+		if(create(claim_file)) {
+			this.held.put(unit, claim_file);
+			return true;
+		}
+
+		// Take over a claim whose lease has run out by moving it out of
+		// the way first, so only one process gets to remove it. The claim
+		// moved is checked again, since another process may have taken
+		// over the claim and made a fresh one in the meantime. A fresh
+		// claim is put back instead of being removed.
+		long modified = claim_file.lastModified();
+		if(modified == 0 || System.currentTimeMillis() - modified < this.leaseMillis) {
+			return false;
+		}
+		String stale_owner = readOwner(claim_file);
+		File stale_file = new File(this.claimDirectory,
+			unit + CLAIM_EXTENSION + "." + this.owner.replaceAll("[^A-Za-z0-9]", "_") + ".stale");
+		if(stale_owner == null || !claim_file.renameTo(stale_file)) {
+			return false;
+		}
+		modified = stale_file.lastModified();
+		boolean stale = modified != 0 && System.currentTimeMillis() - modified >= this.leaseMillis &&
+			stale_owner.equals(readOwner(stale_file));
+		if(!stale) {
+			restore(stale_file, claim_file);
+			return false;
+		}
+		stale_file.delete();
+		if(isDone(unit) || !create(claim_file)) {
+			return false;
+		}
+
+		System.out.print("Took over the expired claim of " + unit + "\n");
+		this.held.put(unit, claim_file);
+		return true;
+	}
+
+	/**
+	 * Mark a unit claimed by this process as done, and give up its claim.
+	 *
+	 * @param unit
+	 * The name of the unit.
+	 */
+	public void complete(String unit) {
+		create(getDoneFile(unit));
+		release(unit);
+	}
+
+	/**
+	 * Give up the claim of a unit without marking it as done,
+	 * so another process can claim it right away.
+	 *
+	 * @param unit
+	 * The name of the unit.
+	 */
+	public void release(String unit) {
+		this.missing.remove(unit);
+		File claim_file = this.held.remove(unit);
+		if(claim_file != null && this.owner.equals(readOwner(claim_file))) {
+			claim_file.delete();
+		}
+	}
+
+	/**
+	 * Get whether a unit has been marked as done by any process.
+	 *
+	 * @param unit
+	 * The name of the unit.
+	 */
+	public boolean isDone(String unit) {
+		return getDoneFile(unit).isFile();
+	}
+
+	/**
+	 * Stop renewing the leases, giving up every claim still held.
+	 */
+	public void shutdown() {
+		this.renewer.interrupt();
+		Enumeration<String> units = this.held.keys();
+		while(units.hasMoreElements()) {
+			release(units.nextElement());
+		}
+	}
+
+	/**
+	 * Helper function for renewing the leases of the claims held. A claim
+	 * whose file now belongs to another process, or has vanished for two
+	 * renewals in a row, is dropped, so that it is no longer renewed nor
+	 * removed by this process. A file missing only once may just be moved
+	 * aside for a moment by a process checking whether it is stale.
+	 */
+	private void renew() {
+		long now = System.currentTimeMillis();
+		Enumeration<String> units = this.held.keys();
+		while(units.hasMoreElements()) {
+			String unit = units.nextElement();
+			File claim_file = this.held.get(unit);
+			if(claim_file == null) {
+				continue;
+			}
+			String claim_owner = readOwner(claim_file);
+			if(claim_owner == null && !claim_file.exists() && this.missing.put(unit, true) == null) {
+				continue;
+			}
+			this.missing.remove(unit);
+			if(!this.owner.equals(claim_owner)) {
+				System.out.print("Lost claim " + claim_file.getName() + "\n");
+				this.held.remove(unit);
+				continue;
+			}
+			if(!claim_file.setLastModified(now)) {
+				System.out.print("Failed to renew claim " + claim_file.getName() + "\n");
+			}
+		}
+	}
+
+	/**
+	 * Helper function for putting back a claim moved aside that turned out
+	 * to be fresh, unless a new claim has been made in its place since.
+	 */
+	private void restore(File movedFile, File claimFile) {
+		try {
+			Files.move(movedFile.toPath(), claimFile.toPath());
+		} catch (FileAlreadyExistsException e) {
+			movedFile.delete();
+		} catch (IOException e) {
+			System.out.print("Failed to put back claim " + claimFile.getName() + "\n");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper function for reading the name of the process written into a
+	 * claim file, or null if the file cannot be read. An empty file, such
+	 * as one left behind by an older version crashing while creating it,
+	 * names no process.
+	 */
+	private static String readOwner(File file) {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			String owner = reader.readLine();
+			return owner == null ? "" : owner;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if(reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// Nothing left to release.
+				}
+			}
+		}
+	}
+
+	/**
+	 * Helper function for creating a file holding the name of this
+	 * process, failing if the file already exists. The name is written
+	 * to a temporary file first, which is then linked into place, so the
+	 * file never exists without the name even if the process crashes.
+	 *
+	 * @return
+	 * Whether the file was created by this call.
+	 */
+	private boolean create(File file) {
+		File temp_file = null;
+		try {
+			temp_file = File.createTempFile(file.getName() + ".", ".tmp", file.getParentFile());
+			FileOutputStream output = new FileOutputStream(temp_file);
+			try {
+				output.write((this.owner + "\n").getBytes("UTF-8"));
+				output.getFD().sync();
+			} finally {
+				output.close();
+			}
+			Files.createLink(file.toPath(), temp_file.toPath());
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		} catch (IOException e) {
+			System.out.print("Failed to create " + file + "\n");
+			e.printStackTrace();
+			return false;
+		} finally {
+			if(temp_file != null) {
+				temp_file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Helper function for getting the claim file of a unit.
+	 */
+	private File getClaimFile(String unit) {
+		return new File(this.claimDirectory, unit + CLAIM_EXTENSION);
+	}
+
+	/**
+	 * Helper function for getting the done file of a unit.
+	 */
+	private File getDoneFile(String unit) {
+		return new File(this.claimDirectory, unit + DONE_EXTENSION);
+	}
+}
@@ -1,10 +1,13 @@
 package preprocessing;
 
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.Vector;
 
 import tools.math.Kernels;
 import tools.math.VectorTools;
+import tools.structures.FloodFill;
+import tools.structures.ImageRaster;
+import tools.structures.ScratchArena;
 
 /**
  * Custom class for subtracting the background data from an image.
@@ -35,52 +38,144 @@ public class BackgroundSubtraction {
 	 * [1] - The radius of the eye in number of pixels.
 	 */
 	public static int [] findBlackBackground(
-			short[][][] imageMatrix,
+			ImageRaster imageMatrix,
 			boolean [][] map,
 			int foreGroundStrength,
 			int boundaryThickness) {
 
+		return findBlackBackground(imageMatrix, map, foreGroundStrength, boundaryThickness, new ScratchArena());
+	}
+
+	/**
+	 * Find the background of the image not belonging to the eye, taking
+	 * the map of the pixels above the foreground threshold from a
+	 * scratch arena.
+	 *
+	 * @param imageMatrix
+	 * The image source matrix.
+	 * @param map
+	 * The map marking the part of the image not belonging to the eye.
+	 * @param foreGroundStrength
+	 * The foreground threshold to determine whether a part of the image
+	 * belongs to the eye or not.
+	 * @param boundaryThickness
+	 * The boundary thickness to create around the part of the image
+	 * that is part of the eye.
+	 * @param arena
+	 * The arena to take the working map from and give it back to.
+	 * @return
+	 * An array
+	 * [0] - The size of the background in number of pixels.
+	 * [1] - The radius of the eye in number of pixels.
+	 */
+	public static int [] findBlackBackground(
+			ImageRaster imageMatrix,
+			boolean [][] map,
+			int foreGroundStrength,
+			int boundaryThickness,
+			ScratchArena arena) {
+
+		int width = imageMatrix.getWidth();
+		int height = imageMatrix.getHeight();
+
+		boolean [][] foreground = arena.acquireBooleanMap(width, height);
+		for(int i = 0; i < width; i++) {
+			for(int j = 0; j < height; j++) {
+				foreground[i][j] = pixel_sum(imageMatrix, i, j) > foreGroundStrength;
+			}
+		}
+
+		int [] eye_data = findBlackBackground(foreground, map, boundaryThickness, arena);
+		arena.release(foreground);
+		return eye_data;
+	}
+
+	/**
+	 * Find the background of the image not belonging to the eye, given
+	 * the map of the pixels bright enough to belong to the eye.
+	 *
+	 * @param foreground
+	 * The map marking the pixels above the foreground threshold.
+	 * @param map
+	 * The map marking the part of the image not belonging to the eye.
+	 * @param boundaryThickness
+	 * The boundary thickness to create around the part of the image
+	 * that is part of the eye.
+	 * @return
+	 * An array
+	 * [0] - The size of the background in number of pixels.
+	 * [1] - The radius of the eye in number of pixels.
+	 */
+	public static int [] findBlackBackground(
+			boolean [][] foreground,
+			boolean [][] map,
+			int boundaryThickness) {
+
+		return findBlackBackground(foreground, map, boundaryThickness, new ScratchArena());
+	}
+
+	/**
+	 * Find the background of the image not belonging to the eye, given
+	 * the map of the pixels bright enough to belong to the eye, taking
+	 * the storage of the flood fill from a scratch arena.
+	 *
+	 * @param foreground
+	 * The map marking the pixels above the foreground threshold.
+	 * @param map
+	 * The map marking the part of the image not belonging to the eye.
+	 * @param boundaryThickness
+	 * The boundary thickness to create around the part of the image
+	 * that is part of the eye.
+	 * @param arena
+	 * The arena to take the storage of the flood fill from and give it back to.
+	 * @return
+	 * An array
+	 * [0] - The size of the background in number of pixels.
+	 * [1] - The radius of the eye in number of pixels.
+	 */
+	public static int [] findBlackBackground(
+			boolean [][] foreground,
+			boolean [][] map,
+			int boundaryThickness,
+			ScratchArena arena) {
+
+		int width = map.length;
+		int height = map[0].length;
+
 		int counter = 0;
 
 		Vector<short[]>boundary = new Vector<short[]>();
+		FloodFill fill = new FloodFill(width, height, arena);
 
 		// Find and expand the image boundary on the top
 		// left corner of the image.
 		for(int i = 0; i < 200; i++) {
 			for(int j = 0; j < 200; j++) {
-				if(map[i][j]) continue;
-				if(pixel_sum(imageMatrix[i][j]) > foreGroundStrength) continue;
-				counter += expandBlackBackground(imageMatrix, map, i, j, foreGroundStrength, boundary);
+				counter += expandBlackBackground(fill, foreground, map, i, j, boundary);
 			}			
 		}
 		
 		// Find and expand the image boundary on the top
 		// right corner of the image.
-		for(int i = imageMatrix.length - 200; i < imageMatrix.length; i++) {
+		for(int i = width - 200; i < width; i++) {
 			for(int j = 0; j < 200; j++) {
-				if(map[i][j]) continue;
-				if(pixel_sum(imageMatrix[i][j]) > foreGroundStrength) continue;
-				counter += expandBlackBackground(imageMatrix, map, i, j, foreGroundStrength, boundary);
+				counter += expandBlackBackground(fill, foreground, map, i, j, boundary);
 			}			
 		}
 
 		// Find and expand the image boundary on the bottom
 		// left corner of the image.
 		for(int i = 0; i < 200; i++) {
-			for(int j = imageMatrix[0].length - 200; j < imageMatrix[0].length; j++) {
-				if(map[i][j]) continue;
-				if(pixel_sum(imageMatrix[i][j]) > foreGroundStrength) continue;
-				counter += expandBlackBackground(imageMatrix, map, i, j, foreGroundStrength, boundary);
+			for(int j = height - 200; j < height; j++) {
+				counter += expandBlackBackground(fill, foreground, map, i, j, boundary);
 			}			
 		}
 		
 		// Find and expand the image boundary on the bottom
 		// right corner of the image.
-		for(int i = imageMatrix.length - 200; i < imageMatrix.length; i++) {
-			for(int j = imageMatrix[0].length - 200; j < imageMatrix[0].length; j++) {
-				if(map[i][j]) continue;
-				if(pixel_sum(imageMatrix[i][j]) > foreGroundStrength) continue;
-				counter += expandBlackBackground(imageMatrix, map, i, j, foreGroundStrength, boundary);
+		for(int i = width - 200; i < width; i++) {
+			for(int j = height - 200; j < height; j++) {
+				counter += expandBlackBackground(fill, foreground, map, i, j, boundary);
 			}			
 		}
 		
@@ -90,11 +185,12 @@ public class BackgroundSubtraction {
 		for(int k = 0; k < boundaryThickness; k++) {
 			Vector<short[]> new_boundary = new Vector<short[]>();
 			for(int i = 0; i < boundary.size(); i++) {
-				counter += expandBlackBackgroundBorder(imageMatrix, map, new_boundary, boundary.get(i));
+				counter += expandBlackBackgroundBorder(map, new_boundary, boundary.get(i));
 			}
 			
 			boundary = new_boundary;
 		}
+		fill.release();
 
 		// Estimate the radius of the eye within the image.
 		int corner_aa = 0;
@@ -139,17 +235,16 @@ public class BackgroundSubtraction {
 	 * Run a connected components algorithm for expanding the black
 	 * background within the image.
 	 * 
-	 * @param image
-	 * The image to run the connected component algorithm inside of.
+	 * @param fill
+	 * The flood fill to run the connected component algorithm with.
+	 * @param foreground
+	 * Map of the pixels above the foreground threshold.
 	 * @param map:
 	 * Map keeping track of the black background detected thus far.
 	 * @param i
 	 * The x location to start the connected component algorithm at.
 	 * @param j
 	 * The y location to start the connected component algorithm at.
-	 * @param foreGroundStrength
-	 * The foreground threshold to determine whether a part of the image
-	 * belongs to the eye or not.
 	 * @param boundary
 	 * Data structure keeping track of the points that have hit the
 	 * part of the image no longer considered as part of the background.
@@ -158,51 +253,44 @@ public class BackgroundSubtraction {
 	 * to belong to the background.
 	 */
 	private static int expandBlackBackground(
-			short[][][] image,
-			boolean[][]map,
+			FloodFill fill,
+			final boolean[][]foreground,
+			final boolean[][]map,
 			int i,
 			int j,
-			int foreGroundStrength,
-			Vector<short[]> boundary) {
+			final Vector<short[]> boundary) {
 
-		int counter = 0;
-		
-		LinkedList<int[]> stack = new LinkedList<int[]>();
-		stack.push(new int[]{i, j});
-		
-		while(stack.size() > 0) {
-			
-			int [] next_coord = stack.removeLast();
-			int nx = next_coord[0];
-			int ny = next_coord[1];
-			
-			if (map[nx][ny]) continue;
-			map[nx][ny] = true;
-			counter++;
+		// The background found does not depend on the order of
+		// the pixels filled, so the fill goes by runs of pixels.
+		return fill.fillSpans(i, j, false, new FloodFill.Region() {
+			public boolean contains(int x, int y) {
+				return !map[x][y] && !foreground[x][y];
+			}
+
+			public void take(int x, int y) {
+				map[x][y] = true;
+			}
 
-			boolean boundary_hit = false;
-			for(byte d = 0; d < Kernels.neighourhoodSmall.length; d++) {
-				byte m = Kernels.neighourhoodSmall[d][0];
-				byte n = Kernels.neighourhoodSmall[d][1];
+			public void visit(int nx, int ny) {
+				boolean boundary_hit = false;
+				for(byte d = 0; d < Kernels.neighourhoodSmall.length; d++) {
+					byte m = Kernels.neighourhoodSmall[d][0];
+					byte n = Kernels.neighourhoodSmall[d][1];
 
-				if(nx-1+m < 0 || nx-1+m >= image.length) continue;
-				if(ny-1+n < 0 || ny-1+n >= image[0].length) continue;
+					if(nx-1+m < 0 || nx-1+m >= map.length) continue;
+					if(ny-1+n < 0 || ny-1+n >= map[0].length) continue;
 
-				if (map[nx-1+m][ny-1+n]) continue;
-				if(pixel_sum(image[nx-1+m][ny-1+n]) > foreGroundStrength) {
-					boundary_hit = true;
-					continue;
+					if (map[nx-1+m][ny-1+n]) continue;
+					if(foreground[nx-1+m][ny-1+n]) {
+						boundary_hit = true;
+					}
 				}
 
-				stack.push(new int []{nx-1+m, ny-1+n});
-			}
-			
-			if(boundary_hit) {
-				boundary.add(new short[]{(short) nx, (short) ny});
+				if(boundary_hit) {
+					boundary.add(new short[]{(short) nx, (short) ny});
+				}
 			}
-		}
-		
-		return counter;
+		});
 	}
 	
 	/**
@@ -212,8 +300,6 @@ public class BackgroundSubtraction {
 	 * background, but being labelled as otherwise due to the thin
 	 * background.
 	 *
-	 * @param image
-	 * The image source matrix containing the background and the eye.
 	 * @param map
 	 * The map keeping track which part of the image belongs to the
 	 * background.
@@ -227,7 +313,6 @@ public class BackgroundSubtraction {
 	 * of the expansion of the boundary.
 	 */
 	private static int expandBlackBackgroundBorder(
-			short[][][]image,
 			boolean[][]map,
 			Vector<short[]>newBoundary,
 			short[]point) {
@@ -241,8 +326,8 @@ public class BackgroundSubtraction {
 			byte m = Kernels.neighMap[i][0];
 			byte n = Kernels.neighMap[i][1];
 
-			if(nx-1+m < 0 || nx-1+m >= image.length) continue;
-			if(ny-1+n < 0 || ny-1+n >= image[0].length) continue;
+			if(nx-1+m < 0 || nx-1+m >= map.length) continue;
+			if(ny-1+n < 0 || ny-1+n >= map[0].length) continue;
 
 			if (map[nx-1+m][ny-1+n]) continue;
 			map[nx-1+m][ny-1+n] = true;
@@ -256,13 +341,21 @@ public class BackgroundSubtraction {
 	/**
 	 * Helper function to return the sum of pixel values.
 	 *
-	 * @param pixels
-	 * The pixels to return the sum for.
+	 * @param image
+	 * The image containing the pixel.
+	 * @param x
+	 * The x location of the pixel.
+	 * @param y
+	 * The y location of the pixel.
 	 * @return
 	 * Sum of the pixel values.
 	 */
-	private static int pixel_sum(short[]pixels) {
-		return pixels[0] + pixels[1] + pixels[2];
+	private static int pixel_sum(ImageRaster image, int x, int y) {
+		int index = image.index(x, y);
+		if(image.hasChannel(ImageRaster.SUM)) {
+			return image.getPlane(ImageRaster.SUM)[index];
+		}
+		return image.getPlane(0)[index] + image.getPlane(1)[index] + image.getPlane(2)[index];
 	}
 	
 	/**
@@ -281,20 +374,25 @@ public class BackgroundSubtraction {
 	 * its neighbouring pixels.
 	 */
 	public static void substract(
-			short[][][] map,
-			short[][][] imageMatrix,
+			ImageRaster map,
+			ImageRaster imageMatrix,
 			short mediumValue,
 			int boxSize) {
 
+		int width = imageMatrix.getWidth();
+		int height = imageMatrix.getHeight();
+		short[] source = imageMatrix.getPlane(1);
+		short[] target = map.getPlane(1);
+
 		int sum = 0;
 		int counter = 0;
 		
 		double normalizer_min = 1000;
 		double normalizer_max = 0;
 		
-		for(int j = 0; j < imageMatrix[0].length; j++) {
+		for(int j = 0; j < height; j++) {
 			boolean new_row = true;
-			for(int i = 0; i < imageMatrix.length; i++) {
+			for(int i = 0; i < width; i++) {
 				if (new_row) {
 					new_row = false;
 					sum = 0;
@@ -302,8 +400,8 @@ public class BackgroundSubtraction {
 					
 					for(int m = i - boxSize; m < i + boxSize + 1; m++) {
 						for(int n = j - boxSize; n < j + boxSize + 1; n++) {
-							if (m < 0 || n < 0 || m >= imageMatrix.length || n >= imageMatrix[0].length) continue;
-							sum += imageMatrix[m][n][1];
+							if (m < 0 || n < 0 || m >= width || n >= height) continue;
+							sum += source[m * height + n];
 							counter++;
 						}					
 					}
@@ -312,16 +410,16 @@ public class BackgroundSubtraction {
 					// Update horizontal sides
 					if (i - boxSize > 0) {
 						for(int n = j - boxSize; n < j + boxSize + 1; n++) {
-							if (n < 0 || n >= imageMatrix[0].length) continue;
-							sum -= imageMatrix[i-boxSize-1][n][1];
+							if (n < 0 || n >= height) continue;
+							sum -= source[(i-boxSize-1) * height + n];
 							counter--;
 						}	
 					}
 	
-					if (i + boxSize < imageMatrix.length) {
+					if (i + boxSize < width) {
 						for(int n = j - boxSize; n < j + boxSize + 1; n++) {
-							if (n < 0 || n >= imageMatrix[0].length) continue;
-							sum += imageMatrix[i+boxSize][n][1];
+							if (n < 0 || n >= height) continue;
+							sum += source[(i+boxSize) * height + n];
 							counter++;
 						}	
 					}
@@ -329,19 +427,18 @@ public class BackgroundSubtraction {
 
 				int diff =  mediumValue - (sum / counter);
 				
-				short mean_offset = (short)(imageMatrix[i][j][1] + diff);
+				short mean_offset = (short)(source[i * height + j] + diff);
 
-				map[i][j] = new short[]{0, mean_offset, 0};
+				target[i * height + j] = mean_offset;
 				normalizer_min = Math.min(normalizer_min, mean_offset);
 				normalizer_max = Math.max(normalizer_max, mean_offset);
 			}			
 		}
 
-		for(int i = 0; i < map.length; i++) {
-			for(int j = 0; j < map[0].length; j++) {
-				map[i][j] = new short[]{0, (short) (255 * (map[i][j][1]-normalizer_min) / (normalizer_max - normalizer_min)), 0};
-			}			
+		for(int i = 0; i < target.length; i++) {
+			target[i] = (short) (255 * (target[i]-normalizer_min) / (normalizer_max - normalizer_min));
 		}
+		clearOtherChannels(map, 1);
 	}
 	
 	/**
@@ -360,17 +457,22 @@ public class BackgroundSubtraction {
 	 * pixel in the image.
 	 */
 	public static void createVarianceMap(
-			short[][][] map,
-			short[][][] imageMatrix,
+			ImageRaster map,
+			ImageRaster imageMatrix,
 			int boxSize) {
 
+		int width = imageMatrix.getWidth();
+		int height = imageMatrix.getHeight();
+		short[] source = imageMatrix.getPlane(1);
+		short[] target = map.getPlane(1);
+
 		int sum2 = 0;
 		
 		double counter = 0;
 
-		for(int j = 0; j < imageMatrix[0].length; j++) {
+		for(int j = 0; j < height; j++) {
 			boolean new_row = true;
-			for(int i = 0; i < imageMatrix.length; i++) {
+			for(int i = 0; i < width; i++) {
 				if (new_row) {
 					new_row = false;
 					sum2 = 0;
@@ -378,8 +480,8 @@ public class BackgroundSubtraction {
 					
 					for(int m = i - boxSize; m < i + boxSize + 1; m++) {
 						for(int n = j - boxSize; n < j + boxSize + 1; n++) {
-							if (m < 0 || n < 0 || m >= imageMatrix.length || n >= imageMatrix[0].length) continue;
-							sum2 += imageMatrix[m][n][1];
+							if (m < 0 || n < 0 || m >= width || n >= height) continue;
+							sum2 += source[m * height + n];
 							counter++;
 						}					
 					}
@@ -388,16 +490,16 @@ public class BackgroundSubtraction {
 					// Update horizontal sides
 					if (i - boxSize > 0) {
 						for(int n = j - boxSize; n < j + boxSize + 1; n++) {
-							if (n < 0 || n >= imageMatrix[0].length) continue;
-							sum2 -= imageMatrix[i-boxSize-1][n][1];
+							if (n < 0 || n >= height) continue;
+							sum2 -= source[(i-boxSize-1) * height + n];
 							counter--;
 						}	
 					}
 	
-					if (i + boxSize < imageMatrix.length) {
+					if (i + boxSize < width) {
 						for(int n = j - boxSize; n < j + boxSize + 1; n++) {
-							if (n < 0 || n >= imageMatrix[0].length) continue;
-							sum2 += imageMatrix[i+boxSize][n][1];
+							if (n < 0 || n >= height) continue;
+							sum2 += source[(i+boxSize) * height + n];
 							counter++;
 						}	
 					}
@@ -409,15 +511,32 @@ public class BackgroundSubtraction {
 				double variance_count = 0;
 				for(int m = i - boxSize; m < i + boxSize + 1; m+=20) {
 					for(int n = j - boxSize; n < j + boxSize + 1; n+=20) {
-						if (m < 0 || n < 0 || m >= imageMatrix.length || n >= imageMatrix[0].length) continue;
-						variance_sum2 += Math.pow(imageMatrix[m][n][1] - mean_2, 2);
+						if (m < 0 || n < 0 || m >= width || n >= height) continue;
+						variance_sum2 += Math.pow(source[m * height + n] - mean_2, 2);
 						variance_count++;
 					}					
 				}
 
 				short var_2 = (short) Math.sqrt(variance_sum2 / variance_count);
-				map[i][j] = new short[]{0, var_2, 0};
+				target[i * height + j] = var_2;
 			}			
 		}
+		clearOtherChannels(map, 1);
+	}
+
+	/**
+	 * Helper function for zeroing every stored channel of
+	 * an image except for the one specified.
+	 *
+	 * @param map
+	 * The image to clear the channels for.
+	 * @param keepChannel
+	 * The channel to leave untouched.
+	 */
+	private static void clearOtherChannels(ImageRaster map, int keepChannel) {
+		for(int c = 0; c < map.getChannelCount(); c++) {
+			if(c == keepChannel || !map.hasChannel(c)) continue;
+			Arrays.fill(map.getPlane(c), (short) 0);
+		}
 	}
 }
@@ -1,5 +1,7 @@
 package preprocessing;
 
+import tools.structures.ImageRaster;
+
 /**
  * Class for helping reduce the color variation within an image.
  *
@@ -13,51 +15,65 @@ public class ColorReduction {
 	public static final int NUM_COLORS = 32;
 	
 	/**
-	 * Custom function for reducing the colours within an image.
+	 * Custom function for reducing the colours within an image. The
+	 * colours are read from the green channel, and the red channel ends
+	 * up holding the colour layer of each pixel. The blue channel is
+	 * only written if stored by the image.
 	 * 
 	 * @param image
 	 * The image source matrix for which to reduce the colours for.
 	 * @param inverse
 	 * Whether to reverse the colours during reduction.
 	 */
-	public static void reduceColourMonotone(short [][][] image, boolean inverse) {
+	public static void reduceColourMonotone(ImageRaster image, boolean inverse) {
 		
+		short [] red = image.getPlane(0);
+		short [] green = image.getPlane(1);
+		short [] blue = image.getPlane(2);
+
 		short min_color = 1000;
 		short max_color = 0;
 		
-		for (int i = 0; i < image.length; i++) {
-			for (int j = 0; j < image[0].length; j++) {
-				short val = combineCones(image[i][j]);
-				if(min_color > val) {
-					min_color = val;
-				}
-				if(max_color < val) {
-					max_color = val;
-				}
-			}			
+		for (int i = 0; i < green.length; i++) {
+			short val = combineCones(green[i]);
+			if(min_color > val) {
+				min_color = val;
+			}
+			if(max_color < val) {
+				max_color = val;
+			}
 		}
 
-		for (int i = 0; i < image.length; i++) {
-			for (int j = 0; j < image[0].length; j++) {
-				float val = combineCones(image[i][j]);
-				short index = (short) (NUM_COLORS * (val - min_color)
-						/ (max_color - min_color));
+		// Every pixel maps onto one of NUM_COLORS + 1
+		// labels, so create the labels only once.
+		short [][] labels = new short[NUM_COLORS + 1][];
+		for (short i = 0; i < labels.length; i++) {
+			labels[i] = createRGBLabel(i, inverse);
+		}
 
-				image[i][j] = createRGBLabel(index, inverse);
-			}
+		for (int i = 0; i < green.length; i++) {
+			float val = combineCones(green[i]);
+			short index = (short) (NUM_COLORS * (val - min_color)
+					/ (max_color - min_color));
+
+			short [] label = labels[index];
+			red[i] = label[0];
+			green[i] = label[1];
+			if(blue != null) blue[i] = label[2];
 		}
 	}
 
 	/**
-	 * Combine the RGB values into one gray scale value.
+	 * Combine the RGB values into one gray scale value. Only
+	 * the green cone contributes to the value.
 	 *
-	 * @param cones
-	 * The RGB values.
+	 * @param green
+	 * The green value.
 	 * @return
 	 * The gray scale value.
 	 */
-	private static short combineCones(short [] cones) {
-		return (short)(cones[0]*0 + cones[1]*1 + cones[2]*0);
+	private static short combineCones(short green) {
+		return green;
 	}
 	
 	/**
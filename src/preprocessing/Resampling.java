@@ -0,0 +1,130 @@
+package preprocessing;
+
+import tools.structures.ImageRaster;
+
+/**
+ * Class for resampling images and image maps to a lower resolution.
+ *
+ * @author Peter Bugaj
+ */
+public class Resampling {
+
+	/**
+	 * Reduce the resolution of an image by the given factor. Each pixel
+	 * of the reduced image is the average of the block of pixels of the
+	 * source image that it covers.
+	 *
+	 * @param image
+	 * The image to reduce the resolution of.
+	 * @param factor
+	 * The factor to reduce the width and height of the image by.
+	 * @return
+	 * The reduced image, containing the same channels as the source image.
+	 */
+	public static ImageRaster downsample(ImageRaster image, float factor) {
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int new_width = Math.max(1, Math.round(width / factor));
+		int new_height = Math.max(1, Math.round(height / factor));
+
+		int [] x_start = getBlockStarts(width, new_width);
+		int [] y_start = getBlockStarts(height, new_height);
+
+		short [][] planes = new short[image.getChannelCount()][];
+		int [] column_sum = new int[height];
+
+		for(int c = 0; c < planes.length; c++) {
+			if(!image.hasChannel(c)) continue;
+
+			short [] source = image.getPlane(c);
+			short [] target = new short[new_width * new_height];
+			planes[c] = target;
+
+			for(int x = 0; x < new_width; x++) {
+
+				// Sum up the source columns covered by this column.
+				int columns = x_start[x + 1] - x_start[x];
+				for(int j = 0; j < height; j++) {
+					column_sum[j] = 0;
+				}
+				for(int i = x_start[x]; i < x_start[x + 1]; i++) {
+					int index = i * height;
+					for(int j = 0; j < height; j++) {
+						column_sum[j] += source[index + j];
+					}
+				}
+
+				// Average the sums over the source rows covered by each pixel.
+				for(int y = 0; y < new_height; y++) {
+					int sum = 0;
+					for(int j = y_start[y]; j < y_start[y + 1]; j++) {
+						sum += column_sum[j];
+					}
+					int count = columns * (y_start[y + 1] - y_start[y]);
+					target[x * new_height + y] = (short) ((sum + count / 2) / count);
+				}
+			}
+		}
+
+		return new ImageRaster(new_width, new_height, planes);
+	}
+
+	/**
+	 * Reduce the resolution of a map to the given size. A location of the
+	 * reduced map is marked if at least half of the block of locations
+	 * of the source map that it covers are marked.
+	 *
+	 * @param map
+	 * The map to reduce the resolution of.
+	 * @param newWidth
+	 * The width of the reduced map.
+	 * @param newHeight
+	 * The height of the reduced map.
+	 * @return
+	 * The reduced map.
+	 */
+	public static boolean [][] downsample(boolean [][] map, int newWidth, int newHeight) {
+
+		int [] x_start = getBlockStarts(map.length, newWidth);
+		int [] y_start = getBlockStarts(map[0].length, newHeight);
+
+		boolean [][] reduced_map = new boolean[newWidth][newHeight];
+		for(int x = 0; x < newWidth; x++) {
+			for(int y = 0; y < newHeight; y++) {
+
+				int marked = 0;
+				int count = 0;
+				for(int i = x_start[x]; i < x_start[x + 1]; i++) {
+					for(int j = y_start[y]; j < y_start[y + 1]; j++) {
+						if(map[i][j]) marked++;
+						count++;
+					}
+				}
+				reduced_map[x][y] = marked * 2 >= count;
+			}
+		}
+
+		return reduced_map;
+	}
+
+	/**
+	 * Helper function for splitting a length into blocks, one per
+	 * location of the reduced length. Every block holds at least one
+	 * location of the source length.
+	 *
+	 * @param length
+	 * The source length.
+	 * @param newLength
+	 * The reduced length.
+	 * @return
+	 * The start of each block, followed by the end of the last block.
+	 */
+	private static int [] getBlockStarts(int length, int newLength) {
+		int [] starts = new int[newLength + 1];
+		for(int i = 0; i <= newLength; i++) {
+			starts[i] = (int) ((long) i * length / newLength);
+		}
+		return starts;
+	}
+}
@@ -0,0 +1,366 @@
+package preprocessing;
+
+import io.ImageStripReader;
+
+import java.awt.image.BufferedImage;
+
+import tools.structures.ImageRaster;
+import tools.structures.ScratchArena;
+
+/**
+ * Runs the preprocessing steps of the feature detector on a decoded image
+ * a strip of rows at a time, without copying the image into full channel
+ * planes first.
+ *
+ * The image is passed over twice. The first pass finds the pixels bright
+ * enough to belong to the eye and samples the mini-image used for finding
+ * the optic nerve. The second pass streams the green values through the
+ * blur and the background subtraction, keeping only the rows that the blur
+ * filter and the subtraction box currently overlap. Only the background
+ * subtracted plane is stored at full size, so the peak memory is that plane
+ * next to the decoded image, instead of the decoded image next to the
+ * source planes, the blurred plane and the subtracted planes.
+ *
+ * The results match BackgroundSubtraction.findBlackBackground,
+ * CannyOps.convolve and BackgroundSubtraction.substract value for value.
+ *
+ * @author Peter Bugaj
+ */
+public class StreamingPreprocessor {
+
+	/**
+	 * The number of image rows read at once.
+	 */
+	private static final int STRIP_ROWS = 64;
+
+	/**
+	 * The decoded image.
+	 */
+	private BufferedImage image;
+
+	/**
+	 * The reader for the rows of the decoded image.
+	 */
+	private ImageStripReader reader;
+
+	/**
+	 * The width of the image.
+	 */
+	private int width;
+
+	/**
+	 * The height of the image.
+	 */
+	private int height;
+
+	/**
+	 * The map marking the pixels above the foreground threshold.
+	 */
+	private boolean [][] foreground = null;
+
+	/**
+	 * The mini-image holding the red and green values sampled for
+	 * finding the optic nerve.
+	 */
+	private ImageRaster miniImage = null;
+
+	/**
+	 * Buffer for the green values of the current strip of rows.
+	 */
+	private int [] stripGreen = null;
+
+	/**
+	 * The first row held by the strip buffer, or -1 if none.
+	 */
+	private int stripStart = -1;
+
+	/**
+	 * The number of rows held by the strip buffer.
+	 */
+	private int stripRows = 0;
+
+	/**
+	 * Create a new instance of the StreamingPreprocessor class.
+	 *
+	 * @param image
+	 * The decoded image, already cropped to the region to process.
+	 */
+	public StreamingPreprocessor(BufferedImage image) {
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		this.image = image;
+		this.reader = new ImageStripReader(image, this.width, this.height);
+	}
+
+	/**
+	 * Get the decoded image.
+	 */
+	public BufferedImage getImage() {
+		return this.image;
+	}
+
+	/**
+	 * Get the width of the image.
+	 */
+	public int getWidth() {
+		return this.width;
+	}
+
+	/**
+	 * Get the height of the image.
+	 */
+	public int getHeight() {
+		return this.height;
+	}
+
+	/**
+	 * Run the first pass over the image, finding the pixels above the
+	 * foreground threshold and sampling the mini-image for finding the
+	 * optic nerve.
+	 *
+	 * @param foreGroundStrength
+	 * The foreground threshold for the sum of the pixel values.
+	 * @param miniImageFactor
+	 * The number of times to divide the image by for the mini-image.
+	 */
+	public void scanSource(int foreGroundStrength, int miniImageFactor) {
+
+		this.foreground = new boolean[this.width][this.height];
+		this.miniImage = new ImageRaster(this.width / miniImageFactor, this.height / miniImageFactor, 2);
+
+		int strip_rows = Math.min(STRIP_ROWS, this.height);
+		int [] red = new int[this.width * strip_rows];
+		int [] green = new int[this.width * strip_rows];
+		int [] blue = new int[this.width * strip_rows];
+
+		for(int j = 0; j < this.height; j += strip_rows) {
+			int rows = Math.min(strip_rows, this.height - j);
+			this.reader.readRows(j, rows, red, green, blue);
+
+			for(int n = 0; n < rows; n++) {
+				int y = j + n;
+				boolean sampled_row = y % miniImageFactor == 0 && y < this.height - miniImageFactor;
+
+				for(int x = 0; x < this.width; x++) {
+					int sample = n * this.width + x;
+					this.foreground[x][y] = red[sample] + green[sample] + blue[sample] > foreGroundStrength;
+
+					if(sampled_row && x % miniImageFactor == 0 && x < this.width - miniImageFactor) {
+						this.miniImage.set(x / miniImageFactor, y / miniImageFactor, 0, (short) red[sample]);
+						this.miniImage.set(x / miniImageFactor, y / miniImageFactor, 1, (short) green[sample]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the map marking the pixels above the foreground threshold,
+	 * found by the first pass.
+	 */
+	public boolean [][] getForeground() {
+		return this.foreground;
+	}
+
+	/**
+	 * Get the mini-image for finding the optic nerve, sampled by the
+	 * first pass. The red values are held in the first channel and the
+	 * green values in the second channel.
+	 */
+	public ImageRaster getMiniImage() {
+		return this.miniImage;
+	}
+
+	/**
+	 * Run the second pass over the image, blurring the green values and
+	 * subtracting the uneven background from the blurred values. The
+	 * results of the first pass are released.
+	 *
+	 * @param filter
+	 * The blur filter to convolve over the green values.
+	 * @param mediumValue
+	 * The value to equalize the colours within the image to.
+	 * @param boxSize
+	 * The size of the neighbourhood used when equalizing the pixel value
+	 * within an image relative to the average colour intentisity of
+	 * its neighbouring pixels.
+	 * @return
+	 * The normalized background subtracted values, in the column by
+	 * column layout of ImageRaster.
+	 */
+	public short [] subtractBackground(float [][] filter, short mediumValue, int boxSize) {
+		return subtractBackground(filter, mediumValue, boxSize, new ScratchArena());
+	}
+
+	/**
+	 * Run the second pass over the image, taking the plane of the
+	 * background subtracted values from a scratch arena.
+	 *
+	 * @param filter
+	 * The blur filter to convolve over the green values.
+	 * @param mediumValue
+	 * The value to equalize the colours within the image to.
+	 * @param boxSize
+	 * The size of the neighbourhood used when equalizing the pixel value
+	 * within an image relative to the average colour intentisity of
+	 * its neighbouring pixels.
+	 * @param arena
+	 * The arena to take the plane of the background subtracted values from.
+	 * @return
+	 * The normalized background subtracted values, in the column by
+	 * column layout of ImageRaster.
+	 */
+	public short [] subtractBackground(float [][] filter, short mediumValue, int boxSize, ScratchArena arena) {
+
+		this.foreground = null;
+		this.miniImage = null;
+
+		int width = this.width;
+		int height = this.height;
+		int half_filter = (filter.length - 1) / 2;
+
+		// Rows of green values, each kept at its row modulo the filter length.
+		int [][] green_rows = new int[filter.length][width];
+		int green_loaded = -1;
+
+		// Rows of blurred values, each kept at its row modulo the box length.
+		int box_length = 2 * boxSize + 1;
+		short [][] blurred_rows = new short[Math.min(box_length, height)][];
+		for(int k = 0; k < blurred_rows.length; k++) {
+			blurred_rows[k] = new short[width];
+		}
+		int blurred_loaded = -1;
+
+		// Sums of the blurred values of each column within the box rows.
+		int [] column_sum = new int[width];
+
+		short [] target = arena.acquirePlane(width * height);
+		double normalizer_min = 1000;
+		double normalizer_max = 0;
+
+		for(int j = 0; j < height; j++) {
+
+			// Drop the row leaving the box before its slot is reused.
+			if(j - boxSize - 1 >= 0) {
+				short [] row = blurred_rows[(j - boxSize - 1) % blurred_rows.length];
+				for(int i = 0; i < width; i++) {
+					column_sum[i] -= row[i];
+				}
+			}
+
+			// Blur the rows entering the box.
+			int last_row = Math.min(height - 1, j + boxSize);
+			while(blurred_loaded < last_row) {
+				blurred_loaded++;
+
+				int needed_row = Math.min(height - 1, blurred_loaded + half_filter);
+				while(green_loaded < needed_row) {
+					green_loaded++;
+					readGreenRow(green_loaded, green_rows[green_loaded % filter.length]);
+				}
+
+				short [] row = blurred_rows[blurred_loaded % blurred_rows.length];
+				blurRow(filter, green_rows, blurred_loaded, row);
+				for(int i = 0; i < width; i++) {
+					column_sum[i] += row[i];
+				}
+			}
+
+			int rows = last_row - Math.max(0, j - boxSize) + 1;
+			short [] source = blurred_rows[j % blurred_rows.length];
+
+			int sum = 0;
+			for(int m = 0; m <= boxSize && m < width; m++) {
+				sum += column_sum[m];
+			}
+
+			for(int i = 0; i < width; i++) {
+				if(i > 0) {
+					if(i - boxSize - 1 >= 0) sum -= column_sum[i - boxSize - 1];
+					if(i + boxSize < width) sum += column_sum[i + boxSize];
+				}
+
+				int columns = Math.min(width - 1, i + boxSize) - Math.max(0, i - boxSize) + 1;
+				int diff = mediumValue - (sum / (rows * columns));
+
+				short mean_offset = (short)(source[i] + diff);
+
+				target[i * height + j] = mean_offset;
+				normalizer_min = Math.min(normalizer_min, mean_offset);
+				normalizer_max = Math.max(normalizer_max, mean_offset);
+			}
+		}
+
+		for(int i = 0; i < target.length; i++) {
+			target[i] = (short) (255 * (target[i]-normalizer_min) / (normalizer_max - normalizer_min));
+		}
+
+		this.stripGreen = null;
+		return target;
+	}
+
+	/**
+	 * Helper function for blurring one row of the green values. Sums up
+	 * the filter in the same order as CannyOps.convolve, so the blurred
+	 * values are the same.
+	 *
+	 * @param filter
+	 * The blur filter.
+	 * @param greenRows
+	 * The rows of green values, holding every row the filter covers.
+	 * @param row
+	 * The row to blur.
+	 * @param blurred
+	 * The array to store the blurred row in.
+	 */
+	private void blurRow(float [][] filter, int [][] greenRows, int row, short [] blurred) {
+
+		int half_filter = (filter.length - 1) / 2;
+
+		int [][] rows = new int[filter.length][];
+		for(int n = 0; n < filter.length; n++) {
+			int conv_neighb_y = row - half_filter + n;
+			if(conv_neighb_y < 0) conv_neighb_y = 0;
+			if(conv_neighb_y > this.height - 1) conv_neighb_y = this.height - 1;
+			rows[n] = greenRows[conv_neighb_y % filter.length];
+		}
+
+		for(int i = 0; i < this.width; i++) {
+			float sum_c = 0;
+			for(int m = 0; m < filter.length; m++) {
+
+				int conv_neighb_x = (i - half_filter) + m;
+				if(conv_neighb_x < 0) conv_neighb_x = 0;
+				if(conv_neighb_x > this.width - 1) conv_neighb_x = this.width - 1;
+
+				for(int n = 0; n < filter.length; n++) {
+					sum_c += filter[m][n] * rows[n][conv_neighb_x];
+				}
+			}
+			blurred[i] = (short) sum_c;
+		}
+	}
+
+	/**
+	 * Helper function for reading the green values of one row. Rows are
+	 * read in strips, and must be requested in increasing order.
+	 *
+	 * @param row
+	 * The row to read.
+	 * @param green
+	 * The array to store the green values in.
+	 */
+	private void readGreenRow(int row, int [] green) {
+
+		if(this.stripStart < 0 || row >= this.stripStart + this.stripRows) {
+			if(this.stripGreen == null) {
+				this.stripGreen = new int[this.width * Math.min(STRIP_ROWS, this.height)];
+			}
+			this.stripStart = row;
+			this.stripRows = Math.min(STRIP_ROWS, this.height - row);
+			this.reader.readRows(row, this.stripRows, null, this.stripGreen, null);
+		}
+
+		System.arraycopy(this.stripGreen, (row - this.stripStart) * this.width, green, 0, this.width);
+	}
+}
@@ -0,0 +1,394 @@
+package preprocessing.patches;
+
+import java.util.Arrays;
+
+import preprocessing.ColorReduction;
+
+import retinopathy.structures.PatchStore;
+
+import tools.math.Kernels;
+import tools.structures.ImageRaster;
+import tools.structures.ScratchArena;
+
+/**
+ * Builds the hierarchy of patches of an image of colour layers, going
+ * through the layers from the bottom up.
+ *
+ * A patch at a layer is a connected region of pixels at that layer or
+ * below, holding at least one pixel of the layer itself. Its children are
+ * the patches of lower layers it takes in. The uniform regions of each layer
+ * are found first with union-find, each standing for itself by its first
+ * pixel. Each patch is then filled breadth first from the first pixel of a
+ * uniform region not yet marked, taking in the pixels of its own layer and
+ * the patches below met on the way. A patch met on the way is taken in
+ * through its boundary alone, so its inside is never visited again.
+ *
+ * The stack area of a patch is its area plus the stack area of each of its
+ * children, weighted by the number of layers between the patch and the
+ * pixel the child was first reached through. This pixel lies at the top
+ * layer of the child only when the child is reached from a pixel of its own
+ * layer, so the fill keeps the order the pixels are visited in. The children
+ * may instead be weighted by the number of layers they lie below the patch
+ * themselves, which gives different features.
+ *
+ * A pixel is on the boundary of each patch holding it whose layer is below
+ * the layer of a neighbour of the pixel, so the boundary of a patch is made
+ * of those of its own pixels and of the boundaries of its children. Each
+ * patch is filled before the next is added, so the boundary of each patch
+ * takes up one run of the pool of boundary points of the store.
+ *
+ * Union-find only changes how the uniform regions are labelled. The
+ * attributes of a patch are not gathered as regions are joined: each patch
+ * is still filled pixel by pixel, and walks again the boundary of every
+ * child it takes in, so a pixel on the boundary of a tall stack of patches
+ * is visited once for each of them.
+ *
+ * @author Peter Bugaj
+ */
+public class ComponentTree {
+
+	/**
+	 * The largest area of a patch kept. A patch larger than this,
+	 * or taking in a patch that is not kept, is not kept either.
+	 */
+	private static final int MAX_AREA = 100000 * 10;
+
+	/**
+	 * The layer of each pixel.
+	 */
+	private short [] levels;
+
+	/**
+	 * The width of the image.
+	 */
+	private int width;
+
+	/**
+	 * The height of the image.
+	 */
+	private int height;
+
+	/**
+	 * The arena the working planes are taken from.
+	 */
+	private ScratchArena arena;
+
+	/**
+	 * The pixels ordered by layer, and by position within each layer.
+	 */
+	private int [] order;
+
+	/**
+	 * The position in the order of the first pixel of each layer,
+	 * followed by the number of pixels.
+	 */
+	private int [] layerStarts;
+
+	/**
+	 * Whether the stack area of each child is weighted by the layers
+	 * the child lies below its parent, instead of the pixel it was
+	 * first reached through.
+	 */
+	private boolean childLevelStackArea;
+
+	/**
+	 * The highest layer among the neighbours of each pixel.
+	 */
+	private short [] highestNeighbours;
+
+	/**
+	 * One more than the pixel each visited pixel of the current layer
+	 * is joined to, or zero for a pixel not yet visited. A pixel joined
+	 * to itself stands for its whole uniform region.
+	 */
+	private int [] parents;
+
+	/**
+	 * The first pixel of each uniform region of the current layer.
+	 */
+	private int [] regionStarts = new int[16];
+
+	/**
+	 * The pixels waiting to be visited by the patch being filled.
+	 */
+	private int [] queue;
+
+	/**
+	 * One more than the index of the last patch each pixel
+	 * was queued for, or zero for a pixel never queued.
+	 */
+	private int [] queued;
+
+	/**
+	 * Create a new instance of the ComponentTree class.
+	 *
+	 * @param filteredImage
+	 * The image whose first channel holds the colour layers [num_colors + 1].
+	 * @param arena
+	 * The arena to take the working planes from and give them back to.
+	 * @param childLevelStackArea
+	 * Whether to weight the stack area of each child by the layers the
+	 * child lies below its parent, instead of the pixel it was first
+	 * reached through.
+	 */
+	public ComponentTree(ImageRaster filteredImage, ScratchArena arena, boolean childLevelStackArea) {
+		this.levels = filteredImage.getPlane(0);
+		this.width = filteredImage.getWidth();
+		this.height = filteredImage.getHeight();
+		this.arena = arena;
+		this.childLevelStackArea = childLevelStackArea;
+	}
+
+	/**
+	 * Build the patches of every layer, starting from the bottom layer
+	 * and going up.
+	 *
+	 * @param patchMarker
+	 * The cleared map to mark each pixel in with one more than the index of
+	 * the highest patch holding it on its boundary, or of the lowest patch
+	 * holding it inside.
+	 * @return
+	 * The patches found, numbered from the bottom layer up.
+	 */
+	public PatchStore buildPatches(int [][] patchMarker) {
+
+		int size = this.width * this.height;
+		int layer_total = ColorReduction.NUM_COLORS + 2;
+		this.orderPixels(layer_total);
+		this.findHighestNeighbours();
+		this.parents = this.arena.acquireIntPlane(size);
+		this.queue = this.arena.acquireIntPlane(size);
+		this.queued = this.arena.acquireIntPlane(size);
+
+		PatchStore patches = new PatchStore(layer_total);
+		for(int layer = 0; layer < this.layerStarts.length - 1; layer++) {
+			int start = this.layerStarts[layer];
+			int end = this.layerStarts[layer + 1];
+			if(start == end) {
+				continue;
+			}
+
+			// Join the pixels of the layer into uniform regions,
+			// each standing for itself by its first pixel.
+			for(int i = start; i < end; i++) {
+				this.joinNeighbours(this.order[i]);
+			}
+			int start_count = 0;
+			for(int i = start; i < end; i++) {
+				if(this.findRegion(this.order[i]) == this.order[i]) {
+					if(start_count == this.regionStarts.length) {
+						this.regionStarts = Arrays.copyOf(this.regionStarts, start_count * 2);
+					}
+					this.regionStarts[start_count++] = this.order[i];
+				}
+			}
+
+			// Fill a patch from each uniform region not yet taken
+			// in, going through them from the last one found.
+			for(int i = start_count - 1; i >= 0; i--) {
+				int pixel = this.regionStarts[i];
+				if(patchMarker[pixel / this.height][pixel % this.height] != 0) {
+					continue;
+				}
+
+				this.fillPatch(patches, layer, pixel, patchMarker);
+			}
+		}
+
+		this.arena.release(this.order);
+		this.arena.release(this.highestNeighbours);
+		this.arena.release(this.parents);
+		this.arena.release(this.queue);
+		this.arena.release(this.queued);
+
+		return patches;
+	}
+
+	/**
+	 * Helper function for filling a new patch breadth first from a pixel of
+	 * its layer. A pixel of a lower layer met on the way stands for the patch
+	 * it is marked with, which is taken in along with its boundary. The fill
+	 * stops once the patch grows too large or meets a patch not kept, and the
+	 * patch is then dropped.
+	 */
+	private void fillPatch(PatchStore patches, int layer, int startPixel, int [][] patchMarker) {
+		int patch = patches.addPatch(layer);
+		int id = patch + 1;
+		boolean large_patch_detected = false;
+
+		int head = 0;
+		int tail = 0;
+		this.queue[tail++] = startPixel;
+		this.queued[startPixel] = id;
+		while(head < tail && !large_patch_detected) {
+			int pixel = this.queue[head++];
+			short x = (short) (pixel / this.height);
+			short y = (short) (pixel % this.height);
+			if(patchMarker[x][y] == id) continue;
+
+			short level = this.levels[pixel];
+			if(level < layer) {
+				int child = patchMarker[x][y] - 1;
+				if(child < 0 || !patches.isKept(child)) {
+					large_patch_detected = true;
+					continue;
+				}
+				patches.addChild(patch, child,
+					this.childLevelStackArea ? patches.getLevel(child) : level);
+				tail = this.takeBoundary(patches, patch, child, tail, patchMarker);
+				continue;
+			}
+
+			patchMarker[x][y] = id;
+			patches.addPixel(patch, x, y);
+			if(patches.getArea(patch) > MAX_AREA) {
+				large_patch_detected = true;
+				continue;
+			}
+
+			tail = this.queueNeighbours(pixel, layer, id, tail, false, patchMarker);
+			if(this.highestNeighbours[pixel] > layer) {
+				patches.addBoundaryPoint(patch, x, y);
+			}
+		}
+
+		patches.finishPatch(patch);
+		if(patches.getArea(patch) > MAX_AREA || large_patch_detected) {
+			patches.drop(patch);
+		}
+	}
+
+	/**
+	 * Helper function for ordering the pixels by layer with a counting sort,
+	 * keeping the pixels of each layer in the order of their position.
+	 */
+	private void orderPixels(int layerCount) {
+		int size = this.width * this.height;
+		this.layerStarts = new int[layerCount + 1];
+		for(int i = 0; i < size; i++) {
+			this.layerStarts[this.levels[i] + 1]++;
+		}
+		for(int i = 0; i < layerCount; i++) {
+			this.layerStarts[i + 1] += this.layerStarts[i];
+		}
+
+		this.order = this.arena.acquireIntPlane(size);
+		int [] next = Arrays.copyOf(this.layerStarts, layerCount);
+		for(int i = 0; i < size; i++) {
+			this.order[next[this.levels[i]]++] = i;
+		}
+	}
+
+	/**
+	 * Helper function for finding the highest layer among the neighbours
+	 * of each pixel, or -1 for a pixel without neighbours.
+	 */
+	private void findHighestNeighbours() {
+		this.highestNeighbours = this.arena.acquirePlane(this.width * this.height);
+		for(int x = 0; x < this.width; x++) {
+			for(int y = 0; y < this.height; y++) {
+				short highest = -1;
+				for(short i = 0; i < Kernels.neighMap.length; i++) {
+					int nx = x-1+Kernels.neighMap[i][0];
+					int ny = y-1+Kernels.neighMap[i][1];
+					if(nx < 0 || ny < 0 || nx >= this.width || ny >= this.height) continue;
+
+					highest = (short) Math.max(highest, this.levels[nx * this.height + ny]);
+				}
+				this.highestNeighbours[x * this.height + y] = highest;
+			}
+		}
+	}
+
+	/**
+	 * Helper function for joining the region of a pixel with the regions of
+	 * its neighbours visited at the same layer, visiting the pixel if not yet
+	 * visited. Regions are joined under their first pixel.
+	 */
+	private void joinNeighbours(int pixel) {
+		if(this.parents[pixel] == 0) {
+			this.parents[pixel] = pixel + 1;
+		}
+		int x = pixel / this.height;
+		int y = pixel % this.height;
+		for(short i = 0; i < Kernels.neighMap.length; i++) {
+			int nx = x-1+Kernels.neighMap[i][0];
+			int ny = y-1+Kernels.neighMap[i][1];
+			if(nx < 0 || ny < 0 || nx >= this.width || ny >= this.height) continue;
+
+			int neighbour = nx * this.height + ny;
+			if(this.parents[neighbour] == 0) continue;
+			if(this.levels[neighbour] != this.levels[pixel]) continue;
+
+			int region = this.findRegion(pixel);
+			int neighbour_region = this.findRegion(neighbour);
+			if(region < neighbour_region) {
+				this.parents[neighbour_region] = region + 1;
+			} else if(neighbour_region < region) {
+				this.parents[region] = neighbour_region + 1;
+			}
+		}
+	}
+
+	/**
+	 * Helper function for finding the pixel standing for the region of a
+	 * visited pixel, pointing the pixels on the way past their parents.
+	 */
+	private int findRegion(int pixel) {
+		int parent = this.parents[pixel] - 1;
+		while(parent != pixel) {
+			int grandparent = this.parents[parent] - 1;
+			this.parents[pixel] = grandparent + 1;
+			pixel = grandparent;
+			parent = this.parents[pixel] - 1;
+		}
+		return pixel;
+	}
+
+	/**
+	 * Helper function for queuing the neighbours of a pixel not yet marked
+	 * or queued for a patch, leaving out those above its layer, and those
+	 * below it as well when only its own layer is to be queued.
+	 */
+	private int queueNeighbours(int pixel, int layer, int id, int tail, boolean ownLayer, int [][] patchMarker) {
+		int x = pixel / this.height;
+		int y = pixel % this.height;
+		for(short i = 0; i < Kernels.neighMap.length; i++) {
+			int nx = x-1+Kernels.neighMap[i][0];
+			int ny = y-1+Kernels.neighMap[i][1];
+			if(nx < 0 || ny < 0 || nx >= this.width || ny >= this.height) continue;
+
+			int neighbour = nx * this.height + ny;
+			if(patchMarker[nx][ny] == id) continue;
+			if(this.levels[neighbour] > layer) continue;
+			if(ownLayer && this.levels[neighbour] < layer) continue;
+			if(this.queued[neighbour] == id) continue;
+
+			this.queued[neighbour] = id;
+			this.queue[tail++] = neighbour;
+		}
+		return tail;
+	}
+
+	/**
+	 * Helper function for letting a patch take in the boundary of a child,
+	 * marking each of its points with the patch and queuing the pixels of
+	 * the layer of the patch around them.
+	 */
+	private int takeBoundary(PatchStore patches, int patch, int child, int tail, int [][] patchMarker) {
+		int layer = patches.getLevel(patch);
+		int start = patches.getBoundaryStart(child);
+		int end = start + patches.getBoundarySize(child);
+		for(int i = start; i < end; i++) {
+			short x = patches.getBoundaryX(i);
+			short y = patches.getBoundaryY(i);
+			int pixel = x * this.height + y;
+			patchMarker[x][y] = patch + 1;
+			tail = this.queueNeighbours(pixel, layer, patch + 1, tail, true, patchMarker);
+			if(this.highestNeighbours[pixel] > layer) {
+				patches.addBoundaryPoint(patch, x, y);
+			}
+		}
+		return tail;
+	}
+}
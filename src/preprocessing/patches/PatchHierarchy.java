@@ -1,16 +1,11 @@
 package preprocessing.patches;
 
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.LinkedList;
-
 import preprocessing.ColorReduction;
 
-import retinopathy.structures.Patch;
+import retinopathy.structures.PatchStore;
 
-import tools.math.Kernels;
-import tools.structures.CoordinateList;
+import tools.structures.ImageRaster;
+import tools.structures.ScratchArena;
 
 /**
  * Class for running the patch hierarchy algorithm.
@@ -29,357 +24,260 @@ public class PatchHierarchy {
 	 * Whether or not the algorithm is to run on an image with
 	 * the colour values flipped.
 	 */
-	public static Hashtable<String, Patch> constructPatches(short [][][] filteredImage, boolean flipped) {
-
-		// Locate the different layers by pixel coordinates
-		boolean [][] map = new boolean[filteredImage.length][filteredImage[0].length];
-		CoordinateList[] locations_per_layer = new CoordinateList[(int) (ColorReduction.NUM_COLORS + 2)];
-		for(short i = 0; i < filteredImage.length; i++) {
-			for(short j = 0; j < filteredImage[0].length; j++) {
-				if(map[i][j]) continue;
-				markRegion(filteredImage, map, i, j, locations_per_layer);
-			}
-		}
-
-		// Store the boundary of each layer, starting
-		// from the top layer and going down.
-		Hashtable<String, Patch> id_to_patch = new Hashtable<String, Patch>();
-		int[][] patch_marker = new int[filteredImage.length][filteredImage[0].length];
-
-		for(short layer = 0; layer < locations_per_layer.length; layer++) {
-			if (locations_per_layer[layer] == null) {
-				continue;
-			}
-
-			Iterator<short[]> coords = locations_per_layer[layer].getCoords();
-			while(coords.hasNext()) {
-				short [] next_coord = coords.next();
-				if(patch_marker[next_coord[0]][next_coord[1]] != 0) {
-					continue;
-				}
-
-				findPatchAndStoreBoundary(filteredImage, id_to_patch, patch_marker, next_coord, layer, flipped);
-			}
-		}
-
-		// Print the important patches onto the image for visualization
-		drawPatches(filteredImage, patch_marker, id_to_patch, ColorReduction.NUM_COLORS);
-		
-		return id_to_patch;
+	public static PatchStore constructPatches(ImageRaster filteredImage, boolean flipped) {
+		return constructPatches(filteredImage, flipped, new ScratchArena());
 	}
-	
+
 	/**
-	 * Mark a certain region within an image that has uniform colour.
-	 * Then mark that entire region of uniform colour to prevent any
-	 * pixels belonging to it from being marked in that region again.
-	 * Run this using the connected component algorithm.
+	 * Takes in an image with RGB values [num_colors + 1, x, y], and
+	 * outputs an image of RGB values [f1, f2, 0], taking the working
+	 * maps of the algorithm from a scratch arena.
 	 * 
 	 * @param filteredImage
-	 * The image source matrix for which to mark the uniform region in.
-	 * @param map
-	 * The map keeping track of the different uniform regions so far,
-	 * as well as the current region being marked by the connected
-	 * component algorithm.
-	 * @param x
-	 * The x location within the image to start running the connected
-	 * component algorithm at to mark the uniform colour region.
-	 * @param y
-	 * The y location within the image to start running the connected
-	 * component algorithm at to mark the uniform colour region.
-	 * @param locationsPerLayer
-	 * Data structure for storing the various marked points within the
-	 * image, grouped by the colour intensity values present within
-	 * the image.
+	 * The image source matrix to run the patch hierarchy algorithm on.
+	 * @param flipped
+	 * Whether or not the algorithm is to run on an image with
+	 * the colour values flipped.
+	 * @param arena
+	 * The arena to take the working maps from and give them back to.
 	 */
-	private static void markRegion(
-			short [][][] filteredImage,
-			boolean [][] map,
-			short x, short y,
-			CoordinateList[] locationsPerLayer) {
-
-		/**--------------------------------------------------------------**/
-		short intensity = filteredImage[x][y][0];
-		if(locationsPerLayer[intensity] == null) {
-			locationsPerLayer[intensity] = new CoordinateList();
-		}
-		locationsPerLayer[intensity].addCoord(new short[]{x, y});
-		/**--------------------------------------------------------------**/
-		/**==============================================================**/
-		/**--------------------------------------------------------------**/
-
+	public static PatchStore constructPatches(
+			ImageRaster filteredImage,
+			boolean flipped,
+			ScratchArena arena) {
 
-		/**--------------------------------------------------------------**/
-		LinkedList<int[]> stack = new LinkedList<int[]>();
-		stack.push(new int[]{x,y});
-		while(stack.size() > 0) {
+		boolean [][] foreground = arena.acquireBooleanMap(filteredImage.getWidth(), filteredImage.getHeight());
+		PatchStore patches = constructPatches(filteredImage, flipped, arena, foreground, false);
 
-			/**===================================================**/
-			int [] next_pair = stack.removeLast();
-			/**===================================================**/
-			/**Get the next point to expand from**/
-			int nx = next_pair[0];
-			int ny = next_pair[1];
-			/**===================================================**/
-			if(map[nx][ny]) continue;
-			map[nx][ny] = true;
-			/**===================================================**/
-
-			/**===================================================**/
-			for(short i = 0; i < Kernels.neighMap.length; i++) {
-				byte m = Kernels.neighMap[i][0];
-				byte n = Kernels.neighMap[i][1];
-			
-				if(nx-1+m < 0 || ny-1+n < 0 || nx-1+m >= filteredImage.length || ny-1+n >= filteredImage[0].length) continue;
-
-				if(map[nx-1+m][ny-1+n]) continue;
-				if(filteredImage[nx-1+m][ny-1+n][0] != intensity) continue;
+		// Print the important patches onto the image for visualization
+		drawPatches(filteredImage, foreground, patches, ColorReduction.NUM_COLORS);
+		arena.release(foreground);
 
-				stack.push(new int []{nx-1+m, ny-1+n});
-			}
-			/**===================================================**/
-		}
+		return patches;
 	}
 
 	/**
-	 * Find a patch within the image and store its boundary points.
-     *
+	 * Takes in an image whose first channel holds the colour layers
+	 * [num_colors + 1], and marks the foreground of the patches found
+	 * in a map instead of painting it into the image. The foreground is
+	 * the same as the non-zero values of the first channel of the image
+	 * drawn by the other versions of this function.
+	 * 
 	 * @param filteredImage
-	 * The filtered image containing the pixel information needed
-	 * for constructing the patch.
-	 * @param idToPatch
-	 * The data structure keeping track of the patches found and
-	 * constructed so far, storing them using their IDs.
+	 * The image source matrix to run the patch hierarchy algorithm on.
+	 * Only its first channel is read, and the image is left unchanged.
+	 * @param flipped
+	 * Whether or not the algorithm is to run on an image with
+	 * the colour values flipped.
+	 * @param arena
+	 * The arena to take the working maps from and give them back to.
+	 * @param foreground
+	 * The cleared map to mark the foreground of the patches in.
+	 * @param childLevelStackArea
+	 * Whether to weight the stack area of each child by the number of
+	 * levels the child itself lies below its parent, instead of the level
+	 * of the pixel it was first reached through. Changes the feature version.
+	 */
+	public static PatchStore constructPatches(
+			ImageRaster filteredImage,
+			boolean flipped,
+			ScratchArena arena,
+			boolean [][] foreground,
+			boolean childLevelStackArea) {
+
+		// Build the patches of each layer, starting
+		// from the bottom layer and going up.
+		int[][] patch_marker = arena.acquireIntMap(filteredImage.getWidth(), filteredImage.getHeight());
+		PatchStore patches = new ComponentTree(filteredImage, arena, childLevelStackArea).buildPatches(patch_marker);
+
+		// Mark the pixels of the patches kept, along
+		// with the boundaries drawn around them.
+		markForeground(foreground, patch_marker, patches, ColorReduction.NUM_COLORS);
+		arena.release(patch_marker);
+		
+		return patches;
+	}
+	
+	/**
+	 * Helper function for marking the foreground of the patches, being
+	 * the pixels of each patch kept and the boundaries drawn around them
+	 * with a non-zero first channel.
+	 * 
+	 * @param foreground
+	 * The map to mark the foreground in.
 	 * @param patchMarker
 	 * The map storing where all the patches are located within the
-	 * image, marking them by their IDs.
-	 * @param startCoord
-	 * The startig coordinate to use by the connected component
-	 * algoritm to iterate through the image of the uniform
-	 * colour region and to mark the patch.
-	 * @param newLayer
-	 * The pixel value layer of the new patch being constructed.
-	 * @param flipped
-	 * Whether or not the patch is being created for an image
-	 * with colours retreated as reversed.
+	 * image, marking them by one more than their indexes.
+	 * @param patches
+	 * The patches found.
+	 * @param numColours
+	 * The total number of different colours present in the image matrix.
 	 */
-	private static void findPatchAndStoreBoundary(
-			short [][][] filteredImage,
-			Hashtable<String, Patch> idToPatch,
+	private static void markForeground(
+			boolean [][] foreground,
 			int[][] patchMarker,
-			short [] startCoord,
-			int newLayer,
-			boolean flipped) {
-
-		int max_area = 100000 * 10;
-		boolean large_patch_detected = false;
-
-		// Create a new patch
-		Patch new_patch = new Patch();
-		int new_id = new_patch.getId();
-		new_patch.setLevel(newLayer);
-		idToPatch.put(new_id + "", new_patch);
-
-		// Start from the original coordinate, find all the connected
-		// pixels that exist on the same layer and store a boundary.
-		LinkedList<short[]> stack = new LinkedList<short[]>();
-		stack.push(startCoord);
-
-		// ============================================================== //
-		// ======================== MAIN LOOP START ===================== //
-		while(stack.size() > 0 && !large_patch_detected) { // =========== //
-			// ============================================================== //
-
-			short [] next_coord = stack.removeLast();
-			short nx = next_coord[0];
-			short ny = next_coord[1];
-
-			// Coordinate already processed. Move on.
-			if(patchMarker[nx][ny] == new_id) continue;
-
-			// A higher layer. Move on.
-			if(filteredImage[nx][ny][0] > newLayer) continue;
-
-			// The boundary of a lower layer not yet marked by new_id.
-			// Search around its boundary for point of equal intensity
-			// to expend the new layer. Finally mark this coordinate
-			// with the new_id to avoid paying attention to this lower
-			// layer again. Also mark other boundary points of this
-			// lower layer with the new_id for the same reason.
-			// ==================================================== //
-			// =============== BOUNDARY TRANSFER START ============ //
-			if(filteredImage[nx][ny][0] < newLayer) { // ======== //
-				// ==================================================== //
-
-				int old_id = patchMarker[nx][ny];
-				Patch old_patch = idToPatch.get(old_id + "");
-
-				// Patches of lower intensity are only
-				// removed in the case when they grew too large.
-				if(old_patch == null) {
-					large_patch_detected = true;
-					continue;
-				}
-
-				new_patch.incrementArea(old_patch.getArea());			
-				new_patch.incrementStackArea(
-					(newLayer - filteredImage[nx][ny][0]) * old_patch.getStackArea());
-				
-				new_patch.incrementLevelSum(old_patch.getLevelSum());
-				new_patch.incrementSumX(old_patch.getSumX());
-				new_patch.incrementSumY(old_patch.getSumY());
-
-				old_patch.setParentPatch(new_patch);
-				
-				Iterator<short[]> old_boundary = old_patch.getBoundary().iterator();
-				while(old_boundary.hasNext()) {
-					short [] old_next = old_boundary.next();
-					short old_x = old_next[0];
-					short old_y = old_next[1];
-					patchMarker[old_x][old_y] = new_id;
-
-					boolean boundary_hit = false;
-					for(short i = 0; i < Kernels.neighMap.length; i++) {
-						byte m = Kernels.neighMap[i][0];
-						byte n = Kernels.neighMap[i][1];
-
-						if(old_x-1+m < 0 || old_x-1+m >= filteredImage.length) continue;
-						if(old_y-1+n < 0 || old_y-1+n >= filteredImage[0].length) continue;
-
-						if(patchMarker[old_x-1+m][old_y-1+n] == new_id) {
-							continue;
-						}
-
-						if (filteredImage[old_x-1+m][old_y-1+n][0] > newLayer) {
-							boundary_hit = true;
-							continue;
-						}
-						if (filteredImage[old_x-1+m][old_y-1+n][0] < newLayer) {
-							continue;
-						};
-
-						stack.push(new short []{(short) (old_x-1+m), (short) (old_y-1+n)});
-					}
-
-					if (boundary_hit) {
-						new_patch.getBoundary().add(new short[]{old_next[0], old_next[1]});
-					}
-				}
-
-				//old_patch.boundary.clear();
-				//old_patch.boundary = null;
-				continue;
-
-				// ==================================================== //				
-			} // =============== BOUNDARY TRANSFER END ============ //
-			// ==================================================== //
+			PatchStore patches,
+			float numColours) {
 
-			patchMarker[nx][ny] = new_id;
-			new_patch.incrementArea(1);
-			new_patch.incrementLevelSum(newLayer);
-			new_patch.incrementSumX(nx);
-			new_patch.incrementSumY(ny);
-			if(new_patch.getArea() > max_area) {
-				large_patch_detected = true;
-				continue;
+		for(short i = 0; i < foreground.length; i++) {
+			for(short j = 0; j < foreground[i].length; j++) {
+				foreground[i][j] = patchMarker[i][j] != 0 && patches.isKept(patchMarker[i][j] - 1);
 			}
+		}
 
-			// Extend search region
-			boolean boundary_hit = false;
-			for(short i = 0; i < Kernels.neighMap.length; i++) {
-				byte m = Kernels.neighMap[i][0];
-				byte n = Kernels.neighMap[i][1];
-
-				if(nx-1+m < 0 || nx-1+m >= filteredImage.length) continue;
-				if(ny-1+n < 0 || ny-1+n >= filteredImage[0].length) continue;
-
-				if (patchMarker[nx-1+m][ny-1+n] == new_id) continue;
-
-				if (filteredImage[nx-1+m][ny-1+n][0] > newLayer) {
-					boundary_hit = true;
+		// Boundaries are drawn in the same order as by drawPatches, from
+		// the top level down, so overlapping boundaries leave the same
+		// values behind.
+		for(int level = patches.getLevelCount() - 1; level >= 0; level--) {
+			for(int next_patch = patches.getLevelStart(level); next_patch < patches.getLevelEnd(level); next_patch++) {
+				short [] color = getBoundaryColor(patches, next_patch, numColours);
+				if(color == null) {
 					continue;
 				}
 
-				stack.push(new short []{(short) (nx-1+m), (short) (ny-1+n)});
-			}
-
-			if (boundary_hit) {
-				new_patch.getBoundary().add(new short[]{next_coord[0], next_coord[1]});
+				float fac = patches.getStackArea(next_patch) / (patches.getArea(next_patch) +0.0f);
+				markBoundary(foreground, patches, next_patch, fac, color[0] != 0);
 			}
-
-			// ============================================================== //
-		} // ======================= MAIN LOOP END ====================== //
-		// ============================================================== //
-		new_patch.incrementStackArea(new_patch.getArea());
-		new_patch.setCurvature(
-			Patch.getCurvature_T5(
-				new_patch.getBoundary(), new_patch.getSumX(), new_patch.getSumY(), new_patch.getArea())
-		);
-
-		if(new_patch.getArea() > max_area || large_patch_detected) {
-			idToPatch.remove(new_patch.getId() + "");
-			return;
 		}
 	}
 
 	/**
-	 * Helper function for drawing the patches within the image
-	 * for visualization.
+	 * Draw the patches within an image for visualization, given the
+	 * foreground marked by the analysis-only version of constructPatches.
 	 * 
 	 * @param filteredImage
-	 * The image source matrix containing the patches to be
-	 * drawn the better emphasis.
-	 * @param patchMarker
-	 * The map storing where all the patches are located within the
-	 * image, marking them by their IDs.
-	 * @param idToPatch
-	 * The data structure keeping track of the patches found and
-	 * constructed so far, storing them using their IDs.
+	 * The image source matrix to draw the patches in.
+	 * @param foreground
+	 * The foreground of the patches.
+	 * @param patches
+	 * The patches to draw.
 	 * @param numColours
 	 * The total number of different colours present in the image matrix.
 	 * Also equivalent to the number of layers the patch hierarchy is
 	 * made up from.
 	 */
-	private static void drawPatches(
-			short[][][]filteredImage,
-			int[][] patchMarker,
-			Hashtable<String, Patch> idToPatch,
+	public static void drawPatches(
+			ImageRaster filteredImage,
+			boolean [][] foreground,
+			PatchStore patches,
 			float numColours) {
 		
-		for(short i = 0; i < filteredImage.length; i++) {
-			for(short j = 0; j < filteredImage[0].length; j++) {
-				if(patchMarker[i][j] == 0 || idToPatch.get(patchMarker[i][j] + "") == null) {
-					filteredImage[i][j] = new short[]{0,0,0};
-				} else {
-					filteredImage[i][j] = new short[]{45, 30, 15};
-				}
+		short [] background_color = new short[]{0, 0, 0};
+		short [] foreground_color = new short[]{45, 30, 15};
+		for(short i = 0; i < filteredImage.getWidth(); i++) {
+			for(short j = 0; j < filteredImage.getHeight(); j++) {
+				filteredImage.setPixel(i, j, foreground[i][j] ? foreground_color : background_color);
 			}
 		}
 		
-		// Draw the patches
-		Enumeration<Patch> patches = idToPatch.elements();
-		while(patches.hasMoreElements()) {
-			Patch next_patch = patches.nextElement();
+		// Draw the patches from the top level down
+		for(int level = patches.getLevelCount() - 1; level >= 0; level--) {
+			for(int next_patch = patches.getLevelStart(level); next_patch < patches.getLevelEnd(level); next_patch++) {
+				short [] color = getBoundaryColor(patches, next_patch, numColours);
+				if(color == null) {
+					continue;
+				}
 
-			float c = numColours;
-			float ints = (c - Math.min(next_patch.getLevel(), c))/c;
-			short[] color = null;
-			
-			float fac = next_patch.getStackArea() / (next_patch.getArea() +0.0f);
-			
-			
-			float fac_ints = fac * ints;		
-			if(next_patch.getStackArea() > 10) {
-				color = new short[]{
-						(short) (Math.min(fac_ints*150, 255)), 
-						(short) (Math.min(fac_ints*100, 255)),
-						(short) (Math.min(fac_ints*50, 255))};
-			}
-			else {
-				continue;
+				/**Draw the boundary.**/
+				float fac = patches.getStackArea(next_patch) / (patches.getArea(next_patch) +0.0f);
+				drawBoundary(filteredImage, patches, next_patch, fac, color);
 			}
+		}
+	}
+
+	/**
+	 * Helper function for getting the colour to draw the boundary
+	 * of a patch with.
+	 * 
+	 * @param patches
+	 * The patches found.
+	 * @param patch
+	 * The patch to draw.
+	 * @param numColours
+	 * The total number of different colours present in the image matrix.
+	 * @return
+	 * The colour, or null if the boundary of the patch is not drawn.
+	 */
+	private static short [] getBoundaryColor(PatchStore patches, int patch, float numColours) {
+		if(!patches.isKept(patch) || patches.getStackArea(patch) <= 10) {
+			return null;
+		}
+
+		float c = numColours;
+		float ints = (c - Math.min(patches.getLevel(patch), c))/c;
+		float fac = patches.getStackArea(patch) / (patches.getArea(patch) +0.0f);
+		float fac_ints = fac * ints;
+		return new short[]{
+				(short) (Math.min(fac_ints*150, 255)), 
+				(short) (Math.min(fac_ints*100, 255)),
+				(short) (Math.min(fac_ints*50, 255))};
+	}
+
+	/**
+	 * Helper function for getting the half width of the
+	 * boundary drawn around a patch.
+	 * 
+	 * @param strength
+	 * The strength of the patch used for determing how thick
+	 * the boundary should be drawn as.
+	 */
+	private static int getBoundaryHalfWidth(float strength) {
+		if (strength > 1.4) {
+			return 3;
+		}
+		if(strength > 1.2) {
+			return 2;
+		}
+		/**if (fac > 1.6) {
+			return 4;
+		}**/
+		return 1;
+	}
+
+	/**
+	 * Helper function for marking the boundary of a patch
+	 * in the map of the foreground.
+	 * 
+	 * @param foreground
+	 * The map of the foreground.
+	 * @param patches
+	 * The patches found.
+	 * @param patch
+	 * The patch whose boundary to mark.
+	 * @param strength
+	 * The strength of the patch used for determing how thick
+	 * the boundary should be drawn as.
+	 * @param value
+	 * Whether the boundary is part of the foreground.
+	 */
+	private static void markBoundary(
+			boolean [][] foreground,
+			PatchStore patches,
+			int patch,
+			float strength,
+			boolean value) {
+
+		int b_h = getBoundaryHalfWidth(strength);
+		int b_m = 2 * b_h + 1;
+		int width = foreground.length;
+		int height = width == 0 ? 0 : foreground[0].length;
+		int start = patches.getBoundaryStart(patch);
+		int end = start + patches.getBoundarySize(patch);
+		for(int point = start; point < end; point++) {
+			short cx = patches.getBoundaryX(point);
+			short cy = patches.getBoundaryY(point);
+
+			for(int m = 0; m < b_m; m++) {
+				for(int n = 0; n < b_m; n++) {
+
+					if(n==b_h && m==b_h) continue;
+					if(cx-b_h+m < 0 || cy-b_h+n < 0 || cx-b_h+m >= width || cy-b_h+n >= height) {
+						continue;
+					}
 
-			/**Draw the boundary.**/
-			drawBoundary(filteredImage, next_patch.getBoundary().iterator(), fac, color);
+					foreground[cx-b_h+m][cy-b_h+n] = value;
+				}
+			}
 		}
 	}
 	
@@ -389,8 +287,10 @@ public class PatchHierarchy {
 	 * @param filteredImage
 	 * The image source matrix containing the patches to be
 	 * drawn the better emphasis.
-	 * @param boundary
-	 * The boundary of the patch to draw.
+	 * @param patches
+	 * The patches found.
+	 * @param patch
+	 * The patch whose boundary to draw.
 	 * @param strength
 	 * The strength of the patch used for determing how thick
 	 * the boundary should be drawn as.
@@ -398,39 +298,30 @@ public class PatchHierarchy {
 	 * The colour to use for drawing the boundary points.
 	 */
 	private static void drawBoundary(
-			short[][][]filteredImage,
-			Iterator<short[]> boundary,
+			ImageRaster filteredImage,
+			PatchStore patches,
+			int patch,
 			float strength,
 			short[]color) {
 
-		int b_m = 3;
-		int b_h = 1;
-		if(strength > 1.2) {
-			b_m = 5; b_h = 2;
-		}
-		if (strength > 1.4) {
-			b_m = 7; b_h = 3;
-		}
-		/**if (fac > 1.6) {
-			b_m = 9; b_h = 4;
-		}**/
-		while(boundary.hasNext()) {
-			short[]next_point = boundary.next();
-			short cx = next_point[0];
-			short cy = next_point[1];
+		int b_h = getBoundaryHalfWidth(strength);
+		int b_m = 2 * b_h + 1;
+		int start = patches.getBoundaryStart(patch);
+		int end = start + patches.getBoundarySize(patch);
+		for(int point = start; point < end; point++) {
+			short cx = patches.getBoundaryX(point);
+			short cy = patches.getBoundaryY(point);
 
 			for(int m = 0; m < b_m; m++) {
 				for(int n = 0; n < b_m; n++) {
 
 					if(n==b_h && m==b_h) continue;
-					if(cx-b_h+m < 0 || cy-b_h+n < 0 || cx-b_h+m >= filteredImage.length
-						|| cy-b_h+n >= filteredImage[0].length) {
+					if(cx-b_h+m < 0 || cy-b_h+n < 0 || cx-b_h+m >= filteredImage.getWidth()
+						|| cy-b_h+n >= filteredImage.getHeight()) {
 						continue;
 					}
 
-					if(cx-b_h+m < 0 || cx-b_h+m >= filteredImage.length) continue;
-					if(cy-b_h+n < 0 || cy-b_h+n >= filteredImage[0].length) continue;
-					filteredImage[cx-b_h+m][cy-b_h+n] = color;
+					filteredImage.setPixel(cx-b_h+m, cy-b_h+n, color);
 				}
 			}
 		}
@@ -0,0 +1,53 @@
+package retinopathy.structures;
+
+/**
+ * Generates the IDs of the veins and vein forks found within
+ * one analysis of an image, along with the markers used for visiting
+ * the vein forks.
+ *
+ * Every analysis uses its own context, so the IDs handed out do not
+ * depend on the images analyzed before it or at the same time on other
+ * threads, and the features detected for an image are the same however
+ * the images of a batch are spread over threads. A context is used by
+ * one analysis at a time.
+ *
+ * @author Peter Bugaj
+ */
+public class IdContext {
+
+	/**
+	 * The ID of the last vein created.
+	 */
+	private int veinId = 1;
+
+	/**
+	 * The ID of the last vein fork created.
+	 */
+	private int forkId = 1;
+
+	/**
+	 * The next marker to hand out.
+	 */
+	private int marker = 99;
+
+	/**
+	 * Get the ID of a new vein.
+	 */
+	public int nextVeinId() {
+		return ++this.veinId;
+	}
+
+	/**
+	 * Get the ID of a new vein fork.
+	 */
+	public int nextForkId() {
+		return ++this.forkId;
+	}
+
+	/**
+	 * Get the next marker value for visiting the vein forks.
+	 */
+	public int nextMarker() {
+		return this.marker++;
+	}
+}
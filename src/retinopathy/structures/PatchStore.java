@@ -0,0 +1,466 @@
+package retinopathy.structures;
+
+import java.util.Arrays;
+
+/**
+ * Data structure for storing the patches found within an image, keeping
+ * each property of the patches in a primitive array indexed by patch.
+ *
+ * Patches are numbered from zero in the order they are added, and are
+ * added level by level going up, so the patches of each level take up
+ * one run of indexes and can be traversed from the top level down without
+ * sorting. A parent always lies at a higher level than its children, so
+ * such a traversal reaches each parent before its children.
+ *
+ * The points of the boundaries of all the patches are held in one pool of
+ * coordinates. The boundary of a patch is added before the next patch is,
+ * so the boundary of each patch takes up one run of the pool.
+ * A patch stays in the store once added, even when it is dropped, so the
+ * patches it was the parent of still have a parent. Only the patches kept
+ * are counted as found.
+ *
+ * @author Peter Bugaj
+ */
+public class PatchStore {
+
+	/**
+	 * The number of patches.
+	 */
+	private int count = 0;
+
+	/**
+	 * The number of patches kept.
+	 */
+	private int keptCount = 0;
+
+	/**
+	 * The level of each patch.
+	 */
+	private int [] levels;
+
+	/**
+	 * The area of each patch.
+	 */
+	private float [] areas;
+
+	/**
+	 * The stacked area of each patch.
+	 */
+	private float [] stackAreas;
+
+	/**
+	 * Sum of the pixel levels of each patch used for calculating
+	 * the average light intensity.
+	 */
+	private long [] levelSums;
+
+	/**
+	 * Pixel sum x of each patch for calculating its centroid.
+	 */
+	private long [] sumsX;
+
+	/**
+	 * Pixel sum y of each patch for calculating its centroid.
+	 */
+	private long [] sumsY;
+
+	/**
+	 * The curvature value of the boundary of each patch.
+	 */
+	private float [] curvatures;
+
+	/**
+	 * The parent of each patch, or -1 for a patch without a parent.
+	 */
+	private int [] parents;
+
+	/**
+	 * Whether each patch is kept.
+	 */
+	private boolean [] kept;
+
+	/**
+	 * Whether each patch has been analyzed by an algorithm.
+	 */
+	private boolean [] analyzed;
+
+	/**
+	 * The position in the pool of the first boundary point of each patch.
+	 */
+	private int [] boundaryStarts;
+
+	/**
+	 * The number of boundary points of each patch.
+	 */
+	private int [] boundarySizes;
+
+	/**
+	 * The x coordinates of the pool of boundary points.
+	 */
+	private short [] boundaryX = new short[64];
+
+	/**
+	 * The y coordinates of the pool of boundary points.
+	 */
+	private short [] boundaryY = new short[64];
+
+	/**
+	 * The number of boundary points within the pool.
+	 */
+	private int boundaryCount = 0;
+
+	/**
+	 * The index of the first patch of each level, for
+	 * the levels up to the level of the last patch.
+	 */
+	private int [] levelStarts;
+
+	/**
+	 * The level of the last patch added.
+	 */
+	private int lastLevel = -1;
+
+	/**
+	 * Create a new instance of the PatchStore class with no patches.
+	 *
+	 * @param levelCount
+	 * The number of levels the patches can lie at.
+	 */
+	public PatchStore(int levelCount) {
+		this.levelStarts = new int[levelCount + 1];
+		this.resize(16);
+	}
+
+	/**
+	 * Add a new kept patch with no pixels or boundary. Patches must
+	 * be added in order of their level, from the bottom level up.
+	 *
+	 * @param level
+	 * The level of the patch.
+	 * @return
+	 * The index of the patch.
+	 */
+	public int addPatch(int level) {
+		if(this.count == this.levels.length) {
+			this.resize(this.count * 2);
+		}
+		for(int l = this.lastLevel + 1; l <= level; l++) {
+			this.levelStarts[l] = this.count;
+		}
+		this.lastLevel = Math.max(this.lastLevel, level);
+
+		int patch = this.count++;
+		this.levels[patch] = level;
+		this.parents[patch] = -1;
+		this.kept[patch] = true;
+		this.boundaryStarts[patch] = this.boundaryCount;
+		this.keptCount++;
+		return patch;
+	}
+
+	/**
+	 * Get the number of patches, kept or not.
+	 */
+	public int size() {
+		return this.count;
+	}
+
+	/**
+	 * Get the number of patches kept.
+	 */
+	public int getKeptCount() {
+		return this.keptCount;
+	}
+
+	/**
+	 * Get the index of the first patch of a level.
+	 *
+	 * @param level
+	 * The level of the patches.
+	 */
+	public int getLevelStart(int level) {
+		return level > this.lastLevel ? this.count : this.levelStarts[level];
+	}
+
+	/**
+	 * Get one more than the index of the last patch of a level.
+	 *
+	 * @param level
+	 * The level of the patches.
+	 */
+	public int getLevelEnd(int level) {
+		return this.getLevelStart(level + 1);
+	}
+
+	/**
+	 * Get the number of levels the patches can lie at.
+	 */
+	public int getLevelCount() {
+		return this.levelStarts.length - 1;
+	}
+
+	/**
+	 * Get whether a patch is kept.
+	 */
+	public boolean isKept(int patch) {
+		return this.kept[patch];
+	}
+
+	/**
+	 * Drop a patch, leaving it in the store without counting it as found.
+	 */
+	public void drop(int patch) {
+		if(this.kept[patch]) {
+			this.kept[patch] = false;
+			this.keptCount--;
+		}
+	}
+
+	/**
+	 * Get the analysis status of a patch.
+	 */
+	public boolean isAnalyzed(int patch) {
+		return this.analyzed[patch];
+	}
+
+	/**
+	 * Set the analysis status of a patch.
+	 */
+	public void setAnalyzed(int patch, boolean analyzed) {
+		this.analyzed[patch] = analyzed;
+	}
+
+	/**
+	 * Get the level of a patch.
+	 */
+	public int getLevel(int patch) {
+		return this.levels[patch];
+	}
+
+	/**
+	 * Get the parent of a patch, or -1 if it has none.
+	 */
+	public int getParent(int patch) {
+		return this.parents[patch];
+	}
+
+	/**
+	 * Set the parent of a patch.
+	 */
+	public void setParent(int patch, int parent) {
+		this.parents[patch] = parent;
+	}
+
+	/**
+	 * Return the area of a patch.
+	 */
+	public float getArea(int patch) {
+		return this.areas[patch];
+	}
+
+	/**
+	 * Return the stack area of a patch.
+	 */
+	public float getStackArea(int patch) {
+		return this.stackAreas[patch];
+	}
+
+	/**
+	 * Get the level sum of a patch.
+	 */
+	public long getLevelSum(int patch) {
+		return this.levelSums[patch];
+	}
+
+	/**
+	 * Get the sum of x coordinates of a patch.
+	 */
+	public long getSumX(int patch) {
+		return this.sumsX[patch];
+	}
+
+	/**
+	 * Get the sum of y coordinates of a patch.
+	 */
+	public long getSumY(int patch) {
+		return this.sumsY[patch];
+	}
+
+	/**
+	 * Return the curvature of a patch.
+	 */
+	public float getCurvature(int patch) {
+		return this.curvatures[patch];
+	}
+
+	/**
+	 * Add a pixel of its own level to a patch.
+	 *
+	 * @param patch
+	 * The patch to add the pixel to.
+	 * @param x
+	 * The x location of the pixel.
+	 * @param y
+	 * The y location of the pixel.
+	 */
+	public void addPixel(int patch, short x, short y) {
+		this.areas[patch]++;
+		this.levelSums[patch] += this.levels[patch];
+		this.sumsX[patch] += x;
+		this.sumsY[patch] += y;
+	}
+
+	/**
+	 * Let a patch take in the area, stack area, level sum and coordinate
+	 * sums of a child at a lower level, and become its parent. The stack
+	 * area of the child is weighted by the number of levels between the
+	 * patch and the level the child was reached at.
+	 *
+	 * @param patch
+	 * The patch taking in the child.
+	 * @param child
+	 * The child taken in.
+	 * @param reachedLevel
+	 * The level the child was reached at, being the level of the pixel it
+	 * was first reached through or else the level of the child itself.
+	 */
+	public void addChild(int patch, int child, int reachedLevel) {
+		this.areas[patch] += this.areas[child];
+		this.stackAreas[patch] += (this.levels[patch] - reachedLevel) * this.stackAreas[child];
+		this.levelSums[patch] += this.levelSums[child];
+		this.sumsX[patch] += this.sumsX[child];
+		this.sumsY[patch] += this.sumsY[child];
+		this.parents[child] = patch;
+	}
+
+	/**
+	 * Finish a patch once every pixel and child is taken in, adding its
+	 * own area to its stack area and finding the curvature of its boundary.
+	 */
+	public void finishPatch(int patch) {
+		this.stackAreas[patch] += this.areas[patch];
+		this.curvatures[patch] = this.findCurvature(patch);
+	}
+
+	/**
+	 * Add a point to the boundary of the last patch added.
+	 *
+	 * @param patch
+	 * The patch, which must be the last one added.
+	 * @param x
+	 * The x location of the point.
+	 * @param y
+	 * The y location of the point.
+	 */
+	public void addBoundaryPoint(int patch, short x, short y) {
+		if(this.boundaryCount == this.boundaryX.length) {
+			this.boundaryX = Arrays.copyOf(this.boundaryX, this.boundaryCount * 2);
+			this.boundaryY = Arrays.copyOf(this.boundaryY, this.boundaryCount * 2);
+		}
+		this.boundaryX[this.boundaryCount] = x;
+		this.boundaryY[this.boundaryCount++] = y;
+		this.boundarySizes[patch]++;
+	}
+
+	/**
+	 * Get the position in the pool of the first boundary point of a patch.
+	 */
+	public int getBoundaryStart(int patch) {
+		return this.boundaryStarts[patch];
+	}
+
+	/**
+	 * Get the number of boundary points of a patch.
+	 */
+	public int getBoundarySize(int patch) {
+		return this.boundarySizes[patch];
+	}
+
+	/**
+	 * Get the x location of a point within the pool of boundary points.
+	 */
+	public short getBoundaryX(int point) {
+		return this.boundaryX[point];
+	}
+
+	/**
+	 * Get the y location of a point within the pool of boundary points.
+	 */
+	public short getBoundaryY(int point) {
+		return this.boundaryY[point];
+	}
+
+	/**
+	 * Return the centroid of a patch.
+	 */
+	public float[] getCentroid(int patch) {
+		return new float[]{
+				this.sumsX[patch]/(this.areas[patch] + 0f),
+				this.sumsY[patch]/(this.areas[patch] + 0f)
+				};
+	}
+
+	/**
+	 * Return the average light intensity of a patch.
+	 */
+	public float getAverageIntensity(int patch) {
+		return this.levelSums[patch]/(this.areas[patch] + 0f);
+	}
+
+	/**
+	 * Helper function for getting an estimated curvature of the boundary
+	 * of a patch, from the distances of its boundary points to its centroid.
+	 */
+	private float findCurvature(int patch) {
+		float pixel_count = this.areas[patch];
+		if (pixel_count <= 8) return 0;
+
+		// Store the centroid.
+		float cent_x = this.sumsX[patch]/(pixel_count + 0f);
+		float cent_y = this.sumsY[patch]/(pixel_count + 0f);
+
+		// Get the diffs
+		int start = this.boundaryStarts[patch];
+		float [] diffs = new float[this.boundarySizes[patch]];
+		for(int i = 0; i < diffs.length; i++) {
+			double dx = cent_x - this.boundaryX[start + i];
+			double dy = cent_y - this.boundaryY[start + i];
+			diffs[i] = (float) Math.sqrt(0.0 + dx * dx + dy * dy);
+		}
+
+		Arrays.sort(diffs);
+		int sample_size = Math.max(1, diffs.length / 8);
+		float min_sum = 0;
+		float max_sum = 0;
+
+		for(int i = 0; i < sample_size && i < diffs.length; i++) {
+			min_sum += diffs[i];
+		}
+		min_sum /= sample_size;
+
+		for(int i = diffs.length - 1; i >=  diffs.length - sample_size && i >= 0; i--) {
+			max_sum += diffs[i];
+		}
+		max_sum /= sample_size;
+
+		return min_sum / max_sum;
+	}
+
+	/**
+	 * Helper function for growing the arrays of the patches.
+	 */
+	private void resize(int capacity) {
+		this.levels = this.levels == null ? new int[capacity] : Arrays.copyOf(this.levels, capacity);
+		this.areas = this.areas == null ? new float[capacity] : Arrays.copyOf(this.areas, capacity);
+		this.stackAreas = this.stackAreas == null ? new float[capacity] : Arrays.copyOf(this.stackAreas, capacity);
+		this.levelSums = this.levelSums == null ? new long[capacity] : Arrays.copyOf(this.levelSums, capacity);
+		this.sumsX = this.sumsX == null ? new long[capacity] : Arrays.copyOf(this.sumsX, capacity);
+		this.sumsY = this.sumsY == null ? new long[capacity] : Arrays.copyOf(this.sumsY, capacity);
+		this.curvatures = this.curvatures == null ? new float[capacity] : Arrays.copyOf(this.curvatures, capacity);
+		this.parents = this.parents == null ? new int[capacity] : Arrays.copyOf(this.parents, capacity);
+		this.kept = this.kept == null ? new boolean[capacity] : Arrays.copyOf(this.kept, capacity);
+		this.analyzed = this.analyzed == null ? new boolean[capacity] : Arrays.copyOf(this.analyzed, capacity);
+		this.boundaryStarts = this.boundaryStarts == null ? new int[capacity] : Arrays.copyOf(this.boundaryStarts, capacity);
+		this.boundarySizes = this.boundarySizes == null ? new int[capacity] : Arrays.copyOf(this.boundarySizes, capacity);
+	}
+}
@@ -9,11 +9,6 @@ import java.util.Vector;
  */
 public class Vein {
 
-	/**
-	 * ID generator for every new vein created.
-	 */
-	private static int id_incrementor = 1;
-	
 	/**
 	 * The ID of this vein
 	 */
@@ -67,23 +62,27 @@ public class Vein {
 
 	/**
 	 * Create a new instance of the Vein class.
+	 * 
+	 * @param ids
+	 * The context to take the ID of the vein from.
 	 */
-	public Vein() {
-		id_incrementor++;
-		this.ID = id_incrementor;
+	public Vein(IdContext ids) {
+		this.ID = ids.nextVeinId();
 	}
 	
 	/**
 	 * Create a new instance of the Vein class.
+	 * 
+	 * @param ids
+	 * The context to take the ID of the vein from.
 	 */
-	public Vein(int vein_strength, short [] pointA, short [] pointB) {
+	public Vein(IdContext ids, int vein_strength, short [] pointA, short [] pointB) {
 		this.vein_strength = vein_strength;
 		
 		this.pointA = pointA;
 		this.pointB = pointB;
 		
-		id_incrementor++;
-		this.ID = id_incrementor;
+		this.ID = ids.nextVeinId();
 	}
 
 	/**
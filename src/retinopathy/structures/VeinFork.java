@@ -7,16 +7,6 @@ package retinopathy.structures;
  */
 public class VeinFork {
 	
-	/**
-	 * ID generator for every new patch created.
-	 */
-	private static int id_incrementor = 1;
-	
-	/**
-	 * Auto marker incrementor.
-	 */
-	private static int marker_incrementor = 99;
-	
 	/**
 	 * The ID of this vein fork.
 	 */
@@ -56,6 +46,8 @@ public class VeinFork {
 	/**
 	 * Create a new instance o the vein fork class.
 	 * 
+	 * @param ids
+	 * The context to take the ID of the vein fork from.
 	 * @param x
 	 * The x coordinate of the vein fork.
 	 * @param y
@@ -63,15 +55,14 @@ public class VeinFork {
 	 * @param size
 	 * The size of the fork in pixels.
 	 */
-	public VeinFork(short x, short y, byte size) {
+	public VeinFork(IdContext ids, short x, short y, byte size) {
 		this.coordx = x;
 		this.coordy = y;
 		
 		this.veins = new Vein[size];
 		store_index = 0;
 		
-		id_incrementor++;
-		this.ID = id_incrementor;
+		this.ID = ids.nextForkId();
 	}
 	
 	/**
@@ -170,11 +161,4 @@ public class VeinFork {
 	public short []getCoord() {
 		return new short[]{this.coordx, this.coordy};
 	}
-	
-	/**
-	 * Get next incremented marker value.
-	 */
-	public static int getNextMarkerValue() {
-		return marker_incrementor++;
-	}
 }
@@ -0,0 +1,208 @@
+package tools.metrics;
+
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Collects the metrics of every image of a batch, and writes the
+ * percentiles of each stage and counter across the batch to a file.
+ *
+ * The file holds one line per record, with the fields separated by '|'.
+ * Each group of records is preceded by a header line naming its fields:
+ *
+ * STAGE lines give the wall time in milliseconds and the allocated bytes
+ * of a stage across the images, COUNTER lines give the value of a counter
+ * across the images, and IMAGE_STAGE and IMAGE_COUNTER lines give the
+ * values of each image, for locating the images behind the outliers.
+ * Allocated bytes are -1 when the virtual machine cannot measure them.
+ *
+ * @author Peter Bugaj
+ */
+public class BatchMetrics {
+
+	/**
+	 * The metrics of each image, in the order added.
+	 */
+	private Vector<ImageMetrics> images = new Vector<ImageMetrics>();
+
+	/**
+	 * Add the metrics of an image.
+	 */
+	public synchronized void add(ImageMetrics metrics) {
+		this.images.add(metrics);
+	}
+
+	/**
+	 * Get the number of images added.
+	 */
+	public synchronized int getImageCount() {
+		return this.images.size();
+	}
+
+	/**
+	 * Write the metrics of the batch to a file.
+	 *
+	 * @param fileName
+	 * The file to write the metrics to.
+	 */
+	public synchronized void writeToFile(String fileName) {
+
+		PrintWriter writer = null;
+		try {
+			writer = new PrintWriter(fileName, "UTF-8");
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+			System.exit(1);
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		Vector<String> lines = getReport();
+		for(int i = 0; i < lines.size(); i++) {
+			writer.println(lines.get(i));
+		}
+		writer.close();
+	}
+
+	/**
+	 * Get the lines of the report on the metrics of the batch.
+	 */
+	public synchronized Vector<String> getReport() {
+
+		// Collect the names of all stages and counters,
+		// in the order they were first recorded.
+		Vector<String> stage_names = new Vector<String>();
+		Vector<String> counter_names = new Vector<String>();
+		Hashtable<String, Boolean> seen = new Hashtable<String, Boolean>();
+		for(int i = 0; i < this.images.size(); i++) {
+			ImageMetrics metrics = this.images.get(i);
+			Vector<String> names = metrics.getStageNames();
+			for(int k = 0; k < names.size(); k++) {
+				if(seen.put("S" + names.get(k), true) == null) stage_names.add(names.get(k));
+			}
+			names = metrics.getCounterNames();
+			for(int k = 0; k < names.size(); k++) {
+				if(seen.put("C" + names.get(k), true) == null) counter_names.add(names.get(k));
+			}
+		}
+
+		Vector<String> report = new Vector<String>();
+		report.add("IMAGES#" + this.images.size());
+		report.add("");
+
+		report.add("STAGE|NAME|IMAGES|TIME_MS_P50|TIME_MS_P90|TIME_MS_P99|TIME_MS_MAX|TIME_MS_MEAN" +
+			"|BYTES_P50|BYTES_P90|BYTES_P99|BYTES_MAX");
+		for(int s = 0; s < stage_names.size(); s++) {
+			String stage = stage_names.get(s);
+			Vector<Double> times = new Vector<Double>();
+			Vector<Double> bytes = new Vector<Double>();
+			for(int i = 0; i < this.images.size(); i++) {
+				ImageMetrics metrics = this.images.get(i);
+				long time = metrics.getStageTime(stage);
+				if(time < 0) continue;
+				times.add(time / 1e6);
+				bytes.add((double) metrics.getStageBytes(stage));
+			}
+			double [] sorted_times = toSortedArray(times);
+			double [] sorted_bytes = toSortedArray(bytes);
+			report.add("STAGE|" + stage + "|" + sorted_times.length +
+				"|" + percentile(sorted_times, 50) +
+				"|" + percentile(sorted_times, 90) +
+				"|" + percentile(sorted_times, 99) +
+				"|" + percentile(sorted_times, 100) +
+				"|" + mean(sorted_times) +
+				"|" + (long) percentile(sorted_bytes, 50) +
+				"|" + (long) percentile(sorted_bytes, 90) +
+				"|" + (long) percentile(sorted_bytes, 99) +
+				"|" + (long) percentile(sorted_bytes, 100));
+		}
+		report.add("");
+
+		report.add("COUNTER|NAME|IMAGES|P50|P90|P99|MAX|MEAN");
+		for(int c = 0; c < counter_names.size(); c++) {
+			String counter = counter_names.get(c);
+			Vector<Double> values = new Vector<Double>();
+			for(int i = 0; i < this.images.size(); i++) {
+				ImageMetrics metrics = this.images.get(i);
+				if(!metrics.hasCounter(counter)) continue;
+				values.add((double) metrics.getCounter(counter));
+			}
+			double [] sorted_values = toSortedArray(values);
+			report.add("COUNTER|" + counter + "|" + sorted_values.length +
+				"|" + (long) percentile(sorted_values, 50) +
+				"|" + (long) percentile(sorted_values, 90) +
+				"|" + (long) percentile(sorted_values, 99) +
+				"|" + (long) percentile(sorted_values, 100) +
+				"|" + mean(sorted_values));
+		}
+		report.add("");
+
+		report.add("IMAGE_STAGE|IMAGE|NAME|TIME_MS|BYTES");
+		for(int i = 0; i < this.images.size(); i++) {
+			ImageMetrics metrics = this.images.get(i);
+			Vector<String> names = metrics.getStageNames();
+			for(int k = 0; k < names.size(); k++) {
+				report.add("IMAGE_STAGE|" + metrics.getImageName() + "|" + names.get(k) +
+					"|" + (metrics.getStageTime(names.get(k)) / 1e6) +
+					"|" + metrics.getStageBytes(names.get(k)));
+			}
+		}
+		report.add("");
+
+		report.add("IMAGE_COUNTER|IMAGE|NAME|VALUE");
+		for(int i = 0; i < this.images.size(); i++) {
+			ImageMetrics metrics = this.images.get(i);
+			Vector<String> names = metrics.getCounterNames();
+			for(int k = 0; k < names.size(); k++) {
+				report.add("IMAGE_COUNTER|" + metrics.getImageName() + "|" + names.get(k) +
+					"|" + metrics.getCounter(names.get(k)));
+			}
+		}
+
+		return report;
+	}
+
+	/**
+	 * Get a percentile of sorted values, using the nearest rank.
+	 * Returns zero if there are no values.
+	 */
+	public static double percentile(double [] sortedValues, int percent) {
+		if(sortedValues.length == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(percent / 100.0 * sortedValues.length);
+		return sortedValues[Math.max(0, Math.min(sortedValues.length, rank) - 1)];
+	}
+
+	/**
+	 * Helper function for getting the mean of values.
+	 * Returns zero if there are no values.
+	 */
+	private static double mean(double [] values) {
+		if(values.length == 0) {
+			return 0;
+		}
+		double sum = 0;
+		for(int i = 0; i < values.length; i++) {
+			sum += values[i];
+		}
+		return sum / values.length;
+	}
+
+	/**
+	 * Sort a vector of values into an array.
+	 */
+	public static double [] toSortedArray(Vector<Double> values) {
+		double [] array = new double[values.size()];
+		for(int i = 0; i < array.length; i++) {
+			array[i] = values.get(i);
+		}
+		Arrays.sort(array);
+		return array;
+	}
+}
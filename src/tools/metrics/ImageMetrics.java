@@ -0,0 +1,154 @@
+package tools.metrics;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * The metrics recorded while detecting the features of one image: the
+ * wall time and allocated bytes of each stage of the detector pipeline,
+ * and counters describing the workload of the stages.
+ *
+ * Stages and counters may be recorded from several threads at once.
+ * A stage or counter recorded more than once is summed up.
+ *
+ * @author Peter Bugaj
+ */
+public class ImageMetrics {
+
+	/**
+	 * The name of the image.
+	 */
+	private String imageName;
+
+	/**
+	 * The names of the stages, in the order first recorded.
+	 */
+	private Vector<String> stageNames = new Vector<String>();
+
+	/**
+	 * The wall time and allocated bytes of each stage, by stage name.
+	 */
+	private Hashtable<String, long[]> stages = new Hashtable<String, long[]>();
+
+	/**
+	 * The names of the counters, in the order first recorded.
+	 */
+	private Vector<String> counterNames = new Vector<String>();
+
+	/**
+	 * The value of each counter, by counter name.
+	 */
+	private Hashtable<String, Long> counters = new Hashtable<String, Long>();
+
+	/**
+	 * Create a new instance of the ImageMetrics class.
+	 *
+	 * @param imageName
+	 * The name of the image.
+	 */
+	public ImageMetrics(String imageName) {
+		this.imageName = imageName;
+	}
+
+	/**
+	 * Get the name of the image.
+	 */
+	public String getImageName() {
+		return this.imageName;
+	}
+
+	/**
+	 * Start measuring a stage. Call stop on the returned
+	 * timer, on the same thread, once the stage is done.
+	 *
+	 * @param stage
+	 * The name of the stage.
+	 */
+	public StageTimer startStage(String stage) {
+		return new StageTimer(this, stage);
+	}
+
+	/**
+	 * Record a run of a stage.
+	 *
+	 * @param stage
+	 * The name of the stage.
+	 * @param time
+	 * The wall time of the stage, in nanoseconds.
+	 * @param bytes
+	 * The bytes allocated by the stage, or -1 if not measured.
+	 */
+	public synchronized void recordStage(String stage, long time, long bytes) {
+		long [] values = this.stages.get(stage);
+		if(values == null) {
+			this.stageNames.add(stage);
+			this.stages.put(stage, new long[]{time, bytes});
+			return;
+		}
+		values[0] += time;
+		values[1] = values[1] < 0 || bytes < 0 ? -1 : values[1] + bytes;
+	}
+
+	/**
+	 * Add to a workload counter.
+	 *
+	 * @param counter
+	 * The name of the counter.
+	 * @param value
+	 * The value to add to the counter.
+	 */
+	public synchronized void addCounter(String counter, long value) {
+		Long current = this.counters.get(counter);
+		if(current == null) {
+			this.counterNames.add(counter);
+			this.counters.put(counter, value);
+			return;
+		}
+		this.counters.put(counter, current + value);
+	}
+
+	/**
+	 * Get the names of the stages recorded, in the order first recorded.
+	 */
+	public synchronized Vector<String> getStageNames() {
+		return new Vector<String>(this.stageNames);
+	}
+
+	/**
+	 * Get the wall time of a stage, in nanoseconds, or -1 if not recorded.
+	 */
+	public synchronized long getStageTime(String stage) {
+		long [] values = this.stages.get(stage);
+		return values == null ? -1 : values[0];
+	}
+
+	/**
+	 * Get the bytes allocated by a stage, or -1 if not recorded or measured.
+	 */
+	public synchronized long getStageBytes(String stage) {
+		long [] values = this.stages.get(stage);
+		return values == null ? -1 : values[1];
+	}
+
+	/**
+	 * Get the names of the counters recorded, in the order first recorded.
+	 */
+	public synchronized Vector<String> getCounterNames() {
+		return new Vector<String>(this.counterNames);
+	}
+
+	/**
+	 * Get whether a counter has been recorded.
+	 */
+	public synchronized boolean hasCounter(String counter) {
+		return this.counters.containsKey(counter);
+	}
+
+	/**
+	 * Get the value of a counter, or zero if not recorded.
+	 */
+	public synchronized long getCounter(String counter) {
+		Long value = this.counters.get(counter);
+		return value == null ? 0 : value;
+	}
+}
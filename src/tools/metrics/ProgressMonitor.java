@@ -0,0 +1,127 @@
+package tools.metrics;
+
+import java.util.Vector;
+
+/**
+ * Tracks the progress of a batch as its images are done, and prints a
+ * summary of it regularly while the batch runs.
+ *
+ * The summary is one line with the fields separated by '|', giving the
+ * images done and failed in this run out of those left when it started,
+ * the images done per second since it started, the 50th and 99th
+ * percentile of the time taken per image in milliseconds, and the
+ * estimated time left in seconds at the current rate, or -1 before
+ * the first image is done.
+ *
+ * @author Peter Bugaj
+ */
+public class ProgressMonitor {
+
+	/**
+	 * The number of images left when the run started.
+	 */
+	private int totalImages;
+
+	/**
+	 * The number of images failed in this run.
+	 */
+	private int failedImages = 0;
+
+	/**
+	 * The time taken by each image done in this run, in milliseconds.
+	 */
+	private Vector<Double> imageTimes = new Vector<Double>();
+
+	/**
+	 * The time the run started at, in nanoseconds.
+	 */
+	private long startTime = System.nanoTime();
+
+	/**
+	 * The thread printing the summary, or null if not reporting.
+	 */
+	private Thread reporter = null;
+
+	/**
+	 * Create a new instance of the ProgressMonitor class.
+	 *
+	 * @param totalImages
+	 * The number of images left when the run started.
+	 */
+	public ProgressMonitor(int totalImages) {
+		this.totalImages = totalImages;
+	}
+
+	/**
+	 * Record an image done.
+	 *
+	 * @param timeMillis
+	 * The time taken for the image, in milliseconds.
+	 */
+	public synchronized void recordDone(long timeMillis) {
+		this.imageTimes.add((double) timeMillis);
+	}
+
+	/**
+	 * Record an image failed.
+	 */
+	public synchronized void recordFailure() {
+		this.failedImages++;
+	}
+
+	/**
+	 * Get the summary of the progress of the run.
+	 */
+	public synchronized String getSummary() {
+		double [] sorted_times = BatchMetrics.toSortedArray(this.imageTimes);
+		int done = sorted_times.length;
+		double seconds = (System.nanoTime() - this.startTime) / 1e9;
+		double rate = seconds > 0 ? done / seconds : 0;
+		int left = Math.max(0, this.totalImages - done - this.failedImages);
+
+		return "PROGRESS|DONE#" + done +
+			"|FAILED#" + this.failedImages +
+			"|TOTAL#" + this.totalImages +
+			"|IMAGES_PER_SEC#" + String.format("%.3f", rate) +
+			"|P50_MS#" + (long) BatchMetrics.percentile(sorted_times, 50) +
+			"|P99_MS#" + (long) BatchMetrics.percentile(sorted_times, 99) +
+			"|ETA_SEC#" + (rate > 0 ? (long) Math.ceil(left / rate) : -1);
+	}
+
+	/**
+	 * Start printing the summary regularly on a background thread.
+	 *
+	 * @param intervalMillis
+	 * The time between summaries, in milliseconds.
+	 */
+	public synchronized void startReporting(final long intervalMillis) {
+		if(this.reporter != null) {
+			return;
+		}
+		this.reporter = new Thread("progress-reporter") {
+			public void run() {
+				while(!isInterrupted()) {
+					try {
+						Thread.sleep(intervalMillis);
+					} catch (InterruptedException e) {
+						return;
+					}
+					System.out.println(getSummary());
+				}
+			}
+		};
+		this.reporter.setDaemon(true);
+		this.reporter.start();
+	}
+
+	/**
+	 * Stop printing the summary regularly, printing it one last time.
+	 */
+	public synchronized void stopReporting() {
+		if(this.reporter != null) {
+			this.reporter.interrupt();
+			this.reporter = null;
+		}
+		System.out.println(getSummary());
+	}
+}
@@ -0,0 +1,101 @@
+package tools.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures one run of a stage of the detector pipeline, recording the wall
+ * time taken and the bytes allocated by the running thread into the metrics
+ * of the image being processed. A stage must start and stop on the same
+ * thread for the allocated bytes to be measured.
+ *
+ * @author Peter Bugaj
+ */
+public class StageTimer {
+
+	/**
+	 * The bean reading the allocated bytes of a thread, or
+	 * null if the virtual machine does not support it.
+	 */
+	private static final com.sun.management.ThreadMXBean ALLOCATION_BEAN = getAllocationBean();
+
+	/**
+	 * The metrics to record the stage into.
+	 */
+	private ImageMetrics metrics;
+
+	/**
+	 * The name of the stage.
+	 */
+	private String stage;
+
+	/**
+	 * The time the stage started, in nanoseconds.
+	 */
+	private long startTime;
+
+	/**
+	 * The bytes allocated by the thread when the stage started,
+	 * or -1 if not measured.
+	 */
+	private long startBytes;
+
+	/**
+	 * Start measuring a stage.
+	 *
+	 * @param metrics
+	 * The metrics to record the stage into.
+	 * @param stage
+	 * The name of the stage.
+	 */
+	public StageTimer(ImageMetrics metrics, String stage) {
+		this.metrics = metrics;
+		this.stage = stage;
+		this.startBytes = currentThreadAllocatedBytes();
+		this.startTime = System.nanoTime();
+	}
+
+	/**
+	 * Stop measuring the stage and record it.
+	 */
+	public void stop() {
+		long time = System.nanoTime() - this.startTime;
+		long bytes = this.startBytes < 0 ? -1 : currentThreadAllocatedBytes() - this.startBytes;
+		this.metrics.recordStage(this.stage, time, bytes);
+	}
+
+	/**
+	 * Get the number of bytes allocated by the current thread so far,
+	 * or -1 if the virtual machine cannot measure it.
+	 */
+	public static long currentThreadAllocatedBytes() {
+		if(ALLOCATION_BEAN == null) {
+			return -1;
+		}
+		return ALLOCATION_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Helper function for getting the bean reading the allocated
+	 * bytes of a thread, turning the measurement on if needed.
+	 */
+	private static com.sun.management.ThreadMXBean getAllocationBean() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return null;
+		}
+
+		com.sun.management.ThreadMXBean allocation_bean = (com.sun.management.ThreadMXBean) bean;
+		try {
+			if(!allocation_bean.isThreadAllocatedMemorySupported()) {
+				return null;
+			}
+			if(!allocation_bean.isThreadAllocatedMemoryEnabled()) {
+				allocation_bean.setThreadAllocatedMemoryEnabled(true);
+			}
+		} catch (UnsupportedOperationException e) {
+			return null;
+		}
+		return allocation_bean;
+	}
+}
@@ -0,0 +1,75 @@
+package tools.pipeline;
+
+/**
+ * A stage of a pipeline, declaring the named values it reads and the named
+ * values it produces. A stage runs once all of its inputs are available,
+ * and must store every one of its outputs before returning.
+ *
+ * A stage may modify an input in place and store it again under one of its
+ * outputs, as long as it is the only stage reading that input.
+ *
+ * @author Peter Bugaj
+ */
+public abstract class Stage {
+
+	/**
+	 * The name of the stage.
+	 */
+	private String name;
+
+	/**
+	 * The names of the values read by the stage.
+	 */
+	private String [] inputs;
+
+	/**
+	 * The names of the values produced by the stage.
+	 */
+	private String [] outputs;
+
+	/**
+	 * Create a new instance of the Stage class.
+	 *
+	 * @param name
+	 * The name of the stage.
+	 * @param inputs
+	 * The names of the values read by the stage.
+	 * @param outputs
+	 * The names of the values produced by the stage.
+	 */
+	public Stage(String name, String [] inputs, String [] outputs) {
+		this.name = name;
+		this.inputs = inputs;
+		this.outputs = outputs;
+	}
+
+	/**
+	 * Get the name of the stage.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Get the names of the values read by the stage.
+	 */
+	public String [] getInputs() {
+		return this.inputs;
+	}
+
+	/**
+	 * Get the names of the values produced by the stage.
+	 */
+	public String [] getOutputs() {
+		return this.outputs;
+	}
+
+	/**
+	 * Run the stage.
+	 *
+	 * @param data
+	 * The values of the pipeline, holding at least the inputs of the
+	 * stage. The outputs of the stage are to be stored into it.
+	 */
+	public abstract void run(StageData data);
+}
@@ -0,0 +1,97 @@
+package tools.pipeline;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+import tools.structures.ScratchArena;
+
+/**
+ * The named values passed between the stages of a pipeline.
+ * Values may be read and stored from several threads at once.
+ *
+ * When given a scratch arena, the arrays it handed out are given back to it
+ * as the values holding them are removed, once no other name holds them.
+ *
+ * @author Peter Bugaj
+ */
+public class StageData {
+
+	/**
+	 * The values, by name.
+	 */
+	private Hashtable<String, Object> values = new Hashtable<String, Object>();
+
+	/**
+	 * The arena to give scratch arrays back to, or null if none.
+	 */
+	private ScratchArena arena;
+
+	/**
+	 * Create a new instance of the StageData class.
+	 */
+	public StageData() {
+		this(null);
+	}
+
+	/**
+	 * Create a new instance of the StageData class.
+	 *
+	 * @param arena
+	 * The arena to give scratch arrays back to as their values
+	 * are removed, or null to leave them to the garbage collector.
+	 */
+	public StageData(ScratchArena arena) {
+		this.arena = arena;
+	}
+
+	/**
+	 * Store a value.
+	 *
+	 * @param name
+	 * The name of the value.
+	 * @param value
+	 * The value to store. Must not be null.
+	 */
+	public void put(String name, Object value) {
+		this.values.put(name, value);
+	}
+
+	/**
+	 * Get a value.
+	 *
+	 * @param name
+	 * The name of the value.
+	 * @return
+	 * The value, or null if not stored.
+	 */
+	public Object get(String name) {
+		return this.values.get(name);
+	}
+
+	/**
+	 * Get whether a value is stored.
+	 */
+	public boolean contains(String name) {
+		return this.values.containsKey(name);
+	}
+
+	/**
+	 * Remove a value, releasing it.
+	 */
+	public void remove(String name) {
+		Object value = this.values.remove(name);
+		if(this.arena != null && value != null && !this.values.contains(value)) {
+			this.arena.release(value);
+		}
+	}
+
+	/**
+	 * Remove every value left, releasing each of them once.
+	 */
+	public void clear() {
+		Vector<String> names = new Vector<String>(this.values.keySet());
+		for(String name : names) {
+			this.remove(name);
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package tools.pipeline;
+
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import tools.metrics.ImageMetrics;
+import tools.metrics.StageTimer;
+
+/**
+ * Runs the stages of a pipeline in the order given by the values they
+ * read and produce. Stages whose inputs are all available run at the same
+ * time, and each value is released as soon as the last stage reading it
+ * has finished, unless the value is retained as a result of the pipeline.
+ *
+ * @author Peter Bugaj
+ */
+public class StageScheduler {
+
+	/**
+	 * The stages of the pipeline, in the order added.
+	 */
+	private Vector<Stage> stages = new Vector<Stage>();
+
+	/**
+	 * The names of the values kept after the pipeline has run.
+	 */
+	private Hashtable<String, Boolean> retained = new Hashtable<String, Boolean>();
+
+	/**
+	 * Add a stage to the pipeline. Each value may only
+	 * be produced by a single stage.
+	 */
+	public void addStage(Stage stage) {
+		this.stages.add(stage);
+	}
+
+	/**
+	 * Keep a value after the pipeline has run, instead of
+	 * releasing it once the last stage reading it is done.
+	 */
+	public void retain(String name) {
+		this.retained.put(name, true);
+	}
+
+	/**
+	 * Run the pipeline.
+	 *
+	 * @param data
+	 * The values of the pipeline, holding the values not produced by
+	 * any stage. Values not retained are released from it as the
+	 * pipeline runs, including the ones given initially.
+	 * @param executor
+	 * The threads to run the stages on, or null to run the stages one
+	 * at a time on the calling thread, in the order they were added.
+	 * @param metrics
+	 * The metrics to record the time of each stage into, by the name
+	 * of the stage, or null if not recorded.
+	 * @throws RuntimeException
+	 * The failure of a stage, rethrown on the calling thread whether the
+	 * stages run on it or on the executor. The stages not yet started are
+	 * cancelled, and the ones running are waited for, before it is thrown.
+	 */
+	public void run(StageData data, ExecutorService executor, ImageMetrics metrics) {
+
+		// Count the stages reading each value, and
+		// check that every value read is available.
+		Hashtable<String, Integer> readers = new Hashtable<String, Integer>();
+		Hashtable<String, Boolean> produced = new Hashtable<String, Boolean>();
+		for(int i = 0; i < this.stages.size(); i++) {
+			String [] outputs = this.stages.get(i).getOutputs();
+			for(int k = 0; k < outputs.length; k++) {
+				if(produced.put(outputs[k], true) != null) {
+					throw new IllegalArgumentException("Value produced by more than one stage: " + outputs[k]);
+				}
+			}
+		}
+		for(int i = 0; i < this.stages.size(); i++) {
+			String [] inputs = this.stages.get(i).getInputs();
+			for(int k = 0; k < inputs.length; k++) {
+				if(!produced.containsKey(inputs[k]) && !data.contains(inputs[k])) {
+					throw new IllegalArgumentException("Value read but never available: " + inputs[k]);
+				}
+				Integer count = readers.get(inputs[k]);
+				readers.put(inputs[k], count == null ? 1 : count + 1);
+			}
+		}
+
+		// The values given initially and the values of finished stages.
+		Hashtable<String, Boolean> available = new Hashtable<String, Boolean>();
+		for(int i = 0; i < this.stages.size(); i++) {
+			String [] inputs = this.stages.get(i).getInputs();
+			for(int k = 0; k < inputs.length; k++) {
+				if(!produced.containsKey(inputs[k])) available.put(inputs[k], true);
+			}
+		}
+
+		boolean [] started = new boolean[this.stages.size()];
+		int finished = 0;
+
+		if(executor == null) {
+			while(finished < this.stages.size()) {
+				int next = nextReadyStage(available, started);
+				if(next == -1) break;
+				started[next] = true;
+				runStage(this.stages.get(next), data, metrics);
+				release(this.stages.get(next), data, readers, available);
+				finished++;
+			}
+		} else {
+			ExecutorCompletionService<Stage> completion = new ExecutorCompletionService<Stage>(executor);
+			Vector<Future<Stage>> submitted = new Vector<Future<Stage>>();
+			int running = 0;
+			while(true) {
+				int next;
+				while((next = nextReadyStage(available, started)) != -1) {
+					started[next] = true;
+					running++;
+					submitted.add(completion.submit(createTask(this.stages.get(next), data, metrics)));
+				}
+				if(running == 0) break;
+
+				Stage stage = null;
+				try {
+					Future<Stage> done = completion.take();
+					running--;
+					stage = done.get();
+				} catch (InterruptedException e) {
+					cancel(submitted, true);
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while running the pipeline", e);
+				} catch (ExecutionException e) {
+					cancel(submitted, false);
+					awaitRunning(completion, running);
+					if(e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					if(e.getCause() instanceof Error) {
+						throw (Error) e.getCause();
+					}
+					throw new RuntimeException(e.getCause());
+				}
+				release(stage, data, readers, available);
+				finished++;
+			}
+		}
+
+		if(finished < this.stages.size()) {
+			throw new IllegalStateException("Stages left waiting on each other for their inputs");
+		}
+	}
+
+	/**
+	 * Helper function for cancelling the stages submitted to the executor,
+	 * interrupting the ones running if specified.
+	 */
+	private static void cancel(Vector<Future<Stage>> submitted, boolean interrupt) {
+		for(int i = 0; i < submitted.size(); i++) {
+			submitted.get(i).cancel(interrupt);
+		}
+	}
+
+	/**
+	 * Helper function for waiting until the stages submitted and not yet
+	 * taken from the completion service are done or cancelled, so that no
+	 * stage is still using the values of the pipeline once it has failed.
+	 */
+	private static void awaitRunning(ExecutorCompletionService<Stage> completion, int running) {
+		boolean interrupted = false;
+		while(running > 0) {
+			try {
+				completion.take();
+				running--;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Helper function for finding the first stage not yet started
+	 * whose inputs are all available, or -1 if there is none.
+	 */
+	private int nextReadyStage(Hashtable<String, Boolean> available, boolean [] started) {
+		search: for(int i = 0; i < this.stages.size(); i++) {
+			if(started[i]) continue;
+			String [] inputs = this.stages.get(i).getInputs();
+			for(int k = 0; k < inputs.length; k++) {
+				if(!available.containsKey(inputs[k])) continue search;
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Helper function for creating a task running a stage on another thread.
+	 */
+	private static Callable<Stage> createTask(
+			final Stage stage,
+			final StageData data,
+			final ImageMetrics metrics) {
+
+		return new Callable<Stage>() {
+			public Stage call() {
+				runStage(stage, data, metrics);
+				return stage;
+			}
+		};
+	}
+
+	/**
+	 * Helper function for running a stage and checking its outputs.
+	 */
+	private static void runStage(Stage stage, StageData data, ImageMetrics metrics) {
+
+		StageTimer timer = metrics == null ? null : metrics.startStage(stage.getName());
+		stage.run(data);
+		if(timer != null) {
+			timer.stop();
+		}
+
+		String [] outputs = stage.getOutputs();
+		for(int k = 0; k < outputs.length; k++) {
+			if(!data.contains(outputs[k])) {
+				throw new IllegalStateException("Stage " + stage.getName() + " did not produce " + outputs[k]);
+			}
+		}
+	}
+
+	/**
+	 * Helper function for marking the outputs of a finished stage as
+	 * available, and releasing the values no stage still needs.
+	 * Must only run on a single thread.
+	 */
+	private void release(
+			Stage stage,
+			StageData data,
+			Hashtable<String, Integer> readers,
+			Hashtable<String, Boolean> available) {
+
+		String [] inputs = stage.getInputs();
+		for(int k = 0; k < inputs.length; k++) {
+			int count = readers.get(inputs[k]) - 1;
+			readers.put(inputs[k], count);
+			if(count == 0 && !this.retained.containsKey(inputs[k])) {
+				data.remove(inputs[k]);
+			}
+		}
+
+		String [] outputs = stage.getOutputs();
+		for(int k = 0; k < outputs.length; k++) {
+			available.put(outputs[k], true);
+			if(!readers.containsKey(outputs[k]) && !this.retained.containsKey(outputs[k])) {
+				data.remove(outputs[k]);
+			}
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package tools.structures;
+
+/**
+ * Flood fills over the pixels of an image, shared by the connected
+ * component algorithms of the detectors.
+ *
+ * The pixels waiting to be filled are kept as packed coordinates, x times
+ * the height plus y, in one plane of int values reused by every fill, in
+ * place of a list of freshly allocated coordinates. A pixel is taken into
+ * the fill as soon as it is reached, so no pixel waits more than once and
+ * the plane never holds more values than the image has pixels.
+ *
+ * What a fill covers and what it does with each pixel is given by a Region.
+ * A breadth-first fill visits the pixels in the same order as a queue of
+ * coordinates expanded through a neighbourhood, for the algorithms whose
+ * results depend on the order. A span fill takes whole runs of a column at
+ * once and visits the pixels in no particular order.
+ *
+ * @author Peter Bugaj
+ */
+public class FloodFill {
+
+	/**
+	 * Decides which pixels a fill covers and visits them.
+	 */
+	public static abstract class Region {
+
+		/**
+		 * Get whether a pixel belongs to the region and is not yet taken.
+		 *
+		 * @param x
+		 * The x location of the pixel, within the image.
+		 * @param y
+		 * The y location of the pixel, within the image.
+		 */
+		public abstract boolean contains(int x, int y);
+
+		/**
+		 * Take a pixel into the fill. The region no longer contains
+		 * the pixel afterwards.
+		 *
+		 * @param x
+		 * The x location of the pixel.
+		 * @param y
+		 * The y location of the pixel.
+		 */
+		public abstract void take(int x, int y);
+
+		/**
+		 * Visit a pixel taken into the fill. Does nothing unless overridden.
+		 *
+		 * @param x
+		 * The x location of the pixel.
+		 * @param y
+		 * The y location of the pixel.
+		 */
+		public void visit(int x, int y) {
+		}
+	}
+
+	/**
+	 * The width of the image.
+	 */
+	private int width;
+
+	/**
+	 * The height of the image.
+	 */
+	private int height;
+
+	/**
+	 * The packed coordinates of the pixels waiting to be filled.
+	 */
+	private int [] pending;
+
+	/**
+	 * The arena the plane of waiting pixels was taken from, if any.
+	 */
+	private ScratchArena arena;
+
+	/**
+	 * Create a new instance of the FloodFill class.
+	 *
+	 * @param width
+	 * The width of the image.
+	 * @param height
+	 * The height of the image.
+	 */
+	public FloodFill(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.pending = new int[width * height];
+	}
+
+	/**
+	 * Create a new instance of the FloodFill class, taking the plane
+	 * of the pixels waiting to be filled from a scratch arena.
+	 *
+	 * @param width
+	 * The width of the image.
+	 * @param height
+	 * The height of the image.
+	 * @param arena
+	 * The arena to take the plane from and give it back to on release.
+	 */
+	public FloodFill(int width, int height, ScratchArena arena) {
+		this.width = width;
+		this.height = height;
+		this.arena = arena;
+		this.pending = arena.acquireIntPlane(width * height);
+	}
+
+	/**
+	 * Fill a region breadth first from a pixel, visiting each pixel once
+	 * its turn comes, and reaching the neighbours of a pixel in the order
+	 * of the neighbourhood.
+	 *
+	 * @param x
+	 * The x location to start the fill at.
+	 * @param y
+	 * The y location to start the fill at.
+	 * @param neighbourhood
+	 * The offsets of the neighbours of a pixel, plus one, such as
+	 * Kernels.neighMap.
+	 * @param region
+	 * The region to fill.
+	 * @return
+	 * The number of pixels filled.
+	 */
+	public int fillBreadthFirst(int x, int y, byte [][] neighbourhood, Region region) {
+		if(!region.contains(x, y)) {
+			return 0;
+		}
+		region.take(x, y);
+
+		int head = 0;
+		int tail = 0;
+		this.pending[tail++] = x * this.height + y;
+		while(head < tail) {
+			int nx = this.pending[head] / this.height;
+			int ny = this.pending[head++] % this.height;
+			region.visit(nx, ny);
+
+			for(byte d = 0; d < neighbourhood.length; d++) {
+				int mx = nx-1+neighbourhood[d][0];
+				int my = ny-1+neighbourhood[d][1];
+				if(mx < 0 || my < 0 || mx >= this.width || my >= this.height) continue;
+				if(!region.contains(mx, my)) continue;
+
+				region.take(mx, my);
+				this.pending[tail++] = mx * this.height + my;
+			}
+		}
+		return tail;
+	}
+
+	/**
+	 * Fill a region from a pixel by runs of pixels along each column,
+	 * visiting the pixels of each run once it is taken.
+	 *
+	 * @param x
+	 * The x location to start the fill at.
+	 * @param y
+	 * The y location to start the fill at.
+	 * @param diagonal
+	 * Whether pixels touching only at a corner are connected, as with
+	 * Kernels.neighMap, or only those sharing a side, as with
+	 * Kernels.neighourhoodSmall.
+	 * @param region
+	 * The region to fill.
+	 * @return
+	 * The number of pixels filled.
+	 */
+	public int fillSpans(int x, int y, boolean diagonal, Region region) {
+		if(!region.contains(x, y)) {
+			return 0;
+		}
+		region.take(x, y);
+
+		int filled = 0;
+		int reach = diagonal ? 1 : 0;
+		int top = 0;
+		this.pending[top++] = x * this.height + y;
+		while(top > 0) {
+			int seed = this.pending[--top];
+			int nx = seed / this.height;
+			int ny = seed % this.height;
+
+			// Extend the run of the seed up and down its column.
+			int start = ny;
+			while(start > 0 && region.contains(nx, start - 1)) {
+				region.take(nx, --start);
+			}
+			int end = ny;
+			while(end < this.height - 1 && region.contains(nx, end + 1)) {
+				region.take(nx, ++end);
+			}
+			for(int k = start; k <= end; k++) {
+				region.visit(nx, k);
+			}
+			filled += end - start + 1;
+
+			// Seed each run of the neighbouring columns touching this run.
+			for(int mx = nx - 1; mx <= nx + 1; mx += 2) {
+				if(mx < 0 || mx >= this.width) continue;
+
+				int k = Math.max(0, start - reach);
+				int last = Math.min(this.height - 1, end + reach);
+				while(k <= last) {
+					if(!region.contains(mx, k)) {
+						k++;
+						continue;
+					}
+					region.take(mx, k);
+					this.pending[top++] = mx * this.height + k;
+					k++;
+					while(k <= last && region.contains(mx, k)) {
+						k++;
+					}
+				}
+			}
+		}
+		return filled;
+	}
+
+	/**
+	 * Give the plane of the pixels waiting to be filled back to the
+	 * arena it was taken from. The fill must no longer be used.
+	 */
+	public void release() {
+		if(this.arena != null) {
+			this.arena.release(this.pending);
+		}
+		this.pending = null;
+	}
+}
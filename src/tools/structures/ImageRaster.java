@@ -0,0 +1,196 @@
+package tools.structures;
+
+import java.util.Arrays;
+
+/**
+ * Data structure for storing the pixel data of an image as contiguous
+ * planes of primitive values, one plane per colour channel.
+ *
+ * The pixels of a plane are stored column by column, so that the pixel at
+ * (x, y) lives at index x * height + y. This matches the x-outer, y-inner
+ * loops used throughout the detectors, which then walk memory sequentially.
+ *
+ * A plane may be left unallocated (null) when a stage does not need that
+ * channel, so a single channel image only costs one plane of memory.
+ *
+ * @author Peter Bugaj
+ */
+public class ImageRaster {
+
+	/**
+	 * The channel holding the red values of the image.
+	 */
+	public static final int RED = 0;
+
+	/**
+	 * The channel holding the green values of the image.
+	 */
+	public static final int GREEN = 1;
+
+	/**
+	 * The channel holding the blue values of the image.
+	 */
+	public static final int BLUE = 2;
+
+	/**
+	 * The channel holding the sum of the red, green and blue
+	 * values of the image, for stages that only need the total.
+	 */
+	public static final int SUM = 3;
+
+	/**
+	 * The width of the image.
+	 */
+	private int width;
+
+	/**
+	 * The height of the image.
+	 */
+	private int height;
+
+	/**
+	 * The pixel planes, indexed by colour channel.
+	 */
+	private short[][] planes;
+
+	/**
+	 * Create a new instance of the ImageRaster class with
+	 * every channel allocated.
+	 *
+	 * @param width
+	 * The width of the image.
+	 * @param height
+	 * The height of the image.
+	 * @param channels
+	 * The number of colour channels to allocate.
+	 */
+	public ImageRaster(int width, int height, int channels) {
+		this.width = width;
+		this.height = height;
+		this.planes = new short[channels][];
+		for(int c = 0; c < channels; c++) {
+			this.planes[c] = new short[width * height];
+		}
+	}
+
+	/**
+	 * Create a new instance of the ImageRaster class from existing planes.
+	 *
+	 * @param width
+	 * The width of the image.
+	 * @param height
+	 * The height of the image.
+	 * @param planes
+	 * The pixel planes, indexed by colour channel. Entries may
+	 * be null for channels that are not stored.
+	 */
+	public ImageRaster(int width, int height, short[][] planes) {
+		this.width = width;
+		this.height = height;
+		this.planes = planes;
+	}
+
+	/**
+	 * Get the width of the image.
+	 */
+	public int getWidth() {
+		return this.width;
+	}
+
+	/**
+	 * Get the height of the image.
+	 */
+	public int getHeight() {
+		return this.height;
+	}
+
+	/**
+	 * Get the number of channel slots of the image.
+	 */
+	public int getChannelCount() {
+		return this.planes.length;
+	}
+
+	/**
+	 * Get whether or not the given channel is stored.
+	 */
+	public boolean hasChannel(int channel) {
+		return channel < this.planes.length && this.planes[channel] != null;
+	}
+
+	/**
+	 * Get the plane of a channel.
+	 */
+	public short[] getPlane(int channel) {
+		return this.planes[channel];
+	}
+
+	/**
+	 * Set the plane of a channel.
+	 */
+	public void setPlane(int channel, short[] plane) {
+		this.planes[channel] = plane;
+	}
+
+	/**
+	 * Get the index of a pixel within a plane.
+	 */
+	public int index(int x, int y) {
+		return x * this.height + y;
+	}
+
+	/**
+	 * Get the value of a pixel for a channel.
+	 */
+	public short get(int x, int y, int channel) {
+		return this.planes[channel][x * this.height + y];
+	}
+
+	/**
+	 * Set the value of a pixel for a channel.
+	 */
+	public void set(int x, int y, int channel, short value) {
+		this.planes[channel][x * this.height + y] = value;
+	}
+
+	/**
+	 * Set the values of a pixel across all channels.
+	 *
+	 * @param x
+	 * The x location of the pixel.
+	 * @param y
+	 * The y location of the pixel.
+	 * @param color
+	 * The values to set, one per channel.
+	 */
+	public void setPixel(int x, int y, short[] color) {
+		int index = x * this.height + y;
+		for(int c = 0; c < this.planes.length; c++) {
+			if(this.planes[c] == null) continue;
+			this.planes[c][index] = color[c];
+		}
+	}
+
+	/**
+	 * Copy the values of one pixel onto another across all channels.
+	 */
+	public void copyPixel(int fromX, int fromY, int toX, int toY) {
+		int from = fromX * this.height + fromY;
+		int to = toX * this.height + toY;
+		for(int c = 0; c < this.planes.length; c++) {
+			if(this.planes[c] == null) continue;
+			this.planes[c][to] = this.planes[c][from];
+		}
+	}
+
+	/**
+	 * Set every pixel of every stored channel to zero.
+	 */
+	public void clear() {
+		for(int c = 0; c < this.planes.length; c++) {
+			if(this.planes[c] != null) {
+				Arrays.fill(this.planes[c], (short) 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,319 @@
+package tools.structures;
+
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Vector;
+
+/**
+ * A pool of scratch arrays for the working maps and planes of the detectors,
+ * reused across the images processed by one worker instead of allocating
+ * fresh arrays for every image.
+ *
+ * Arrays handed out are always cleared to zero, the same as newly allocated
+ * arrays, and are only reused once given back with release. Only arrays
+ * handed out by the arena are taken back, so values of any other origin may
+ * be passed to release safely. Free arrays are kept by their exact type and
+ * size, up to a capacity in bytes, and the free arrays of other sizes are
+ * dropped first when images change size.
+ *
+ * Arrays may be handed out and released from several threads at once.
+ *
+ * @author Peter Bugaj
+ */
+public class ScratchArena {
+
+	/**
+	 * The default number of bytes of free arrays kept for reuse.
+	 */
+	public static final long DEFAULT_CAPACITY = 256L * 1024L * 1024L;
+
+	/**
+	 * The number of bytes of free arrays kept for reuse.
+	 */
+	private long capacity;
+
+	/**
+	 * The free arrays, by type and size.
+	 */
+	private Hashtable<String, Vector<Object>> free = new Hashtable<String, Vector<Object>>();
+
+	/**
+	 * The type and size of each array handed out and not yet released.
+	 */
+	private IdentityHashMap<Object, String> outstanding = new IdentityHashMap<Object, String>();
+
+	/**
+	 * The number of bytes of the free arrays.
+	 */
+	private long freeBytes = 0;
+
+	/**
+	 * The number of bytes of the arrays newly allocated so far.
+	 */
+	private long allocatedBytes = 0;
+
+	/**
+	 * The number of bytes of the arrays reused so far.
+	 */
+	private long reusedBytes = 0;
+
+	/**
+	 * Create a new instance of the ScratchArena class,
+	 * keeping the default capacity of free arrays.
+	 */
+	public ScratchArena() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a new instance of the ScratchArena class.
+	 *
+	 * @param capacity
+	 * The number of bytes of free arrays kept for reuse.
+	 */
+	public ScratchArena(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Get a cleared plane of short values.
+	 *
+	 * @param length
+	 * The length of the plane.
+	 */
+	public synchronized short [] acquirePlane(int length) {
+		String key = "short[]" + length;
+		short [] plane = (short[]) this.reuse(key, 2L * length);
+		if(plane == null) {
+			plane = new short[length];
+			this.allocatedBytes += 2L * length;
+		} else {
+			Arrays.fill(plane, (short) 0);
+		}
+		this.outstanding.put(plane, key);
+		return plane;
+	}
+
+	/**
+	 * Get a cleared plane of int values.
+	 *
+	 * @param length
+	 * The length of the plane.
+	 */
+	public synchronized int [] acquireIntPlane(int length) {
+		String key = "int[]" + length;
+		int [] plane = (int[]) this.reuse(key, 4L * length);
+		if(plane == null) {
+			plane = new int[length];
+			this.allocatedBytes += 4L * length;
+		} else {
+			Arrays.fill(plane, 0);
+		}
+		this.outstanding.put(plane, key);
+		return plane;
+	}
+
+	/**
+	 * Get a cleared image with every channel allocated.
+	 *
+	 * @param width
+	 * The width of the image.
+	 * @param height
+	 * The height of the image.
+	 * @param channels
+	 * The number of colour channels to allocate.
+	 */
+	public ImageRaster acquireImage(int width, int height, int channels) {
+		short [][] planes = new short[channels][];
+		for(int c = 0; c < channels; c++) {
+			planes[c] = this.acquirePlane(width * height);
+		}
+		return new ImageRaster(width, height, planes);
+	}
+
+	/**
+	 * Get a cleared map of boolean values.
+	 *
+	 * @param width
+	 * The width of the map.
+	 * @param height
+	 * The height of the map.
+	 */
+	public synchronized boolean [][] acquireBooleanMap(int width, int height) {
+		String key = "boolean[][]" + width + "x" + height;
+		boolean [][] map = (boolean[][]) this.reuse(key, (long) width * height);
+		if(map == null) {
+			map = new boolean[width][height];
+			this.allocatedBytes += (long) width * height;
+		} else {
+			for(int i = 0; i < width; i++) {
+				Arrays.fill(map[i], false);
+			}
+		}
+		this.outstanding.put(map, key);
+		return map;
+	}
+
+	/**
+	 * Get a cleared map of short values.
+	 *
+	 * @param width
+	 * The width of the map.
+	 * @param height
+	 * The height of the map.
+	 */
+	public synchronized short [][] acquireShortMap(int width, int height) {
+		String key = "short[][]" + width + "x" + height;
+		short [][] map = (short[][]) this.reuse(key, 2L * width * height);
+		if(map == null) {
+			map = new short[width][height];
+			this.allocatedBytes += 2L * width * height;
+		} else {
+			for(int i = 0; i < width; i++) {
+				Arrays.fill(map[i], (short) 0);
+			}
+		}
+		this.outstanding.put(map, key);
+		return map;
+	}
+
+	/**
+	 * Get a cleared map of int values.
+	 *
+	 * @param width
+	 * The width of the map.
+	 * @param height
+	 * The height of the map.
+	 */
+	public synchronized int [][] acquireIntMap(int width, int height) {
+		String key = "int[][]" + width + "x" + height;
+		int [][] map = (int[][]) this.reuse(key, 4L * width * height);
+		if(map == null) {
+			map = new int[width][height];
+			this.allocatedBytes += 4L * width * height;
+		} else {
+			for(int i = 0; i < width; i++) {
+				Arrays.fill(map[i], 0);
+			}
+		}
+		this.outstanding.put(map, key);
+		return map;
+	}
+
+	/**
+	 * Give back an array for reuse. The array must no longer be used.
+	 * The planes of an image are given back one by one. Values not
+	 * handed out by the arena, or already given back, are ignored.
+	 *
+	 * @param scratch
+	 * The array or image to give back.
+	 */
+	public synchronized void release(Object scratch) {
+		if(scratch instanceof ImageRaster) {
+			ImageRaster image = (ImageRaster) scratch;
+			for(int c = 0; c < image.getChannelCount(); c++) {
+				if(image.hasChannel(c)) {
+					this.release(image.getPlane(c));
+				}
+			}
+			return;
+		}
+
+		String key = this.outstanding.remove(scratch);
+		if(key == null) {
+			return;
+		}
+
+		long bytes = sizeOf(scratch);
+		this.evict(key, bytes);
+		if(this.freeBytes + bytes > this.capacity) {
+			return;
+		}
+
+		Vector<Object> arrays = this.free.get(key);
+		if(arrays == null) {
+			arrays = new Vector<Object>();
+			this.free.put(key, arrays);
+		}
+		arrays.add(scratch);
+		this.freeBytes += bytes;
+	}
+
+	/**
+	 * Get the number of bytes of the arrays newly allocated so far.
+	 */
+	public synchronized long getAllocatedBytes() {
+		return this.allocatedBytes;
+	}
+
+	/**
+	 * Get the number of bytes of the arrays reused so far.
+	 */
+	public synchronized long getReusedBytes() {
+		return this.reusedBytes;
+	}
+
+	/**
+	 * Get the number of bytes of the free arrays kept for reuse.
+	 */
+	public synchronized long getFreeBytes() {
+		return this.freeBytes;
+	}
+
+	/**
+	 * Helper function for taking a free array of the given type and
+	 * size, or null if there is none. Makes room for allocating a new
+	 * array by dropping the free arrays of other types and sizes.
+	 */
+	private Object reuse(String key, long bytes) {
+		Vector<Object> arrays = this.free.get(key);
+		if(arrays == null || arrays.isEmpty()) {
+			this.evict(key, bytes);
+			return null;
+		}
+		this.freeBytes -= bytes;
+		this.reusedBytes += bytes;
+		return arrays.remove(arrays.size() - 1);
+	}
+
+	/**
+	 * Helper function for dropping the free arrays of types and sizes
+	 * other than the given one until the given number of bytes fits.
+	 */
+	private void evict(String key, long bytes) {
+		Enumeration<String> keys = this.free.keys();
+		while(this.freeBytes + bytes > this.capacity && keys.hasMoreElements()) {
+			String next = keys.nextElement();
+			if(next.equals(key)) continue;
+			Vector<Object> arrays = this.free.remove(next);
+			for(int i = 0; i < arrays.size(); i++) {
+				this.freeBytes -= sizeOf(arrays.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Helper function for getting the number of bytes of the
+	 * values held by an array handed out by the arena.
+	 */
+	private static long sizeOf(Object scratch) {
+		if(scratch instanceof short[]) {
+			return 2L * ((short[]) scratch).length;
+		}
+		if(scratch instanceof int[]) {
+			return 4L * ((int[]) scratch).length;
+		}
+		if(scratch instanceof boolean[][]) {
+			boolean [][] map = (boolean[][]) scratch;
+			return (long) map.length * map[0].length;
+		}
+		if(scratch instanceof short[][]) {
+			short [][] map = (short[][]) scratch;
+			return 2L * map.length * map[0].length;
+		}
+		int [][] map = (int[][]) scratch;
+		return 4L * map.length * map[0].length;
+	}
+}
@@ -35,6 +35,8 @@ public class ClassTrainer {
 	 * 
 	 * @param args
 	 * [0] = Directory containing the training feature data.
+	 * [1] = Optional comma separated names of the feature columns to train
+	 *       on, where a '*' matches any run of characters. All by default.
 	 */
 	public static void main(String[] args) {
 		
@@ -45,11 +47,19 @@ public class ClassTrainer {
 		} else {
 			inputDir = "./Ratings";
 		}
+
+		// Read the names of the feature columns to train on, if any.
+		String [] selection = null;
+		if(args.length > 1) {
+			selection = FeatureMatrix.parseSelection(args[1]);
+		}
 		
 		int seed = 0;
 		
 		// Read in the feature value pairs from the input directory specified.
-		Vector<FeatureValuePair> featurePairs = readInFeatures(inputDir);
+		Vector<FeatureValuePair> featurePairs = selection == null ?
+			readInFeatures(inputDir) :
+			FeatureMatrix.read(inputDir, selection, true).toFeatureValuePairs();
 
 		
 		// Shuffle the input values and train the
@@ -210,6 +220,13 @@ public class ClassTrainer {
 		/**The features to collect.**/
 		Vector<FeatureValuePair> featureValuePairs = new Vector<FeatureValuePair>();
 		
+		// Read the features from the feature stores in the directory
+		// if there are any, instead of a text file for each image.
+		Vector<FeatureValuePair> stored_pairs = FeatureValuePair.readFromStores(inputDirectory, true);
+		if(stored_pairs.size() > 0) {
+			return stored_pairs;
+		}
+
 		// Read each file in the directory provided.
 		int prev_size = -1;
 		File folder = new File(inputDirectory);
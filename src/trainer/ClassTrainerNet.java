@@ -33,6 +33,8 @@ public class ClassTrainerNet {
 	 * 
 	 * @param args
 	 * [0] = Directory containing the training feature data.
+	 * [1] = Optional comma separated names of the feature columns to train
+	 *       on, where a '*' matches any run of characters. All by default.
 	 */
 	public static void main(String[] args) {
 		
@@ -44,8 +46,16 @@ public class ClassTrainerNet {
 			inputDir = "./Ratings";
 		}
 
+		// Read the names of the feature columns to train on, if any.
+		String [] selection = null;
+		if(args.length > 1) {
+			selection = FeatureMatrix.parseSelection(args[1]);
+		}
+
 		// Read in the feature value pairs from the input directory specified.
-		Vector<FeatureValuePair> featurePairs = readInFeatures(inputDir);
+		Vector<FeatureValuePair> featurePairs = selection == null ?
+			readInFeatures(inputDir) :
+			FeatureMatrix.read(inputDir, selection, true).toFeatureValuePairs();
 
 		
 		// Shuffle the input values and train the
@@ -279,6 +289,13 @@ public class ClassTrainerNet {
 		/**The features to collect.**/
 		Vector<FeatureValuePair> featureValuePairs = new Vector<FeatureValuePair>();
 		
+		// Read the features from the feature stores in the directory
+		// if there are any, instead of a text file for each image.
+		Vector<FeatureValuePair> stored_pairs = FeatureValuePair.readFromStores(inputDirectory, true);
+		if(stored_pairs.size() > 0) {
+			return stored_pairs;
+		}
+
 		// Read each file in the directory provided.
 		int prev_size = -1;
 		File folder = new File(inputDirectory);
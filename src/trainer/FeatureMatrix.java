@@ -0,0 +1,430 @@
+package trainer;
+
+import detectors.FeatureSchema;
+import io.FeatureStore;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.Vector;
+import java.util.regex.Pattern;
+
+/**
+ * The features of a set of images, read with only a selection of the
+ * feature columns and held in one primitive array of rows, instead of
+ * an array and a pair object for every image.
+ *
+ * Columns are selected by name, where a '*' within a name matches any
+ * run of characters, such as "STRONG_VEIN_RATIO|*" for the ratios of the
+ * strong veins, or "MICROANEURISM|*|SMALL_*" for the small microaneurysm
+ * bins of both polarities and intensities. The rating of each image is
+ * kept apart from the selected columns.
+ *
+ * The features are read from the feature stores of a directory if it has
+ * any, reading only the selected columns of each row. Otherwise they are
+ * read from the text file of each image, whose lines follow the order of
+ * the FeatureSchema, parsing only the lines of the selected columns.
+ *
+ * @author Peter Bugaj
+ */
+public class FeatureMatrix {
+
+	/**
+	 * The names of the selected columns.
+	 */
+	private String [] columnNames;
+
+	/**
+	 * The names of the images of the rows.
+	 */
+	private Vector<String> imageNames = new Vector<String>();
+
+	/**
+	 * The rating of the image of each row.
+	 */
+	private int [] ratings = new int[16];
+
+	/**
+	 * The values of the selected columns, row after row.
+	 */
+	private double [] values;
+
+	/**
+	 * The number of rows.
+	 */
+	private int rowCount = 0;
+
+	/**
+	 * Create a new instance of the FeatureMatrix class with no rows.
+	 *
+	 * @param columnNames
+	 * The names of the selected columns.
+	 */
+	private FeatureMatrix(String [] columnNames) {
+		this.columnNames = columnNames;
+		this.values = new double[16 * columnNames.length];
+	}
+
+	/**
+	 * Get the names of the selected columns.
+	 */
+	public String [] getColumnNames() {
+		return this.columnNames.clone();
+	}
+
+	/**
+	 * Get the number of selected columns.
+	 */
+	public int getColumnCount() {
+		return this.columnNames.length;
+	}
+
+	/**
+	 * Get the number of rows.
+	 */
+	public int getRowCount() {
+		return this.rowCount;
+	}
+
+	/**
+	 * Get the name of the image of a row.
+	 *
+	 * @param row
+	 * The row, below the number of rows.
+	 */
+	public String getImageName(int row) {
+		return this.imageNames.get(row);
+	}
+
+	/**
+	 * Get the rating of the image of a row.
+	 *
+	 * @param row
+	 * The row, below the number of rows.
+	 */
+	public int getRating(int row) {
+		return this.ratings[row];
+	}
+
+	/**
+	 * Get the value of a selected column of a row.
+	 *
+	 * @param row
+	 * The row, below the number of rows.
+	 * @param column
+	 * The index of the column among the selected columns.
+	 */
+	public double getValue(int row, int column) {
+		return this.values[row * this.columnNames.length + column];
+	}
+
+	/**
+	 * Copy the values of the selected columns of a row.
+	 *
+	 * @param row
+	 * The row, below the number of rows.
+	 */
+	public double [] getRow(int row) {
+		double [] row_values = new double[this.columnNames.length];
+		System.arraycopy(this.values, row * this.columnNames.length, row_values, 0, row_values.length);
+		return row_values;
+	}
+
+	/**
+	 * Get a feature value pair for each row, holding
+	 * the values of the selected columns of the row.
+	 */
+	public Vector<FeatureValuePair> toFeatureValuePairs() {
+		Vector<FeatureValuePair> featureValuePairs = new Vector<FeatureValuePair>();
+		for(int i = 0; i < this.rowCount; i++) {
+			featureValuePairs.add(new FeatureValuePair(this.getImageName(i), this.getRating(i), this.getRow(i)));
+		}
+		return featureValuePairs;
+	}
+
+	/**
+	 * Read the selected columns of the features within a directory.
+	 *
+	 * @param inputDirectory
+	 * The directory containing the feature stores, or else
+	 * the text file of the features of each image.
+	 * @param selection
+	 * The names of the columns to read, where a '*' matches any run of
+	 * characters, or null to read every column but the rating.
+	 * @param readRatings
+	 * Whether to read the ratings, or to leave the ratings at zero.
+	 * @return
+	 * The features read.
+	 */
+	public static FeatureMatrix read(String inputDirectory, String [] selection, boolean readRatings) {
+
+		File[] listOfFiles = new File(inputDirectory).listFiles();
+		FeatureMatrix matrix = readStores(listOfFiles, selection, readRatings);
+		if(matrix == null) {
+			matrix = readTextFiles(listOfFiles, selection, readRatings);
+		}
+		return matrix;
+	}
+
+	/**
+	 * Split a column selection given as a comma separated list of names.
+	 *
+	 * @param selection
+	 * The names of the columns, separated by commas.
+	 */
+	public static String [] parseSelection(String selection) {
+		Vector<String> names = new Vector<String>();
+		for(String name : selection.split(",")) {
+			if(name.trim().length() > 0) {
+				names.add(name.trim());
+			}
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * Helper function for reading the selected columns from every feature
+	 * store among the files, or returning null if there are no stores.
+	 */
+	private static FeatureMatrix readStores(File [] files, String [] selection, boolean readRatings) {
+
+		FeatureMatrix matrix = null;
+		int feature_version = -1;
+		int [] rating_column = new int[]{FeatureSchema.RATING};
+		double [] rating = new double[1];
+		for (File file : files) {
+			if (!file.isFile() || !file.getName().endsWith(FeatureStore.EXTENSION)) {
+				continue;
+			}
+
+			FeatureStore store = new FeatureStore(file.getPath(), false);
+			String [] column_names = store.getColumnNames();
+			if(column_names == null) {
+				store.close();
+				continue;
+			}
+
+			if(feature_version == -1) {
+				feature_version = store.getFeatureVersion();
+			} else if(feature_version != store.getFeatureVersion()) {
+				System.out.println("Feature stores of versions " + feature_version + " and " +
+					store.getFeatureVersion() + " cannot be mixed: " + file.getPath());
+				System.exit(1);
+			}
+
+			int [] columns = selectColumns(column_names, selection);
+			if(matrix == null) {
+				matrix = new FeatureMatrix(getNames(column_names, columns));
+			} else {
+				matrix.checkColumns(getNames(column_names, columns));
+			}
+
+			for(int i = 0; i < store.getRowCount(); i++) {
+				String image_name = store.getImageName(i);
+				if(store.findRow(image_name) != i) {
+					continue;
+				}
+
+				int offset = matrix.addRow(image_name);
+				store.readColumns(i, columns, matrix.values, offset);
+				if(readRatings) {
+					store.readColumns(i, rating_column, rating, 0);
+					matrix.ratings[matrix.rowCount - 1] = (int) rating[0];
+				}
+				matrix.cleanRow(offset);
+			}
+			store.close();
+		}
+
+		return matrix;
+	}
+
+	/**
+	 * Helper function for reading the selected columns
+	 * from the text file of the features of each image.
+	 */
+	private static FeatureMatrix readTextFiles(File [] files, String [] selection, boolean readRatings) {
+
+		String [] column_names = FeatureSchema.getNames();
+		int [] columns = selectColumns(column_names, selection);
+		FeatureMatrix matrix = new FeatureMatrix(getNames(column_names, columns));
+
+		// The position of each schema column among the selected columns.
+		int [] positions = new int[column_names.length];
+		for(int i = 0; i < positions.length; i++) {
+			positions[i] = -1;
+		}
+		for(int i = 0; i < columns.length; i++) {
+			positions[columns[i]] = i;
+		}
+
+		double [] row = new double[columns.length];
+		for (File file : files) {
+			if (!file.isFile()) {
+				continue;
+			}
+
+			// Parse only the values of the selected lines of the file.
+			int line_count = 0;
+			int rating = 0;
+			try {
+				BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+				String line;
+				while ((line = br.readLine()) != null) {
+					int split = line.indexOf('#');
+					if(split < 0 || split == line.length() - 1) {
+						continue;
+					}
+
+					if(line_count < positions.length) {
+						String value = line.substring(split + 1);
+						int end = value.indexOf('#');
+						if(end >= 0) {
+							value = value.substring(0, end);
+						}
+						if(line_count == FeatureSchema.RATING) {
+							rating = readRatings ? Integer.parseInt(value) : 0;
+						} else if(positions[line_count] >= 0) {
+							row[positions[line_count]] = Double.parseDouble(value);
+						}
+					}
+					line_count++;
+				}
+				br.close();
+			} catch(Exception  e) {
+				System.out.println("Failed feature data.");
+			}
+
+			if(line_count == 0) {
+				continue;
+			}
+			if(line_count != column_names.length) {
+				System.out.println("Uneven dimensions!!");
+				System.exit(0);
+			}
+
+			int offset = matrix.addRow(file.getName());
+			System.arraycopy(row, 0, matrix.values, offset, row.length);
+			matrix.ratings[matrix.rowCount - 1] = rating;
+			matrix.cleanRow(offset);
+		}
+
+		return matrix;
+	}
+
+	/**
+	 * Helper function for finding the columns matched by a selection,
+	 * in the order of the columns and leaving out the rating.
+	 */
+	private static int [] selectColumns(String [] columnNames, String [] selection) {
+
+		boolean [] selected = new boolean[columnNames.length];
+		if(selection == null) {
+			for(int i = 0; i < selected.length; i++) {
+				selected[i] = true;
+			}
+		} else {
+			for(String name : selection) {
+				Pattern pattern = toPattern(name);
+				boolean found = false;
+				for(int i = 0; i < columnNames.length; i++) {
+					if(pattern.matcher(columnNames[i]).matches()) {
+						selected[i] = true;
+						found = true;
+					}
+				}
+				if(!found) {
+					System.out.println("No feature column matches " + name);
+					System.exit(1);
+				}
+			}
+		}
+		selected[FeatureSchema.RATING] = false;
+
+		int count = 0;
+		for(int i = 0; i < selected.length; i++) {
+			if(selected[i]) count++;
+		}
+		int [] columns = new int[count];
+		count = 0;
+		for(int i = 0; i < selected.length; i++) {
+			if(selected[i]) columns[count++] = i;
+		}
+		return columns;
+	}
+
+	/**
+	 * Helper function for turning a column name, where a '*' matches
+	 * any run of characters, into a pattern matching the names.
+	 */
+	private static Pattern toPattern(String name) {
+		StringBuilder regex = new StringBuilder();
+		int start = 0;
+		int star;
+		while((star = name.indexOf('*', start)) >= 0) {
+			regex.append(Pattern.quote(name.substring(start, star))).append(".*");
+			start = star + 1;
+		}
+		regex.append(Pattern.quote(name.substring(start)));
+		return Pattern.compile(regex.toString());
+	}
+
+	/**
+	 * Helper function for getting the names of the selected columns.
+	 */
+	private static String [] getNames(String [] columnNames, int [] columns) {
+		String [] names = new String[columns.length];
+		for(int i = 0; i < columns.length; i++) {
+			names[i] = columnNames[columns[i]];
+		}
+		return names;
+	}
+
+	/**
+	 * Helper function for ending the read if a source selects
+	 * other columns than the sources read before it.
+	 */
+	private void checkColumns(String [] columnNames) {
+		if(columnNames.length != this.columnNames.length) {
+			System.out.println("Uneven dimensions!!");
+			System.exit(0);
+		}
+		for(int i = 0; i < columnNames.length; i++) {
+			if(!columnNames[i].equals(this.columnNames[i])) {
+				System.out.println("Feature columns differ between stores: " + columnNames[i]);
+				System.exit(0);
+			}
+		}
+	}
+
+	/**
+	 * Helper function for adding a row, growing the arrays if full,
+	 * and returning the position of its first value.
+	 */
+	private int addRow(String imageName) {
+		if(this.rowCount == this.ratings.length) {
+			int [] ratings = new int[this.ratings.length * 2];
+			System.arraycopy(this.ratings, 0, ratings, 0, this.rowCount);
+			this.ratings = ratings;
+
+			double [] values = new double[ratings.length * this.columnNames.length];
+			System.arraycopy(this.values, 0, values, 0, this.rowCount * this.columnNames.length);
+			this.values = values;
+		}
+		this.imageNames.add(imageName);
+		return this.rowCount++ * this.columnNames.length;
+	}
+
+	/**
+	 * Helper function for zeroing the values of a row that are not numbers.
+	 */
+	private void cleanRow(int offset) {
+		for(int i = offset; i < offset + this.columnNames.length; i++) {
+			if(Double.isInfinite(this.values[i]) || Double.isNaN(this.values[i])) {
+				System.out.println("Bad numerical data found!");
+				this.values[i] = 0;
+			}
+		}
+	}
+}
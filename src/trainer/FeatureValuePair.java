@@ -1,5 +1,10 @@
 package trainer;
 
+import io.FeatureStore;
+
+import java.io.File;
+import java.util.Vector;
+
 /**
  * Data structure for storing a feature vector and
  * its associated classification.
@@ -59,4 +64,74 @@ public class FeatureValuePair {
 	public double[] getFeatureData() {
 		return this.feature;
 	}
+
+	/**
+	 * Read the features of every image from the feature stores within a
+	 * directory. The first column of each store holds the rating of the
+	 * image, and the rest of the columns the feature vector. An image
+	 * appended to a store more than once is read from its last row.
+	 * 
+	 * @param inputDirectory
+	 * The directory containing the feature stores.
+	 * @param readRatings
+	 * Whether to read the ratings as the classification values,
+	 * or to leave the classification values at zero.
+	 * @return
+	 * The features read, or none if the directory has no feature stores.
+	 */
+	public static Vector<FeatureValuePair> readFromStores(String inputDirectory, boolean readRatings) {
+
+		Vector<FeatureValuePair> featureValuePairs = new Vector<FeatureValuePair>();
+		int prev_size = -1;
+		int feature_version = -1;
+		File[] listOfFiles = new File(inputDirectory).listFiles();
+		for (File file : listOfFiles) {
+			if (!file.isFile() || !file.getName().endsWith(FeatureStore.EXTENSION)) {
+				continue;
+			}
+
+			FeatureStore store = new FeatureStore(file.getPath(), false);
+			String [] column_names = store.getColumnNames();
+			if(column_names == null) {
+				store.close();
+				continue;
+			}
+			if(feature_version == -1) {
+				feature_version = store.getFeatureVersion();
+			} else if(feature_version != store.getFeatureVersion()) {
+				System.out.println("Feature stores of versions " + feature_version + " and " +
+					store.getFeatureVersion() + " cannot be mixed: " + file.getPath());
+				System.exit(1);
+			}
+			if(prev_size == -1) {
+				prev_size = column_names.length - 1;
+			} else if(prev_size != column_names.length - 1) {
+				System.out.println("Uneven dimensions!!");
+				System.exit(0);
+			}
+
+			double [] row = new double[column_names.length];
+			for(int i = 0; i < store.getRowCount(); i++) {
+				String image_name = store.getImageName(i);
+				if(store.findRow(image_name) != i) {
+					continue;
+				}
+
+				store.readRow(i, row);
+				double [] feature_data = new double[row.length - 1];
+				for(int k = 1; k < row.length; k++) {
+					feature_data[k-1] = row[k];
+					if(Double.isInfinite(feature_data[k-1]) || Double.isNaN(feature_data[k-1])) {
+						System.out.println("Bad numerical data found!");
+						feature_data[k-1] = 0;
+					}
+				}
+				featureValuePairs.add(new FeatureValuePair(
+					image_name, readRatings ? (int) row[0] : 0, feature_data));
+			}
+			store.close();
+		}
+
+		return featureValuePairs;
+	}
 }